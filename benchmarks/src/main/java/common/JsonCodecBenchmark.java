@@ -0,0 +1,53 @@
+package common;
+
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JSON编解码基准
+ * 测量 JsonUtils.toJson / fromJson 在不同消息大小下的耗时，从一行文本到数MB的图片。
+ * 图片消息的 content.data 是Base64字符串，与换行JSON帧中传输的形式一致。
+ *
+ * java -jar benchmarks/target/benchmarks.jar JsonCodecBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=OFF")
+public class JsonCodecBenchmark {
+
+    @Param({"TEXT", "IMAGE_64KB", "IMAGE_1MB", "IMAGE_4MB"})
+    private String payload;
+
+    private Message message;
+    private String json;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (payload.equals("TEXT")) {
+            message = Message.createTextMessage("alice", "bob", Message.TargetType.USER, "你好，今晚一起吃饭吗？");
+        } else {
+            int size = payload.equals("IMAGE_64KB") ? 64 * 1024
+                    : payload.equals("IMAGE_1MB") ? 1024 * 1024 : 4 * 1024 * 1024;
+            byte[] image = new byte[size];
+            new Random(42).nextBytes(image);
+            message = Message.createImageMessage("alice", "bob", Message.TargetType.USER,
+                    "bench.png", Base64.getEncoder().encodeToString(image), size);
+        }
+        json = JsonUtils.toJson(message);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return JsonUtils.toJson(message);
+    }
+
+    @Benchmark
+    public Message fromJson() {
+        return JsonUtils.fromJson(json);
+    }
+}
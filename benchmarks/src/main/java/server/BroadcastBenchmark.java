@@ -0,0 +1,43 @@
+package server;
+
+import common.Message;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 全员广播基准
+ * 测量 ClientManager.broadcast 在不同在线人数下的耗时（编码一次后逐个入队），
+ * 接收者是内存处理器，不涉及网络写出。
+ *
+ * java -jar benchmarks/target/benchmarks.jar BroadcastBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=OFF")
+public class BroadcastBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int onlineUsers;
+
+    private ClientManager clientManager;
+    private InMemoryClients clients;
+    private Message message;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ChatServer server = new ChatServer(0);
+        clients = InMemoryClients.register(server, onlineUsers);
+        clientManager = server.getClientManager();
+        message = Message.createTextMessage("system", null, Message.TargetType.ALL, "服务器将于10分钟后维护");
+    }
+
+    @Benchmark
+    public void broadcast(Blackhole bh) {
+        clientManager.broadcast(message);
+        clients.drain(bh);
+    }
+}
@@ -0,0 +1,95 @@
+package server;
+
+import common.Message;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 群发编码开销基准
+ * 对比“每个接收者各自序列化一次”与“只编码一次、共享预编码帧”两种群发方式。
+ * 使用 -prof gc 运行可同时看到每次群发的分配字节数 (gc.alloc.rate.norm)。
+ *
+ * java -jar benchmarks/target/benchmarks.jar FanoutBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=OFF")
+public class FanoutBenchmark {
+
+    @Param({"10", "100", "500"})
+    private int groupSize;
+
+    @Param({"TEXT", "IMAGE_1MB"})
+    private String payload;
+
+    private MessageRouter router;
+    private List<ClientHandler> recipients;
+    private Message message;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ChatServer server = new ChatServer(0);
+        ClientManager clientManager = server.getClientManager();
+        List<String> members = new ArrayList<>();
+        recipients = new ArrayList<>();
+        for (int i = 0; i < groupSize; i++) {
+            String username = "user-" + i;
+            ClientHandler handler = new ClientHandler(server, username);
+            clientManager.addClient(username, handler);
+            members.add(username);
+            if (i > 0) {
+                recipients.add(handler);
+            }
+        }
+        String groupId = server.getGroupManager().createGroup("bench", "user-0", members).getGroupId();
+        router = server.getMessageRouter();
+
+        if (payload.equals("TEXT")) {
+            message = Message.createTextMessage("user-0", groupId, Message.TargetType.GROUP, "hello, group");
+        } else {
+            byte[] image = new byte[768 * 1024];
+            new Random(42).nextBytes(image);
+            String base64 = Base64.getEncoder().encodeToString(image);
+            message = Message.createImageMessage("user-0", groupId, Message.TargetType.GROUP,
+                    "bench.png", base64, image.length);
+        }
+    }
+
+    /**
+     * 旧方式：每个接收者调用一次 sendMessage，各自序列化并编码
+     */
+    @Benchmark
+    public void encodePerRecipient(Blackhole bh) {
+        for (ClientHandler handler : recipients) {
+            handler.sendMessage(message);
+        }
+        drain(bh);
+    }
+
+    /**
+     * 新方式：MessageRouter 编码一次，所有接收者共享同一帧
+     */
+    @Benchmark
+    public void encodeOnce(Blackhole bh) {
+        router.routeMessage(message);
+        drain(bh);
+    }
+
+    /**
+     * 清空内存处理器的出站队列，模拟写出者取走数据
+     */
+    private void drain(Blackhole bh) {
+        for (ClientHandler handler : recipients) {
+            OutboundQueue queue = handler.getOutboundQueue();
+            OutboundFrame frame;
+            while ((frame = queue.poll()) != null) {
+                bh.consume(frame);
+            }
+        }
+    }
+}
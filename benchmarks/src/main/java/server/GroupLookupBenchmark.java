@@ -0,0 +1,63 @@
+package server;
+
+import common.Group;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 群组查询基准
+ * 在大量群组下测量 GroupManager.getGroupsForUser（登录时下发群组列表）和
+ * isGroupMember（每条群消息的权限校验）的耗时。
+ * 每个群组有 membersPerGroup 个从用户池中随机选出的成员，平均每个用户加入
+ * groups * membersPerGroup / USERS 个群组。
+ *
+ * java -jar benchmarks/target/benchmarks.jar GroupLookupBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=OFF")
+public class GroupLookupBenchmark {
+    private static final int USERS = 10_000;
+
+    @Param({"100000"})
+    private int groups;
+
+    @Param({"5", "50"})
+    private int membersPerGroup;
+
+    private GroupManager groupManager;
+    private String[] groupIds;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        groupManager = new GroupManager();
+        groupIds = new String[groups];
+        Random setupRandom = new Random(42);
+        for (int i = 0; i < groups; i++) {
+            List<String> members = new ArrayList<>(membersPerGroup);
+            for (int j = 0; j < membersPerGroup; j++) {
+                members.add("user-" + setupRandom.nextInt(USERS));
+            }
+            Group group = groupManager.createGroup("group-" + i, members.get(0), members);
+            groupIds[i] = group.getGroupId();
+        }
+        random = new Random(7);
+    }
+
+    @Benchmark
+    public List<Group> getGroupsForUser() {
+        return groupManager.getGroupsForUser("user-" + random.nextInt(USERS));
+    }
+
+    @Benchmark
+    public boolean isGroupMember() {
+        return groupManager.isGroupMember(groupIds[random.nextInt(groups)], "user-" + random.nextInt(USERS));
+    }
+}
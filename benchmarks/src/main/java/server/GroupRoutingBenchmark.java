@@ -0,0 +1,50 @@
+package server;
+
+import common.Message;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 群组路由基准
+ * 测量 MessageRouter 把一条文本消息路由到不同规模群组的耗时（成员校验、取成员列表、逐个入队），
+ * 接收者是内存处理器，不涉及网络写出。
+ *
+ * java -jar benchmarks/target/benchmarks.jar GroupRoutingBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=OFF")
+public class GroupRoutingBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    private int groupSize;
+
+    private MessageRouter router;
+    private InMemoryClients clients;
+    private Message message;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ChatServer server = new ChatServer(0);
+        clients = InMemoryClients.register(server, groupSize);
+        List<String> members = new ArrayList<>(groupSize);
+        for (int i = 0; i < groupSize; i++) {
+            members.add("user-" + i);
+        }
+        String groupId = server.getGroupManager().createGroup("bench", "user-0", members).getGroupId();
+        router = server.getMessageRouter();
+        message = Message.createTextMessage("user-0", groupId, Message.TargetType.GROUP, "hello, group");
+    }
+
+    @Benchmark
+    public void routeToGroup(Blackhole bh) {
+        router.routeMessage(message);
+        clients.drain(bh);
+    }
+}
@@ -0,0 +1,45 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 基准测试用的内存客户端
+ * 在服务器上登记不绑定网络连接的处理器，出站帧只进入队列，由基准方法自行清空。
+ */
+final class InMemoryClients {
+    private final List<ClientHandler> handlers;
+
+    private InMemoryClients(List<ClientHandler> handlers) {
+        this.handlers = handlers;
+    }
+
+    /**
+     * 登记 user-0 .. user-(count-1) 共 count 个在线用户
+     */
+    static InMemoryClients register(ChatServer server, int count) {
+        List<ClientHandler> handlers = new ArrayList<>(count);
+        ClientManager clientManager = server.getClientManager();
+        for (int i = 0; i < count; i++) {
+            String username = "user-" + i;
+            ClientHandler handler = new ClientHandler(server, username);
+            clientManager.addClient(username, handler);
+            handlers.add(handler);
+        }
+        return new InMemoryClients(handlers);
+    }
+
+    /**
+     * 清空全部出站队列，模拟写出者取走数据
+     */
+    void drain(Blackhole bh) {
+        for (ClientHandler handler : handlers) {
+            OutboundQueue queue = handler.getOutboundQueue();
+            OutboundFrame frame;
+            while ((frame = queue.poll()) != null) {
+                bh.consume(frame);
+            }
+        }
+    }
+}
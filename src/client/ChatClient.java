@@ -1,27 +1,62 @@
 package client;
 
+import client.util.FileReceiver;
 import common.*;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonParseException;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 聊天客户端
  * 负责与服务器建立连接和消息通信
  */
 public class ChatClient {
+    private static final Log LOG = Log.get("client", "客户端");
+    // 是否在登录时请求二进制帧（服务器不支持时自动保持换行JSON）
+    private static final boolean REQUEST_BINARY_FRAMING =
+            Boolean.parseBoolean(System.getProperty("chat.client.binary", "true"));
+    // 文件分片大小，发送文件时每次只读入一个分片
+    private static final int FILE_CHUNK_SIZE = Integer.getInteger("chat.file.chunkSize", 256 * 1024);
+    // 发送文件时未被服务器确认的分片上限
+    private static final int FILE_WINDOW = Math.max(1, Integer.getInteger("chat.file.window", 8));
+    // 等待接收方接受文件的时间
+    private static final long FILE_ACCEPT_TIMEOUT_MILLIS =
+            Long.getLong("chat.file.acceptTimeoutSeconds", 300) * 1000;
+    // 心跳间隔；超过三个间隔没有收到服务器的任何消息即认为连接已失效
+    private static final long HEARTBEAT_INTERVAL_MILLIS =
+            Long.getLong("chat.heartbeatIntervalSeconds", 30) * 1000;
+    
     private Socket socket;
-    private BufferedReader reader;
-    private PrintWriter writer;
+    private String host;                        // 最近一次连接的服务器地址，重连时使用
+    private int port;
+    private FrameInput input;
+    private OutputStream output;
+    private volatile WireFormat wireFormat;
     private String username;
     private volatile boolean connected;
     private Thread receiveThread;
+    private Thread heartbeatThread;
+    private volatile long lastReceivedMillis;   // 最近一次收到服务器消息的时间
     private final List<MessageListener> listeners;
+    private final Map<String, FileUpload> uploads;  // 未完成的上传，断线后保留以便续传
+    private volatile FileReceiver fileReceiver;
+    private long presenceEpoch;                 // 最后应用的在线状态纪元，0表示尚未同步
+    private boolean presenceSyncPending;        // 已请求同步，等待服务器回复
+    private Message historyResponse;            // 正在接收的历史查询结果（只由接收线程访问）
+    private List<Message> historyMessages;      // 该结果随后的本页消息
     
     public ChatClient() {
         this.listeners = new ArrayList<>();
+        this.uploads = new ConcurrentHashMap<>();
+        this.fileReceiver = FileReceiver.createDefault();
         this.connected = false;
+        this.wireFormat = WireFormat.JSON_LINE;
     }
     
     /**
@@ -43,63 +78,133 @@ public class ChatClient {
      */
     public boolean connect(String host, int port, String username) {
         try {
+            this.host = host;
+            this.port = port;
             socket = new Socket(host, port);
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-            writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+            input = new FrameInput(socket.getInputStream());
+            output = new BufferedOutputStream(socket.getOutputStream());
+            wireFormat = WireFormat.JSON_LINE;
             
             this.username = username;
             this.connected = true;
             
-            // 发送登录请求
-            sendMessage(Message.createLoginMessage(username));
+            // 发送登录请求（登录阶段始终使用换行JSON）
+            Message login = Message.createLoginMessage(username);
+            if (REQUEST_BINARY_FRAMING) {
+                login.getContent().put(WireFormat.CONTENT_KEY, WireFormat.BINARY.getWireName());
+            }
+            // 带上已应用的在线状态纪元，重连时服务器只发来断线期间的变更
+            login.getContent().put("presenceEpoch", presenceEpoch);
+            presenceSyncPending = false;
+            sendMessage(login);
             
-            // 等待登录响应
-            String response = reader.readLine();
-            if (response != null) {
-                Message loginResponse = JsonUtils.fromJson(response);
-                if (loginResponse.getType() == MessageType.LOGIN_RESPONSE) {
-                    Boolean success = loginResponse.getContentBoolean("success");
-                    if (success != null && success) {
-                        // 登录成功，启动接收线程
-                        startReceiveThread();
-                        return true;
-                    } else {
-                        String errorMsg = loginResponse.getContentString("message");
-                        System.err.println("[客户端] 登录失败: " + errorMsg);
-                        disconnect();
-                        return false;
+            // 等待登录响应，之前到达的其他推送暂存，登录成功后再处理
+            List<Message> early = new ArrayList<>();
+            Message loginResponse;
+            while ((loginResponse = input.read()) != null
+                    && loginResponse.getType() != MessageType.LOGIN_RESPONSE) {
+                early.add(loginResponse);
+            }
+            if (loginResponse != null) {
+                Boolean success = loginResponse.getContentBoolean("success");
+                if (success != null && success) {
+                    // 服务器确认二进制帧后，之后的收发都切换为二进制帧
+                    WireFormat negotiated = WireFormat.fromWireName(
+                            loginResponse.getContentString(WireFormat.CONTENT_KEY));
+                    input.setFormat(negotiated);
+                    wireFormat = negotiated;
+                    
+                    for (Message message : early) {
+                        handleMessage(message);
                     }
+                    // 登录成功，启动接收线程和心跳线程
+                    startReceiveThread();
+                    startHeartbeatThread();
+                    return true;
+                } else {
+                    String errorMsg = loginResponse.getContentString("message");
+                    LOG.warn("登录失败", "user", username, "reason", errorMsg);
+                    disconnect();
+                    return false;
                 }
             }
             
             disconnect();
             return false;
             
-        } catch (IOException e) {
-            System.err.println("[客户端] 连接失败: " + e.getMessage());
+        } catch (IOException | JsonParseException e) {
+            LOG.warn("连接失败", "host", host, "port", port, "error", e.getMessage());
             disconnect();
             return false;
         }
     }
     
+    /**
+     * 断线后以上次的地址和用户名重新登录，成功后续传未完成的上传和下载
+     * @return 是否已重新登录
+     */
+    public boolean reconnect() {
+        if (connected) {
+            return true;
+        }
+        if (host == null || username == null) {
+            return false;
+        }
+        if (!connect(host, port, username)) {
+            return false;
+        }
+        LOG.info("已重新连接", "user", username);
+        resumeTransfers();
+        return true;
+    }
+    
+    /**
+     * 续传断线前未完成的传输：下载直接重新接受，上传各自在后台线程中从服务器确认的分片继续发送
+     */
+    private void resumeTransfers() {
+        resumeDownloads();
+        for (String transferId : getPendingUploads()) {
+            Thread resumer = new Thread(() -> {
+                try {
+                    resumeUpload(transferId);
+                    LOG.info("续传完成", "transfer", transferId);
+                } catch (IOException e) {
+                    LOG.warn("续传失败", "transfer", transferId, "error", e.getMessage());
+                    notifyError("续传文件失败: " + e.getMessage());
+                }
+            }, "file-resume");
+            resumer.setDaemon(true);
+            resumer.start();
+        }
+    }
+    
     /**
      * 启动消息接收线程
      */
     private void startReceiveThread() {
         receiveThread = new Thread(() -> {
             try {
-                String line;
-                while (connected && (line = reader.readLine()) != null) {
+                while (connected) {
+                    Message message;
+                    try {
+                        message = input.read();
+                    } catch (JsonParseException e) {
+                        LOG.warn("解析消息出错", "error", e.getMessage());
+                        continue;
+                    }
+                    if (message == null) {
+                        break;
+                    }
+                    lastReceivedMillis = System.currentTimeMillis();
                     try {
-                        Message message = JsonUtils.fromJson(line);
                         handleMessage(message);
                     } catch (Exception e) {
-                        System.err.println("[客户端] 解析消息出错: " + e.getMessage());
+                        LOG.warn("处理消息出错", "type", message.getType(), "error", e.getMessage());
                     }
                 }
             } catch (IOException e) {
                 if (connected) {
-                    System.err.println("[客户端] 接收消息时出错: " + e.getMessage());
+                    LOG.warn("接收消息时出错", "error", e.getMessage());
                 }
             } finally {
                 if (connected) {
@@ -112,12 +217,55 @@ public class ChatClient {
         receiveThread.start();
     }
     
+    /**
+     * 启动心跳线程
+     * 定期发送心跳让服务器知道连接仍然有效；服务器会回复心跳，
+     * 长时间收不到服务器的任何消息说明连接已半开，关闭Socket让接收线程按断线处理。
+     */
+    private void startHeartbeatThread() {
+        if (HEARTBEAT_INTERVAL_MILLIS <= 0) {
+            return;
+        }
+        Socket current = socket;
+        lastReceivedMillis = System.currentTimeMillis();
+        heartbeatThread = new Thread(() -> {
+            try {
+                while (connected) {
+                    Thread.sleep(HEARTBEAT_INTERVAL_MILLIS);
+                    if (!connected) {
+                        break;
+                    }
+                    if (System.currentTimeMillis() - lastReceivedMillis > 3 * HEARTBEAT_INTERVAL_MILLIS) {
+                        LOG.warn("长时间未收到服务器消息，连接已失效");
+                        current.close();
+                        break;
+                    }
+                    sendMessage(Message.createHeartbeatMessage());
+                }
+            } catch (InterruptedException | IOException e) {
+                // 连接已关闭
+            }
+        }, "heartbeat");
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
+    }
+    
     /**
      * 处理接收到的消息
      */
     @SuppressWarnings("unchecked")
     private void handleMessage(Message message) {
-        System.out.println("[客户端] 收到消息: " + message.getType());
+        if (LOG.sampled()) {
+            LOG.info("收到消息", "type", message.getType(), "sender", message.getSender(),
+                     "target", message.getTarget(), "bytes", message.getBinaryLength());
+        }
+        
+        // 历史查询结果之后紧跟的本页消息不是新消息，收齐后一起交给监听器
+        Boolean history = message.getContentBoolean("history");
+        if (history != null && history) {
+            collectHistoryMessage(message);
+            return;
+        }
         
         switch (message.getType()) {
             case TEXT:
@@ -133,17 +281,23 @@ public class ChatClient {
                 break;
                 
             case FILE_DATA:
-                notifyFileData(message);
+                handleFileData(message);
+                break;
+                
+            case FILE_ACCEPT:
+            case FILE_REJECT:
+            case FILE_ACK:
+                handleFileControl(message);
                 break;
                 
             case USER_LIST:
                 Object usersObj = message.getContent().get("users");
                 if (usersObj instanceof List) {
-                    List<String> users = new ArrayList<>();
-                    for (Object u : (List<?>) usersObj) {
-                        users.add(u.toString());
+                    Long listEpoch = message.getContentLong("epoch");
+                    if (listEpoch != null) {
+                        presenceEpoch = listEpoch;
                     }
-                    notifyUserListUpdate(users);
+                    notifyUserListUpdate(toStringList(usersObj));
                 }
                 break;
                 
@@ -161,6 +315,10 @@ public class ChatClient {
                 }
                 break;
                 
+            case PRESENCE_DELTA:
+                handlePresenceDelta(message);
+                break;
+                
             case GROUP_LIST:
                 // 解析群组列表
                 Object groupsObj = message.getContent().get("groups");
@@ -176,6 +334,16 @@ public class ChatClient {
                 }
                 break;
                 
+            case HEARTBEAT:
+                // 服务器的心跳回复，收到时已刷新活动时间
+                break;
+                
+            case HISTORY_RESPONSE:
+                historyResponse = message;
+                historyMessages = new ArrayList<>();
+                collectHistoryMessage(null);
+                break;
+                
             case ERROR:
                 String error = message.getContentString("error");
                 if (error != null) {
@@ -184,8 +352,88 @@ public class ChatClient {
                 break;
                 
             default:
-                System.out.println("[客户端] 未处理的消息类型: " + message.getType());
+                LOG.warn("未处理的消息类型", "type", message.getType());
+        }
+    }
+    
+    /**
+     * 收集历史查询结果的本页消息，收齐 count 条后按从旧到新的顺序通知监听器
+     * @param message 本页的一条消息，为null时只检查是否已收齐（本页为空）
+     */
+    private void collectHistoryMessage(Message message) {
+        if (historyResponse == null) {
+            LOG.warn("收到不属于任何历史查询结果的历史消息", "type", message.getType());
+            return;
+        }
+        if (message != null) {
+            historyMessages.add(message);
+        }
+        Integer count = historyResponse.getContentInt("count");
+        if (count == null || historyMessages.size() >= count) {
+            // 服务器从新到旧发送
+            Collections.reverse(historyMessages);
+            Message response = historyResponse;
+            List<Message> page = historyMessages;
+            historyResponse = null;
+            historyMessages = null;
+            notifyHistoryPage(response.getTarget(), response.getTargetType(), page,
+                              response.getContentString("cursor"));
+        }
+    }
+    
+    /**
+     * 应用服务器发来的在线状态增量或完整快照
+     */
+    private void handlePresenceDelta(Message message) {
+        Long epoch = message.getContentLong("epoch");
+        if (epoch == null) {
+            return;
+        }
+        Boolean full = message.getContentBoolean("full");
+        if (full != null && full) {
+            presenceEpoch = epoch;
+            presenceSyncPending = false;
+            notifyUserListUpdate(toStringList(message.getContent().get("users")));
+            return;
+        }
+        Long since = message.getContentLong("since");
+        if (since == null || !canApplyPresence(since, epoch)) {
+            return;
+        }
+        // 同步请求的回复（增量或快照）应用后才允许再次请求
+        presenceEpoch = epoch;
+        presenceSyncPending = false;
+        notifyPresenceDelta(toStringList(message.getContent().get("joined")),
+                            toStringList(message.getContent().get("left")));
+    }
+    
+    /**
+     * 判断纪元区间 (since, epoch] 的在线状态增量能否应用到本地
+     * 服务器合并增量时会抵消窗口内的上下线，增量只对状态恰好处于 since 的客户端正确，
+     * 因此必须与本地纪元首尾相接；已经应用过的旧增量跳过，中间有缺失时请求同步。
+     */
+    private boolean canApplyPresence(long since, long epoch) {
+        if (since == presenceEpoch) {
+            return true;
+        }
+        if (epoch > presenceEpoch && !presenceSyncPending) {
+            presenceSyncPending = true;
+            sendMessage(Message.createPresenceSyncMessage(presenceEpoch));
+        }
+        return false;
+    }
+    
+    /**
+     * 把JSON数组转换为字符串列表
+     */
+    private static List<String> toStringList(Object obj) {
+        List<String> values = new ArrayList<>();
+        if (obj instanceof List) {
+            for (Object value : (List<?>) obj) {
+                values.add(value.toString());
+            }
         }
+        return values;
     }
     
     /**
@@ -235,18 +483,28 @@ public class ChatClient {
      * 发送消息到服务器
      */
     public void sendMessage(Message message) {
-        if (writer != null && connected) {
-            String json = JsonUtils.toJson(message);
-            writer.println(json);
+        if (output == null || !connected) {
+            return;
+        }
+        byte[] frame = FrameCodec.encode(message, wireFormat);
+        synchronized (this) {
+            try {
+                output.write(frame);
+                output.flush();
+            } catch (IOException e) {
+                LOG.warn("发送消息失败", "type", message.getType(), "error", e.getMessage());
+            }
         }
     }
     
     /**
      * 发送文本消息
+     * @return 发出的消息（本地副本使用相同的时间戳，用于与服务器历史去重）
      */
-    public void sendTextMessage(String target, Message.TargetType targetType, String text) {
+    public Message sendTextMessage(String target, Message.TargetType targetType, String text) {
         Message msg = Message.createTextMessage(username, target, targetType, text);
         sendMessage(msg);
+        return msg;
     }
     
     /**
@@ -258,6 +516,17 @@ public class ChatClient {
         sendMessage(msg);
     }
     
+    /**
+     * 发送图片消息（原始字节，二进制帧下不做Base64编码）
+     * @return 发出的消息
+     */
+    public Message sendImageMessage(String target, Message.TargetType targetType,
+                                     String filename, byte[] data) {
+        Message msg = Message.createImageMessage(username, target, targetType, filename, data);
+        sendMessage(msg);
+        return msg;
+    }
+    
     /**
      * 发送文件消息
      */
@@ -277,6 +546,209 @@ public class ChatClient {
         sendMessage(msg);
     }
     
+    /**
+     * 发送文件数据（原始字节，二进制帧下不做Base64编码）
+     */
+    public void sendFileData(String target, Message.TargetType targetType,
+                              String filename, byte[] data, int chunkIndex, int totalChunks) {
+        Message msg = Message.createFileDataMessage(username, target, targetType,
+                                                    filename, data, chunkIndex, totalChunks);
+        sendMessage(msg);
+    }
+    
+    /**
+     * 以分片方式发送文件（阻塞直到服务器确认全部分片）
+     * 先发送传输提议，接收方接受后才开始传输；每次只从磁盘读入一个分片，
+     * 已发出但未被确认的分片不超过窗口大小。发送中断线时上传状态保留，重连后可调用 resumeUpload 续传。
+     * @return 文件传输提议消息（含传输ID）
+     * @throws IOException 接收方拒绝、等待超时、读取文件失败或连接断开
+     */
+    public Message sendFile(String target, Message.TargetType targetType, File file) throws IOException {
+        long size = file.length();
+        int totalChunks = (int) Math.max(1, (size + FILE_CHUNK_SIZE - 1) / FILE_CHUNK_SIZE);
+        Message offer = Message.createFileOffer(username, target, targetType, file.getName(), size,
+                                                UUID.randomUUID().toString(), FILE_CHUNK_SIZE, totalChunks);
+        FileUpload upload = new FileUpload(offer, file, FILE_CHUNK_SIZE, totalChunks);
+        uploads.put(upload.transferId, upload);
+        runUpload(upload);
+        return offer;
+    }
+    
+    /**
+     * 重连后续传未完成的上传，服务器答复已暂存的分片数，从该分片继续发送
+     */
+    public void resumeUpload(String transferId) throws IOException {
+        FileUpload upload = uploads.get(transferId);
+        if (upload == null) {
+            throw new IOException("没有未完成的上传: " + transferId);
+        }
+        runUpload(upload);
+    }
+    
+    /**
+     * 未完成（可续传）的上传的传输ID
+     */
+    public Set<String> getPendingUploads() {
+        return new HashSet<>(uploads.keySet());
+    }
+    
+    private void runUpload(FileUpload upload) throws IOException {
+        upload.reset();
+        sendMessage(upload.offer);
+        try {
+            upload.awaitAccept(FILE_ACCEPT_TIMEOUT_MILLIS, this::isConnected);
+        } catch (IOException e) {
+            if (connected) {
+                // 被拒绝或超时：取消传输，不再续传
+                uploads.remove(upload.transferId);
+                sendMessage(Message.createFileRejectMessage(username, upload.transferId, e.getMessage()));
+            }
+            throw e;
+        }
+        
+        String filename = upload.file.getName();
+        Message.TargetType targetType = upload.offer.getTargetType();
+        String target = upload.offer.getTarget();
+        ByteBuffer buffer = ByteBuffer.allocate(upload.chunkSize);
+        try (FileChannel channel = FileChannel.open(upload.file.toPath(), StandardOpenOption.READ)) {
+            int chunkIndex;
+            while ((chunkIndex = upload.nextChunk(FILE_WINDOW, this::isConnected)) >= 0) {
+                // 分片同步写出后才读取下一片，因此可以复用同一个缓冲区
+                buffer.clear();
+                long position = (long) chunkIndex * upload.chunkSize;
+                int n;
+                while (buffer.hasRemaining() && (n = channel.read(buffer, position)) >= 0) {
+                    position += n;
+                }
+                byte[] data = buffer.position() == buffer.capacity()
+                        ? buffer.array()
+                        : Arrays.copyOf(buffer.array(), buffer.position());
+                sendMessage(Message.createFileChunkMessage(username, target, targetType, upload.transferId,
+                                                           filename, data, chunkIndex, upload.totalChunks));
+            }
+        }
+        uploads.remove(upload.transferId);
+    }
+    
+    /**
+     * 接受文件传输提议（重复接受同一传输时从已收到的分片之后续传）
+     */
+    public void acceptFile(Message offer) throws IOException {
+        int resumeFrom = fileReceiver.prepare(offer);
+        sendMessage(Message.createFileAcceptMessage(username, offer.getTransferId(), resumeFrom));
+    }
+    
+    /**
+     * 拒绝文件传输提议
+     */
+    public void rejectFile(Message offer, String reason) {
+        String transferId = offer.getTransferId();
+        fileReceiver.discard(transferId);
+        sendMessage(Message.createFileRejectMessage(username, transferId, reason));
+    }
+    
+    /**
+     * 重连后续传所有未收完的文件
+     */
+    public void resumeDownloads() {
+        for (Map.Entry<String, Integer> entry : fileReceiver.getResumePoints().entrySet()) {
+            sendMessage(Message.createFileAcceptMessage(username, entry.getKey(), entry.getValue()));
+        }
+    }
+    
+    /**
+     * 放弃所有未完成的上传和下载
+     */
+    public void discardIncompleteTransfers() {
+        uploads.clear();
+        fileReceiver.discardAll();
+    }
+    
+    /**
+     * 设置文件下载目录（默认 ~/Downloads/SocketChat_Downloads）
+     */
+    public void setDownloadDirectory(Path directory) {
+        fileReceiver = new FileReceiver(directory);
+    }
+    
+    /**
+     * 处理收到的文件分片：写盘后确认，校验失败或乱序时要求重传
+     */
+    private void handleFileData(Message message) {
+        notifyFileData(message);
+        String transferId = message.getTransferId();
+        try {
+            if (transferId == null) {
+                // 旧客户端发来的不分片文件
+                File file = fileReceiver.writeWhole(message);
+                if (file != null) {
+                    notifyFileReceived(message, file);
+                }
+                return;
+            }
+            
+            FileReceiver.Result result = fileReceiver.write(message);
+            switch (result.status) {
+                case WRITTEN:
+                    sendMessage(Message.createFileAckMessage(username, transferId, result.chunkIndex, false));
+                    break;
+                case COMPLETE:
+                    sendMessage(Message.createFileAckMessage(username, transferId, result.chunkIndex, false));
+                    notifyFileReceived(message, result.file);
+                    break;
+                case RETRY:
+                    sendMessage(Message.createFileAckMessage(username, transferId, result.chunkIndex, true));
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException e) {
+            LOG.warn("写入文件失败", "transfer", transferId, "error", e.getMessage());
+            if (transferId != null) {
+                sendMessage(Message.createFileRejectMessage(username, transferId, "接收方写入文件失败"));
+            }
+            notifyError("接收文件失败: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 处理文件传输控制消息
+     */
+    private void handleFileControl(Message message) {
+        String transferId = message.getTransferId();
+        FileUpload upload = transferId != null ? uploads.get(transferId) : null;
+        switch (message.getType()) {
+            case FILE_ACCEPT:
+                if (upload != null) {
+                    Integer resumeFrom = message.getContentInt("resumeFrom");
+                    upload.onAccept(resumeFrom != null ? resumeFrom : 0);
+                }
+                break;
+            case FILE_REJECT:
+                String reason = message.getContentString("reason");
+                if (upload != null) {
+                    upload.onReject(reason);
+                } else if (transferId != null && fileReceiver.discard(transferId)) {
+                    notifyError("文件传输已取消: " + reason);
+                }
+                break;
+            default:
+                Integer chunkIndex = message.getContentInt("chunkIndex");
+                Boolean retry = message.getContentBoolean("retry");
+                if (upload != null && chunkIndex != null) {
+                    upload.onAck(chunkIndex, retry != null && retry);
+                }
+                break;
+        }
+    }
+    
+    /**
+     * 当前使用的帧格式
+     */
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+    
     /**
      * 创建群组
      */
@@ -285,6 +757,24 @@ public class ChatClient {
         sendMessage(msg);
     }
     
+    /**
+     * 向服务器查询会话历史（从新到旧分页）
+     * 服务器回复 HISTORY_RESPONSE，随后紧跟 count 条带 history 标记的消息
+     * @param cursor 上一页响应中的游标，查询最新一页时为null
+     */
+    public void requestHistory(String target, Message.TargetType targetType, String cursor, int limit) {
+        sendMessage(Message.createHistoryRequest(target, targetType, cursor, limit));
+    }
+    
+    /**
+     * 向服务器查询会话中序号小于 beforeSeq 的历史（本地已有的最早一条消息之前）
+     */
+    public void requestHistoryBefore(String target, Message.TargetType targetType, long beforeSeq, int limit) {
+        Message request = Message.createHistoryRequest(target, targetType, null, limit);
+        request.getContent().put("beforeSeq", beforeSeq);
+        sendMessage(request);
+    }
+    
     /**
      * 断开连接
      */
@@ -294,26 +784,34 @@ public class ChatClient {
         }
         
         connected = false;
+        for (FileUpload upload : uploads.values()) {
+            upload.wakeUp();
+        }
+        if (heartbeatThread != null) {
+            heartbeatThread.interrupt();
+        }
         
         // 发送登出消息
-        if (writer != null && username != null) {
-            try {
-                sendMessage(Message.createLogoutMessage(username));
-            } catch (Exception e) {
-                // 忽略
+        if (output != null && username != null) {
+            byte[] logout = FrameCodec.encode(Message.createLogoutMessage(username), wireFormat);
+            synchronized (this) {
+                try {
+                    output.write(logout);
+                    output.flush();
+                } catch (IOException e) {
+                    // 忽略
+                }
             }
         }
         
         // 关闭资源
         try {
-            if (reader != null) reader.close();
-            if (writer != null) writer.close();
             if (socket != null && !socket.isClosed()) socket.close();
         } catch (IOException e) {
-            System.err.println("[客户端] 关闭连接时出错: " + e.getMessage());
+            LOG.warn("关闭连接时出错", "error", e.getMessage());
         }
         
-        System.out.println("[客户端] 已断开连接");
+        LOG.info("已断开连接", "user", username);
     }
     
     /**
@@ -356,6 +854,19 @@ public class ChatClient {
         }
     }
     
+    private void notifyFileReceived(Message message, File file) {
+        for (MessageListener listener : listeners) {
+            listener.onFileReceived(message, file);
+        }
+    }
+    
+    private void notifyHistoryPage(String target, Message.TargetType targetType, List<Message> messages,
+                                   String cursor) {
+        for (MessageListener listener : listeners) {
+            listener.onHistoryPage(target, targetType, messages, cursor);
+        }
+    }
+    
     private void notifyUserListUpdate(List<String> users) {
         for (MessageListener listener : listeners) {
             listener.onUserListUpdate(users);
@@ -374,6 +885,12 @@ public class ChatClient {
         }
     }
     
+    private void notifyPresenceDelta(List<String> joined, List<String> left) {
+        for (MessageListener listener : listeners) {
+            listener.onPresenceDelta(joined, left);
+        }
+    }
+    
     private void notifyGroupListUpdate(List<Group> groups) {
         for (MessageListener listener : listeners) {
             listener.onGroupListUpdate(groups);
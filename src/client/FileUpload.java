@@ -0,0 +1,130 @@
+package client;
+
+import common.Message;
+import java.io.File;
+import java.io.IOException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 一次文件上传的发送方状态
+ * 等待接收方接受后才开始发送分片；服务器确认的分片之后最多还有 window 个分片在途。
+ * 服务器要求重传时回退到缺失的分片；断线后状态保留，重连后从服务器已确认的分片继续。
+ */
+final class FileUpload {
+    private static final long WAIT_SLICE_MILLIS = 500;
+
+    final Message offer;
+    final File file;
+    final String transferId;
+    final int chunkSize;
+    final int totalChunks;
+
+    private boolean accepted;
+    private String rejectReason;
+    private int next;       // 下一个要发送的分片
+    private int acked;      // 服务器已确认的分片数
+
+    FileUpload(Message offer, File file, int chunkSize, int totalChunks) {
+        this.offer = offer;
+        this.file = file;
+        this.transferId = offer.getTransferId();
+        this.chunkSize = chunkSize;
+        this.totalChunks = totalChunks;
+    }
+
+    /**
+     * 重新提议前重置接受状态（重连续传时服务器会再次答复）
+     */
+    synchronized void reset() {
+        accepted = false;
+        rejectReason = null;
+    }
+
+    /**
+     * 接收方已接受，从 resumeFrom 开始发送
+     */
+    synchronized void onAccept(int resumeFrom) {
+        accepted = true;
+        acked = Math.max(0, Math.min(resumeFrom, totalChunks));
+        next = acked;
+        notifyAll();
+    }
+
+    synchronized void onReject(String reason) {
+        rejectReason = reason != null ? reason : "对方拒绝接收";
+        notifyAll();
+    }
+
+    /**
+     * 服务器确认分片，或要求从 chunkIndex 开始重传
+     */
+    synchronized void onAck(int chunkIndex, boolean retry) {
+        if (retry) {
+            acked = Math.max(0, Math.min(chunkIndex, totalChunks));
+            next = acked;
+        } else if (chunkIndex + 1 > acked) {
+            acked = Math.min(chunkIndex + 1, totalChunks);
+            next = Math.max(next, acked);
+        }
+        notifyAll();
+    }
+
+    /**
+     * 连接状态变化时唤醒等待中的发送线程
+     */
+    synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    /**
+     * 等待接收方接受
+     * @throws IOException 被拒绝、超时或连接断开
+     */
+    synchronized void awaitAccept(long timeoutMillis, BooleanSupplier connected) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!accepted) {
+            checkState(connected);
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new IOException("等待对方接收超时");
+            }
+            waitQuietly(Math.min(remaining, WAIT_SLICE_MILLIS));
+        }
+        checkState(connected);
+    }
+
+    /**
+     * 等待窗口内有空位，返回下一个要发送的分片序号；全部分片都已确认时返回-1
+     * @throws IOException 传输被取消或连接断开
+     */
+    synchronized int nextChunk(int window, BooleanSupplier connected) throws IOException {
+        while (true) {
+            checkState(connected);
+            if (acked >= totalChunks) {
+                return -1;
+            }
+            if (next < totalChunks && next - acked < window) {
+                return next++;
+            }
+            waitQuietly(WAIT_SLICE_MILLIS);
+        }
+    }
+
+    private void checkState(BooleanSupplier connected) throws IOException {
+        if (rejectReason != null) {
+            throw new IOException(rejectReason);
+        }
+        if (!connected.getAsBoolean()) {
+            throw new IOException("连接已断开，重连后可续传");
+        }
+    }
+
+    private void waitQuietly(long millis) throws IOException {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("文件发送被中断");
+        }
+    }
+}
@@ -24,10 +24,26 @@ public interface MessageListener {
     void onFileMessage(Message message);
     
     /**
-     * 收到文件数据
+     * 收到文件数据（分片，已由客户端写入磁盘，用于显示进度）
      */
     void onFileData(Message message);
     
+    /**
+     * 文件接收完成（分片已由客户端写入下载目录）
+     */
+    default void onFileReceived(Message message, java.io.File file) {
+    }
+    
+    /**
+     * 收到服务器的一页会话历史（requestHistory 的结果）
+     * 这些是已经发生过的消息，不应作为新消息显示或再次保存
+     * @param messages 本页消息，从旧到新
+     * @param cursor 查询更早一页的游标，没有更早的消息时为null
+     */
+    default void onHistoryPage(String target, Message.TargetType targetType,
+                               java.util.List<Message> messages, String cursor) {
+    }
+    
     /**
      * 用户列表更新
      */
@@ -43,6 +59,19 @@ public interface MessageListener {
      */
     void onUserLeave(String username);
     
+    /**
+     * 在线状态增量（断线重连或通知缺失后的同步结果）
+     * 默认逐个回调上线/下线
+     */
+    default void onPresenceDelta(java.util.List<String> joined, java.util.List<String> left) {
+        for (String username : left) {
+            onUserLeave(username);
+        }
+        for (String username : joined) {
+            onUserJoin(username);
+        }
+    }
+    
     /**
      * 群组列表更新
      */
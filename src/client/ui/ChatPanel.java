@@ -1,6 +1,7 @@
 package client.ui;
 
 import client.ChatClient;
+import client.util.HistoryPage;
 import common.Message;
 import common.MessageType;
 import java.awt.*;
@@ -21,6 +22,7 @@ import javax.swing.text.*;
 public class ChatPanel extends JPanel {
     private ChatClient client;
     private JTextPane messagePane;
+    private JScrollPane scrollPane;
     private StyledDocument doc;
     private JTextArea inputArea;
     private JButton sendButton;
@@ -36,6 +38,21 @@ public class ChatPanel extends JPanel {
     
     // 历史消息管理器
     private client.util.HistoryManager historyManager;
+    
+    // 每个会话已从本地文件加载的最早一页 (没有记录表示还未加载过该会话的历史)
+    private Map<String, HistoryPage> historyOldest = new HashMap<>();
+    
+    // 正在后台从本地文件加载历史的会话
+    private Set<String> historyLoading = new HashSet<>();
+    
+    // 每个会话向服务器查询历史的进度 (本地历史已全部显示后才查询服务器)
+    private Map<String, ServerHistory> serverHistory = new HashMap<>();
+    
+    // 重新绘制消息区域或插入更早的消息时为true，期间的滚动不触发加载
+    private boolean suppressHistoryLoad;
+
+    // 切换到会话时从本地文件加载的最近消息条数，也是向上滚动时每次加载的条数
+    private static final int HISTORY_PAGE_SIZE = Math.max(1, Integer.getInteger("chat.client.historyPage", 200));
 
     public ChatPanel(ChatClient client) {
         this.client = client;
@@ -68,9 +85,18 @@ public class ChatPanel extends JPanel {
         messagePane = new JTextPane();
         messagePane.setEditable(false);
         doc = messagePane.getStyledDocument();
-        JScrollPane scrollPane = new JScrollPane(messagePane);
+        scrollPane = new JScrollPane(messagePane);
         add(scrollPane, BorderLayout.CENTER);
         
+        // 滚动到顶部时加载更早的历史记录
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            JScrollBar bar = scrollPane.getVerticalScrollBar();
+            if (!suppressHistoryLoad && !e.getValueIsAdjusting()
+                    && e.getValue() == bar.getMinimum() && bar.getMaximum() > bar.getVisibleAmount()) {
+                loadOlderHistory();
+            }
+        });
+        
         // 底部: 输入和按钮
         JPanel bottomPanel = new JPanel(new BorderLayout());
         
@@ -126,21 +152,235 @@ public class ChatPanel extends JPanel {
     }
     
     private void refreshMessageDisplay() {
-        messagePane.setText("");
+        suppressHistoryLoad = true;
+        try {
+            messagePane.setText("");
+            if (currentTarget == null) return;
+            
+            // 从内存加载
+            List<Message> memoryHistory = chatHistory.computeIfAbsent(currentTarget, k -> new ArrayList<>());
+            for (Message msg : memoryHistory) {
+                appendMessageToPane(msg);
+            }
+            scrollPane.validate();
+            JScrollBar bar = scrollPane.getVerticalScrollBar();
+            bar.setValue(bar.getMaximum());
+        } finally {
+            suppressHistoryLoad = false;
+        }
         if (currentTarget == null) return;
         
-        // 1. 从内存加载
-        List<Message> memoryHistory = chatHistory.computeIfAbsent(currentTarget, k -> new ArrayList<>());
+        // 首次切换到该会话时，在后台从文件加载最近的消息，加载完成后重新绘制
+        if (historyManager != null && !historyOldest.containsKey(currentTarget)) {
+            loadRecentHistory(currentTarget);
+        } else {
+            fillViewport();
+        }
+    }
+    
+    /**
+     * 在后台加载会话最近的一页历史记录（界面线程不等待磁盘）
+     */
+    private void loadRecentHistory(String target) {
+        if (!historyLoading.add(target)) return;
+        int known = chatHistory.computeIfAbsent(target, k -> new ArrayList<>()).size();
+        historyManager.loadRecentHistory(target, Math.max(HISTORY_PAGE_SIZE, known),
+                page -> SwingUtilities.invokeLater(() -> applyRecentHistory(target, known, page)));
+    }
+    
+    /**
+     * 之前收到的该会话消息也已保存到文件末尾，用文件中的最近一页替换它们；
+     * 加载期间收到的消息不在这一页中，接在后面
+     * @param known 开始加载时内存中已有的消息数
+     */
+    private void applyRecentHistory(String target, int known, HistoryPage page) {
+        historyLoading.remove(target);
+        historyOldest.put(target, page);
+        List<Message> memoryHistory = chatHistory.computeIfAbsent(target, k -> new ArrayList<>());
+        if (page.getMessages().size() >= known) {
+            List<Message> newer = new ArrayList<>(memoryHistory.subList(Math.min(known, memoryHistory.size()),
+                    memoryHistory.size()));
+            memoryHistory.clear();
+            memoryHistory.addAll(page.getMessages());
+            memoryHistory.addAll(newer);
+        }
+        if (target.equals(currentTarget)) {
+            refreshMessageDisplay();
+        }
+    }
+    
+    /**
+     * 消息不足一屏时无法向上滚动，直接加载更早的一页
+     */
+    private void fillViewport() {
+        SwingUtilities.invokeLater(() -> {
+            JScrollBar bar = scrollPane.getVerticalScrollBar();
+            if (currentTarget != null && bar.getMaximum() <= bar.getVisibleAmount()) {
+                loadOlderHistory();
+            }
+        });
+    }
+    
+    /**
+     * 加载当前会话更早的一页历史记录，插入到消息区域顶部并保持当前可见内容不动
+     * 本地文件中的历史已全部加载时，向服务器查询更早的消息
+     */
+    private void loadOlderHistory() {
+        String target = currentTarget;
+        if (target == null || historyLoading.contains(target)) return;
+        if (historyManager != null) {
+            HistoryPage oldest = historyOldest.get(target);
+            if (oldest == null) return; // 最近的一页还没有加载完
+            if (oldest.hasOlder()) {
+                historyLoading.add(target);
+                historyManager.loadHistoryBefore(target, oldest, HISTORY_PAGE_SIZE,
+                        page -> SwingUtilities.invokeLater(() -> applyOlderHistory(target, page)));
+                return;
+            }
+        }
+        requestServerHistory(target, currentTargetType);
+    }
+    
+    private void applyOlderHistory(String target, HistoryPage page) {
+        historyLoading.remove(target);
+        historyOldest.put(target, page);
+        List<Message> older = page.getMessages();
+        chatHistory.computeIfAbsent(target, k -> new ArrayList<>()).addAll(0, older);
+        if (!target.equals(currentTarget)) return;
+        if (older.isEmpty()) {
+            // 这一段都是空行或无法解析，继续向前加载
+            loadOlderHistory();
+        } else {
+            prependToPane(older);
+        }
+    }
+    
+    /**
+     * 向服务器查询会话更早的一页历史，结果由 addHistoryPage 插入
+     * 第一次查询从本地已有的最早一条带序号的消息之前开始（本地消息都不带序号时从最新一页开始），
+     * 之后沿服务器返回的游标继续；与本地重复的消息在 addHistoryPage 中去掉
+     */
+    private void requestServerHistory(String target, Message.TargetType targetType) {
+        ServerHistory state = serverHistory.computeIfAbsent(target, k -> new ServerHistory());
+        if (target == null || state.inFlight || state.exhausted || !client.isConnected()) return;
         
-        // 2. 如果内存为空，尝试从文件加载 (首次切换到该用户)
-        if (memoryHistory.isEmpty() && historyManager != null) {
-            List<Message> loaded = historyManager.loadHistory(currentTarget);
-            memoryHistory.addAll(loaded);
+        if (state.cursor != null) {
+            client.requestHistory(target, targetType, state.cursor, HISTORY_PAGE_SIZE);
+        } else {
+            List<Message> memoryHistory = chatHistory.get(target);
+            Long oldestSeq = oldestSeq(memoryHistory);
+            if (oldestSeq != null) {
+                client.requestHistoryBefore(target, targetType, oldestSeq, HISTORY_PAGE_SIZE);
+            } else {
+                // 本地没有消息，或只有自己发送的（发送方的本地副本不带序号）
+                client.requestHistory(target, targetType, null, HISTORY_PAGE_SIZE);
+            }
         }
+        state.inFlight = true;
+    }
+    
+    private static Long oldestSeq(List<Message> messages) {
+        Long oldest = null;
+        if (messages != null) {
+            for (Message msg : messages) {
+                long seq = msg.getSeq();
+                if (seq >= 0 && (oldest == null || seq < oldest)) {
+                    oldest = seq;
+                }
+            }
+        }
+        return oldest;
+    }
+    
+    /**
+     * 插入服务器返回的一页历史（不保存到本地历史记录，这些消息不是新消息）
+     * @param messages 从旧到新
+     * @param cursor 更早一页的游标，为null表示服务器上没有更早的消息
+     */
+    public void addHistoryPage(String target, List<Message> messages, String cursor) {
+        ServerHistory state = serverHistory.computeIfAbsent(target, k -> new ServerHistory());
+        state.inFlight = false;
+        state.cursor = cursor;
+        state.exhausted = cursor == null;
         
+        List<Message> memoryHistory = chatHistory.computeIfAbsent(target, k -> new ArrayList<>());
+        // 收到的消息按序号去重；自己发送的消息在本地没有序号（服务器不回传），
+        // 按发送者、时间戳（服务器保留客户端的时间戳）和内容去重
+        Set<Long> knownSeqs = new HashSet<>();
+        Set<String> knownLocal = new HashSet<>();
         for (Message msg : memoryHistory) {
-            appendMessageToPane(msg);
+            long seq = msg.getSeq();
+            if (seq >= 0) {
+                knownSeqs.add(seq);
+            } else {
+                knownLocal.add(identity(msg));
+            }
+        }
+        List<Message> older = new ArrayList<>(messages.size());
+        for (Message msg : messages) {
+            long seq = msg.getSeq();
+            if (seq >= 0 && knownSeqs.contains(seq)) {
+                continue;
+            }
+            if (!knownLocal.isEmpty() && knownLocal.contains(identity(msg))) {
+                continue;
+            }
+            older.add(msg);
         }
+        if (older.isEmpty()) {
+            // 整页都与本地重复，继续向前查询
+            if (!state.exhausted && target.equals(currentTarget)) {
+                requestServerHistory(target, currentTargetType);
+            }
+            return;
+        }
+        memoryHistory.addAll(0, older);
+        if (target.equals(currentTarget)) {
+            prependToPane(older);
+        }
+    }
+    
+    /**
+     * 不依赖序号识别同一条消息
+     */
+    private static String identity(Message msg) {
+        return msg.getType() + "\u0000" + msg.getSender() + "\u0000" + msg.getTimestamp() + "\u0000"
+                + msg.getText() + "\u0000" + msg.getFilename();
+    }
+    
+    /**
+     * 把更早的消息插入到消息区域顶部，保持当前可见内容不动
+     */
+    private void prependToPane(List<Message> older) {
+        suppressHistoryLoad = true;
+        DefaultCaret caret = (DefaultCaret) messagePane.getCaret();
+        int policy = caret.getUpdatePolicy();
+        // 插入时光标不跟随，避免视图跳到底部
+        caret.setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        try {
+            JScrollBar bar = scrollPane.getVerticalScrollBar();
+            int oldMax = bar.getMaximum();
+            int oldValue = bar.getValue();
+            int pos = 0;
+            for (Message msg : older) {
+                pos = insertMessage(msg, pos);
+            }
+            scrollPane.validate();
+            bar.setValue(oldValue + bar.getMaximum() - oldMax);
+        } finally {
+            caret.setUpdatePolicy(policy);
+            suppressHistoryLoad = false;
+        }
+        fillViewport();
+    }
+    
+    /**
+     * 一个会话向服务器查询历史的进度
+     */
+    private static final class ServerHistory {
+        String cursor;          // 下一页的游标
+        boolean inFlight;       // 已发出查询，等待结果
+        boolean exhausted;      // 服务器上没有更早的消息
     }
     
     public void addMessage(Message msg) {
@@ -180,6 +420,15 @@ public class ChatPanel extends JPanel {
     }
     
     private void appendMessageToPane(Message msg) {
+        insertMessage(msg, doc.getLength());
+        messagePane.setCaretPosition(doc.getLength());
+    }
+    
+    /**
+     * 在文档的 pos 处插入一条消息
+     * @return 插入内容之后的位置
+     */
+    private int insertMessage(Message msg, int pos) {
         try {
             boolean isSelf = msg.getSender().equals(client.getUsername());
             String title = msg.getSender() + " (" + new java.util.Date(msg.getTimestamp()).toString() + "):\n";
@@ -188,45 +437,51 @@ public class ChatPanel extends JPanel {
             StyleConstants.setBold(nameAttrs, true);
             StyleConstants.setForeground(nameAttrs, isSelf ? Color.BLUE : Color.GREEN.darker());
             
-            doc.insertString(doc.getLength(), title, nameAttrs);
+            pos = insertAt(pos, title, nameAttrs);
             
             if (msg.getType() == MessageType.TEXT) {
-                String text = msg.getContentString("text");
-                doc.insertString(doc.getLength(), text + "\n", null);
+                String text = msg.getText();
+                pos = insertAt(pos, text + "\n", null);
             } else if (msg.getType() == MessageType.IMAGE) {
-                doc.insertString(doc.getLength(), "[图片] " + msg.getContentString("filename") + "\n", null);
+                pos = insertAt(pos, "[图片] " + msg.getFilename() + "\n", null);
                 
-                String base64Data = msg.getContentString("data");
-                if (base64Data != null && !base64Data.isEmpty()) {
-                    try {
-                        byte[] imageBytes = Base64.getDecoder().decode(base64Data);
-                        ImageIcon icon = new ImageIcon(imageBytes);
-                        
-                        // Scale image if too large
-                        int maxWidth = 200;
-                        if (icon.getIconWidth() > maxWidth) {
-                            int newHeight = (int) ((double) icon.getIconHeight() * maxWidth / icon.getIconWidth());
-                            Image img = icon.getImage().getScaledInstance(maxWidth, newHeight, Image.SCALE_SMOOTH);
-                            icon = new ImageIcon(img);
-                        }
-                        
-                        messagePane.setCaretPosition(doc.getLength());
-                        messagePane.insertIcon(icon);
-                        doc.insertString(doc.getLength(), "\n", null);
-                    } catch (IllegalArgumentException e) {
-                        System.err.println("Base64 decode error: " + e.getMessage());
+                byte[] imageBytes = null;
+                try {
+                    imageBytes = msg.getDataBytes();
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Base64 decode error: " + e.getMessage());
+                }
+                if (imageBytes != null && imageBytes.length > 0) {
+                    ImageIcon icon = new ImageIcon(imageBytes);
+                    
+                    // Scale image if too large
+                    int maxWidth = 200;
+                    if (icon.getIconWidth() > maxWidth) {
+                        int newHeight = (int) ((double) icon.getIconHeight() * maxWidth / icon.getIconWidth());
+                        Image img = icon.getImage().getScaledInstance(maxWidth, newHeight, Image.SCALE_SMOOTH);
+                        icon = new ImageIcon(img);
                     }
+                    
+                    SimpleAttributeSet iconAttrs = new SimpleAttributeSet();
+                    StyleConstants.setIcon(iconAttrs, icon);
+                    pos = insertAt(pos, " ", iconAttrs);
+                    pos = insertAt(pos, "\n", null);
                 }
             } else if (msg.getType() == MessageType.FILE) {
-                doc.insertString(doc.getLength(), "[文件] " + msg.getContentString("filename") + " (尺寸: " + msg.getContentLong("size") + " bytes)\n", null);
+                pos = insertAt(pos, "[文件] " + msg.getFilename() + " (尺寸: " + msg.getContentLong("size") + " bytes)\n", null);
             }
             
-            doc.insertString(doc.getLength(), "\n", null);
-            messagePane.setCaretPosition(doc.getLength());
+            pos = insertAt(pos, "\n", null);
             
         } catch (BadLocationException e) {
             e.printStackTrace();
         }
+        return pos;
+    }
+    
+    private int insertAt(int pos, String text, AttributeSet attrs) throws BadLocationException {
+        doc.insertString(pos, text, attrs);
+        return pos + text.length();
     }
     
     private void sendMessage() {
@@ -238,7 +493,7 @@ public class ChatPanel extends JPanel {
         String text = inputArea.getText().trim();
         if (text.isEmpty()) return;
         
-        client.sendTextMessage(currentTarget, currentTargetType, text);
+        Message sent = client.sendTextMessage(currentTarget, currentTargetType, text);
         inputArea.setText("");
         
         // 客户端收到服务器转发回来的消息再显示，或者自己先显示？
@@ -251,8 +506,9 @@ public class ChatPanel extends JPanel {
         // So we should add to history locally.
         
         // Create a local message object to display immediately
-        // Note: Timestamp might be slightly diff from server but ok for display
+        // 使用发出消息的时间戳（服务器原样保存），查询服务器历史时据此识别自己发送的消息
         Message localMsg = Message.createTextMessage(client.getUsername(), currentTarget, currentTargetType, text);
+        localMsg.setTimestamp(sent.getTimestamp());
         addMessage(localMsg);
     }
     
@@ -265,10 +521,10 @@ public class ChatPanel extends JPanel {
             File file = chooser.getSelectedFile();
             try {
                 byte[] bytes = Files.readAllBytes(file.toPath());
-                String base64 = Base64.getEncoder().encodeToString(bytes);
-                client.sendImageMessage(currentTarget, currentTargetType, file.getName(), base64, file.length());
+                Message sent = client.sendImageMessage(currentTarget, currentTargetType, file.getName(), bytes);
                 
-                Message localMsg = Message.createImageMessage(client.getUsername(), currentTarget, currentTargetType, file.getName(), base64, file.length());
+                Message localMsg = Message.createImageMessage(client.getUsername(), currentTarget, currentTargetType, file.getName(), bytes);
+                localMsg.setTimestamp(sent.getTimestamp());
                 addMessage(localMsg);
             } catch (Exception e) {
                 JOptionPane.showMessageDialog(this, "发送图片失败: " + e.getMessage());
@@ -282,25 +538,25 @@ public class ChatPanel extends JPanel {
         JFileChooser chooser = new JFileChooser();
         if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
             File file = chooser.getSelectedFile();
-            try {
-                // 1. 发送文件请求 (Header)
-                client.sendFileMessage(currentTarget, currentTargetType, file.getName(), file.length(), "chk");
-                
-                // 2. 发送文件数据 (Body) - 这里简化为一次性发送，大文件需分片
-                byte[] bytes = Files.readAllBytes(file.toPath());
-                String base64Data = Base64.getEncoder().encodeToString(bytes);
-                
-                // 发送数据包 (chunkIndex=0, totalChunks=1)
-                client.sendFileData(currentTarget, currentTargetType, file.getName(), base64Data, 0, 1);
-                
-                JOptionPane.showMessageDialog(this, "文件已发送: " + file.getName());
-                Message localMsg = Message.createFileMessage(client.getUsername(), currentTarget, currentTargetType, file.getName(), file.length(), "chk");
-                addMessage(localMsg);
-                
-            } catch (Exception e) {
-                JOptionPane.showMessageDialog(this, "发送文件失败: " + e.getMessage());
-                e.printStackTrace();
-            }
+            String target = currentTarget;
+            Message.TargetType targetType = currentTargetType;
+            
+            // 等待对方接受并逐片发送，在后台线程中进行，避免阻塞界面
+            Thread sender = new Thread(() -> {
+                try {
+                    Message offer = client.sendFile(target, targetType, file);
+                    
+                    SwingUtilities.invokeLater(() -> {
+                        JOptionPane.showMessageDialog(this, "文件已发送: " + file.getName());
+                        addMessage(offer);
+                    });
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, "发送文件失败: " + e.getMessage()));
+                }
+            }, "file-sender");
+            sender.setDaemon(true);
+            sender.start();
         }
     }
 }
@@ -12,6 +12,9 @@ import javax.swing.*;
  * 主界面
  */
 public class MainFrame extends JFrame implements MessageListener {
+    // 连接断开后的重连次数，间隔从1秒起每次加倍（最长30秒）
+    private static final int RECONNECT_ATTEMPTS = Math.max(0, Integer.getInteger("chat.client.reconnectAttempts", 5));
+    
     private ChatClient client;
     private ChatPanel chatPanel;
     private UserListPanel userListPanel;
@@ -64,41 +67,48 @@ public class MainFrame extends JFrame implements MessageListener {
 
     @Override
     public void onFileMessage(Message message) {
-         SwingUtilities.invokeLater(() -> chatPanel.addMessage(message));
+         SwingUtilities.invokeLater(() -> {
+             chatPanel.addMessage(message);
+             if (message.getTransferId() != null) {
+                 confirmFileOffer(message);
+             }
+         });
     }
 
-    @Override
-    public void onFileData(Message message) {
-        SwingUtilities.invokeLater(() -> {
+    /**
+     * 询问是否接收文件，接受后才开始传输
+     */
+    private void confirmFileOffer(Message offer) {
+        String filename = offer.getFilename();
+        Long size = offer.getContentLong("size");
+        int choice = JOptionPane.showConfirmDialog(this,
+                offer.getSender() + " 想发送文件: " + filename + " (" + (size != null ? size : 0) + " bytes)\n是否接收?",
+                "接收文件", JOptionPane.YES_NO_OPTION);
+        if (choice == JOptionPane.YES_OPTION) {
             try {
-                String filename = message.getContentString("filename");
-                String base64Data = message.getContentString("data");
-                
-                if (base64Data != null && !base64Data.isEmpty()) {
-                    byte[] data = java.util.Base64.getDecoder().decode(base64Data);
-                    
-                    // Save to Downloads folder
-                    String userHome = System.getProperty("user.home");
-                    java.io.File downloadDir = new java.io.File(userHome, "Downloads/SocketChat_Downloads");
-                    if (!downloadDir.exists()) {
-                        downloadDir.mkdirs();
-                    }
-                    
-                    java.io.File file = new java.io.File(downloadDir, filename);
-                    
-                    // Simple write (overwrite if exists or append if chunked? Assumed single chunk for now)
-                    // For single chunk:
-                    java.nio.file.Files.write(file.toPath(), data);
-                    
-                    chatPanel.addMessage(Message.createTextMessage("System", message.getSender(), Message.TargetType.USER, 
-                        "文件已保存: " + file.getAbsolutePath()));
-                        
-                    JOptionPane.showMessageDialog(this, "收到文件: " + filename + "\n已保存至: " + file.getAbsolutePath());
-                }
+                client.acceptFile(offer);
             } catch (Exception e) {
-                e.printStackTrace();
+                client.rejectFile(offer, "接收方无法保存文件");
                 JOptionPane.showMessageDialog(this, "接收文件失败: " + e.getMessage());
             }
+        } else {
+            client.rejectFile(offer, "对方拒绝接收");
+        }
+    }
+
+    @Override
+    public void onFileData(Message message) {
+        // 分片已由 ChatClient 在接收线程中写盘，完成后回调 onFileReceived
+    }
+
+    @Override
+    public void onFileReceived(Message message, java.io.File file) {
+        String filename = message.getFilename();
+        SwingUtilities.invokeLater(() -> {
+            chatPanel.addMessage(Message.createTextMessage("System", message.getSender(), Message.TargetType.USER, 
+                "文件已保存: " + file.getAbsolutePath()));
+                
+            JOptionPane.showMessageDialog(this, "收到文件: " + filename + "\n已保存至: " + file.getAbsolutePath());
         });
     }
 
@@ -117,11 +127,21 @@ public class MainFrame extends JFrame implements MessageListener {
         SwingUtilities.invokeLater(() -> userListPanel.removeUser(username));
     }
 
+    @Override
+    public void onPresenceDelta(List<String> joined, List<String> left) {
+        SwingUtilities.invokeLater(() -> userListPanel.applyPresenceDelta(joined, left));
+    }
+
     @Override
     public void onGroupListUpdate(List<Group> groups) {
          SwingUtilities.invokeLater(() -> userListPanel.updateGroupList(groups));
     }
 
+    @Override
+    public void onHistoryPage(String target, Message.TargetType targetType, List<Message> messages, String cursor) {
+        SwingUtilities.invokeLater(() -> chatPanel.addHistoryPage(target, messages, cursor));
+    }
+
     @Override
     public void onGroupCreated(Group group) {
          SwingUtilities.invokeLater(() -> userListPanel.addGroup(group));
@@ -134,10 +154,30 @@ public class MainFrame extends JFrame implements MessageListener {
 
     @Override
     public void onDisconnected() {
-        SwingUtilities.invokeLater(() -> {
-            JOptionPane.showMessageDialog(this, "连接已断开", "通知", JOptionPane.INFORMATION_MESSAGE);
-            System.exit(0);
-        });
+        // 在后台线程中重连，成功后 ChatClient 续传未完成的文件；多次失败才放弃传输并退出
+        SwingUtilities.invokeLater(() -> setTitle("多人聊天系统 - " + client.getUsername() + " (正在重新连接...)"));
+        Thread reconnector = new Thread(() -> {
+            long delay = 1000;
+            for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS; attempt++) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (client.reconnect()) {
+                    SwingUtilities.invokeLater(() -> setTitle("多人聊天系统 - " + client.getUsername()));
+                    return;
+                }
+                delay = Math.min(delay * 2, 30_000);
+            }
+            client.discardIncompleteTransfers();
+            SwingUtilities.invokeLater(() -> {
+                JOptionPane.showMessageDialog(this, "连接已断开", "通知", JOptionPane.INFORMATION_MESSAGE);
+                System.exit(0);
+            });
+        }, "reconnect");
+        reconnector.setDaemon(true);
+        reconnector.start();
     }
 
     public void onTargetSelected(String target, Message.TargetType type) {
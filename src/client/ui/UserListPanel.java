@@ -8,6 +8,8 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 import javax.swing.*;
 
 /**
@@ -18,6 +20,7 @@ public class UserListPanel extends JPanel {
     private ChatClient client;
     private JList<String> userList;
     private DefaultListModel<String> userListModel;
+    private final Set<String> onlineUsers = new HashSet<>(); // 与 userListModel 内容一致，用于O(1)判断
     private JList<Group> groupList;
     private DefaultListModel<Group> groupListModel;
     private JTabbedPane tabbedPane;
@@ -116,21 +119,34 @@ public class UserListPanel extends JPanel {
     
     public void updateUserList(List<String> users) {
         userListModel.clear();
+        onlineUsers.clear();
         for (String user : users) {
-            if (!user.equals(client.getUsername())) { // Don't show self
-                userListModel.addElement(user);
-            }
+            addUser(user);
         }
     }
     
     public void addUser(String username) {
-        if (!username.equals(client.getUsername()) && !userListModel.contains(username)) {
+        if (!username.equals(client.getUsername()) && onlineUsers.add(username)) { // Don't show self
             userListModel.addElement(username);
         }
     }
     
     public void removeUser(String username) {
-        userListModel.removeElement(username);
+        if (onlineUsers.remove(username)) {
+            userListModel.removeElement(username);
+        }
+    }
+    
+    /**
+     * 增量更新在线用户：只增删发生变化的用户，不重建整个列表
+     */
+    public void applyPresenceDelta(List<String> joined, List<String> left) {
+        for (String user : left) {
+            removeUser(user);
+        }
+        for (String user : joined) {
+            addUser(user);
+        }
     }
     
     public void updateGroupList(List<Group> groups) {
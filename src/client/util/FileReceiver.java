@@ -0,0 +1,213 @@
+package client.util;
+
+import common.Checksums;
+import common.Message;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 文件接收器
+ * 把收到的文件分片按分片序号写入下载目录中的临时文件，全部分片到达后改为正式文件名。
+ * 任何时刻只有一个分片在内存中，大文件不会整体载入堆。
+ * 分片写盘前校验CRC32；只接受按顺序到达的下一个分片，断线重连后从已写入的分片之后续传。
+ * 在接收线程中调用，避免在界面线程中做磁盘写入。
+ */
+public class FileReceiver {
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * 分片写入结果
+     */
+    public enum Status {
+        WRITTEN,    // 已写入，应确认
+        COMPLETE,   // 已写入最后一个分片，文件接收完成
+        RETRY,      // 校验失败或乱序，应要求从 chunkIndex 重传
+        IGNORED     // 未接受的传输或重复分片
+    }
+
+    public static final class Result {
+        public final Status status;
+        public final int chunkIndex;
+        public final File file;     // 接收完成时的文件
+
+        Result(Status status, int chunkIndex, File file) {
+            this.status = status;
+            this.chunkIndex = chunkIndex;
+            this.file = file;
+        }
+    }
+
+    private static final class Transfer {
+        final Path partFile;
+        final Path target;
+        final FileChannel channel;
+        final long chunkSize;
+        final int totalChunks;
+        int next;               // 下一个期望的分片
+        int retryRequested;     // 已要求重传的分片，避免对同一缺口重复要求
+
+        Transfer(Path partFile, Path target, FileChannel channel, long chunkSize, int totalChunks) {
+            this.partFile = partFile;
+            this.target = target;
+            this.channel = channel;
+            this.chunkSize = chunkSize;
+            this.totalChunks = totalChunks;
+            this.retryRequested = -1;
+        }
+    }
+
+    private final Path downloadDir;
+    private final Map<String, Transfer> transfers;
+
+    public FileReceiver(Path downloadDir) {
+        this.downloadDir = downloadDir;
+        this.transfers = new HashMap<>();
+    }
+
+    /**
+     * 默认下载目录: ~/Downloads/SocketChat_Downloads
+     */
+    public static FileReceiver createDefault() {
+        return new FileReceiver(Paths.get(System.getProperty("user.home"), "Downloads", "SocketChat_Downloads"));
+    }
+
+    /**
+     * 接受文件传输提议，准备临时文件
+     * @return 续传起点：已写入的分片数（新传输为0）
+     */
+    public synchronized int prepare(Message offer) throws IOException {
+        String transferId = offer.getTransferId();
+        Transfer transfer = transfers.get(transferId);
+        if (transfer != null) {
+            transfer.retryRequested = -1;
+            return transfer.next;
+        }
+
+        Integer chunkSize = offer.getContentInt("chunkSize");
+        Integer totalChunks = offer.getContentInt("totalChunks");
+        if (transferId == null || chunkSize == null || chunkSize <= 0 || totalChunks == null || totalChunks <= 0) {
+            throw new IOException("文件传输提议不完整");
+        }
+
+        Files.createDirectories(downloadDir);
+        String filename = safeFilename(offer.getFilename());
+        Path partFile = Files.createTempFile(downloadDir, filename + ".", PART_SUFFIX);
+        FileChannel channel = FileChannel.open(partFile, StandardOpenOption.WRITE);
+        transfers.put(transferId, new Transfer(partFile, downloadDir.resolve(filename), channel,
+                chunkSize, totalChunks));
+        return 0;
+    }
+
+    /**
+     * 写入一个文件分片
+     */
+    public synchronized Result write(Message chunk) throws IOException {
+        String transferId = chunk.getTransferId();
+        Transfer transfer = transfers.get(transferId);
+        int chunkIndex = chunk.getChunkIndex();
+        if (transfer == null || chunkIndex < transfer.next) {
+            return new Result(Status.IGNORED, chunkIndex, null);
+        }
+
+        byte[] data = chunk.getDataBytes();
+        if (data == null) {
+            data = new byte[0];
+        }
+        if (chunkIndex > transfer.next || !Checksums.verify(chunk, data)) {
+            if (transfer.retryRequested == transfer.next) {
+                return new Result(Status.IGNORED, chunkIndex, null);
+            }
+            transfer.retryRequested = transfer.next;
+            return new Result(Status.RETRY, transfer.next, null);
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = chunkIndex * transfer.chunkSize;
+            while (buffer.hasRemaining()) {
+                position += transfer.channel.write(buffer, position);
+            }
+            transfer.next = chunkIndex + 1;
+            transfer.retryRequested = -1;
+            if (transfer.next < transfer.totalChunks) {
+                return new Result(Status.WRITTEN, chunkIndex, null);
+            }
+
+            transfers.remove(transferId);
+            transfer.channel.close();
+            Files.move(transfer.partFile, transfer.target, StandardCopyOption.REPLACE_EXISTING);
+            return new Result(Status.COMPLETE, chunkIndex, transfer.target.toFile());
+        } catch (IOException e) {
+            discard(transferId);
+            throw e;
+        }
+    }
+
+    /**
+     * 写入旧客户端发来的不分片文件（没有传输ID，整个文件在一个分片中）
+     */
+    public synchronized File writeWhole(Message message) throws IOException {
+        byte[] data = message.getDataBytes();
+        if (data == null) {
+            return null;
+        }
+        Files.createDirectories(downloadDir);
+        Path target = downloadDir.resolve(safeFilename(message.getFilename()));
+        Files.write(target, data);
+        return target.toFile();
+    }
+
+    /**
+     * 未完成的传输及其续传起点（重连后重新接受这些传输）
+     */
+    public synchronized Map<String, Integer> getResumePoints() {
+        Map<String, Integer> points = new HashMap<>();
+        for (Map.Entry<String, Transfer> entry : transfers.entrySet()) {
+            points.put(entry.getKey(), entry.getValue().next);
+        }
+        return points;
+    }
+
+    /**
+     * 放弃一个传输并删除临时文件
+     * @return 该传输存在时返回true
+     */
+    public synchronized boolean discard(String transferId) {
+        Transfer transfer = transfers.remove(transferId);
+        if (transfer == null) {
+            return false;
+        }
+        try {
+            transfer.channel.close();
+            Files.deleteIfExists(transfer.partFile);
+        } catch (IOException e) {
+            System.err.println("[FileReceiver] 删除临时文件失败: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * 放弃所有未完成的传输
+     */
+    public synchronized void discardAll() {
+        for (String transferId : new HashMap<>(transfers).keySet()) {
+            discard(transferId);
+        }
+    }
+
+    /**
+     * 文件名来自对方，只保留最后一级名称，防止写到下载目录之外
+     */
+    private static String safeFilename(String filename) {
+        if (filename == null || filename.isEmpty()) {
+            return "unnamed";
+        }
+        String name = filename.replace('\\', '/');
+        name = name.substring(name.lastIndexOf('/') + 1);
+        return name.isEmpty() || name.equals(".") || name.equals("..") ? "unnamed" : name;
+    }
+}
@@ -0,0 +1,200 @@
+package client.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 历史记录文件的行偏移索引 ({target}.idx)
+ * 每行消息对应一个8字节（大端序）的结束偏移（换行符之后的位置），第 i 行占据
+ * [end(i-1), end(i))。按行号直接定位，从末尾分页读取时不需要扫描日志文件。
+ * 索引只由写入线程维护：先写日志再写索引，所以索引里出现的行一定已经在日志中；
+ * 打开时索引落后于日志（崩溃或旧版本写入）则扫描缺少的部分补齐，超前或损坏则重建。
+ */
+final class HistoryIndex {
+    static final int ENTRY_BYTES = 8;
+    private static final int SCAN_CHUNK = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer pending = ByteBuffer.allocate(ENTRY_BYTES * 512);
+    private long count;
+
+    private HistoryIndex(FileChannel channel, long count) {
+        this.channel = channel;
+        this.count = count;
+    }
+
+    static Path indexFile(Path log) {
+        String name = log.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return log.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".idx");
+    }
+
+    /**
+     * 打开日志的索引，并使其与日志当前内容一致
+     * @param log 可读写的日志通道，日志末尾是没有换行符的不完整行时补上换行符
+     */
+    static HistoryIndex open(Path logFile, FileChannel log) throws IOException {
+        FileChannel channel = FileChannel.open(indexFile(logFile), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long logSize = log.size();
+            long count = channel.size() / ENTRY_BYTES;
+            long indexed = count == 0 ? 0 : readEnd(channel, count - 1);
+            if (indexed > logSize || (count > 0 && !endsWithNewline(log, indexed))) {
+                // 索引超前于日志或已损坏，重建
+                count = 0;
+                indexed = 0;
+            }
+            channel.truncate(count * ENTRY_BYTES);
+            HistoryIndex index = new HistoryIndex(channel, count);
+            if (indexed < logSize) {
+                if (!endsWithNewline(log, logSize)) {
+                    log.write(ByteBuffer.wrap(new byte[]{'\n'}), logSize);
+                    logSize++;
+                }
+                index.scan(log, indexed, logSize);
+            }
+            return index;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static boolean endsWithNewline(FileChannel log, long end) throws IOException {
+        if (end == 0) {
+            return true;
+        }
+        ByteBuffer b = ByteBuffer.allocate(1);
+        return log.read(b, end - 1) == 1 && b.get(0) == '\n';
+    }
+
+    /**
+     * 扫描日志 [from, to) 中的换行符，补齐对应的索引项
+     */
+    private void scan(FileChannel log, long from, long to) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(SCAN_CHUNK);
+        long position = from;
+        while (position < to) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), to - position));
+            int n = log.read(chunk, position);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (chunk.get(i) == '\n') {
+                    add(position + i + 1);
+                }
+            }
+            position += n;
+        }
+        flush();
+    }
+
+    long count() {
+        return count;
+    }
+
+    /**
+     * 记录一行的结束偏移（调用 flush 后写入索引文件）
+     */
+    void add(long end) throws IOException {
+        if (!pending.hasRemaining()) {
+            flush();
+        }
+        pending.putLong(end);
+    }
+
+    void flush() throws IOException {
+        pending.flip();
+        long position = count * ENTRY_BYTES;
+        while (pending.hasRemaining()) {
+            position += channel.write(pending, position);
+        }
+        count = position / ENTRY_BYTES;
+        pending.clear();
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    private static long readEnd(FileChannel channel, long line) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(ENTRY_BYTES);
+        while (b.hasRemaining()) {
+            if (channel.read(b, line * ENTRY_BYTES + b.position()) < 0) {
+                throw new IOException("索引文件不完整");
+            }
+        }
+        return b.getLong(0);
+    }
+
+    /**
+     * 只读方式打开的索引，用于分页读取历史记录
+     */
+    static final class View {
+        private final MappedByteBuffer map;
+
+        private View(MappedByteBuffer map) {
+            this.map = map;
+        }
+
+        /**
+         * 映射当前的索引文件；索引不存在时返回null
+         */
+        static View open(Path logFile) throws IOException {
+            Path file = indexFile(logFile);
+            if (!Files.exists(file)) {
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size() / ENTRY_BYTES * ENTRY_BYTES;
+                if (size > Integer.MAX_VALUE) {
+                    return null;
+                }
+                return new View(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+        }
+
+        long count() {
+            return map.limit() / ENTRY_BYTES;
+        }
+
+        /**
+         * 完全位于日志 offset 之前的行数（结束偏移不超过 offset 的行）
+         */
+        long lines(long offset) {
+            long low = 0;
+            long high = count();
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (end(mid) <= offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * 第 line 行的起始偏移
+         */
+        long start(long line) {
+            return line == 0 ? 0 : end(line - 1);
+        }
+
+        /**
+         * 第 line 行的结束偏移（换行符之后）
+         */
+        long end(long line) {
+            return map.getLong((int) (line * ENTRY_BYTES));
+        }
+    }
+}
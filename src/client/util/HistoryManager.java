@@ -3,20 +3,28 @@ package client.util;
 import common.Message;
 import common.MessageType;
 import common.JsonUtils;
+import common.MessageCodec;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
-import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 /**
  * 历史记录管理器
  * 负责本地文件系统操作，保存和加载聊天记录及缓存文件
+ * 保存消息只是交给后台写入线程（见 {@link HistoryWriter}），调用方（Swing EDT）不会等待磁盘；
+ * 分页加载在历史读取线程上等待写入、映射并解析，结果通过回调交给调用方。
  */
 public class HistoryManager {
     private final String username;
     private final Path baseDir;
     private final Path historyDir;
     private final Path cacheDir;
+    private final HistoryWriter writer;
+    // 分页加载历史记录的线程（单线程，同一会话的请求按提交顺序完成）
+    private final ExecutorService loader;
 
     public HistoryManager(String username) {
         this.username = username;
@@ -26,6 +34,13 @@ public class HistoryManager {
         this.cacheDir = baseDir.resolve("cache");
 
         initDirectories();
+        this.writer = new HistoryWriter(username, message ->
+                MessageCodec.encodeJsonLine(processMessageForStorage(message)));
+        this.loader = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "history-loader-" + username);
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     private void initDirectories() {
@@ -43,19 +58,17 @@ public class HistoryManager {
      * @param targetKey 会话标识 (对方用户名 或 群组ID)
      * @param message 消息对象
      */
-    public synchronized void saveMessage(String targetKey, Message message) {
-        Path logFile = historyDir.resolve(targetKey + ".json");
-        
-        // 如果是图片消息，先将图片数据另存为文件，消息中只保留路径，减小JSON体积
-        Message msgToSave = processMessageForStorage(message);
-        
-        try (BufferedWriter writer = Files.newBufferedWriter(logFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-            String json = JsonUtils.toJson(msgToSave);
-            writer.write(json);
-            writer.newLine();
-        } catch (IOException e) {
-            System.err.println("[HistoryManager] 保存消息失败: " + e.getMessage());
-        }
+    public void saveMessage(String targetKey, Message message) {
+        // 如果是图片消息，图片数据在写入线程上另存为文件（见 processMessageForStorage）
+        writer.append(historyDir.resolve(targetKey + ".json"), message);
+    }
+
+    /**
+     * 写完尚未写入的消息并关闭历史文件
+     */
+    public void close() {
+        loader.shutdownNow();
+        writer.close();
     }
 
     /**
@@ -64,13 +77,23 @@ public class HistoryManager {
      * @return 消息列表
      */
     public synchronized List<Message> loadHistory(String targetKey) {
-        List<Message> history = new ArrayList<>();
         Path logFile = historyDir.resolve(targetKey + ".json");
-
+        // 先等待已保存的消息写到文件，保证能读到
+        writer.sync(logFile);
         if (!Files.exists(logFile)) {
-            return history;
+            return new ArrayList<>();
         }
-
+        try {
+            MappedHistoryReader reader = MappedHistoryReader.open(logFile);
+            if (reader.isComplete()) {
+                return restoreAll(reader.readAll());
+            }
+        } catch (IOException e) {
+            System.err.println("[HistoryManager] 读取历史记录失败: " + e.getMessage());
+            return new ArrayList<>();
+        }
+        // 超过映射上限的文件逐行读取
+        List<Message> history = new ArrayList<>();
         try (BufferedReader reader = Files.newBufferedReader(logFile)) {
             String line;
             while ((line = reader.readLine()) != null) {
@@ -90,6 +113,121 @@ public class HistoryManager {
         return history;
     }
 
+    /**
+     * 异步加载最近的历史记录（立即返回，不等待磁盘）
+     * 按行索引定位最后 limit 行，只映射并解析这一段，打开很大的会话也只访问文件末尾的一小部分。
+     * 调用之前保存的消息都包含在结果中，之后保存的不包含，调用方可以把结果与之后收到的消息直接拼接。
+     * @param targetKey 会话标识
+     * @param limit 最多加载的条数
+     * @param callback 在历史读取线程上收到最近的一页（从旧到新）
+     */
+    public void loadRecentHistory(String targetKey, int limit, Consumer<HistoryPage> callback) {
+        Path logFile = historyDir.resolve(targetKey + ".json");
+        HistoryWriter.Entry mark = writer.mark(logFile);
+        loader.execute(() -> {
+            long logEnd = writer.await(mark);
+            if (writer.isIndexed(logFile) || limit <= 0) {
+                callback.accept(loadPage(logFile, logEnd, Long.MAX_VALUE, limit));
+            } else {
+                // 旧版本写入的文件正在写入线程上建立索引，先从文件末尾读取最近的消息
+                callback.accept(loadTail(logFile, logEnd, limit));
+            }
+        });
+    }
+
+    /**
+     * 异步加载更早的一页历史记录（向上滚动时调用，立即返回）
+     * @param newer 已加载的最早一页
+     * @param limit 最多加载的条数
+     * @param callback 在历史读取线程上收到 newer 之前的最多 limit 条消息（从旧到新）
+     */
+    public void loadHistoryBefore(String targetKey, HistoryPage newer, int limit, Consumer<HistoryPage> callback) {
+        Path logFile = historyDir.resolve(targetKey + ".json");
+        loader.execute(() -> {
+            long beforeLine = newer.getFirstLine();
+            if (beforeLine < 0) {
+                // 最近一页是在索引建立之前从文件末尾读取的，等索引建立后按偏移换算成行号
+                writer.await(writer.mark(logFile));
+                beforeLine = lineAt(logFile, newer.getFirstOffset());
+            }
+            callback.accept(loadPage(logFile, -1, beforeLine, limit));
+        });
+    }
+
+    /**
+     * 不使用索引，从 logEnd 向前读取最近的 limit 条消息
+     */
+    private HistoryPage loadTail(Path logFile, long logEnd, int limit) {
+        if (!Files.exists(logFile)) {
+            return new HistoryPage(new ArrayList<>(), 0);
+        }
+        try {
+            MappedHistoryReader reader = MappedHistoryReader.openTail(logFile, logEnd < 0 ? Long.MAX_VALUE : logEnd);
+            List<Message> messages = restoreAll(reader.readLast(limit));
+            long offset = reader.firstOffset();
+            return new HistoryPage(messages, offset == 0 ? 0 : -1, offset);
+        } catch (IOException e) {
+            System.err.println("[HistoryManager] 读取历史记录失败: " + e.getMessage());
+            return new HistoryPage(new ArrayList<>(), 0);
+        }
+    }
+
+    /**
+     * 日志中从 offset 开始的一行的行号，索引无法建立时返回0（不再加载更早的消息）
+     */
+    private long lineAt(Path logFile, long offset) {
+        try {
+            HistoryIndex.View index = HistoryIndex.View.open(logFile);
+            return index == null ? 0 : index.lines(offset);
+        } catch (IOException e) {
+            System.err.println("[HistoryManager] 读取历史记录失败: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * @param logEnd 只读取结束位置不超过这里的行，-1 表示不限
+     */
+    private HistoryPage loadPage(Path logFile, long logEnd, long beforeLine, int limit) {
+        if (!Files.exists(logFile) || limit <= 0 || beforeLine <= 0) {
+            return new HistoryPage(new ArrayList<>(), 0);
+        }
+        try {
+            HistoryIndex.View index = HistoryIndex.View.open(logFile);
+            if (index == null) {
+                // 索引无法建立时退回到从文件末尾向前扫描，只能加载最近的一页
+                if (beforeLine != Long.MAX_VALUE) {
+                    return new HistoryPage(new ArrayList<>(), 0);
+                }
+                MappedHistoryReader reader = MappedHistoryReader.openTail(logFile,
+                        logEnd < 0 ? Long.MAX_VALUE : logEnd);
+                return new HistoryPage(restoreAll(reader.readLast(limit)), 0);
+            }
+            long to = Math.min(beforeLine, logEnd < 0 ? index.count() : index.lines(logEnd));
+            long from = Math.max(0, to - limit);
+            // 单次映射不能超过 2GB，超出时少加载几行
+            while (from < to && index.end(to - 1) - index.start(from) > Integer.MAX_VALUE) {
+                from++;
+            }
+            if (from >= to) {
+                return new HistoryPage(new ArrayList<>(), from);
+            }
+            MappedHistoryReader reader = MappedHistoryReader.open(logFile, index.start(from), index.end(to - 1));
+            return new HistoryPage(restoreAll(reader.readAll()), from);
+        } catch (IOException e) {
+            System.err.println("[HistoryManager] 读取历史记录失败: " + e.getMessage());
+            return new HistoryPage(new ArrayList<>(), 0);
+        }
+    }
+
+    private List<Message> restoreAll(List<Message> history) {
+        for (Message msg : history) {
+            // 如果消息引用了本地缓存图片，尝试读取以恢复 data 字段用于显示
+            restoreMessageData(msg);
+        }
+        return history;
+    }
+
     /**
      * 处理消息以便存储 (分离大文件数据)
      */
@@ -98,15 +236,14 @@ public class HistoryManager {
         // 目前为了保证兼容性，直接存储完整 Base64 数据
         
         if (original.getType() == MessageType.IMAGE) {
-            String base64Data = original.getContentString("data");
-            if (base64Data != null && base64Data.length() > 100) { 
-                String filename = original.getContentString("filename");
+            byte[] bytes = original.getDataBytes();
+            if (bytes != null && bytes.length > 75) { 
+                String filename = original.getFilename();
                 String cacheFileName = System.currentTimeMillis() + "_" + filename;
                 Path cacheFile = cacheDir.resolve(cacheFileName);
                 
                 try {
                     // 顺便把图片存一份到 cache 目录，方便查看
-                    byte[] bytes = Base64.getDecoder().decode(base64Data);
                     Files.write(cacheFile, bytes);
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -0,0 +1,55 @@
+package client.util;
+
+import common.Message;
+import java.util.List;
+
+/**
+ * 一页历史记录
+ * 行号是消息在会话日志中的序号（从0开始，只追加，不会因为新消息而改变），
+ * 用来继续向前加载更早的一页。
+ * 旧版本写入的文件在行索引建立之前只能从文件末尾读取，这时行号未知 (-1)，
+ * 改为记录本页在文件中的起始偏移，索引建立后再换算成行号。
+ */
+public class HistoryPage {
+    private final List<Message> messages;
+    private final long firstLine;
+    private final long firstOffset;
+
+    public HistoryPage(List<Message> messages, long firstLine) {
+        this(messages, firstLine, -1);
+    }
+
+    HistoryPage(List<Message> messages, long firstLine, long firstOffset) {
+        this.messages = messages;
+        this.firstLine = firstLine;
+        this.firstOffset = firstOffset;
+    }
+
+    /**
+     * 本页的消息（从旧到新）
+     */
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    /**
+     * 本页第一条消息的行号，索引还没有建立时为-1
+     */
+    public long getFirstLine() {
+        return firstLine;
+    }
+
+    /**
+     * 行号未知时本页在文件中的起始偏移
+     */
+    long getFirstOffset() {
+        return firstOffset;
+    }
+
+    /**
+     * 是否还有更早的消息
+     */
+    public boolean hasOlder() {
+        return firstLine > 0 || (firstLine < 0 && firstOffset > 0);
+    }
+}
@@ -0,0 +1,347 @@
+package client.util;
+
+import common.Message;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 后台历史记录写入线程
+ * 调用方只把待写入的消息放进队列就返回，不会等待磁盘；编码和写文件都在写入线程上完成。
+ * 写入线程把一段时间内（或累积到一定大小）的追加按会话归并后一次写出（组提交）。
+ * 每个会话保持一个打开的文件通道，打开的文件数超过上限时关闭最久未使用的通道。
+ * 写入日志的同时维护行偏移索引（见 {@link HistoryIndex}）。
+ */
+final class HistoryWriter implements Runnable {
+    // 组提交的最长等待时间：第一条待写入的行最多等待这么久就会写到文件
+    private static final long COMMIT_MILLIS = Math.max(0, Long.getLong("chat.client.historyCommitMillis", 50));
+    // 待写入的数据达到这个大小时立即提交，不再等待
+    private static final int COMMIT_BYTES = Math.max(1, Integer.getInteger("chat.client.historyCommitBytes", 256 * 1024));
+    // 同时保持打开的历史文件数
+    private static final int MAX_OPEN_FILES = Math.max(1, Integer.getInteger("chat.client.historyOpenFiles", 32));
+
+    /**
+     * 一条待写入的消息；带 done 的记录是刷新请求（写出此前的所有记录后通知等待方，
+     * file 的索引还没有校验过时，通知之后再补齐或重建索引）
+     */
+    static final class Entry {
+        final Path file;
+        final Message message;
+        final CountDownLatch done;
+        // 刷新请求处理时 file 的长度（done 之前写入），-1 表示写入线程已关闭
+        long size = -1;
+
+        Entry(Path file, Message message, CountDownLatch done) {
+            this.file = file;
+            this.message = message;
+            this.done = done;
+        }
+    }
+
+    private static final Entry STOP = new Entry(null, null, null);
+
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    // 在写入线程上把消息编码成一行字节（含换行符），返回null表示丢弃
+    private final Function<Message, byte[]> encoder;
+    private final Thread thread;
+    private final Thread shutdownHook;
+    private volatile boolean closed;
+    // 已提交和已写出的消息数，两者相等时刷新无需等待
+    private final AtomicLong appended = new AtomicLong();
+    private volatile long written;
+    // 本次运行中已经校验过索引的日志文件，之后索引由写入线程随追加同步维护
+    private final Set<Path> indexed = ConcurrentHashMap.newKeySet();
+
+    // 以下字段只在写入线程上访问
+    private final Map<Path, List<byte[]>> pending = new LinkedHashMap<>();
+    private final List<Entry> waiters = new ArrayList<>();
+    private int pendingBytes;
+    private final LinkedHashMap<Path, Appender> channels = new LinkedHashMap<Path, Appender>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Appender> eldest) {
+            if (size() > MAX_OPEN_FILES) {
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    HistoryWriter(String name, Function<Message, byte[]> encoder) {
+        this.encoder = encoder;
+        this.thread = new Thread(this, "history-writer-" + name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+        // 客户端通过 System.exit 退出，退出前把队列中的记录写完
+        this.shutdownHook = new Thread(this::close, "history-writer-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * 把一条消息追加到文件末尾（异步，立即返回）
+     */
+    void append(Path file, Message message) {
+        if (closed) {
+            System.err.println("[HistoryManager] 历史记录写入已关闭，丢弃消息");
+            return;
+        }
+        appended.incrementAndGet();
+        queue.add(new Entry(file, message, null));
+    }
+
+    /**
+     * 等待此前提交的所有记录写到文件
+     * （读取历史记录前调用，保证能读到刚保存的消息）
+     */
+    void sync(Path file) {
+        if (closed || Thread.currentThread() == thread || (written == appended.get() && indexed.contains(file))) {
+            return;
+        }
+        await(mark(file));
+    }
+
+    /**
+     * 登记一次读取（不等待，可以在界面线程上调用）：此前提交的记录都会写到文件，之后提交的不计入
+     * @return 交给 await 在后台线程上等待
+     */
+    Entry mark(Path file) {
+        Entry mark = new Entry(file, null, new CountDownLatch(1));
+        if (closed) {
+            mark.done.countDown();
+        } else {
+            queue.add(mark);
+        }
+        return mark;
+    }
+
+    /**
+     * 等待 mark 之前提交的记录写到文件
+     * 返回时文件的索引可能还在重建（见 isIndexed），再登记一次并等待即可等到索引建立完成。
+     * @return 登记时日志的长度（只应读取这个位置之前的行），写入线程已关闭时返回-1
+     */
+    long await(Entry mark) {
+        try {
+            mark.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        return mark.size;
+    }
+
+    /**
+     * 文件的索引是否已与日志一致（之后由写入线程随追加同步维护）
+     */
+    boolean isIndexed(Path file) {
+        return indexed.contains(file);
+    }
+
+    /**
+     * 写完队列中的记录后关闭所有文件
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.add(STOP);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // JVM 已在退出过程中
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Entry entry = queue.take();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COMMIT_MILLIS);
+                boolean stop = false;
+                int batched = 0;
+                // 收集一批：直到超时、达到大小、遇到刷新请求或停止
+                while (true) {
+                    if (entry == STOP) {
+                        stop = true;
+                        break;
+                    }
+                    if (entry.done != null) {
+                        waiters.add(entry);
+                        break;
+                    }
+                    add(entry);
+                    batched++;
+                    if (pendingBytes >= COMMIT_BYTES) {
+                        break;
+                    }
+                    entry = queue.poll();
+                    if (entry == null) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        entry = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (entry == null) {
+                            break;
+                        }
+                    }
+                }
+                commit();
+                written += batched;
+                if (stop) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            commit();
+        } finally {
+            for (Appender appender : channels.values()) {
+                closeQuietly(appender);
+            }
+            channels.clear();
+            // close 之后才提交的刷新请求不再等待
+            for (Entry left; (left = queue.poll()) != null; ) {
+                if (left.done != null) {
+                    left.done.countDown();
+                }
+            }
+        }
+    }
+
+    private void add(Entry entry) {
+        byte[] line;
+        try {
+            line = encoder.apply(entry.message);
+        } catch (RuntimeException e) {
+            System.err.println("[HistoryManager] 保存消息失败: " + e.getMessage());
+            return;
+        }
+        if (line != null) {
+            pending.computeIfAbsent(entry.file, k -> new ArrayList<>()).add(line);
+            pendingBytes += line.length;
+        }
+    }
+
+    /**
+     * 把待写入的行按文件一次写出（每个会话一次 gathering write），然后通知等待刷新的调用方
+     */
+    private void commit() {
+        for (Iterator<Map.Entry<Path, List<byte[]>>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, List<byte[]>> e = it.next();
+            it.remove();
+            List<byte[]> lines = e.getValue();
+            ByteBuffer[] buffers = new ByteBuffer[lines.size()];
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = ByteBuffer.wrap(lines.get(i));
+            }
+            try {
+                Appender appender = appender(e.getKey());
+                long position = appender.log.position();
+                ByteBuffer last = buffers[buffers.length - 1];
+                while (last.hasRemaining()) {
+                    appender.log.write(buffers);
+                }
+                // 日志写完之后再记录索引，索引中的行一定已经在日志里
+                for (byte[] line : lines) {
+                    position += line.length;
+                    appender.index.add(position);
+                }
+                appender.index.flush();
+            } catch (IOException ex) {
+                System.err.println("[HistoryManager] 保存消息失败: " + ex.getMessage());
+                // 关闭出错的通道，下次重新打开
+                closeQuietly(channels.remove(e.getKey()));
+            }
+        }
+        pendingBytes = 0;
+        for (Entry waiter : waiters) {
+            if (waiter.file != null) {
+                try {
+                    waiter.size = Files.exists(waiter.file) ? Files.size(waiter.file) : 0;
+                } catch (IOException ex) {
+                    System.err.println("[HistoryManager] 读取历史记录失败: " + ex.getMessage());
+                }
+            }
+            waiter.done.countDown();
+        }
+        // 还没有校验过索引的已有日志，在通知等待方之后打开一次补齐或重建索引
+        // （旧版本写入的大文件重建索引需要扫描整个文件，读取方先从文件末尾读取最近的消息）
+        for (Entry waiter : waiters) {
+            if (waiter.file != null && !indexed.contains(waiter.file) && Files.exists(waiter.file)) {
+                try {
+                    appender(waiter.file);
+                } catch (IOException ex) {
+                    System.err.println("[HistoryManager] 建立历史索引失败: " + ex.getMessage());
+                }
+            }
+        }
+        waiters.clear();
+    }
+
+    private Appender appender(Path file) throws IOException {
+        Appender appender = channels.get(file);
+        if (appender == null) {
+            appender = new Appender(file);
+            channels.put(file, appender);
+            indexed.add(file);
+        }
+        return appender;
+    }
+
+    /**
+     * 一个会话的日志通道及其索引（日志只由本线程追加，写入位置始终在文件末尾）
+     */
+    private static final class Appender {
+        final FileChannel log;
+        final HistoryIndex index;
+
+        Appender(Path file) throws IOException {
+            log = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                index = HistoryIndex.open(file, log);
+                log.position(log.size());
+            } catch (IOException | RuntimeException e) {
+                log.close();
+                throw e;
+            }
+        }
+    }
+
+    private static void closeQuietly(Appender appender) {
+        if (appender != null) {
+            try {
+                appender.log.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                appender.index.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package client.util;
+
+import common.Message;
+import common.MessageCodec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 以内存映射方式读取本地历史记录文件（每行一条JSON消息）
+ * 行边界直接在映射上查找，只有需要的行才复制出来解析；从末尾向前读取最近的消息时，
+ * 只会访问文件末尾实际用到的页，打开很大的会话不需要读入整个文件。
+ * 超过单个映射上限的文件只映射末尾的部分。
+ */
+final class MappedHistoryReader {
+    private static final int MAX_MAP = Integer.MAX_VALUE;
+
+    private final ByteBuffer map;
+    private final long base;
+    private final boolean complete;
+    // readLast 返回的最早一行在文件中的起始偏移
+    private long firstOffset;
+
+    private MappedHistoryReader(ByteBuffer map, long base, boolean complete) {
+        this.map = map;
+        this.base = base;
+        this.complete = complete;
+    }
+
+    /**
+     * 映射历史记录文件（映射建立后即关闭通道，映射在不再被引用后由GC释放）
+     */
+    static MappedHistoryReader open(Path file) throws IOException {
+        return openTail(file, Files.size(file));
+    }
+
+    /**
+     * 映射文件中 end 之前的部分，超过单个映射上限时只映射末尾
+     */
+    static MappedHistoryReader openTail(Path file, long end) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            end = Math.min(end, channel.size());
+            long start = Math.max(0, end - MAX_MAP);
+            return new MappedHistoryReader(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start),
+                    start, start == 0);
+        }
+    }
+
+    /**
+     * 映射文件中 [start, end) 范围内的若干完整行（范围由行索引给出，不超过单个映射上限）
+     */
+    static MappedHistoryReader open(Path file, long start, long end) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new MappedHistoryReader(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start),
+                    start, true);
+        }
+    }
+
+    /**
+     * 映射是否从行边界开始（覆盖整个文件或按行索引映射的范围）
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * 从前往后解析所有消息
+     */
+    List<Message> readAll() {
+        List<Message> result = new ArrayList<>();
+        int limit = map.limit();
+        int start = 0;
+        while (start < limit) {
+            int end = start;
+            while (end < limit && map.get(end) != '\n') {
+                end++;
+            }
+            Message message = decode(start, end);
+            if (message != null) {
+                result.add(message);
+            }
+            start = end + 1;
+        }
+        return result;
+    }
+
+    /**
+     * 从末尾向前解析最近的 limit 条消息
+     * @return 按时间从旧到新排列
+     */
+    List<Message> readLast(int limit) {
+        List<Message> result = new ArrayList<>(Math.min(limit, 1024));
+        int end = map.limit();
+        // 映射不从文件开头开始时，第一行可能不完整
+        int floor = complete ? 0 : nextLineStart(0);
+        while (end > floor && result.size() < limit) {
+            int start = end - 1;
+            if (map.get(start) == '\n') {
+                // end 之前正好是上一行的换行符
+                end = start;
+                start--;
+            }
+            while (start >= floor && map.get(start) != '\n') {
+                start--;
+            }
+            Message message = decode(start + 1, end);
+            if (message != null) {
+                result.add(message);
+            }
+            end = start + 1;
+        }
+        firstOffset = base + end;
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * 上一次 readLast 读到的最早一行在文件中的起始偏移
+     */
+    long firstOffset() {
+        return firstOffset;
+    }
+
+    private int nextLineStart(int position) {
+        int limit = map.limit();
+        while (position < limit && map.get(position) != '\n') {
+            position++;
+        }
+        return Math.min(position + 1, limit);
+    }
+
+    /**
+     * 解析 [start, end) 范围内的一行（去掉Windows换行的\r），空行或解析失败时返回null
+     */
+    private Message decode(int start, int end) {
+        if (end > start && map.get(end - 1) == '\r') {
+            end--;
+        }
+        if (end <= start) {
+            return null;
+        }
+        byte[] line = new byte[end - start];
+        ByteBuffer view = map.duplicate();
+        view.position(start);
+        view.get(line);
+        try {
+            // 空白行解码为null
+            return MessageCodec.decode(line, 0, line.length);
+        } catch (Exception e) {
+            System.err.println("[HistoryManager] 解析历史消息出错: " + e.getMessage());
+            return null;
+        }
+    }
+}
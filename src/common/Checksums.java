@@ -0,0 +1,32 @@
+package common;
+
+import java.util.zip.CRC32;
+
+/**
+ * 校验和工具
+ * 文件分片使用CRC32校验，发送方计算后放入分片消息，服务器和接收方写盘前各自校验
+ */
+public final class Checksums {
+
+    private Checksums() {
+    }
+
+    /**
+     * 计算数据的CRC32值
+     */
+    public static long crc32(byte[] data) {
+        CRC32 crc = new CRC32();
+        if (data != null) {
+            crc.update(data, 0, data.length);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * 校验分片消息携带的CRC32（未携带校验值的旧格式分片视为通过）
+     */
+    public static boolean verify(Message chunk, byte[] data) {
+        Long expected = chunk.getContentLong("crc");
+        return expected == null || expected == crc32(data);
+    }
+}
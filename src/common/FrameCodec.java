@@ -0,0 +1,106 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * 消息帧编解码
+ *
+ * 换行JSON帧: 紧凑JSON + '\n'，二进制数据以Base64放在 content.data 中。
+ *
+ * 二进制帧（大端序）:
+ * <pre>
+ * +------------+---------+---------------+-------------+-----------+
+ * | length (4) | type(1) | headerLen (4) | header JSON | body      |
+ * +------------+---------+---------------+-------------+-----------+
+ * </pre>
+ * length 为其后所有字节数（不含自身）；type 为 MessageType 序号（新类型只能追加在枚举末尾）；
+ * header 是去掉 content.data 的消息JSON；body 是 content.data 对应的原始字节（可为空）。
+ */
+public final class FrameCodec {
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    public static final int BINARY_PREFIX_LENGTH = 4;      // 长度字段
+    public static final int BINARY_HEADER_PREFIX_LENGTH = 5; // 类型字节 + 帧头长度字段
+
+    private FrameCodec() {
+    }
+
+    /**
+     * 按指定帧格式编码消息
+     */
+    public static byte[] encode(Message message, WireFormat format) {
+        return format == WireFormat.BINARY ? encodeBinary(message) : encodeJsonLine(message);
+    }
+
+    /**
+     * 编码为换行分隔的JSON帧
+     */
+    public static byte[] encodeJsonLine(Message message) {
+        return MessageCodec.encodeJsonLine(message);
+    }
+
+    /**
+     * 编码为长度前缀二进制帧
+     */
+    public static byte[] encodeBinary(Message message) {
+        byte[] body = message.getDataBytes();
+        if (body == null) {
+            body = new byte[0];
+        }
+        byte[] prefix = encodeBinaryPrefix(message, body.length);
+        byte[] frame = new byte[prefix.length + body.length];
+        System.arraycopy(prefix, 0, frame, 0, prefix.length);
+        System.arraycopy(body, 0, frame, prefix.length, body.length);
+        return frame;
+    }
+
+    /**
+     * 编码二进制帧中帧体之前的部分（长度、类型、帧头），帧体由调用方另行写出
+     * 用于帧体直接从文件传输到Socket的场景
+     */
+    public static byte[] encodeBinaryPrefix(Message message, int bodyLength) {
+        byte[] header = MessageCodec.encodeHeader(message);
+
+        int length = BINARY_HEADER_PREFIX_LENGTH + header.length + bodyLength;
+        ByteBuffer prefix = ByteBuffer.allocate(BINARY_PREFIX_LENGTH + BINARY_HEADER_PREFIX_LENGTH + header.length);
+        prefix.putInt(length);
+        prefix.put((byte) (message.getType() != null ? message.getType().ordinal() : -1));
+        prefix.putInt(header.length);
+        prefix.put(header);
+        return prefix.array();
+    }
+
+    /**
+     * 由二进制帧的各部分还原消息
+     * @param typeIndex 类型字节
+     * @param header 消息头JSON的UTF-8字节
+     * @param body 原始数据字节，可为空数组
+     * @throws IOException 帧头为空
+     */
+    public static Message decodeBinary(int typeIndex, byte[] header, byte[] body) throws IOException {
+        Message message = MessageCodec.decode(header, 0, header.length);
+        if (message == null) {
+            throw new IOException("二进制帧头为空");
+        }
+        if (message.getType() == null && typeIndex >= 0 && typeIndex < MessageType.values().length) {
+            message.setType(MessageType.values()[typeIndex]);
+        }
+        if (body.length > 0) {
+            message.setBinaryData(body);
+        }
+        return message;
+    }
+
+    /**
+     * 检查二进制帧的长度字段与帧头长度字段
+     * @throws IOException 长度不合法
+     */
+    public static void checkBinaryLengths(int frameLength, int headerLength) throws IOException {
+        if (frameLength < 5 || frameLength > MAX_FRAME_LENGTH) {
+            throw new IOException("二进制帧长度不合法: " + frameLength + " 字节 (上限 " + MAX_FRAME_LENGTH + ")");
+        }
+        if (headerLength < 0 || headerLength > frameLength - 5) {
+            throw new IOException("二进制帧头长度不合法: " + headerLength);
+        }
+    }
+}
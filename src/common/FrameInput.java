@@ -0,0 +1,178 @@
+package common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 阻塞式消息帧读取器
+ * 自带读缓冲区，既能按行读取JSON帧，也能在协商后切换为读取二进制帧，
+ * 切换时缓冲区中已读入的字节不会丢失（BufferedReader无法做到这一点）。
+ */
+public class FrameInput {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+    private byte[] lineBuffer;
+    private volatile WireFormat format;
+
+    public FrameInput(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.lineBuffer = new byte[256];
+        this.format = WireFormat.JSON_LINE;
+    }
+
+    /**
+     * 切换帧格式，之后的读取按新格式解析
+     */
+    public void setFormat(WireFormat format) {
+        this.format = format;
+    }
+
+    public WireFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * 读取下一条消息
+     * @return 消息；连接已关闭时返回null
+     * @throws IOException 读取失败或帧结构不合法（此后连接不可再用）
+     * @throws com.google.gson.JsonParseException 消息内容不是合法JSON（该帧已被跳过，可继续读取）
+     */
+    public Message read() throws IOException {
+        if (format == WireFormat.BINARY) {
+            return readBinary();
+        }
+        int length;
+        while ((length = readLineBytes()) >= 0) {
+            if (length > 0 && lineBuffer[length - 1] == '\r') {
+                length--;
+            }
+            if (length > 0) {
+                // 直接从行缓冲区的字节解码，不构造整行的 String
+                Message message = MessageCodec.decode(lineBuffer, 0, length);
+                shrinkLineBuffer();
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 读取一行UTF-8文本（不含行尾），连接已关闭时返回null
+     */
+    public String readLine() throws IOException {
+        int length = readLineBytes();
+        return length >= 0 ? decodeLine(length) : null;
+    }
+
+    /**
+     * 读取一行到行缓冲区（不含换行符）
+     * @return 行的字节数，连接已关闭且没有剩余数据时返回-1
+     */
+    private int readLineBytes() throws IOException {
+        int length = 0;
+        while (true) {
+            if (position == limit && !fill()) {
+                return length > 0 ? length : -1;
+            }
+            int start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+            int chunk = position - start;
+            if (length + chunk > FrameCodec.MAX_FRAME_LENGTH) {
+                throw new IOException("消息帧过大: 超过 " + FrameCodec.MAX_FRAME_LENGTH + " 字节");
+            }
+            if (length + chunk > lineBuffer.length) {
+                lineBuffer = Arrays.copyOf(lineBuffer, Math.max(lineBuffer.length * 2, length + chunk));
+            }
+            System.arraycopy(buffer, start, lineBuffer, length, chunk);
+            length += chunk;
+
+            if (position < limit) {
+                // 跳过换行符
+                position++;
+                return length;
+            }
+        }
+    }
+
+    private String decodeLine(int length) {
+        if (length > 0 && lineBuffer[length - 1] == '\r') {
+            length--;
+        }
+        String line = new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+        shrinkLineBuffer();
+        return line;
+    }
+
+    private void shrinkLineBuffer() {
+        if (lineBuffer.length > BUFFER_SIZE * 4) {
+            // 超长行读完后释放大缓冲区
+            lineBuffer = new byte[256];
+        }
+    }
+
+    private Message readBinary() throws IOException {
+        if (position == limit && !fill()) {
+            return null;
+        }
+        int frameLength = readInt();
+        int typeIndex = readByte();
+        int headerLength = readInt();
+        FrameCodec.checkBinaryLengths(frameLength, headerLength);
+
+        byte[] header = readFully(headerLength);
+        byte[] body = readFully(frameLength - FrameCodec.BINARY_HEADER_PREFIX_LENGTH - headerLength);
+        return FrameCodec.decodeBinary(typeIndex, header, body);
+    }
+
+    private int readByte() throws IOException {
+        if (position == limit && !fill()) {
+            throw new EOFException("二进制帧不完整");
+        }
+        return buffer[position++];
+    }
+
+    private int readInt() throws IOException {
+        return ((readByte() & 0xFF) << 24) | ((readByte() & 0xFF) << 16)
+                | ((readByte() & 0xFF) << 8) | (readByte() & 0xFF);
+    }
+
+    private byte[] readFully(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int copied = Math.min(length, limit - position);
+        System.arraycopy(buffer, position, bytes, 0, copied);
+        position += copied;
+        while (copied < length) {
+            int n = in.read(bytes, copied, length - copied);
+            if (n < 0) {
+                throw new EOFException("二进制帧不完整");
+            }
+            copied += n;
+        }
+        return bytes;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    /**
+     * 关闭底层输入流
+     */
+    public void close() throws IOException {
+        in.close();
+    }
+}
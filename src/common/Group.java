@@ -2,11 +2,16 @@ package common;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.UUID;
 
 /**
  * 群组实体类
+ * 成员列表是不可变快照，成员变更时复制并整体替换（写时复制）：
+ * 群发时直接遍历当前快照，无需加锁或复制；成员变更很少，由修改方串行完成。
  */
 public class Group implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -14,12 +19,12 @@ public class Group implements Serializable {
     private String groupId;         // 群组ID
     private String groupName;       // 群组名称
     private String creator;         // 创建者
-    private List<String> members;   // 成员列表
+    private volatile List<String> members; // 成员列表（不可变快照）
     private long createTime;        // 创建时间
     
     public Group() {
         this.groupId = UUID.randomUUID().toString().substring(0, 8);
-        this.members = new ArrayList<>();
+        this.members = Collections.emptyList();
         this.createTime = System.currentTimeMillis();
     }
     
@@ -27,28 +32,50 @@ public class Group implements Serializable {
         this();
         this.groupName = groupName;
         this.creator = creator;
-        this.members.add(creator);
+        this.members = Collections.singletonList(creator);
     }
     
     public Group(String groupName, String creator, List<String> members) {
         this();
         this.groupName = groupName;
         this.creator = creator;
-        // 确保创建者在成员列表中
+        // 确保创建者在成员列表中，并去除重复的成员
+        LinkedHashSet<String> unique = new LinkedHashSet<>();
         if (!members.contains(creator)) {
-            this.members.add(creator);
+            unique.add(creator);
         }
-        this.members.addAll(members);
+        unique.addAll(members);
+        this.members = snapshot(unique);
     }
     
-    public void addMember(String username) {
-        if (!members.contains(username)) {
-            members.add(username);
+    /**
+     * 以已有的全部字段重建群组（服务器从磁盘恢复群组时使用，不生成新的ID）
+     */
+    public Group(String groupId, String groupName, String creator, List<String> members, long createTime) {
+        this.groupId = groupId;
+        this.groupName = groupName;
+        this.creator = creator;
+        this.members = snapshot(members);
+        this.createTime = createTime;
+    }
+
+    public synchronized void addMember(String username) {
+        List<String> current = members;
+        if (!current.contains(username)) {
+            List<String> next = new ArrayList<>(current.size() + 1);
+            next.addAll(current);
+            next.add(username);
+            members = Collections.unmodifiableList(next);
         }
     }
     
-    public void removeMember(String username) {
-        members.remove(username);
+    public synchronized void removeMember(String username) {
+        List<String> current = members;
+        if (current.contains(username)) {
+            List<String> next = new ArrayList<>(current);
+            next.remove(username);
+            members = Collections.unmodifiableList(next);
+        }
     }
     
     public boolean hasMember(String username) {
@@ -81,12 +108,19 @@ public class Group implements Serializable {
         this.creator = creator;
     }
     
+    /**
+     * 当前成员快照（不可修改，之后的成员变更不会反映到已取得的快照上）
+     */
     public List<String> getMembers() {
         return members;
     }
     
-    public void setMembers(List<String> members) {
-        this.members = members;
+    public synchronized void setMembers(List<String> members) {
+        this.members = snapshot(members);
+    }
+    
+    private static List<String> snapshot(Collection<String> members) {
+        return Collections.unmodifiableList(new ArrayList<>(members));
     }
     
     public long getCreateTime() {
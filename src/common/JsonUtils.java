@@ -2,17 +2,51 @@ package common;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
 
 /**
  * JSON工具类
  * 使用Gson进行消息的序列化和反序列化
  */
 public class JsonUtils {
+    /**
+     * Message 使用手写的流式编解码（见 MessageCodec），不经过反射绑定；
+     * 只存在于内存中的原始二进制数据以Base64写入 content.data，保证换行JSON帧和本地历史记录中的消息始终是完整的
+     */
+    private static final TypeAdapterFactory MESSAGE_FACTORY = new TypeAdapterFactory() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (type.getRawType() != Message.class) {
+                return null;
+            }
+            return (TypeAdapter<T>) new TypeAdapter<Message>() {
+                @Override
+                public void write(JsonWriter out, Message message) throws IOException {
+                    MessageCodec.write(out, message, false);
+                }
+                
+                @Override
+                public Message read(JsonReader in) throws IOException {
+                    return MessageCodec.read(in);
+                }
+            };
+        }
+    };
+    
     private static final Gson gson = new GsonBuilder()
+            .registerTypeAdapterFactory(MESSAGE_FACTORY)
             .setPrettyPrinting()
             .create();
     
-    private static final Gson compactGson = new Gson();
+    private static final Gson compactGson = new GsonBuilder()
+            .registerTypeAdapterFactory(MESSAGE_FACTORY)
+            .create();
     
     /**
      * 将对象转换为JSON字符串（紧凑格式，用于网络传输）
@@ -32,7 +66,7 @@ public class JsonUtils {
      * 将JSON字符串转换为Message对象
      */
     public static Message fromJson(String json) {
-        return compactGson.fromJson(json, Message.class);
+        return MessageCodec.decode(json);
     }
     
     /**
@@ -0,0 +1,222 @@
+package common;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步结构化日志
+ * 调用线程只把事件（时间、级别、分类、文本和键值字段）放入无锁环形缓冲区，
+ * 由后台线程统一格式化并写到标准输出/标准错误。缓冲区满时丢弃新事件并计数，
+ * 因此消息路由等热点路径的吞吐不再受终端或磁盘速度影响。
+ *
+ * 每个分类有独立的级别（chat.log.level.&lt;分类&gt;，默认取 chat.log.level，再默认INFO）。
+ * 每条消息都会触发的事件先调用 {@link #sampled()} 按采样率（chat.log.sample.&lt;分类&gt;，
+ * 默认取 chat.log.sample，再默认1即全部记录）决定是否记录，未采中时不构造任何字段。
+ *
+ * 输出格式：时间 级别 [分类] 文本 key=value key=value ...，值为异常时另起一行输出堆栈。
+ */
+public final class Log {
+
+    /**
+     * 日志级别
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final class Event {
+        final long timeMillis;
+        final Level level;
+        final Log log;
+        final String text;
+        final Object[] fields;
+
+        Event(long timeMillis, Level level, Log log, String text, Object[] fields) {
+            this.timeMillis = timeMillis;
+            this.level = level;
+            this.log = log;
+            this.text = text;
+            this.fields = fields;
+        }
+    }
+
+    private static final Map<String, Log> LOGS = new ConcurrentHashMap<>();
+    private static final LogRing<Event> RING = new LogRing<>(Integer.getInteger("chat.log.bufferSize", 8192));
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final Thread WRITER;
+    private static volatile long written;   // 已写出的事件数（仅写出线程更新）
+
+    static {
+        WRITER = new Thread(Log::drainLoop, "log-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private final String label;
+    private volatile Level level;
+    private volatile int sampleEvery;
+
+    private Log(String category, String label) {
+        this.label = label;
+        this.level = parseLevel(System.getProperty("chat.log.level." + category,
+                System.getProperty("chat.log.level", "INFO")));
+        this.sampleEvery = Math.max(1, Integer.getInteger("chat.log.sample." + category,
+                Integer.getInteger("chat.log.sample", 1)));
+    }
+
+    /**
+     * 获取分类的日志记录器
+     * @param category 分类名（用于系统属性）
+     * @param label 输出时显示的标签
+     */
+    public static Log get(String category, String label) {
+        return LOGS.computeIfAbsent(category, c -> new Log(c, label));
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * 设置采样率：每条消息类事件以 1/every 的概率记录
+     */
+    public void setSampleEvery(int every) {
+        this.sampleEvery = Math.max(1, every);
+    }
+
+    public boolean isEnabled(Level level) {
+        return level != Level.OFF && level.compareTo(this.level) >= 0;
+    }
+
+    /**
+     * 消息类事件（INFO级别）是否应当记录：级别已启用且被采样命中
+     */
+    public boolean sampled() {
+        if (!isEnabled(Level.INFO)) {
+            return false;
+        }
+        int every = sampleEvery;
+        return every == 1 || ThreadLocalRandom.current().nextInt(every) == 0;
+    }
+
+    /**
+     * @param fields 交替的字段名和字段值
+     */
+    public void debug(String text, Object... fields) {
+        log(Level.DEBUG, text, fields);
+    }
+
+    public void info(String text, Object... fields) {
+        log(Level.INFO, text, fields);
+    }
+
+    public void warn(String text, Object... fields) {
+        log(Level.WARN, text, fields);
+    }
+
+    public void error(String text, Object... fields) {
+        log(Level.ERROR, text, fields);
+    }
+
+    private void log(Level level, String text, Object[] fields) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        if (!RING.offer(new Event(System.currentTimeMillis(), level, this, text, fields))) {
+            DROPPED.incrementAndGet();
+        }
+    }
+
+    /**
+     * 等待调用前已放入缓冲区的事件写出（最多约1秒，用于退出前）
+     */
+    public static void flush() {
+        long target = RING.claimed();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (written < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * 后台写出线程：批量取出事件，格式化后一次写出，空闲时短暂休眠
+     */
+    private static void drainLoop() {
+        StringBuilder out = new StringBuilder(4096);
+        StringBuilder err = new StringBuilder(1024);
+        long reportedDropped = 0;
+        while (true) {
+            Event event;
+            int count = 0;
+            while (count < 1024 && (event = RING.poll()) != null) {
+                format(event, event.level.compareTo(Level.WARN) >= 0 ? err : out);
+                count++;
+            }
+            long dropped = DROPPED.get();
+            if (dropped != reportedDropped) {
+                err.append("[日志] 缓冲区已满，累计丢弃 ").append(dropped).append(" 条日志\n");
+                reportedDropped = dropped;
+            }
+            write(System.out, out);
+            write(System.err, err);
+            written += count;
+            if (count == 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[日志] 无效的日志级别: " + name + ", 使用 INFO");
+            return Level.INFO;
+        }
+    }
+
+    private static void format(Event event, StringBuilder sb) {
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(event.timeMillis), sb);
+        sb.append(' ').append(event.level.name());
+        if (event.level.name().length() == 4) {
+            sb.append(' ');
+        }
+        sb.append(" [").append(event.log.label).append("] ").append(event.text);
+        Object[] fields = event.fields;
+        Throwable thrown = null;
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            sb.append(' ').append(fields[i]).append('=').append(fields[i + 1]);
+            if (fields[i + 1] instanceof Throwable) {
+                thrown = (Throwable) fields[i + 1];
+            }
+        }
+        sb.append('\n');
+        if (thrown != null) {
+            // 异常字段附带堆栈
+            StringWriter trace = new StringWriter();
+            thrown.printStackTrace(new PrintWriter(trace));
+            sb.append(trace);
+        }
+    }
+
+    private static void write(PrintStream stream, StringBuilder sb) {
+        if (sb.length() > 0) {
+            stream.print(sb);
+            stream.flush();
+            sb.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 多生产者、单消费者的有界无锁环形缓冲区
+ * 每个槽带一个序号：生产者用CAS认领写入位置，写好元素后发布序号；
+ * 消费者只读取序号已发布的槽，取走后把序号推进一圈交还给生产者。
+ * 缓冲区满时 offer 直接返回false，生产者永远不会阻塞或自旋等待消费者。
+ */
+final class LogRing<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail;      // 下一个待认领的写入位置
+    private long head;                  // 下一个待读取的位置（仅消费者线程访问）
+
+    /**
+     * @param capacity 容量，向上取整为2的幂
+     */
+    LogRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.tail = new AtomicLong();
+    }
+
+    /**
+     * 放入一个元素（任意线程）
+     * @return 缓冲区已满时返回false
+     */
+    boolean offer(E element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * 累计放入成功的元素个数
+     */
+    long claimed() {
+        return tail.get();
+    }
+
+    /**
+     * 取出一个元素（只能由消费者线程调用）
+     * @return 没有已发布的元素时返回null
+     */
+    E poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        E element = elements.get(index);
+        elements.lazySet(index, null);
+        sequences.set(index, head + mask + 1);
+        head++;
+        return element;
+    }
+}
@@ -1,6 +1,7 @@
 package common;
 
 import java.io.Serializable;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -18,6 +19,23 @@ public class Message implements Serializable {
     private long timestamp;             // 时间戳
     private Map<String, Object> content; // 消息内容
     
+    // 高频的内容字段直接保存为有类型的字段，不装箱、不占用 content 映射；
+    // 编解码时与 content 中的其他键一起作为 content 对象的成员读写，JSON格式不变。
+    // 字段没有设置时读取方法会再查 content 映射（兼容直接写入映射的代码）
+    private static final long NO_LONG = Long.MIN_VALUE;
+    private static final int NO_INT = Integer.MIN_VALUE;
+    private String text;                // content.text
+    private String filename;            // content.filename
+    private String transferId;          // content.transferId
+    private long size = NO_LONG;        // content.size
+    private long seq = NO_LONG;         // content.seq
+    private int chunkIndex = NO_INT;    // content.chunkIndex
+    private int totalChunks = NO_INT;   // content.totalChunks
+    
+    // 原始二进制数据（图片/文件内容），不参与JSON序列化。
+    // 二进制帧中作为帧体原样传输；编码为JSON时由JsonUtils转成Base64放入 content.data
+    private transient byte[] binaryData;
+    
     /**
      * 目标类型枚举
      */
@@ -80,7 +98,7 @@ public class Message implements Serializable {
         Message msg = new Message(MessageType.TEXT, sender);
         msg.setTarget(target);
         msg.setTargetType(targetType);
-        msg.getContent().put("text", text);
+        msg.setText(text);
         return msg;
     }
     
@@ -93,9 +111,24 @@ public class Message implements Serializable {
         Message msg = new Message(MessageType.IMAGE, sender);
         msg.setTarget(target);
         msg.setTargetType(targetType);
-        msg.getContent().put("filename", filename);
+        msg.setFilename(filename);
         msg.getContent().put("data", base64Data);
-        msg.getContent().put("size", size);
+        msg.setSize(size);
+        return msg;
+    }
+    
+    /**
+     * 创建图片消息（原始字节，二进制帧中无需Base64）
+     */
+    public static Message createImageMessage(String sender, String target,
+                                             TargetType targetType, String filename,
+                                             byte[] data) {
+        Message msg = new Message(MessageType.IMAGE, sender);
+        msg.setTarget(target);
+        msg.setTargetType(targetType);
+        msg.setFilename(filename);
+        msg.setSize(data.length);
+        msg.setBinaryData(data);
         return msg;
     }
     
@@ -108,8 +141,8 @@ public class Message implements Serializable {
         Message msg = new Message(MessageType.FILE, sender);
         msg.setTarget(target);
         msg.setTargetType(targetType);
-        msg.getContent().put("filename", filename);
-        msg.getContent().put("size", size);
+        msg.setFilename(filename);
+        msg.setSize(size);
         msg.getContent().put("checksum", checksum);
         return msg;
     }
@@ -124,10 +157,94 @@ public class Message implements Serializable {
         Message msg = new Message(MessageType.FILE_DATA, sender);
         msg.setTarget(target);
         msg.setTargetType(targetType);
-        msg.getContent().put("filename", filename);
+        msg.setFilename(filename);
         msg.getContent().put("data", base64Data);
-        msg.getContent().put("chunkIndex", chunkIndex);
-        msg.getContent().put("totalChunks", totalChunks);
+        msg.setChunkIndex(chunkIndex);
+        msg.setTotalChunks(totalChunks);
+        return msg;
+    }
+    
+    /**
+     * 创建文件数据消息（原始字节，二进制帧中无需Base64）
+     */
+    public static Message createFileDataMessage(String sender, String target,
+                                                TargetType targetType, String filename,
+                                                byte[] data, int chunkIndex,
+                                                int totalChunks) {
+        Message msg = new Message(MessageType.FILE_DATA, sender);
+        msg.setTarget(target);
+        msg.setTargetType(targetType);
+        msg.setFilename(filename);
+        msg.setChunkIndex(chunkIndex);
+        msg.setTotalChunks(totalChunks);
+        msg.setBinaryData(data);
+        return msg;
+    }
+    
+    /**
+     * 创建文件传输提议（接收方确认后才开始传输分片）
+     */
+    public static Message createFileOffer(String sender, String target,
+                                          TargetType targetType, String filename,
+                                          long size, String transferId,
+                                          int chunkSize, int totalChunks) {
+        Message msg = new Message(MessageType.FILE, sender);
+        msg.setTarget(target);
+        msg.setTargetType(targetType);
+        msg.setFilename(filename);
+        msg.setSize(size);
+        msg.setTransferId(transferId);
+        msg.getContent().put("chunkSize", chunkSize);
+        msg.setTotalChunks(totalChunks);
+        return msg;
+    }
+    
+    /**
+     * 创建带传输ID和CRC32校验值的文件分片消息
+     */
+    public static Message createFileChunkMessage(String sender, String target,
+                                                 TargetType targetType, String transferId,
+                                                 String filename, byte[] data,
+                                                 int chunkIndex, int totalChunks) {
+        Message msg = createFileDataMessage(sender, target, targetType, filename, data, chunkIndex, totalChunks);
+        msg.setTransferId(transferId);
+        msg.getContent().put("crc", Checksums.crc32(data));
+        return msg;
+    }
+    
+    /**
+     * 创建接受文件消息
+     * @param resumeFrom 从该分片开始传输（之前的分片已经收到）
+     */
+    public static Message createFileAcceptMessage(String sender, String transferId, int resumeFrom) {
+        Message msg = new Message(MessageType.FILE_ACCEPT, sender);
+        msg.setTransferId(transferId);
+        msg.getContent().put("resumeFrom", resumeFrom);
+        return msg;
+    }
+    
+    /**
+     * 创建拒绝文件消息（发送方发出时表示取消传输）
+     */
+    public static Message createFileRejectMessage(String sender, String transferId, String reason) {
+        Message msg = new Message(MessageType.FILE_REJECT, sender);
+        msg.setTransferId(transferId);
+        msg.getContent().put("reason", reason);
+        return msg;
+    }
+    
+    /**
+     * 创建文件分片确认消息
+     * @param chunkIndex 累计确认：该分片及之前的分片都已收到
+     * @param retry 为true时表示该分片校验失败，需要从该分片开始重传
+     */
+    public static Message createFileAckMessage(String sender, String transferId, int chunkIndex, boolean retry) {
+        Message msg = new Message(MessageType.FILE_ACK, sender);
+        msg.setTransferId(transferId);
+        msg.setChunkIndex(chunkIndex);
+        if (retry) {
+            msg.getContent().put("retry", true);
+        }
         return msg;
     }
     
@@ -169,6 +286,82 @@ public class Message implements Serializable {
         return msg;
     }
     
+    /**
+     * 创建在线状态同步请求
+     * @param epoch 客户端最后应用的在线状态纪元，没有时为0
+     */
+    public static Message createPresenceSyncMessage(long epoch) {
+        Message msg = new Message(MessageType.PRESENCE_SYNC);
+        msg.getContent().put("epoch", epoch);
+        return msg;
+    }
+    
+    /**
+     * 创建在线状态增量消息
+     * @param since 增量的起点纪元（不含）
+     * @param epoch 应用增量后达到的纪元
+     */
+    public static Message createPresenceDeltaMessage(long since, long epoch,
+                                                     java.util.List<String> joined,
+                                                     java.util.List<String> left) {
+        Message msg = new Message(MessageType.PRESENCE_DELTA);
+        msg.getContent().put("since", since);
+        msg.getContent().put("epoch", epoch);
+        msg.getContent().put("joined", joined);
+        msg.getContent().put("left", left);
+        return msg;
+    }
+    
+    /**
+     * 创建在线状态完整快照消息
+     */
+    public static Message createPresenceSnapshotMessage(long epoch, java.util.List<String> users) {
+        Message msg = new Message(MessageType.PRESENCE_DELTA);
+        msg.getContent().put("full", true);
+        msg.getContent().put("epoch", epoch);
+        msg.getContent().put("users", users);
+        return msg;
+    }
+    
+    /**
+     * 创建历史消息查询请求（从新到旧分页）
+     * @param cursor 上一页响应中的游标，查询最新一页时为null
+     * @param limit 每页条数
+     */
+    public static Message createHistoryRequest(String target, TargetType targetType, String cursor, int limit) {
+        Message msg = new Message(MessageType.HISTORY_REQUEST);
+        msg.setTarget(target);
+        msg.setTargetType(targetType);
+        if (cursor != null) {
+            msg.getContent().put("cursor", cursor);
+        }
+        msg.getContent().put("limit", limit);
+        return msg;
+    }
+    
+    /**
+     * 创建历史消息查询响应
+     * @param count 随后紧跟的本页消息条数（从新到旧）
+     * @param cursor 查询更早一页的游标，没有更早的消息时为null
+     */
+    public static Message createHistoryResponse(String target, TargetType targetType, int count, String cursor) {
+        Message msg = new Message(MessageType.HISTORY_RESPONSE);
+        msg.setTarget(target);
+        msg.setTargetType(targetType);
+        msg.getContent().put("count", count);
+        if (cursor != null) {
+            msg.getContent().put("cursor", cursor);
+        }
+        return msg;
+    }
+    
+    /**
+     * 创建心跳消息
+     */
+    public static Message createHeartbeatMessage() {
+        return new Message(MessageType.HEARTBEAT);
+    }
+    
     /**
      * 创建错误消息
      */
@@ -246,9 +439,251 @@ public class Message implements Serializable {
         this.content = content;
     }
     
-    // 便捷方法获取content中的值
+    // ==================== 高频内容字段 ====================
+    
+    public String getText() {
+        return text != null ? text : mapString("text");
+    }
+    
+    public void setText(String text) {
+        this.text = text;
+    }
+    
+    public String getFilename() {
+        return filename != null ? filename : mapString("filename");
+    }
+    
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+    
+    public String getTransferId() {
+        return transferId != null ? transferId : mapString("transferId");
+    }
+    
+    public void setTransferId(String transferId) {
+        this.transferId = transferId;
+    }
+    
+    /**
+     * 文件/图片大小，没有时为-1
+     */
+    public long getSize() {
+        return size != NO_LONG ? size : mapLong("size");
+    }
+    
+    public void setSize(long size) {
+        this.size = size;
+    }
+    
+    /**
+     * 服务器分配的消息序号，没有时为-1
+     */
+    public long getSeq() {
+        return seq != NO_LONG ? seq : mapLong("seq");
+    }
+    
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+    
+    /**
+     * 清除消息序号（包括 content 映射中的序号）
+     */
+    public void clearSeq() {
+        seq = NO_LONG;
+        if (content != null) {
+            content.remove("seq");
+        }
+    }
+    
+    /**
+     * 文件分片序号，没有时为-1（分片确认中的-1表示还没有收到任何分片，需要区分时用 getContentInt）
+     */
+    public int getChunkIndex() {
+        return chunkIndex != NO_INT ? chunkIndex : (int) mapLong("chunkIndex");
+    }
+    
+    public void setChunkIndex(int chunkIndex) {
+        this.chunkIndex = chunkIndex;
+    }
+    
+    /**
+     * 文件分片总数，没有时为-1
+     */
+    public int getTotalChunks() {
+        return totalChunks != NO_INT ? totalChunks : (int) mapLong("totalChunks");
+    }
+    
+    public void setTotalChunks(int totalChunks) {
+        this.totalChunks = totalChunks;
+    }
+    
+    private String mapString(String key) {
+        Object value = content != null ? content.get(key) : null;
+        return value != null ? value.toString() : null;
+    }
+    
+    private long mapLong(String key) {
+        Object value = content != null ? content.get(key) : null;
+        return value instanceof Number ? ((Number) value).longValue() : -1;
+    }
+    
+    /**
+     * key 是否是已设置的有类型字段
+     */
+    boolean hasContentField(String key) {
+        switch (key) {
+            case "text":
+                return text != null;
+            case "filename":
+                return filename != null;
+            case "transferId":
+                return transferId != null;
+            case "size":
+                return size != NO_LONG;
+            case "seq":
+                return seq != NO_LONG;
+            case "chunkIndex":
+                return chunkIndex != NO_INT;
+            case "totalChunks":
+                return totalChunks != NO_INT;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * 有类型字段中保存的内容值（装箱，只用于按键名读取的兼容方法），key 不是高频字段或字段没有设置时返回null
+     */
+    Object contentField(String key) {
+        switch (key) {
+            case "text":
+                return text;
+            case "filename":
+                return filename;
+            case "transferId":
+                return transferId;
+            case "size":
+                return size != NO_LONG ? (Object) size : null;
+            case "seq":
+                return seq != NO_LONG ? (Object) seq : null;
+            case "chunkIndex":
+                return chunkIndex != NO_INT ? (Object) chunkIndex : null;
+            case "totalChunks":
+                return totalChunks != NO_INT ? (Object) totalChunks : null;
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * 解码时把字符串内容值存入对应的字段
+     * @return key 不是字符串类型的高频字段时返回false，由调用方放入 content 映射
+     */
+    boolean setContentField(String key, String value) {
+        switch (key) {
+            case "text":
+                text = value;
+                return true;
+            case "filename":
+                filename = value;
+                return true;
+            case "transferId":
+                transferId = value;
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * 解码时把整数内容值存入对应的字段
+     * @return key 不是数值类型的高频字段、或值超出字段范围时返回false，由调用方放入 content 映射
+     */
+    boolean setContentField(String key, long value) {
+        if (value == NO_LONG) {
+            return false;
+        }
+        switch (key) {
+            case "size":
+                size = value;
+                return true;
+            case "seq":
+                seq = value;
+                return true;
+            case "chunkIndex":
+                if (value > Integer.MAX_VALUE || value <= NO_INT) {
+                    return false;
+                }
+                chunkIndex = (int) value;
+                return true;
+            case "totalChunks":
+                if (value > Integer.MAX_VALUE || value <= NO_INT) {
+                    return false;
+                }
+                totalChunks = (int) value;
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    public byte[] getBinaryData() {
+        return binaryData;
+    }
+    
+    public void setBinaryData(byte[] binaryData) {
+        this.binaryData = binaryData;
+    }
+    
+    /**
+     * 原始二进制数据的字节数，没有时为0（不解码 content.data）
+     */
+    public int getBinaryLength() {
+        return binaryData != null ? binaryData.length : 0;
+    }
+    
+    /**
+     * 获取图片/文件数据的原始字节
+     * 优先返回二进制帧携带的原始数据，否则解码 content.data 中的Base64，都没有时返回null
+     */
+    public byte[] getDataBytes() {
+        if (binaryData != null) {
+            return binaryData;
+        }
+        String base64 = getContentString("data");
+        return base64 != null ? Base64.getDecoder().decode(base64) : null;
+    }
+    
+    /**
+     * 复制一份不含数据的消息（用作二进制帧头，或数据已另行保存时的转发副本）
+     */
+    public Message copyWithoutData() {
+        Message copy = shallowCopy();
+        copy.content.remove("data");
+        return copy;
+    }
+    
+    private Message shallowCopy() {
+        Message copy = new Message(type, sender);
+        copy.target = target;
+        copy.targetType = targetType;
+        copy.timestamp = timestamp;
+        copy.content = content != null ? new HashMap<>(content) : new HashMap<>();
+        copy.text = text;
+        copy.filename = filename;
+        copy.transferId = transferId;
+        copy.size = size;
+        copy.seq = seq;
+        copy.chunkIndex = chunkIndex;
+        copy.totalChunks = totalChunks;
+        return copy;
+    }
+    
+    // 便捷方法获取content中的值（包括保存在有类型字段中的高频内容）
     public String getContentString(String key) {
-        Object value = content.get(key);
+        Object value = getContentValue(key);
         return value != null ? value.toString() : null;
     }
     
@@ -261,7 +696,7 @@ public class Message implements Serializable {
     }
     
     public Long getContentLong(String key) {
-        Object value = content.get(key);
+        Object value = getContentValue(key);
         if (value instanceof Number) {
             return ((Number) value).longValue();
         }
@@ -269,13 +704,18 @@ public class Message implements Serializable {
     }
     
     public Integer getContentInt(String key) {
-        Object value = content.get(key);
+        Object value = getContentValue(key);
         if (value instanceof Number) {
             return ((Number) value).intValue();
         }
         return null;
     }
     
+    private Object getContentValue(String key) {
+        Object field = contentField(key);
+        return field != null ? field : content.get(key);
+    }
+    
     @Override
     public String toString() {
         return "Message{" +
@@ -285,6 +725,13 @@ public class Message implements Serializable {
                 ", targetType=" + targetType +
                 ", timestamp=" + timestamp +
                 ", content=" + content +
+                (text != null ? ", text='" + text + '\'' : "") +
+                (filename != null ? ", filename='" + filename + '\'' : "") +
+                (transferId != null ? ", transferId='" + transferId + '\'' : "") +
+                (size != NO_LONG ? ", size=" + size : "") +
+                (seq != NO_LONG ? ", seq=" + seq : "") +
+                (chunkIndex != NO_INT ? ", chunkIndex=" + chunkIndex : "") +
+                (totalChunks != NO_INT ? ", totalChunks=" + totalChunks : "") +
                 '}';
     }
 }
@@ -0,0 +1,609 @@
+package common;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Message 的手写流式JSON编解码
+ * 直接用 JsonReader / JsonWriter 逐字段读写，不经过Gson的反射绑定：
+ * <ul>
+ * <li>content 中的整数直接读成 Long（带小数的才是 Double），getContentLong / getContentInt 不需要再从 Double 转换；</li>
+ * <li>高频的内容键（text、filename、size、seq、分片序号等）直接读写 Message 的有类型字段，不装箱、不进入 content 映射；</li>
+ * <li>解码直接从帧的UTF-8字节开始，不先构造整行的 String；每个线程复用字符缓冲区和 JsonReader；</li>
+ * <li>编码直接写入每个线程复用的字节缓冲区，原始二进制数据以Base64直接编码进缓冲区，不复制消息、不生成中间字符串。</li>
+ * </ul>
+ * 输出的JSON与原先反射序列化的字段和顺序相同，新旧客户端可以互通。
+ */
+public final class MessageCodec {
+    private static final int INITIAL_CAPACITY = 1024;
+    // 超过该大小的缓冲区（大图片）用完即释放，线程不会长期持有大缓冲区
+    private static final int RETAIN_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<Decoder> DECODERS = ThreadLocal.withInitial(Decoder::new);
+    private static final ThreadLocal<Encoder> ENCODERS = ThreadLocal.withInitial(Encoder::new);
+
+    private MessageCodec() {
+    }
+
+    /**
+     * 解码一条JSON消息
+     * @param bytes UTF-8字节
+     * @return 消息；内容为空白或JSON null时返回null
+     * @throws com.google.gson.JsonParseException 不是合法的消息JSON
+     */
+    public static Message decode(byte[] bytes, int offset, int length) {
+        Decoder decoder = DECODERS.get();
+        decoder.load(bytes, offset, length);
+        return decoder.parse();
+    }
+
+    /**
+     * 解码缓冲区中 [offset, offset + length) 的一条JSON消息（绝对位置，不改变缓冲区的 position）
+     * 可以直接从NIO的直接缓冲区解码，不先复制成字节数组
+     * @return 消息；内容为空白或JSON null时返回null
+     * @throws com.google.gson.JsonParseException 不是合法的消息JSON
+     */
+    public static Message decode(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            return decode(buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+        Decoder decoder = DECODERS.get();
+        decoder.load(buffer, offset, length);
+        return decoder.parse();
+    }
+
+    /**
+     * 解码一条JSON消息
+     * @return 消息；内容为空白或JSON null时返回null
+     * @throws com.google.gson.JsonParseException 不是合法的消息JSON
+     */
+    public static Message decode(String json) {
+        Decoder decoder = DECODERS.get();
+        decoder.load(json);
+        return decoder.parse();
+    }
+
+    /**
+     * 编码为换行分隔的JSON帧
+     */
+    public static byte[] encodeJsonLine(Message message) {
+        return ENCODERS.get().encode(message, true, false);
+    }
+
+    /**
+     * 编码为不含 content.data 的JSON（二进制帧头），不复制消息
+     */
+    public static byte[] encodeHeader(Message message) {
+        return ENCODERS.get().encode(message, false, true);
+    }
+
+    /**
+     * 写出一条消息（供Gson的类型适配器使用）
+     * @param withoutData 是否省略 content.data 和原始二进制数据
+     */
+    public static void write(JsonWriter out, Message message, boolean withoutData) throws IOException {
+        write(out, message, withoutData, null);
+    }
+
+    private static void write(JsonWriter out, Message message, boolean withoutData, ByteSink sink)
+            throws IOException {
+        if (message == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        if (message.getType() != null) {
+            out.name("type").value(message.getType().name());
+        }
+        if (message.getSender() != null) {
+            out.name("sender").value(message.getSender());
+        }
+        if (message.getTarget() != null) {
+            out.name("target").value(message.getTarget());
+        }
+        if (message.getTargetType() != null) {
+            out.name("targetType").value(message.getTargetType().name());
+        }
+        out.name("timestamp").value(message.getTimestamp());
+        Map<String, Object> content = message.getContent();
+        if (content != null) {
+            out.name("content").beginObject();
+            writeFields(out, message);
+            for (Map.Entry<String, Object> entry : content.entrySet()) {
+                if (entry.getValue() == null || (withoutData && "data".equals(entry.getKey()))
+                        || message.hasContentField(entry.getKey())) {
+                    // 同名的有类型字段已经写出
+                    continue;
+                }
+                out.name(entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+            byte[] binary = message.getBinaryData();
+            if (!withoutData && binary != null && !content.containsKey("data")) {
+                out.name("data");
+                if (sink != null) {
+                    // 写出键和左引号后，Base64直接编码进输出缓冲区
+                    out.jsonValue("\"");
+                    out.flush();
+                    sink.writeBase64(binary);
+                    sink.writeRaw('"');
+                } else {
+                    out.value(Base64.getEncoder().encodeToString(binary));
+                }
+            }
+            out.endObject();
+        }
+        out.endObject();
+    }
+
+    /**
+     * 写出保存在有类型字段中的内容值（没有设置的字段不写）
+     */
+    private static void writeFields(JsonWriter out, Message message) throws IOException {
+        if (message.hasContentField("text")) {
+            out.name("text").value(message.getText());
+        }
+        if (message.hasContentField("filename")) {
+            out.name("filename").value(message.getFilename());
+        }
+        if (message.hasContentField("transferId")) {
+            out.name("transferId").value(message.getTransferId());
+        }
+        if (message.hasContentField("size")) {
+            out.name("size").value(message.getSize());
+        }
+        if (message.hasContentField("seq")) {
+            out.name("seq").value(message.getSeq());
+        }
+        if (message.hasContentField("chunkIndex")) {
+            out.name("chunkIndex").value(message.getChunkIndex());
+        }
+        if (message.hasContentField("totalChunks")) {
+            out.name("totalChunks").value(message.getTotalChunks());
+        }
+    }
+
+    private static void writeValue(JsonWriter out, Object value) throws IOException {
+        if (value instanceof String) {
+            out.value((String) value);
+        } else if (value instanceof Boolean) {
+            out.value((boolean) (Boolean) value);
+        } else if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            out.value(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            out.value((Number) value);
+        } else {
+            // 群组、列表等复合值交给Gson
+            JsonUtils.getGson().toJson(value, value.getClass(), out);
+        }
+    }
+
+    /**
+     * 读取一条消息（供Gson的类型适配器使用）
+     * @return JSON null 时返回null
+     */
+    public static Message read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Message message = new Message();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "type":
+                    message.setType(enumValue(MessageType.class, in.nextString()));
+                    break;
+                case "sender":
+                    message.setSender(in.nextString());
+                    break;
+                case "target":
+                    message.setTarget(in.nextString());
+                    break;
+                case "targetType":
+                    message.setTargetType(enumValue(Message.TargetType.class, in.nextString()));
+                    break;
+                case "timestamp":
+                    message.setTimestamp(in.nextLong());
+                    break;
+                case "content":
+                    readContent(in, message);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return message;
+    }
+
+    private static void readContent(JsonReader in, Message message) throws IOException {
+        Map<String, Object> content = message.getContent();
+        in.beginObject();
+        while (in.hasNext()) {
+            String key = in.nextName();
+            JsonToken token = in.peek();
+            if (token == JsonToken.STRING) {
+                String value = in.nextString();
+                if (!message.setContentField(key, value)) {
+                    content.put(key, value);
+                }
+            } else if (token == JsonToken.NUMBER) {
+                long value;
+                try {
+                    value = in.nextLong();
+                } catch (NumberFormatException e) {
+                    content.put(key, in.nextDouble());
+                    continue;
+                }
+                if (!message.setContentField(key, value)) {
+                    content.put(key, value);
+                }
+            } else {
+                content.put(key, readValue(in));
+            }
+        }
+        in.endObject();
+    }
+
+    private static Object readValue(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case STRING:
+                return in.nextString();
+            case NUMBER:
+                return readNumber(in);
+            case BOOLEAN:
+                return in.nextBoolean();
+            case BEGIN_ARRAY:
+                List<Object> list = new ArrayList<>();
+                in.beginArray();
+                while (in.hasNext()) {
+                    list.add(readValue(in));
+                }
+                in.endArray();
+                return list;
+            case BEGIN_OBJECT:
+                Map<String, Object> map = new LinkedHashMap<>();
+                in.beginObject();
+                while (in.hasNext()) {
+                    String key = in.nextName();
+                    map.put(key, readValue(in));
+                }
+                in.endObject();
+                return map;
+            case NULL:
+                in.nextNull();
+                return null;
+            default:
+                throw new IllegalStateException("意外的JSON元素: " + in.peek());
+        }
+    }
+
+    /**
+     * 整数读成 Long（JsonReader 对普通整数不生成中间字符串），带小数的读成 Double
+     */
+    private static Object readNumber(JsonReader in) throws IOException {
+        try {
+            return in.nextLong();
+        } catch (NumberFormatException e) {
+            // nextLong 失败后数字已缓存在读取器中，可以再按 double 读取
+            return in.nextDouble();
+        }
+    }
+
+    private static <E extends Enum<E>> E enumValue(Class<E> type, String name) {
+        try {
+            return Enum.valueOf(type, name);
+        } catch (IllegalArgumentException e) {
+            // 与Gson一致：不认识的枚举值视为null（如新版本增加的消息类型）
+            return null;
+        }
+    }
+
+    /**
+     * 每个线程的解码状态：字符缓冲区、UTF-8解码器和跨消息复用的 JsonReader
+     * JsonReader 以宽松模式连续读取多个顶层值，自身就是它的输入：每次解码前装入新的一帧，
+     * 读完一个完整的对象后不会再向前读取，下一帧从头开始。解析出错时丢弃 JsonReader，下次重新创建。
+     */
+    private static final class Decoder extends Reader {
+        private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private char[] chars = new char[INITIAL_CAPACITY];
+        private int position;
+        private int limit;
+        private JsonReader reader;
+
+        void load(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            int i = 0;
+            // ASCII直接复制，遇到多字节字符再交给解码器
+            while (i < length && bytes[offset + i] >= 0) {
+                chars[i] = (char) bytes[offset + i];
+                i++;
+            }
+            int count = i;
+            if (i < length) {
+                CharBuffer out = CharBuffer.wrap(chars, i, chars.length - i);
+                utf8.reset();
+                utf8.decode(ByteBuffer.wrap(bytes, offset + i, length - i), out, true);
+                utf8.flush(out);
+                count = out.position();
+            }
+            position = 0;
+            limit = count;
+        }
+
+        void load(ByteBuffer buffer, int offset, int length) {
+            ensureCapacity(length);
+            int i = 0;
+            while (i < length && buffer.get(offset + i) >= 0) {
+                chars[i] = (char) buffer.get(offset + i);
+                i++;
+            }
+            int count = i;
+            if (i < length) {
+                ByteBuffer rest = buffer.duplicate();
+                rest.limit(offset + length).position(offset + i);
+                CharBuffer out = CharBuffer.wrap(chars, i, chars.length - i);
+                utf8.reset();
+                utf8.decode(rest, out, true);
+                utf8.flush(out);
+                count = out.position();
+            }
+            position = 0;
+            limit = count;
+        }
+
+        void load(String json) {
+            ensureCapacity(json.length());
+            json.getChars(0, json.length(), chars, 0);
+            position = 0;
+            limit = json.length();
+        }
+
+        private void ensureCapacity(int length) {
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+        }
+
+        Message parse() {
+            try {
+                if (isBlank()) {
+                    return null;
+                }
+                boolean reused = reader != null;
+                try {
+                    return readOne();
+                } catch (IOException | RuntimeException e) {
+                    reader = null;
+                    if (!reused) {
+                        throw e;
+                    }
+                    // 上一帧在对象之后带有多余字符时，残留在旧读取器中的字符会使本帧出错，用新的读取器重读
+                    position = 0;
+                    return readOne();
+                }
+            } catch (IOException | IllegalStateException | NumberFormatException e) {
+                reader = null;
+                throw new JsonSyntaxException(e);
+            } finally {
+                if (chars.length > RETAIN_CAPACITY) {
+                    chars = new char[INITIAL_CAPACITY];
+                }
+                limit = 0;
+            }
+        }
+
+        private Message readOne() throws IOException {
+            if (reader == null) {
+                reader = new JsonReader(this);
+                reader.setLenient(true);
+            }
+            return MessageCodec.read(reader);
+        }
+
+        private boolean isBlank() {
+            for (int i = 0; i < limit; i++) {
+                if (!Character.isWhitespace(chars[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position >= limit) {
+                return -1;
+            }
+            int count = Math.min(length, limit - position);
+            System.arraycopy(chars, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * 每个线程的编码状态：字节缓冲区和写入其中的宽松模式 JsonWriter（连续写出多个顶层值）
+     */
+    private static final class Encoder {
+        private final ByteSink sink = new ByteSink();
+        private JsonWriter writer;
+
+        byte[] encode(Message message, boolean newline, boolean withoutData) {
+            if (writer == null) {
+                writer = new JsonWriter(sink);
+                writer.setLenient(true);
+                writer.setHtmlSafe(true);
+            }
+            try {
+                write(writer, message, withoutData, sink);
+                writer.flush();
+                if (newline) {
+                    sink.writeRaw('\n');
+                }
+                return sink.toByteArray();
+            } catch (IOException e) {
+                // 写入内存缓冲区不会发生I/O错误
+                throw new UncheckedIOException(e);
+            } catch (RuntimeException e) {
+                // 写出一半的 JsonWriter 不能再用
+                writer = null;
+                throw e;
+            } finally {
+                sink.reset();
+            }
+        }
+    }
+
+    /**
+     * 直接把字符按UTF-8编码写入的可复用字节缓冲区
+     */
+    private static final class ByteSink extends Writer {
+        private byte[] bytes = new byte[INITIAL_CAPACITY];
+        private int size;
+        private char pendingHigh;       // 跨两次写入的代理对的高位
+
+        void writeRaw(int b) {
+            ensureCapacity(1);
+            bytes[size++] = (byte) b;
+        }
+
+        /**
+         * 把原始数据以Base64直接编码进缓冲区（按块编码，不生成整段的中间结果）
+         */
+        void writeBase64(byte[] data) throws IOException {
+            ensureCapacity(4 * ((data.length + 2) / 3));
+            try (OutputStream base64 = Base64.getEncoder().wrap(raw)) {
+                base64.write(data);
+            }
+        }
+
+        private final OutputStream raw = new OutputStream() {
+            @Override
+            public void write(int b) {
+                writeRaw(b);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) {
+                ensureCapacity(length);
+                System.arraycopy(buffer, offset, bytes, size, length);
+                size += length;
+            }
+        };
+
+        @Override
+        public void write(int c) {
+            encode((char) c);
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            ensureCapacity(length * 3);
+            for (int i = 0; i < length; i++) {
+                encode(buffer[offset + i]);
+            }
+        }
+
+        @Override
+        public void write(String value, int offset, int length) {
+            ensureCapacity(length * 3);
+            for (int i = 0; i < length; i++) {
+                encode(value.charAt(offset + i));
+            }
+        }
+
+        private void encode(char c) {
+            ensureCapacity(4);
+            if (pendingHigh != 0) {
+                char high = pendingHigh;
+                pendingHigh = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    bytes[size++] = (byte) (0xF0 | (codePoint >> 18));
+                    bytes[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    bytes[size++] = (byte) (0x80 | (codePoint & 0x3F));
+                    return;
+                }
+                bytes[size++] = '?';
+                ensureCapacity(4);
+            }
+            if (c < 0x80) {
+                bytes[size++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[size++] = (byte) (0xC0 | (c >> 6));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                pendingHigh = c;
+            } else if (Character.isLowSurrogate(c)) {
+                bytes[size++] = '?';
+            } else {
+                bytes[size++] = (byte) (0xE0 | (c >> 12));
+                bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        byte[] toByteArray() {
+            if (pendingHigh != 0) {
+                pendingHigh = 0;
+                writeRaw('?');
+            }
+            return Arrays.copyOf(bytes, size);
+        }
+
+        void reset() {
+            size = 0;
+            pendingHigh = 0;
+            if (bytes.length > RETAIN_CAPACITY) {
+                bytes = new byte[INITIAL_CAPACITY];
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
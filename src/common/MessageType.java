@@ -33,5 +33,16 @@ public enum MessageType {
     
     // 系统消息
     ERROR,              // 错误消息
-    HEARTBEAT           // 心跳包
+    HEARTBEAT,          // 心跳包
+    
+    // 在线状态同步（追加在末尾，已有类型在二进制帧中的序号保持不变）
+    PRESENCE_SYNC,      // 请求自某个纪元以来的在线状态变更
+    PRESENCE_DELTA,     // 在线状态增量或完整快照
+    
+    // 服务器历史消息查询（追加在末尾）
+    HISTORY_REQUEST,    // 按游标分页查询会话历史
+    HISTORY_RESPONSE,   // 历史查询结果，随后紧跟本页的消息
+    
+    // 文件传输流控（追加在末尾）
+    FILE_ACK            // 文件分片确认
 }
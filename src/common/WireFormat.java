@@ -0,0 +1,38 @@
+package common;
+
+/**
+ * 线路帧格式
+ * 客户端在LOGIN消息的 content.framing 中请求帧格式，服务器在LOGIN_RESPONSE中确认；
+ * 登录响应之后双方改用确认的格式。未声明该字段的旧客户端始终使用换行分隔的JSON。
+ */
+public enum WireFormat {
+    JSON_LINE("json"),      // 换行分隔的JSON（默认，兼容旧客户端）
+    BINARY("binary");       // 长度前缀二进制帧，图片/文件数据以原始字节传输
+
+    /**
+     * LOGIN / LOGIN_RESPONSE 中协商帧格式的字段名
+     */
+    public static final String CONTENT_KEY = "framing";
+
+    private final String wireName;
+
+    WireFormat(String wireName) {
+        this.wireName = wireName;
+    }
+
+    public String getWireName() {
+        return wireName;
+    }
+
+    /**
+     * 根据协商字段的值解析帧格式，无法识别时返回JSON_LINE
+     */
+    public static WireFormat fromWireName(String name) {
+        for (WireFormat format : values()) {
+            if (format.wireName.equalsIgnoreCase(String.valueOf(name))) {
+                return format;
+            }
+        }
+        return JSON_LINE;
+    }
+}
@@ -0,0 +1,96 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import common.Log;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 本机管理端口
+ * 只监听回环地址，GET /metrics 以 Prometheus 文本格式返回 ServerMetrics 的当前值。
+ * 请求由一个独立的守护线程处理，不占用聊天连接的线程。
+ */
+public class AdminServer {
+    private static final Log LOG = Log.get("admin", "管理端口");
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final int port;
+    private final ServerMetrics metrics;
+    private final ClientManager clientManager;
+    private HttpServer httpServer;
+    private ExecutorService executor;
+
+    public AdminServer(int port, ServerMetrics metrics, ClientManager clientManager) {
+        this.port = port;
+        this.metrics = metrics;
+        this.clientManager = clientManager;
+    }
+
+    /**
+     * 从系统属性 chat.admin.port 读取端口（默认8889，不大于0时不启动）
+     */
+    public static AdminServer fromSystemProperties(ServerMetrics metrics, ClientManager clientManager) {
+        return new AdminServer(Integer.getInteger("chat.admin.port", 8889), metrics, clientManager);
+    }
+
+    /**
+     * 启动管理端口，绑定失败只记录警告，不影响聊天服务
+     */
+    public void start() {
+        if (port <= 0) {
+            return;
+        }
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 16);
+            httpServer.createContext("/metrics", this::handleMetrics);
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "admin-http");
+                thread.setDaemon(true);
+                return thread;
+            });
+            httpServer.setExecutor(executor);
+            httpServer.start();
+            LOG.info("管理端口已启动", "address", "127.0.0.1:" + port, "path", "/metrics");
+        } catch (IOException e) {
+            LOG.warn("管理端口启动失败", "port", port, "error", e.getMessage());
+            httpServer = null;
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.scrape(clientManager).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * 停止管理端口
+     */
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}
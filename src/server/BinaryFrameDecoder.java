@@ -0,0 +1,74 @@
+package server;
+
+import common.FrameCodec;
+import common.Message;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 长度前缀二进制帧的增量解码器
+ * 依次读取 长度(4) / 类型+帧头长度(5) / 帧头 / 帧体，各部分直接读入最终大小的数组，
+ * 帧体不经过Base64，也不需要逐字节查找分隔符。没有半帧数据时不持有缓冲区。
+ */
+public class BinaryFrameDecoder {
+    private final ByteBuffer prefix;    // 长度字段 + 类型字节 + 帧头长度字段
+    private int frameLength;
+    private int typeIndex;
+    private byte[] header;
+    private byte[] body;
+    private int filled;                 // 当前部分已读入的字节数
+
+    public BinaryFrameDecoder() {
+        this.prefix = ByteBuffer.allocate(FrameCodec.BINARY_PREFIX_LENGTH + FrameCodec.BINARY_HEADER_PREFIX_LENGTH);
+    }
+
+    /**
+     * 从缓冲区中解出下一帧，数据不足时保存进度并返回null
+     * @throws IOException 帧结构不合法
+     */
+    public Message next(ByteBuffer buffer) throws IOException {
+        if (header == null) {
+            while (prefix.hasRemaining() && buffer.hasRemaining()) {
+                prefix.put(buffer.get());
+            }
+            if (prefix.hasRemaining()) {
+                return null;
+            }
+            prefix.flip();
+            frameLength = prefix.getInt();
+            typeIndex = prefix.get();
+            int headerLength = prefix.getInt();
+            prefix.clear();
+            FrameCodec.checkBinaryLengths(frameLength, headerLength);
+            header = new byte[headerLength];
+            filled = 0;
+        }
+
+        if (body == null) {
+            filled += read(buffer, header, filled);
+            if (filled < header.length) {
+                return null;
+            }
+            body = new byte[frameLength - FrameCodec.BINARY_HEADER_PREFIX_LENGTH - header.length];
+            filled = 0;
+        }
+
+        filled += read(buffer, body, filled);
+        if (filled < body.length) {
+            return null;
+        }
+
+        byte[] completeHeader = header;
+        byte[] completeBody = body;
+        header = null;
+        body = null;
+        filled = 0;
+        return FrameCodec.decodeBinary(typeIndex, completeHeader, completeBody);
+    }
+
+    private static int read(ByteBuffer buffer, byte[] target, int offset) {
+        int n = Math.min(buffer.remaining(), target.length - offset);
+        buffer.get(target, offset, n);
+        return n;
+    }
+}
@@ -3,6 +3,7 @@ package server;
 import common.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -11,81 +12,244 @@ import java.util.concurrent.*;
  * 负责监听客户端连接，管理所有在线客户端
  */
 public class ChatServer {
+    private static final Log LOG = Log.get("server", "服务器");
     private static final int DEFAULT_PORT = 8888;
+    private static final int DEFAULT_IO_THREADS = Runtime.getRuntime().availableProcessors();
+    // 连接在该时间内没有收到任何消息（包括心跳）即视为失效并断开，0表示不检测
+    private static final long IDLE_TIMEOUT_SECONDS = Long.getLong("chat.idleTimeoutSeconds", 90);
     
     private final int port;
-    private ServerSocket serverSocket;
+    private final ServerMode mode;
+    private ServerSocketChannel serverChannel;
+    private NioEventLoop[] eventLoops;
     private final ClientManager clientManager;
     private final GroupManager groupManager;
     private final MessageRouter messageRouter;
+    private final PresenceTracker presence;
+    private final PresenceBroadcaster presenceBroadcaster;
     private volatile boolean running;
     private final ExecutorService executorService;
+    private final OutboundQueue.Limits outboundLimits;
+    private final FileSpool fileSpool;
+    private final MessageLog messageLog;
+    private final OfflineInbox offlineInbox;
+    private final HistoryService historyService;
+    private final TimingWheel idleTimer;
+    private final ServerMetrics metrics;
+    private final AdminServer adminServer;
     
     public ChatServer(int port) {
+        this(port, ServerMode.THREAD_POOL);
+    }
+    
+    public ChatServer(int port, ServerMode mode) {
         this.port = port;
+        this.mode = mode;
         this.clientManager = new ClientManager();
-        this.groupManager = new GroupManager();
-        this.messageRouter = new MessageRouter(clientManager, groupManager);
-        this.executorService = Executors.newCachedThreadPool();
+        this.groupManager = new GroupManager(GroupStore.fromSystemProperties());
+        this.metrics = new ServerMetrics();
+        this.outboundLimits = OutboundQueue.Limits.fromSystemProperties();
+        this.messageLog = MessageLog.fromSystemProperties();
+        this.offlineInbox = OfflineInbox.fromSystemProperties(clientManager, messageLog, outboundLimits);
+        this.historyService = HistoryService.fromSystemProperties(messageLog, groupManager, outboundLimits);
+        this.messageRouter = new MessageRouter(clientManager, groupManager, metrics, messageLog, offlineInbox);
+        this.presence = PresenceTracker.fromSystemProperties(clientManager);
+        this.presenceBroadcaster = PresenceBroadcaster.fromSystemProperties(clientManager, presence);
+        this.executorService = createExecutor(mode);
+        this.fileSpool = FileSpool.fromSystemProperties(clientManager, messageRouter);
+        // 100毫秒一格、512格，一圈约51秒，更长的超时按圈数计
+        this.idleTimer = new TimingWheel("idle-timer", 100, TimeUnit.MILLISECONDS, 512);
+        this.adminServer = AdminServer.fromSystemProperties(metrics, clientManager);
         this.running = false;
     }
     
+    /**
+     * 根据运行模式创建连接处理线程池
+     * 虚拟线程通过反射获取，使Java 11编译的产物也能在Java 21+上启用该模式
+     */
+    private static ExecutorService createExecutor(ServerMode mode) {
+        if (mode == ServerMode.VIRTUAL_THREAD) {
+            try {
+                return (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("当前JVM不支持虚拟线程 (需要Java 21+): "
+                        + System.getProperty("java.version"), e);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+    
+    /**
+     * 当前JVM是否支持虚拟线程模式
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+    
     /**
      * 启动服务器
      */
     public void start() {
+        long started = System.nanoTime();
         try {
-            serverSocket = new ServerSocket(port);
+            groupManager.open();
+        } catch (IOException e) {
+            LOG.error("加载群组失败", "error", e.getMessage());
+            return;
+        }
+        try {
+            fileSpool.init();
+        } catch (IOException e) {
+            LOG.error("初始化文件暂存目录失败", "error", e.getMessage());
+            return;
+        }
+        try {
+            messageLog.open();
+            offlineInbox.init();
+            historyService.init();
+        } catch (IOException e) {
+            LOG.error("打开消息日志失败", "error", e.getMessage());
+            return;
+        }
+        if (IDLE_TIMEOUT_SECONDS > 0) {
+            idleTimer.start();
+        }
+        adminServer.start();
+        LOG.info("启动完成", "millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        
+        if (mode == ServerMode.NIO) {
+            startNio();
+            return;
+        }
+        
+        try {
+            // 通过通道接受连接，使阻塞Socket也带有通道，文件分片可以从暂存文件直接传输
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
             running = true;
             
-            System.out.println("╔══════════════════════════════════════════════════════════╗");
-            System.out.println("║          多人聊天系统服务器已启动                        ║");
-            System.out.println("╠══════════════════════════════════════════════════════════╣");
-            System.out.println("║  端口: " + port + "                                             ║");
-            System.out.println("║  等待客户端连接...                                       ║");
-            System.out.println("╚══════════════════════════════════════════════════════════╝");
+            printBanner();
             
             // 接受客户端连接
             while (running) {
                 try {
-                    Socket clientSocket = serverSocket.accept();
-                    System.out.println("[服务器] 新连接: " + clientSocket.getInetAddress().getHostAddress());
+                    Socket clientSocket = serverChannel.accept().socket();
+                    LOG.info("新连接", "address", clientSocket.getInetAddress().getHostAddress());
                     
                     // 为每个客户端创建处理器
                     ClientHandler handler = new ClientHandler(clientSocket, this);
                     executorService.execute(handler);
                     
-                } catch (SocketException e) {
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
                     if (running) {
-                        System.err.println("[服务器] 接受连接时出错: " + e.getMessage());
+                        LOG.warn("接受连接时出错", "error", e.getMessage());
                     }
                 }
             }
         } catch (IOException e) {
-            System.err.println("[服务器] 启动失败: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("启动失败", "error", e);
         } finally {
             stop();
         }
     }
     
+    /**
+     * 以NIO模式启动服务器
+     * 接入线程阻塞accept，新连接按轮询分配给固定数量的事件循环
+     */
+    private void startNio() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            
+            int ioThreads = Integer.getInteger("chat.ioThreads", DEFAULT_IO_THREADS);
+            eventLoops = new NioEventLoop[ioThreads];
+            for (int i = 0; i < ioThreads; i++) {
+                eventLoops[i] = new NioEventLoop("nio-event-loop-" + i, this);
+                eventLoops[i].start();
+            }
+            running = true;
+            
+            printBanner();
+            
+            int next = 0;
+            while (running) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    eventLoops[next].register(channel);
+                    next = (next + 1) % eventLoops.length;
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
+                    if (running) {
+                        LOG.warn("接受连接时出错", "error", e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("启动失败", "error", e);
+        } finally {
+            stop();
+        }
+    }
+    
+    private void printBanner() {
+        System.out.println("╔══════════════════════════════════════════════════════════╗");
+        System.out.println("║          多人聊天系统服务器已启动                        ║");
+        System.out.println("╠══════════════════════════════════════════════════════════╣");
+        System.out.println("║  端口: " + port + "                                             ║");
+        System.out.println("║  模式: " + mode + "                                       ║");
+        System.out.println("║  等待客户端连接...                                       ║");
+        System.out.println("╚══════════════════════════════════════════════════════════╝");
+    }
+    
     /**
      * 停止服务器
      */
     public void stop() {
+        if (!running && executorService.isShutdown()) {
+            return;
+        }
         running = false;
         
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
             }
         } catch (IOException e) {
-            System.err.println("[服务器] 关闭服务器Socket时出错: " + e.getMessage());
+            LOG.warn("关闭服务器Socket时出错", "error", e.getMessage());
         }
         
         // 断开所有客户端
         clientManager.disconnectAll();
         
+        fileSpool.shutdown();
+        offlineInbox.shutdown();
+        historyService.shutdown();
+        messageLog.close();
+        groupManager.close();
+        idleTimer.stop();
+        presenceBroadcaster.shutdown();
+        adminServer.stop();
+        
+        // 停止事件循环
+        if (eventLoops != null) {
+            for (NioEventLoop loop : eventLoops) {
+                loop.shutdown();
+            }
+        }
+        
         // 关闭线程池
         executorService.shutdown();
         try {
@@ -96,7 +260,70 @@ public class ChatServer {
             executorService.shutdownNow();
         }
         
-        System.out.println("[服务器] 服务器已停止");
+        LOG.info("服务器已停止");
+    }
+    
+    /**
+     * 获取运行模式
+     */
+    public ServerMode getMode() {
+        return mode;
+    }
+    
+    /**
+     * 获取连接处理线程池（阻塞模式的读线程和写任务都运行在其中）
+     */
+    public ExecutorService getExecutor() {
+        return executorService;
+    }
+    
+    /**
+     * 获取出站队列限制配置
+     */
+    public OutboundQueue.Limits getOutboundLimits() {
+        return outboundLimits;
+    }
+    
+    /**
+     * 获取文件传输暂存区
+     */
+    public FileSpool getFileSpool() {
+        return fileSpool;
+    }
+    
+    /**
+     * 获取消息日志
+     */
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+    
+    /**
+     * 获取离线消息收件箱
+     */
+    public OfflineInbox getOfflineInbox() {
+        return offlineInbox;
+    }
+    
+    /**
+     * 获取历史消息查询服务
+     */
+    public HistoryService getHistoryService() {
+        return historyService;
+    }
+    
+    /**
+     * 连接空闲超时（纳秒），0表示不检测
+     */
+    public long getIdleTimeoutNanos() {
+        return TimeUnit.SECONDS.toNanos(Math.max(0, IDLE_TIMEOUT_SECONDS));
+    }
+    
+    /**
+     * 获取空闲检测使用的时间轮
+     */
+    public TimingWheel getIdleTimer() {
+        return idleTimer;
     }
     
     /**
@@ -121,28 +348,39 @@ public class ChatServer {
     }
     
     /**
-     * 广播用户列表给所有在线用户
+     * 获取运行指标
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * 获取在线状态版本记录
+     */
+    public PresenceTracker getPresence() {
+        return presence;
+    }
+    
+    /**
+     * 登记登录成功的用户，在线列表和上线通知在合并窗口结束时发出
+     * @param since 客户端持有的在线状态纪元；为null时是不支持增量同步的旧客户端，发送完整的用户列表
      */
-    public void broadcastUserList() {
-        List<String> users = clientManager.getOnlineUsernames();
-        Message userListMsg = Message.createUserListMessage(users);
-        clientManager.broadcast(userListMsg);
+    public void userLoggedIn(String username, ClientHandler handler, Long since) {
+        presenceBroadcaster.userLoggedIn(username, handler, since);
     }
     
     /**
-     * 广播用户上线通知
+     * 注销断开的用户，下线通知在合并窗口结束时发出
      */
-    public void broadcastUserJoin(String username) {
-        Message joinMsg = Message.createUserJoinMessage(username);
-        clientManager.broadcastExcept(joinMsg, username);
+    public void userLoggedOut(String username) {
+        presenceBroadcaster.userLoggedOut(username);
     }
     
     /**
-     * 广播用户下线通知
+     * 回复客户端的在线状态同步请求（增量更小时发增量，否则发完整快照）
      */
-    public void broadcastUserLeave(String username) {
-        Message leaveMsg = Message.createUserLeaveMessage(username);
-        clientManager.broadcast(leaveMsg);
+    public void sendPresenceSync(ClientHandler handler, long since) {
+        presenceBroadcaster.requestSync(handler, since);
     }
     
     /**
@@ -150,8 +388,9 @@ public class ChatServer {
      */
     public static void main(String[] args) {
         int port = DEFAULT_PORT;
+        ServerMode mode = ServerMode.THREAD_POOL;
         
-        // 解析命令行参数
+        // 解析命令行参数: [端口] [运行模式]
         if (args.length > 0) {
             try {
                 port = Integer.parseInt(args[0]);
@@ -159,13 +398,26 @@ public class ChatServer {
                 System.err.println("无效的端口号，使用默认端口 " + DEFAULT_PORT);
             }
         }
+        if (args.length > 1) {
+            ServerMode parsed = ServerMode.parse(args[1]);
+            if (parsed != null) {
+                mode = parsed;
+            } else {
+                System.err.println("无效的运行模式，使用默认模式 " + mode);
+            }
+        }
+        if (mode == ServerMode.VIRTUAL_THREAD && !isVirtualThreadSupported()) {
+            System.err.println("当前JVM不支持虚拟线程 (需要Java 21+)，使用默认模式 " + ServerMode.THREAD_POOL);
+            mode = ServerMode.THREAD_POOL;
+        }
         
-        ChatServer server = new ChatServer(port);
+        ChatServer server = new ChatServer(port, mode);
         
         // 注册关闭钩子
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("\n[服务器] 正在关闭...");
             server.stop();
+            Log.flush();
         }));
         
         server.start();
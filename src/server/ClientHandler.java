@@ -1,25 +1,75 @@
 package server;
 
+import com.google.gson.JsonParseException;
 import common.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 客户端连接处理器
  * 负责处理单个客户端的消息收发
+ * 阻塞模式下作为独立线程运行；NIO模式下由事件循环回调 onMessage / onMalformedFrame
+ * 发出的消息先进入有界出站队列，由连接自己的写出者写到网络
  */
 public class ClientHandler implements Runnable {
-    private final Socket socket;
+    private static final Log LOG = Log.get("handler", "处理器");
+    
+    private final Socket socket;                // 阻塞模式的Socket
+    private final NioConnection connection;     // NIO模式的连接
     private final ChatServer server;
-    private BufferedReader reader;
-    private PrintWriter writer;
+    private final OutboundQueue outbound;
+    private final AtomicBoolean draining;       // 阻塞模式下是否已有写任务在运行
+    private FrameInput input;
+    private volatile OutputStream output;
+    private WritableByteChannel socketChannel;  // 阻塞模式下Socket底层的通道，用于聚集写和从暂存文件直接传输
+    private ByteBuffer[] gatherBuffers;         // 阻塞模式聚集写的缓冲区数组（同一时刻只有一个写任务使用）
+    private long lastFlushNanos;                // 阻塞模式上次写出的时间（只由写任务访问）
+    private volatile WireFormat inboundFormat;  // 入站帧格式，登录协商后可能切换为二进制
+    private volatile long lastActivityNanos;    // 最近一次收到消息的时间
+    private volatile TimingWheel.Timeout idleCheck;
     private String username;
+    private volatile boolean presenceDeltaSupported; // 客户端登录时声明了在线状态纪元
+    private volatile long bytesIn;              // 累计读到的字节数（只由读线程更新）
     private volatile boolean connected;
     
     public ClientHandler(Socket socket, ChatServer server) {
         this.socket = socket;
+        this.connection = null;
+        this.server = server;
+        this.outbound = new OutboundQueue(server.getOutboundLimits());
+        this.draining = new AtomicBoolean(false);
+        this.inboundFormat = WireFormat.JSON_LINE;
+        this.connected = true;
+    }
+    
+    public ClientHandler(NioConnection connection, ChatServer server) {
+        this.socket = null;
+        this.connection = connection;
+        this.server = server;
+        this.outbound = new OutboundQueue(server.getOutboundLimits());
+        this.draining = new AtomicBoolean(false);
+        this.inboundFormat = WireFormat.JSON_LINE;
+        this.connected = true;
+    }
+    
+    /**
+     * 不绑定网络连接的内存处理器，出站数据只进入队列而不写出（用于基准测试）
+     */
+    ClientHandler(ChatServer server, String username) {
+        this.socket = null;
+        this.connection = null;
         this.server = server;
+        this.outbound = new OutboundQueue(server.getOutboundLimits());
+        this.draining = new AtomicBoolean(false);
+        this.inboundFormat = WireFormat.JSON_LINE;
+        this.username = username;
         this.connected = true;
     }
     
@@ -27,35 +77,67 @@ public class ClientHandler implements Runnable {
     public void run() {
         try {
             // 初始化输入输出流
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-            writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+            input = new FrameInput(new CountingInputStream(socket.getInputStream()));
+            socketChannel = socket.getChannel();
+            gatherBuffers = new ByteBuffer[64];
+            lastFlushNanos = System.nanoTime() - TimeUnit.HOURS.toNanos(1);
+            output = new BufferedOutputStream(socket.getOutputStream());
+            scheduleDrain();
+            startIdleTimer();
             
             // 处理消息循环
-            String line;
-            while (connected && (line = reader.readLine()) != null) {
+            while (connected) {
+                Message message;
                 try {
-                    Message message = JsonUtils.fromJson(line);
-                    handleMessage(message);
-                } catch (Exception e) {
-                    System.err.println("[处理器] 解析消息出错: " + e.getMessage());
-                    sendMessage(Message.createErrorMessage("消息格式错误"));
+                    message = input.read();
+                } catch (JsonParseException e) {
+                    onMalformedFrame(e);
+                    continue;
+                }
+                if (message == null) {
+                    break;
                 }
+                onMessage(message);
             }
         } catch (IOException e) {
             if (connected) {
-                System.err.println("[处理器] 连接异常: " + e.getMessage());
+                LOG.warn("连接异常", "user", username, "error", e.getMessage());
             }
         } finally {
             disconnect();
         }
     }
     
+    /**
+     * 收到无法解析的帧（帧本身已被完整跳过，连接可继续使用）
+     */
+    void onMalformedFrame(Exception e) {
+        LOG.warn("解析消息出错", "user", username, "error", e.getMessage());
+        sendMessage(Message.createErrorMessage("消息格式错误"));
+    }
+    
+    /**
+     * 处理一条已解码的消息
+     */
+    void onMessage(Message message) {
+        lastActivityNanos = System.nanoTime();
+        server.getMetrics().recordReceived(message.getType());
+        try {
+            handleMessage(message);
+        } catch (Exception e) {
+            LOG.warn("处理消息出错", "type", message.getType(), "user", username, "error", e.getMessage());
+            sendMessage(Message.createErrorMessage("消息格式错误"));
+        }
+    }
+    
     /**
      * 处理接收到的消息
      */
     private void handleMessage(Message message) {
-        System.out.println("[处理器] 收到消息: " + message.getType() + " from " + 
-                          (username != null ? username : "未登录用户"));
+        if (LOG.sampled()) {
+            LOG.info("收到消息", "type", message.getType(), "sender", username != null ? username : "未登录用户",
+                     "target", message.getTarget(), "bytes", message.getBinaryLength());
+        }
         
         switch (message.getType()) {
             case LOGIN:
@@ -70,14 +152,26 @@ public class ClientHandler implements Runnable {
             case FILE_DATA:
                 handleDataMessage(message);
                 break;
+            case FILE_ACCEPT:
+            case FILE_REJECT:
+            case FILE_ACK:
+                handleFileControl(message);
+                break;
             case CREATE_GROUP:
                 handleCreateGroup(message);
                 break;
             case LEAVE_GROUP:
                 handleLeaveGroup(message);
                 break;
+            case PRESENCE_SYNC:
+                handlePresenceSync(message);
+                break;
+            case HISTORY_REQUEST:
+                handleHistoryRequest(message);
+                break;
             case HEARTBEAT:
-                // 心跳包，不需要处理
+                // 收到任何消息都已刷新活动时间，回复心跳让客户端也能发现失效的连接
+                sendMessage(Message.createHeartbeatMessage());
                 break;
             default:
                 sendMessage(Message.createErrorMessage("不支持的消息类型: " + message.getType()));
@@ -105,23 +199,55 @@ public class ClientHandler implements Runnable {
         
         // 登录成功
         this.username = requestedUsername;
-        server.getClientManager().addClient(username, this);
-        
-        // 发送登录成功响应
-        sendMessage(Message.createLoginResponse(true, "登录成功"));
         
-        // 发送当前在线用户列表
-        List<String> users = server.getClientManager().getOnlineUsernames();
-        sendMessage(Message.createUserListMessage(users));
+        // 发送登录成功响应，客户端请求二进制帧时在响应中确认并切换
+        WireFormat requested = WireFormat.fromWireName(message.getContentString(WireFormat.CONTENT_KEY));
+        Message response = Message.createLoginResponse(true, "登录成功");
+        if (requested == WireFormat.BINARY) {
+            response.getContent().put(WireFormat.CONTENT_KEY, requested.getWireName());
+            OutboundFrame frame = OutboundFrame.of(response);
+            handleOfferResult(frame, outbound.offerThenSwitch(frame, requested));
+            switchInboundFormat(requested);
+        } else {
+            sendMessage(response);
+        }
         
         // 发送群组列表
         List<Group> groups = server.getGroupManager().getGroupsForUser(username);
         sendMessage(Message.createGroupListMessage(groups));
         
-        // 广播新用户上线
-        server.broadcastUserJoin(username);
+        // 登记上线：按客户端持有的纪元发送在线状态增量或快照，并通知其他用户
+        Long presenceEpoch = message.getContentLong("presenceEpoch");
+        presenceDeltaSupported = presenceEpoch != null;
+        server.userLoggedIn(username, this, presenceEpoch);
+        
+        // 登记为在线之后记为已知用户并投递离线期间的消息
+        server.getOfflineInbox().userLoggedIn(username);
         
-        System.out.println("[处理器] 用户登录成功: " + username);
+        LOG.info("用户登录成功", "user", username, "framing", requested.getWireName());
+    }
+    
+    /**
+     * 处理在线状态同步请求
+     */
+    private void handlePresenceSync(Message message) {
+        if (username == null) {
+            sendMessage(Message.createErrorMessage("请先登录"));
+            return;
+        }
+        Long since = message.getContentLong("epoch");
+        server.sendPresenceSync(this, since != null ? since : 0);
+    }
+    
+    /**
+     * 处理历史消息查询请求
+     */
+    private void handleHistoryRequest(Message message) {
+        if (username == null) {
+            sendMessage(Message.createErrorMessage("请先登录"));
+            return;
+        }
+        server.getHistoryService().request(this, username, message);
     }
     
     /**
@@ -143,10 +269,49 @@ public class ClientHandler implements Runnable {
         // 确保发送者是当前用户
         message.setSender(username);
         
+        // 带传输ID的文件提议和分片经服务器暂存文件转发（不带传输ID的旧客户端文件直接路由）
+        if (message.getTransferId() != null) {
+            if (message.getType() == MessageType.FILE) {
+                server.getFileSpool().offer(message);
+                return;
+            }
+            if (message.getType() == MessageType.FILE_DATA) {
+                server.getFileSpool().onChunk(username, message);
+                return;
+            }
+        }
+        
         // 路由消息
         server.getMessageRouter().routeMessage(message);
     }
     
+    /**
+     * 处理文件传输控制消息（接受、拒绝、分片确认）
+     */
+    private void handleFileControl(Message message) {
+        if (username == null) {
+            sendMessage(Message.createErrorMessage("请先登录"));
+            return;
+        }
+        if (message.getTransferId() == null) {
+            sendMessage(Message.createErrorMessage("缺少传输ID"));
+            return;
+        }
+        
+        FileSpool fileSpool = server.getFileSpool();
+        switch (message.getType()) {
+            case FILE_ACCEPT:
+                fileSpool.accept(username, message);
+                break;
+            case FILE_REJECT:
+                fileSpool.reject(username, message);
+                break;
+            default:
+                fileSpool.onAck(username, message);
+                break;
+        }
+    }
+    
     /**
      * 处理创建群组请求
      */
@@ -181,15 +346,15 @@ public class ClientHandler implements Runnable {
         Group group = server.getGroupManager().createGroup(groupName, username, members);
         
         // 通知所有群组成员
-        Message groupCreatedMsg = Message.createGroupCreatedMessage(group);
+        OutboundFrame groupCreatedFrame = OutboundFrame.of(Message.createGroupCreatedMessage(group));
         for (String member : members) {
             ClientHandler handler = server.getClientManager().getClient(member);
             if (handler != null) {
-                handler.sendMessage(groupCreatedMsg);
+                handler.sendFrame(groupCreatedFrame);
             }
         }
         
-        System.out.println("[处理器] 创建群组: " + groupName + ", 成员: " + members);
+        LOG.info("创建群组", "group", group.getGroupId(), "name", groupName, "members", members.size());
     }
     
     /**
@@ -211,36 +376,256 @@ public class ClientHandler implements Runnable {
      * 发送消息给客户端
      */
     public void sendMessage(Message message) {
-        if (writer != null && connected) {
-            String json = JsonUtils.toJson(message);
-            writer.println(json);
+        if (connected) {
+            sendFrame(OutboundFrame.of(message));
         }
     }
     
     /**
-     * 断开连接
+     * 发送预编码的消息帧（群发时同一帧在所有接收者之间共享）
      */
-    public void disconnect() {
+    public void sendFrame(OutboundFrame frame) {
         if (!connected) {
             return;
         }
-        
-        connected = false;
+        handleOfferResult(frame, outbound.offer(frame));
+    }
+    
+    /**
+     * 一次性发送一批消息帧，整批入队后只安排一次写出
+     * @return 整批已入队时返回true；连接已断开、整批被丢弃或超过上限而断开连接时返回false
+     */
+    public boolean sendFrames(List<OutboundFrame> frames) {
+        if (!connected) {
+            return false;
+        }
+        OutboundQueue.OfferResult result = outbound.offerAll(frames);
+        if (result == OutboundQueue.OfferResult.QUEUED) {
+            for (OutboundFrame frame : frames) {
+                server.getMetrics().recordSent(frame.getType());
+            }
+            scheduleDrain();
+            return true;
+        }
+        if (result == OutboundQueue.OfferResult.OVERFLOW) {
+            LOG.warn("出站队列超过高水位线，断开慢速客户端", "user", username,
+                     "depth", outbound.getDepth(), "bytes", outbound.getQueuedBytes());
+            disconnect();
+        }
+        return false;
+    }
+    
+    /**
+     * 根据入队结果安排写出或断开慢速客户端
+     */
+    private void handleOfferResult(OutboundFrame frame, OutboundQueue.OfferResult result) {
+        switch (result) {
+            case QUEUED:
+                server.getMetrics().recordSent(frame.getType());
+                scheduleDrain();
+                break;
+            case OVERFLOW:
+                LOG.warn("出站队列超过高水位线，断开慢速客户端", "user", username,
+                         "depth", outbound.getDepth(), "bytes", outbound.getQueuedBytes());
+                disconnect();
+                break;
+            default:
+                // 被丢弃的在线状态通知等
+                break;
+        }
+    }
+    
+    /**
+     * 切换入站帧格式（在读取线程中调用，之后读到的帧按新格式解析）
+     */
+    private void switchInboundFormat(WireFormat format) {
+        inboundFormat = format;
+        if (input != null) {
+            input.setFormat(format);
+        }
+    }
+    
+    /**
+     * 当前入站帧格式
+     */
+    WireFormat getInboundFormat() {
+        return inboundFormat;
+    }
+    
+    /**
+     * 安排写出出站队列
+     * NIO模式交给事件循环；阻塞模式在线程池中启动一个写任务，同一时刻每个连接最多一个
+     */
+    private void scheduleDrain() {
+        if (connection != null) {
+            connection.requestFlush();
+            return;
+        }
+        if (output == null || !draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            server.getExecutor().execute(this::drainOutbound);
+        } catch (RejectedExecutionException e) {
+            // 服务器正在关闭
+            draining.set(false);
+        }
+    }
+    
+    /**
+     * 阻塞模式的写任务：把队列中的全部数据合并写出
+     * 有Socket通道时连续的帧聚集为一次写，否则写入缓冲输出流后统一刷新。
+     * 配置了最大等待时间时，距上次写出不足该时间先等待期满，让繁忙连接上陆续到达的帧一起写出。
+     */
+    private void drainOutbound() {
+        try {
+            while (true) {
+                long linger = lastFlushNanos + server.getOutboundLimits().getMaxLingerNanos() - System.nanoTime();
+                if (linger > 0) {
+                    LockSupport.parkNanos(linger);
+                }
+                
+                if (socketChannel != null) {
+                    // 阻塞通道总能写完
+                    outbound.writeTo(socketChannel, gatherBuffers);
+                } else {
+                    while (outbound.writeNext(output)) {
+                        // 写出全部积压帧后统一刷新
+                    }
+                    output.flush();
+                }
+                lastFlushNanos = System.nanoTime();
+                
+                draining.set(false);
+                // 释放标记后如果又有新数据入队，且没有其他写任务接手，则继续写
+                if (outbound.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            draining.set(false);
+            if (connected) {
+                LOG.warn("写出消息出错", "user", username, "error", e.getMessage());
+            }
+            disconnect();
+        }
+    }
+    
+    /**
+     * 开始空闲检测（连接建立后调用）
+     * 收到消息只更新活动时间，不重新安排定时任务；检测到期时如果期间有过活动，
+     * 按剩余时间重新安排，否则断开连接。每个连接在时间轮中始终只有一个定时任务。
+     */
+    void startIdleTimer() {
+        lastActivityNanos = System.nanoTime();
+        if (server.getIdleTimeoutNanos() > 0) {
+            scheduleIdleCheck(server.getIdleTimeoutNanos());
+        }
+    }
+    
+    private void scheduleIdleCheck(long delayNanos) {
+        idleCheck = server.getIdleTimer().schedule(this::checkIdle, delayNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * 空闲检测到期（时间轮线程调用）
+     */
+    private void checkIdle() {
+        if (!connected) {
+            return;
+        }
+        long idle = System.nanoTime() - lastActivityNanos;
+        long remaining = server.getIdleTimeoutNanos() - idle;
+        if (remaining > 0) {
+            scheduleIdleCheck(remaining);
+            return;
+        }
+        LOG.info("连接空闲超时，断开", "user", username != null ? username : "未登录用户",
+                 "idleSeconds", TimeUnit.NANOSECONDS.toSeconds(idle));
+        disconnect();
+    }
+    
+    /**
+     * 获取出站队列
+     */
+    OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+    
+    /**
+     * 出站队列中积压的帧数
+     */
+    public int getOutboundDepth() {
+        return outbound.getDepth();
+    }
+    
+    /**
+     * 出站队列中积压的字节数
+     */
+    public long getOutboundBytes() {
+        return outbound.getQueuedBytes();
+    }
+    
+    /**
+     * 累计被丢弃的出站帧数
+     */
+    public long getOutboundDropped() {
+        return outbound.getDroppedCount();
+    }
+    
+    /**
+     * 累计读到的字节数
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+    
+    /**
+     * 累计写出的字节数
+     */
+    public long getBytesOut() {
+        return outbound.getWrittenBytes();
+    }
+    
+    /**
+     * 记录读到的字节数（读线程或事件循环线程调用）
+     */
+    void recordBytesIn(int count) {
+        bytesIn += count;
+    }
+    
+    /**
+     * 断开连接
+     */
+    public void disconnect() {
+        synchronized (this) {
+            if (!connected) {
+                return;
+            }
+            connected = false;
+        }
+        outbound.close();
+        server.getMetrics().recordConnectionClosed(bytesIn, getBytesOut());
+        TimingWheel.Timeout check = idleCheck;
+        if (check != null) {
+            check.cancel();
+        }
         
         // 从客户端管理器中移除
         if (username != null) {
-            server.getClientManager().removeClient(username);
-            server.broadcastUserLeave(username);
-            System.out.println("[处理器] 用户断开连接: " + username);
+            server.userLoggedOut(username);
+            LOG.info("用户断开连接", "user", username);
         }
         
         // 关闭资源
+        if (connection != null) {
+            connection.close();
+            return;
+        }
         try {
-            if (reader != null) reader.close();
-            if (writer != null) writer.close();
             if (socket != null && !socket.isClosed()) socket.close();
         } catch (IOException e) {
-            System.err.println("[处理器] 关闭连接时出错: " + e.getMessage());
+            LOG.warn("关闭连接时出错", "user", username, "error", e.getMessage());
         }
     }
     
@@ -248,7 +633,41 @@ public class ClientHandler implements Runnable {
         return username;
     }
     
+    /**
+     * 客户端是否支持在线状态增量（否则发送逐个的上下线通知）
+     */
+    public boolean isPresenceDeltaSupported() {
+        return presenceDeltaSupported;
+    }
+    
     public boolean isConnected() {
         return connected;
     }
+    
+    /**
+     * 统计读到字节数的输入流（阻塞模式）
+     */
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                recordBytesIn(1);
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                recordBytesIn(n);
+            }
+            return n;
+        }
+    }
 }
@@ -9,6 +9,7 @@ import java.util.concurrent.ConcurrentHashMap;
  * 管理所有在线客户端连接
  */
 public class ClientManager {
+    private static final Log LOG = Log.get("clients", "客户端管理器");
     // 用户名到ClientHandler的映射
     private final Map<String, ClientHandler> clients;
     
@@ -21,7 +22,7 @@ public class ClientManager {
      */
     public void addClient(String username, ClientHandler handler) {
         clients.put(username, handler);
-        System.out.println("[客户端管理器] 添加客户端: " + username + ", 当前在线: " + clients.size());
+        LOG.info("添加客户端", "user", username, "online", clients.size());
     }
     
     /**
@@ -29,7 +30,7 @@ public class ClientManager {
      */
     public void removeClient(String username) {
         clients.remove(username);
-        System.out.println("[客户端管理器] 移除客户端: " + username + ", 当前在线: " + clients.size());
+        LOG.info("移除客户端", "user", username, "online", clients.size());
     }
     
     /**
@@ -53,6 +54,13 @@ public class ClientManager {
         return new ArrayList<>(clients.keySet());
     }
     
+    /**
+     * 获取所有在线客户端处理器（只读视图，遍历时可能反映并发的增删）
+     */
+    public Collection<ClientHandler> getClients() {
+        return Collections.unmodifiableCollection(clients.values());
+    }
+    
     /**
      * 获取在线用户数量
      */
@@ -60,6 +68,17 @@ public class ClientManager {
         return clients.size();
     }
     
+    /**
+     * 获取每个在线用户的出站队列积压帧数
+     */
+    public Map<String, Integer> getOutboundQueueDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        for (Map.Entry<String, ClientHandler> entry : clients.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().getOutboundDepth());
+        }
+        return depths;
+    }
+    
     /**
      * 向指定用户发送消息
      */
@@ -73,34 +92,59 @@ public class ClientManager {
     }
     
     /**
-     * 向多个用户发送消息
+     * 向指定用户发送预编码的消息帧
+     */
+    public boolean sendToUser(String username, OutboundFrame frame) {
+        ClientHandler handler = clients.get(username);
+        if (handler != null && handler.isConnected()) {
+            handler.sendFrame(frame);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * 向多个用户发送消息（只编码一次）
      */
     public void sendToUsers(List<String> usernames, Message message) {
+        OutboundFrame frame = OutboundFrame.of(message);
         for (String username : usernames) {
-            sendToUser(username, message);
+            sendToUser(username, frame);
         }
     }
     
     /**
-     * 广播消息给所有在线用户
+     * 广播消息给所有在线用户（只编码一次）
      */
     public void broadcast(Message message) {
+        OutboundFrame frame = OutboundFrame.of(message);
         for (ClientHandler handler : clients.values()) {
             if (handler.isConnected()) {
-                handler.sendMessage(message);
+                handler.sendFrame(frame);
             }
         }
     }
     
     /**
-     * 广播消息给除指定用户外的所有在线用户
+     * 广播消息给除指定用户外的所有在线用户（只编码一次）
      */
     public void broadcastExcept(Message message, String exceptUsername) {
+        broadcastExcept(OutboundFrame.of(message), exceptUsername);
+    }
+    
+    /**
+     * 广播预编码的消息帧给除指定用户外的所有在线用户
+     * @return 发送到的用户数
+     */
+    public int broadcastExcept(OutboundFrame frame, String exceptUsername) {
+        int sent = 0;
         for (Map.Entry<String, ClientHandler> entry : clients.entrySet()) {
             if (!entry.getKey().equals(exceptUsername) && entry.getValue().isConnected()) {
-                entry.getValue().sendMessage(message);
+                entry.getValue().sendFrame(frame);
+                sent++;
             }
         }
+        return sent;
     }
     
     /**
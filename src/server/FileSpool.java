@@ -0,0 +1,265 @@
+package server;
+
+import common.FrameCodec;
+import common.Log;
+import common.Message;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件传输暂存区
+ * 按传输ID管理正在进行的文件传输，每个传输对应暂存目录中的一个文件。
+ * 任一方断线后传输保留，超过空闲超时仍无进展才清理，以便重连后续传。
+ *
+ * 系统属性：
+ * chat.spool.dir 暂存目录，默认为系统临时目录下的 chat-spool；
+ * chat.file.window 服务器向每个接收方推送的未确认分片上限，默认8；
+ * chat.file.transferTimeoutSeconds 传输空闲超时，默认600秒。
+ */
+public class FileSpool {
+    private static final Log LOG = Log.get("spool", "文件暂存");
+    private static final String SUFFIX = ".spool";
+    private static final int MAX_CHUNK_SIZE = FrameCodec.MAX_FRAME_LENGTH / 2;
+
+    private final Path directory;
+    private final ClientManager clientManager;
+    private final MessageRouter messageRouter;
+    private final int window;
+    private final long transferTimeoutMillis;
+    private final Map<String, FileTransfer> transfers;
+    private ScheduledExecutorService reaper;
+
+    public FileSpool(Path directory, ClientManager clientManager, MessageRouter messageRouter,
+                     int window, long transferTimeoutMillis) {
+        this.directory = directory;
+        this.clientManager = clientManager;
+        this.messageRouter = messageRouter;
+        this.window = window;
+        this.transferTimeoutMillis = transferTimeoutMillis;
+        this.transfers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 从系统属性创建暂存区
+     */
+    public static FileSpool fromSystemProperties(ClientManager clientManager, MessageRouter messageRouter) {
+        String dir = System.getProperty("chat.spool.dir");
+        Path directory = dir != null
+                ? Paths.get(dir)
+                : Paths.get(System.getProperty("java.io.tmpdir"), "chat-spool");
+        return new FileSpool(directory, clientManager, messageRouter,
+                Math.max(1, Integer.getInteger("chat.file.window", 8)),
+                TimeUnit.SECONDS.toMillis(Long.getLong("chat.file.transferTimeoutSeconds", 600)));
+    }
+
+    /**
+     * 创建暂存目录、清理上次运行遗留的暂存文件，并启动超时清理任务
+     */
+    public void init() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : stale) {
+                Files.deleteIfExists(path);
+            }
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "file-spool-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, transferTimeoutMillis / 4);
+        reaper.scheduleWithFixedDelay(this::expireIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 处理文件传输提议
+     * 新传输：创建暂存文件并把提议转发给接收方；发送方重连后重新提议同一传输：从已暂存的分片续传
+     */
+    public void offer(Message offer) {
+        String transferId = offer.getTransferId();
+        String sender = offer.getSender();
+
+        FileTransfer existing = transfers.get(transferId);
+        if (existing != null) {
+            if (existing.getOwner().equals(sender)) {
+                existing.onSenderResume();
+            } else {
+                reject(sender, transferId, "传输ID已被使用");
+            }
+            return;
+        }
+
+        Integer chunkSize = offer.getContentInt("chunkSize");
+        int totalChunks = offer.getTotalChunks();
+        if (chunkSize == null || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE || totalChunks <= 0) {
+            reject(sender, transferId, "文件分片参数不合法");
+            return;
+        }
+
+        List<String> recipients = messageRouter.getRecipients(offer);
+        if (recipients.isEmpty()) {
+            reject(sender, transferId, "没有可以接收文件的在线用户");
+            return;
+        }
+
+        FileTransfer transfer;
+        try {
+            Path path = directory.resolve(sanitize(transferId) + SUFFIX);
+            SpoolFile spool = new SpoolFile(transferId, sender, path);
+            transfer = new FileTransfer(offer, chunkSize, totalChunks, window, spool, clientManager);
+        } catch (IOException e) {
+            LOG.warn("创建暂存文件失败", "transfer", transferId, "error", e.getMessage());
+            reject(sender, transferId, "服务器无法暂存文件");
+            return;
+        }
+        if (transfers.putIfAbsent(transferId, transfer) != null) {
+            transfer.getSpool().finish();
+            reject(sender, transferId, "传输ID已被使用");
+            return;
+        }
+
+        transfer.offered(recipients);
+        messageRouter.routeMessage(offer);
+        LOG.info("文件传输提议", "transfer", transferId, "file", transfer.getFilename(),
+                 "sender", sender, "recipients", recipients.size());
+    }
+
+    /**
+     * 接收方接受文件，或重连后从指定分片续传
+     */
+    public void accept(String username, Message message) {
+        FileTransfer transfer = transfers.get(message.getTransferId());
+        Integer resumeFrom = message.getContentInt("resumeFrom");
+        if (transfer == null || !transfer.accept(username, resumeFrom != null ? resumeFrom : 0)) {
+            reject(username, message.getTransferId(), "文件传输不存在或已过期");
+        }
+    }
+
+    /**
+     * 拒绝文件：接收方发出表示不接收，发送方发出表示取消传输
+     */
+    public void reject(String username, Message message) {
+        String transferId = message.getTransferId();
+        FileTransfer transfer = transfers.get(transferId);
+        if (transfer == null) {
+            return;
+        }
+        if (transfer.getOwner().equals(username)) {
+            transfer.cancel("发送方已取消");
+            remove(transfer);
+        } else if (transfer.reject(username, message.getContentString("reason"))) {
+            remove(transfer);
+        } else {
+            removeIfFinished(transfer);
+        }
+    }
+
+    /**
+     * 发送方发来的文件分片
+     */
+    public void onChunk(String username, Message message) {
+        String transferId = message.getTransferId();
+        FileTransfer transfer = transfers.get(transferId);
+        if (transfer == null || !transfer.getOwner().equals(username)) {
+            reject(username, transferId, "文件传输不存在或已过期");
+            return;
+        }
+        // 二进制帧中空帧体不携带数据（空文件）
+        byte[] data = message.getDataBytes();
+        if (data == null) {
+            data = new byte[0];
+        }
+        try {
+            transfer.onChunk(message, data);
+        } catch (IOException e) {
+            LOG.warn("暂存文件分片失败", "transfer", transfer.getTransferId(), "error", e.getMessage());
+            transfer.cancel("服务器无法暂存文件");
+            remove(transfer);
+            reject(username, transferId, "服务器无法暂存文件");
+            return;
+        }
+        removeIfFinished(transfer);
+    }
+
+    /**
+     * 接收方的分片确认
+     */
+    public void onAck(String username, Message message) {
+        FileTransfer transfer = transfers.get(message.getTransferId());
+        Integer chunkIndex = message.getContentInt("chunkIndex");
+        if (transfer == null || chunkIndex == null) {
+            return;
+        }
+        Boolean retry = message.getContentBoolean("retry");
+        if (transfer.onReceiverAck(username, chunkIndex, retry != null && retry)) {
+            LOG.info("接收方已收完文件", "transfer", transfer.getTransferId(), "user", username);
+            removeIfFinished(transfer);
+        }
+    }
+
+    /**
+     * 正在进行的传输数
+     */
+    public int getActiveCount() {
+        return transfers.size();
+    }
+
+    /**
+     * 停止超时清理任务
+     */
+    public void shutdown() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
+    }
+
+    private void removeIfFinished(FileTransfer transfer) {
+        if (transfer.isFinished()) {
+            remove(transfer);
+        }
+    }
+
+    private void remove(FileTransfer transfer) {
+        if (transfers.remove(transfer.getTransferId(), transfer)) {
+            transfer.getSpool().finish();
+        }
+    }
+
+    /**
+     * 清理长时间没有进展的传输（发送方或接收方断线后一直没有回来续传）
+     */
+    private void expireIdle() {
+        long deadline = System.currentTimeMillis() - transferTimeoutMillis;
+        Iterator<FileTransfer> it = transfers.values().iterator();
+        while (it.hasNext()) {
+            FileTransfer transfer = it.next();
+            if (transfer.getLastActivity() < deadline) {
+                it.remove();
+                transfer.cancel("文件传输超时");
+                transfer.getSpool().finish();
+                LOG.info("文件传输超时，已清理", "transfer", transfer.getTransferId());
+            }
+        }
+    }
+
+    private void reject(String username, String transferId, String reason) {
+        clientManager.sendToUser(username, Message.createFileRejectMessage(null, transferId, reason));
+    }
+
+    /**
+     * 传输ID来自客户端，只保留可用作文件名的字符
+     */
+    private static String sanitize(String transferId) {
+        return transferId.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+}
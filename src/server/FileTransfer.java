@@ -0,0 +1,254 @@
+package server;
+
+import common.Checksums;
+import common.Message;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * 一次文件传输在服务器上的状态
+ *
+ * 传输分两段，各自使用滑动窗口：
+ * 发送方 → 服务器：服务器每收到并校验、暂存一个分片就向发送方确认，发送方未确认的分片不超过窗口大小；
+ * 服务器 → 接收方：每个接受了文件的接收方各自维护一个窗口，收到接收方确认后才继续推送后续分片。
+ * 分片暂存在 SpoolFile 中，任一方断线重连后都可以从最后确认的分片继续，不必从头开始。
+ */
+public class FileTransfer {
+
+    /**
+     * 已暂存的分片
+     */
+    private static final class Chunk {
+        final long position;
+        final int length;
+        final Message header;   // 转发给接收方的帧头（不含数据）
+
+        Chunk(long position, int length, Message header) {
+            this.position = position;
+            this.length = length;
+            this.header = header;
+        }
+    }
+
+    /**
+     * 已接受文件的接收方的推送进度
+     */
+    private static final class Receiver {
+        int next;       // 下一个要推送的分片
+        int acked;      // 已确认的分片数
+
+        Receiver(int resumeFrom) {
+            this.next = resumeFrom;
+            this.acked = resumeFrom;
+        }
+    }
+
+    private final String transferId;
+    private final String owner;
+    private final String filename;
+    private final int chunkSize;
+    private final int totalChunks;
+    private final int window;
+    private final SpoolFile spool;
+    private final ClientManager clientManager;
+    private final List<Chunk> chunks;
+    private final Set<String> pending;              // 已收到提议但尚未答复的接收方
+    private final Map<String, Receiver> receivers;  // 已接受文件且尚未收完的接收方
+    private boolean accepted;                       // 是否已有接收方接受
+    private int retryRequested;                     // 已要求发送方重传的分片，避免重复要求
+    private volatile long lastActivity;
+
+    FileTransfer(Message offer, int chunkSize, int totalChunks, int window,
+                 SpoolFile spool, ClientManager clientManager) {
+        this.transferId = offer.getTransferId();
+        this.owner = offer.getSender();
+        this.filename = offer.getFilename();
+        this.chunkSize = chunkSize;
+        this.totalChunks = totalChunks;
+        this.window = window;
+        this.spool = spool;
+        this.clientManager = clientManager;
+        this.chunks = new ArrayList<>();
+        this.pending = new HashSet<>();
+        this.receivers = new HashMap<>();
+        this.retryRequested = -1;
+        touch();
+    }
+
+    /**
+     * 提议已发给这些接收方
+     */
+    synchronized void offered(Collection<String> recipients) {
+        pending.addAll(recipients);
+    }
+
+    /**
+     * 发送方重新提议（重连后续传）：已有接收方接受时立即告知发送方从哪个分片继续
+     */
+    synchronized void onSenderResume() {
+        touch();
+        retryRequested = -1;
+        if (accepted) {
+            notifySender(Message.createFileAcceptMessage(null, transferId, chunks.size()));
+        }
+    }
+
+    /**
+     * 接收方接受文件（首次接受，或重连后从 resumeFrom 续传）
+     * @return 该用户无权接收此传输时返回false
+     */
+    synchronized boolean accept(String username, int resumeFrom) {
+        if (!pending.remove(username) && !receivers.containsKey(username)) {
+            return false;
+        }
+        touch();
+        int from = Math.max(0, Math.min(resumeFrom, totalChunks));
+        Receiver receiver = new Receiver(from);
+        receivers.put(username, receiver);
+        if (!accepted) {
+            // 第一个接收方接受后通知发送方开始传输
+            accepted = true;
+            notifySender(Message.createFileAcceptMessage(username, transferId, chunks.size()));
+        }
+        pump(username, receiver);
+        return true;
+    }
+
+    /**
+     * 接收方拒绝文件或中途放弃
+     * @return 所有接收方都已拒绝，传输应当结束时返回true
+     */
+    synchronized boolean reject(String username, String reason) {
+        boolean known = pending.remove(username) | receivers.remove(username) != null;
+        if (!known) {
+            return false;
+        }
+        touch();
+        if (pending.isEmpty() && receivers.isEmpty()) {
+            notifySender(Message.createFileRejectMessage(username, transferId,
+                    reason != null ? reason : "对方拒绝接收"));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 发送方发来一个分片
+     * 按顺序到达且校验通过的分片追加到暂存文件并确认，然后推送给各接收方；
+     * 重复的分片（续传时重发）只重新确认，乱序或校验失败的分片要求发送方从缺失处重传
+     */
+    synchronized void onChunk(Message message, byte[] data) throws IOException {
+        touch();
+        int index = message.getChunkIndex();
+        int expected = chunks.size();
+
+        if (index >= 0 && index < expected) {
+            notifySender(Message.createFileAckMessage(null, transferId, expected - 1, false));
+            return;
+        }
+        if (index != expected || data.length > chunkSize || !Checksums.verify(message, data)) {
+            if (retryRequested != expected) {
+                retryRequested = expected;
+                notifySender(Message.createFileAckMessage(null, transferId, expected, true));
+            }
+            return;
+        }
+
+        long position = spool.append(data);
+        chunks.add(new Chunk(position, data.length, message.copyWithoutData()));
+        retryRequested = -1;
+        notifySender(Message.createFileAckMessage(null, transferId, index, false));
+
+        for (Map.Entry<String, Receiver> entry : receivers.entrySet()) {
+            pump(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 接收方确认分片，或要求从某个分片开始重传
+     * @return 该接收方已收完全部分片时返回true
+     */
+    synchronized boolean onReceiverAck(String username, int chunkIndex, boolean retry) {
+        Receiver receiver = receivers.get(username);
+        if (receiver == null) {
+            return false;
+        }
+        touch();
+        if (retry) {
+            receiver.next = Math.max(0, Math.min(chunkIndex, chunks.size()));
+            receiver.acked = receiver.next;
+        } else if (chunkIndex + 1 > receiver.acked) {
+            receiver.acked = Math.min(chunkIndex + 1, totalChunks);
+        }
+        if (receiver.acked >= totalChunks) {
+            receivers.remove(username);
+            return true;
+        }
+        pump(username, receiver);
+        return false;
+    }
+
+    /**
+     * 在接收方窗口内推送已暂存的分片，接收方离线时停止推送，等待其重连续传
+     */
+    private void pump(String username, Receiver receiver) {
+        while (receiver.next < chunks.size() && receiver.next < receiver.acked + window) {
+            Chunk chunk = chunks.get(receiver.next);
+            OutboundFrame frame = OutboundFrame.fileChunk(chunk.header, spool, chunk.position, chunk.length);
+            if (!clientManager.sendToUser(username, frame)) {
+                return;
+            }
+            receiver.next++;
+        }
+    }
+
+    /**
+     * 通知所有参与者传输已取消
+     */
+    synchronized void cancel(String reason) {
+        Message cancelled = Message.createFileRejectMessage(owner, transferId, reason);
+        for (String username : receivers.keySet()) {
+            clientManager.sendToUser(username, cancelled);
+        }
+        for (String username : pending) {
+            clientManager.sendToUser(username, cancelled);
+        }
+        receivers.clear();
+        pending.clear();
+    }
+
+    /**
+     * 发送方已传完全部分片，且所有接收方都已收完或拒绝
+     */
+    synchronized boolean isFinished() {
+        return chunks.size() >= totalChunks && receivers.isEmpty() && pending.isEmpty();
+    }
+
+    private void notifySender(Message message) {
+        clientManager.sendToUser(owner, message);
+    }
+
+    private void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    SpoolFile getSpool() {
+        return spool;
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+}
@@ -1,20 +1,68 @@
 package server;
 
 import common.Group;
+import common.Log;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 群组管理器
- * 管理所有群组信息
+ * 管理所有群组信息；配置了群组存储时，成员变更在群组的锁内写入存储的预写日志，启动时从存储恢复
  */
 public class GroupManager {
+    private static final Log LOG = Log.get("groups", "群组管理器");
     // 群组ID到Group的映射
     private final Map<String, Group> groups;
+    // 用户名到其所在群组ID的反向索引，随成员变更同步维护
+    private final Map<String, Set<String>> groupsByUser;
+    // 群组存储，为null时群组只保存在内存中
+    private final GroupStore store;
     
     public GroupManager() {
+        this(null);
+    }
+    
+    public GroupManager(GroupStore store) {
         this.groups = new ConcurrentHashMap<>();
+        this.groupsByUser = new ConcurrentHashMap<>();
+        this.store = store;
+    }
+    
+    /**
+     * 从群组存储恢复群组并重建成员索引（服务器接受连接前调用）
+     */
+    public void open() throws IOException {
+        if (store == null) {
+            return;
+        }
+        long started = System.nanoTime();
+        List<Group> loaded = store.open(this::getAllGroups);
+        // 先在普通的集合中按用户归集，再一次性建立大小合适的并发集合，避免逐条 compute 和集合扩容
+        Map<String, List<String>> byUser = new HashMap<>();
+        for (Group group : loaded) {
+            groups.put(group.getGroupId(), group);
+            for (String member : group.getMembers()) {
+                byUser.computeIfAbsent(member, user -> new ArrayList<>(4)).add(group.getGroupId());
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : byUser.entrySet()) {
+            Set<String> groupIds = ConcurrentHashMap.newKeySet(entry.getValue().size());
+            groupIds.addAll(entry.getValue());
+            groupsByUser.put(entry.getKey(), groupIds);
+        }
+        LOG.info("群组已恢复", "groups", loaded.size(),
+                 "millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+    
+    /**
+     * 写入最终快照并关闭群组存储
+     */
+    public void close() {
+        if (store != null) {
+            store.close();
+        }
     }
     
     /**
@@ -22,8 +70,16 @@ public class GroupManager {
      */
     public Group createGroup(String groupName, String creator, List<String> members) {
         Group group = new Group(groupName, creator, members);
-        groups.put(group.getGroupId(), group);
-        System.out.println("[群组管理器] 创建群组: " + groupName + " (ID: " + group.getGroupId() + ")");
+        synchronized (group) {
+            groups.put(group.getGroupId(), group);
+            for (String member : group.getMembers()) {
+                index(member, group.getGroupId());
+            }
+            if (store != null) {
+                store.logCreate(group);
+            }
+        }
+        LOG.info("创建群组", "group", group.getGroupId(), "name", groupName);
         return group;
     }
     
@@ -38,9 +94,11 @@ public class GroupManager {
      * 删除群组
      */
     public void deleteGroup(String groupId) {
-        Group removed = groups.remove(groupId);
-        if (removed != null) {
-            System.out.println("[群组管理器] 删除群组: " + removed.getGroupName());
+        Group group = groups.get(groupId);
+        if (group != null) {
+            synchronized (group) {
+                deleteLocked(group);
+            }
         }
     }
     
@@ -49,11 +107,23 @@ public class GroupManager {
      */
     public boolean addMemberToGroup(String groupId, String username) {
         Group group = groups.get(groupId);
-        if (group != null) {
-            group.addMember(username);
-            return true;
+        if (group == null) {
+            return false;
         }
-        return false;
+        synchronized (group) {
+            if (groups.get(groupId) != group) {
+                // 已被删除
+                return false;
+            }
+            if (!group.hasMember(username)) {
+                group.addMember(username);
+                if (store != null) {
+                    store.logAdd(groupId, username);
+                }
+            }
+            index(username, groupId);
+        }
+        return true;
     }
     
     /**
@@ -61,43 +131,64 @@ public class GroupManager {
      */
     public boolean removeMemberFromGroup(String groupId, String username) {
         Group group = groups.get(groupId);
-        if (group != null) {
-            group.removeMember(username);
+        if (group == null) {
+            return false;
+        }
+        synchronized (group) {
+            if (groups.get(groupId) != group) {
+                return false;
+            }
+            if (group.hasMember(username)) {
+                group.removeMember(username);
+                if (store != null) {
+                    store.logRemove(groupId, username);
+                }
+            }
+            unindex(username, groupId);
             // 如果群组没有成员了，删除群组
             if (group.getMembers().isEmpty()) {
-                deleteGroup(groupId);
+                deleteLocked(group);
             }
-            return true;
         }
-        return false;
+        return true;
     }
     
     /**
      * 获取群组成员列表
+     * 返回不可修改的当前快照，群发时直接遍历，不复制也不加锁
      */
     public List<String> getGroupMembers(String groupId) {
         Group group = groups.get(groupId);
         if (group != null) {
-            return new ArrayList<>(group.getMembers());
+            return group.getMembers();
         }
         return Collections.emptyList();
     }
     
     /**
-     * 检查用户是否是群组成员
+     * 检查用户是否是群组成员（查反向索引，与群组规模无关）
      */
     public boolean isGroupMember(String groupId, String username) {
-        Group group = groups.get(groupId);
-        return group != null && group.hasMember(username);
+        Set<String> groupIds = groupsByUser.get(username);
+        return groupIds != null && groupIds.contains(groupId);
     }
     
     /**
-     * 获取用户所在的所有群组
+     * 获取用户所在的所有群组（查反向索引，与服务器上的群组总数无关）
      */
     public List<Group> getGroupsForUser(String username) {
-        return groups.values().stream()
-                .filter(g -> g.hasMember(username))
-                .collect(Collectors.toList());
+        Set<String> groupIds = groupsByUser.get(username);
+        if (groupIds == null) {
+            return new ArrayList<>();
+        }
+        List<Group> result = new ArrayList<>(groupIds.size());
+        for (String groupId : groupIds) {
+            Group group = groups.get(groupId);
+            if (group != null) {
+                result.add(group);
+            }
+        }
+        return result;
     }
     
     /**
@@ -106,4 +197,37 @@ public class GroupManager {
     public List<Group> getAllGroups() {
         return new ArrayList<>(groups.values());
     }
+    
+    /**
+     * 删除群组并清除其成员的索引（调用方持有群组的锁）
+     */
+    private void deleteLocked(Group group) {
+        if (!groups.remove(group.getGroupId(), group)) {
+            return;
+        }
+        for (String member : group.getMembers()) {
+            unindex(member, group.getGroupId());
+        }
+        if (store != null) {
+            store.logDelete(group.getGroupId());
+        }
+        LOG.info("删除群组", "group", group.getGroupId(), "name", group.getGroupName());
+    }
+    
+    private void index(String username, String groupId) {
+        groupsByUser.compute(username, (user, groupIds) -> {
+            if (groupIds == null) {
+                groupIds = ConcurrentHashMap.newKeySet();
+            }
+            groupIds.add(groupId);
+            return groupIds;
+        });
+    }
+    
+    private void unindex(String username, String groupId) {
+        groupsByUser.computeIfPresent(username, (user, groupIds) -> {
+            groupIds.remove(groupId);
+            return groupIds.isEmpty() ? null : groupIds;
+        });
+    }
 }
@@ -0,0 +1,727 @@
+package server;
+
+import common.Group;
+import common.Log;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 群组持久化存储
+ * 成员变更（创建、加入、退出、删除）追加到预写日志 groups-{代}.wal，再定期把全部群组写成紧凑的
+ * 二进制快照 groups-{代}.snapshot：写快照前切换到新一代日志，快照写完后删除更早的快照和日志。
+ * 启动时加载最新的快照，再按顺序重放该代及之后的日志，不需要客户端重新创建群组。
+ *
+ * 变更在内存中生效后只把编码好的记录放进队列，调用方（NIO 事件循环）不等待磁盘；
+ * 写线程取走积累的整批记录一次写出并刷盘（组提交），写入失败时截断写了一半的部分并退避重试。
+ * 崩溃时最后一批尚未写出的变更会丢失，重启后群组回到此前的状态。
+ *
+ * 快照在切换日志之后取得，可能已包含新一代日志开头的变更；日志中的操作都是幂等的
+ * （创建即设置完整的成员列表，加入/退出/删除重复执行结果不变），重放后得到相同的状态。
+ *
+ * 日志记录格式（大端序）: length (4) | crc32 (4) | op (1) | 内容，length 与 crc32 覆盖 op 及内容；
+ * 启动时截断最后一代日志中崩溃时写了一半的记录。
+ * 快照格式: magic | version | 用户名表 | 群组（成员以用户名表中的序号表示）| crc32，
+ * 每个用户名只保存一次，加载后同一用户在各群组中共享同一个字符串。
+ *
+ * 系统属性：
+ * chat.groups.enabled 是否持久化群组，默认true；
+ * chat.groups.dir 存储目录，默认为工作目录下的 ServerData/groups；
+ * chat.groups.fsync 每批变更写出后是否刷盘，默认true；
+ * chat.groups.snapshotSeconds 日志有新记录时写快照的间隔，默认300秒；
+ * chat.groups.snapshotRecords 日志累计该条数后立即写快照，默认100000。
+ */
+public class GroupStore {
+    private static final Log LOG = Log.get("groupstore", "群组存储");
+    private static final String PREFIX = "groups-";
+    private static final String WAL_SUFFIX = ".wal";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x43475250;   // "CGRP"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int RECORD_PREFIX = 8;             // length + crc32
+
+    private static final byte OP_CREATE = 1;
+    private static final byte OP_ADD = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_DELETE = 4;
+
+    private static final long WRITE_RETRY_MIN_MILLIS = 100;
+    private static final long WRITE_RETRY_MAX_MILLIS = 5000;
+
+    private final Path directory;
+    private final boolean enabled;
+    private final boolean fsync;
+    private final long snapshotMillis;
+    private final long snapshotRecords;
+    private Supplier<Collection<Group>> source;
+    private ScheduledExecutorService executor;
+
+    private Thread writer;
+
+    // 以下字段由 this 保护
+    private List<ByteBuffer> pending = new ArrayList<>();   // 等待写线程写出的记录
+    private long enqueued;          // 已入队的记录数
+    private long written;           // 写线程已处理（写出或放弃）的记录数
+    private boolean open;
+    private boolean snapshotQueued;
+
+    // 以下字段由 walLock 保护（写线程写日志和快照线程切换日志时持有，不阻塞变更入队）
+    private final Object walLock = new Object();
+    private FileChannel wal;
+    private long walEnd;            // 日志中完整记录的末尾，写入失败时截断到这里
+    private long generation;
+    private long walRecords;        // 当前快照之后日志中的记录数
+
+    public GroupStore(Path directory, boolean enabled, boolean fsync, long snapshotMillis, long snapshotRecords) {
+        this.directory = directory;
+        this.enabled = enabled;
+        this.fsync = fsync;
+        this.snapshotMillis = snapshotMillis;
+        this.snapshotRecords = snapshotRecords;
+    }
+
+    /**
+     * 从系统属性创建群组存储
+     */
+    public static GroupStore fromSystemProperties() {
+        String dir = System.getProperty("chat.groups.dir");
+        return new GroupStore(dir != null ? Paths.get(dir) : Paths.get("ServerData", "groups"),
+                Boolean.parseBoolean(System.getProperty("chat.groups.enabled", "true")),
+                Boolean.parseBoolean(System.getProperty("chat.groups.fsync", "true")),
+                TimeUnit.SECONDS.toMillis(Math.max(1, Long.getLong("chat.groups.snapshotSeconds", 300))),
+                Math.max(1, Long.getLong("chat.groups.snapshotRecords", 100000)));
+    }
+
+    /**
+     * 加载最新的快照并重放之后的日志，然后开始记录变更和定期写快照
+     * @param source 写快照时取得全部群组
+     * @return 恢复的群组（未启用时为空）
+     */
+    public List<Group> open(Supplier<Collection<Group>> source) throws IOException {
+        if (!enabled) {
+            LOG.info("群组存储未启用");
+            return Collections.emptyList();
+        }
+        long started = System.nanoTime();
+        Files.createDirectories(directory);
+        List<Long> snapshots = list(SNAPSHOT_SUFFIX);
+        List<Long> wals = list(WAL_SUFFIX);
+
+        Map<String, StoredGroup> state = new HashMap<>();
+        long base = 0;
+        if (!snapshots.isEmpty()) {
+            base = snapshots.get(snapshots.size() - 1);
+            readSnapshot(path(base, SNAPSHOT_SUFFIX), state);
+        }
+        long snapshotNanos = System.nanoTime() - started;
+
+        long current = base;
+        long replayed = 0;
+        long validSize = 0;
+        for (long walGeneration : wals) {
+            if (walGeneration < base) {
+                continue;
+            }
+            long[] result = replay(path(walGeneration, WAL_SUFFIX), state);
+            replayed += result[0];
+            validSize = result[1];
+            current = walGeneration;
+        }
+
+        List<Group> groups = new ArrayList<>(state.size());
+        long memberships = 0;
+        for (Map.Entry<String, StoredGroup> entry : state.entrySet()) {
+            StoredGroup stored = entry.getValue();
+            List<String> members = stored.members();
+            if (!members.isEmpty()) {
+                groups.add(new Group(entry.getKey(), stored.name, stored.creator, members, stored.createTime));
+                memberships += members.size();
+            }
+        }
+
+        FileChannel channel = FileChannel.open(path(current, WAL_SUFFIX), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        if (channel.size() > validSize) {
+            LOG.warn("截断群组日志不完整的尾部", "generation", current, "validBytes", validSize,
+                     "droppedBytes", channel.size() - validSize);
+            channel.truncate(validSize);
+        }
+        channel.position(validSize);
+        this.source = source;
+        synchronized (walLock) {
+            wal = channel;
+            walEnd = validSize;
+            generation = current;
+            walRecords = replayed;
+        }
+        synchronized (this) {
+            open = true;
+        }
+        // 上次写完新快照后、删除旧文件前崩溃时留下的旧快照和日志
+        deleteBefore(base);
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "group-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::snapshot, snapshotMillis, snapshotMillis, TimeUnit.MILLISECONDS);
+        writer = new Thread(this::runWriter, "group-wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        LOG.info("群组已加载", "dir", directory.toAbsolutePath(), "groups", groups.size(),
+                 "memberships", memberships, "snapshotMillis", TimeUnit.NANOSECONDS.toMillis(snapshotNanos),
+                 "walRecords", replayed, "millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        return groups;
+    }
+
+    /**
+     * 记录创建群组（调用方持有群组的锁，同一群组的变更按顺序进入队列，不等待写入）
+     */
+    public void logCreate(Group group) {
+        List<String> members = group.getMembers();
+        append(OP_CREATE, out -> {
+            out.writeUTF(group.getGroupId());
+            out.writeUTF(nonNull(group.getGroupName()));
+            out.writeUTF(nonNull(group.getCreator()));
+            out.writeLong(group.getCreateTime());
+            out.writeInt(members.size());
+            for (String member : members) {
+                out.writeUTF(member);
+            }
+        });
+    }
+
+    /**
+     * 记录成员加入
+     */
+    public void logAdd(String groupId, String username) {
+        append(OP_ADD, out -> {
+            out.writeUTF(groupId);
+            out.writeUTF(username);
+        });
+    }
+
+    /**
+     * 记录成员退出
+     */
+    public void logRemove(String groupId, String username) {
+        append(OP_REMOVE, out -> {
+            out.writeUTF(groupId);
+            out.writeUTF(username);
+        });
+    }
+
+    /**
+     * 记录删除群组
+     */
+    public void logDelete(String groupId) {
+        append(OP_DELETE, out -> out.writeUTF(groupId));
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void append(byte op, RecordWriter writer) {
+        ByteBuffer record;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(op);
+            writer.write(out);
+            record = ByteBuffer.wrap(bytes.toByteArray());
+        } catch (IOException e) {
+            // 字段超过 writeUTF 的长度上限
+            LOG.warn("群组变更无法编码，未写入日志", "op", op, "error", e.getMessage());
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_PREFIX, record.limit() - RECORD_PREFIX);
+        record.putInt(0, record.limit() - RECORD_PREFIX);
+        record.putInt(4, (int) crc.getValue());
+
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            pending.add(record);
+            enqueued++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * 等待此前入队的记录都已写出
+     */
+    void awaitWritten() throws InterruptedException {
+        synchronized (this) {
+            long target = enqueued;
+            while (written < target && open) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * 写线程：取走整批待写记录，写出并刷盘一次
+     */
+    private void runWriter() {
+        List<ByteBuffer> batch = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                while (pending.isEmpty() && open) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // 关闭时通过 open 标志退出
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                List<ByteBuffer> taken = pending;
+                pending = batch;
+                batch = taken;
+            }
+            writeWithRetry(batch);
+            synchronized (this) {
+                written += batch.size();
+                notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * 写出一批记录，失败时整批重试，直到成功或存储关闭
+     */
+    private void writeWithRetry(List<ByteBuffer> batch) {
+        long delay = WRITE_RETRY_MIN_MILLIS;
+        while (true) {
+            try {
+                writeBatch(batch);
+                return;
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (!open) {
+                        LOG.error("群组存储关闭时仍无法写入日志，变更丢失", "records", batch.size(),
+                                  "error", e.getMessage());
+                        return;
+                    }
+                    LOG.error("写入群组日志失败，稍后重试", "records", batch.size(), "retryMillis", delay,
+                              "error", e.getMessage());
+                    try {
+                        wait(delay);
+                    } catch (InterruptedException ie) {
+                        // 关闭时通过 open 标志退出
+                    }
+                }
+                delay = Math.min(delay * 2, WRITE_RETRY_MAX_MILLIS);
+            }
+        }
+    }
+
+    private void writeBatch(List<ByteBuffer> batch) throws IOException {
+        ByteBuffer[] records = new ByteBuffer[batch.size()];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = batch.get(i);
+            records[i].rewind();
+        }
+        boolean snapshotDue;
+        synchronized (walLock) {
+            try {
+                // 丢弃上次失败时写了一半的记录，之后的记录仍能被重放
+                if (wal.size() > walEnd) {
+                    wal.truncate(walEnd);
+                }
+                wal.position(walEnd);
+                ByteBuffer last = records[records.length - 1];
+                while (last.hasRemaining()) {
+                    wal.write(records);
+                }
+                if (fsync) {
+                    wal.force(false);
+                }
+            } catch (IOException e) {
+                try {
+                    wal.truncate(walEnd);
+                } catch (IOException suppressed) {
+                    // 重试时再截断，仍然失败则下次启动时按校验和截断
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+            walEnd = wal.position();
+            walRecords += records.length;
+            snapshotDue = walRecords >= snapshotRecords;
+        }
+        if (snapshotDue) {
+            requestSnapshot();
+        }
+    }
+
+    /**
+     * 在快照线程上尽快写一次快照（已经排队时不重复提交）
+     */
+    private void requestSnapshot() {
+        synchronized (this) {
+            if (snapshotQueued) {
+                return;
+            }
+            snapshotQueued = true;
+        }
+        try {
+            executor.execute(this::snapshot);
+        } catch (RejectedExecutionException e) {
+            // 正在关闭，关闭时会写最终快照
+        }
+    }
+
+    /**
+     * 切换到新一代日志并写入全部群组的快照，成功后删除更早的快照和日志
+     * 只在快照线程或关闭时调用
+     */
+    private void snapshot() {
+        synchronized (this) {
+            snapshotQueued = false;
+        }
+        long snapshotGeneration;
+        long covered;
+        synchronized (walLock) {
+            if (wal == null || walRecords == 0) {
+                return;
+            }
+            snapshotGeneration = generation + 1;
+            try {
+                FileChannel next = FileChannel.open(path(snapshotGeneration, WAL_SUFFIX),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                wal.force(true);
+                wal.close();
+                wal = next;
+                walEnd = 0;
+                generation = snapshotGeneration;
+            } catch (IOException e) {
+                LOG.warn("切换群组日志失败", "error", e.getMessage());
+                return;
+            }
+            covered = walRecords;
+        }
+        long started = System.nanoTime();
+        Collection<Group> groups = source.get();
+        try {
+            writeSnapshot(path(snapshotGeneration, SNAPSHOT_SUFFIX), groups);
+        } catch (IOException e) {
+            // 旧快照和各代日志都还在，下次启动仍能完整恢复；下次写快照时重试
+            LOG.warn("写入群组快照失败", "generation", snapshotGeneration, "error", e.getMessage());
+            return;
+        }
+        synchronized (walLock) {
+            walRecords -= covered;
+        }
+        deleteBefore(snapshotGeneration);
+        LOG.info("写入群组快照", "generation", snapshotGeneration, "groups", groups.size(),
+                 "walRecords", covered, "millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    private void writeSnapshot(Path path, Collection<Group> groups) throws IOException {
+        // 先建立用户名表，成员以序号保存
+        Map<String, Integer> users = new HashMap<>();
+        List<String> userList = new ArrayList<>();
+        for (Group group : groups) {
+            for (String member : group.getMembers()) {
+                if (users.putIfAbsent(member, userList.size()) == null) {
+                    userList.add(member);
+                }
+            }
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(Channels.newOutputStream(channel), new CRC32());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 64 * 1024));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(userList.size());
+            for (String user : userList) {
+                writeString(out, user);
+            }
+            out.writeInt(groups.size());
+            for (Group group : groups) {
+                List<String> members = group.getMembers();
+                writeString(out, group.getGroupId());
+                writeString(out, nonNull(group.getGroupName()));
+                writeString(out, nonNull(group.getCreator()));
+                out.writeLong(group.getCreateTime());
+                out.writeInt(members.size());
+                for (String member : members) {
+                    out.writeInt(users.get(member));
+                }
+            }
+            out.flush();
+            new DataOutputStream(Channels.newOutputStream(channel)).writeInt((int) checked.getChecksum().getValue());
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 读取快照：整个文件一次读入并校验，再直接从字节数组解析
+     */
+    private static void readSnapshot(Path path, Map<String, StoredGroup> state) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length < 16) {
+            throw new IOException("群组快照不完整: " + path.getFileName());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if ((int) crc.getValue() != buffer.getInt(bytes.length - 4)) {
+            throw new IOException("群组快照校验失败: " + path.getFileName());
+        }
+        buffer.limit(bytes.length - 4);
+        try {
+            if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("无法识别的群组快照: " + path.getFileName());
+            }
+            String[] users = new String[buffer.getInt()];
+            for (int i = 0; i < users.length; i++) {
+                users[i] = readString(buffer);
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String groupId = readString(buffer);
+                StoredGroup group = new StoredGroup(readString(buffer), readString(buffer), buffer.getLong());
+                String[] members = new String[buffer.getInt()];
+                for (int j = 0; j < members.length; j++) {
+                    members[j] = users[buffer.getInt()];
+                }
+                group.list = Arrays.asList(members);
+                state.put(groupId, group);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("群组快照格式错误: " + path.getFileName());
+        }
+    }
+
+    /**
+     * 快照中的字符串: 长度 (2) | UTF-8 字节
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("字符串过长: " + bytes.length);
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * 重放一代日志，遇到不完整或校验失败的记录为止
+     * @return {重放的记录数, 有效数据的长度}
+     */
+    private static long[] replay(Path path, Map<String, StoredGroup> state) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long records = 0;
+        while (buffer.remaining() >= RECORD_PREFIX + 1) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int expectedCrc = buffer.getInt();
+            if (length < 1 || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, start + RECORD_PREFIX, length);
+            if ((int) crc.getValue() != expectedCrc) {
+                buffer.position(start);
+                break;
+            }
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(bytes, start + RECORD_PREFIX, length));
+            apply(in, state);
+            buffer.position(start + RECORD_PREFIX + length);
+            records++;
+        }
+        return new long[] {records, buffer.position()};
+    }
+
+    private static void apply(DataInputStream in, Map<String, StoredGroup> state) throws IOException {
+        byte op = in.readByte();
+        String groupId = in.readUTF();
+        StoredGroup group;
+        switch (op) {
+            case OP_CREATE:
+                group = new StoredGroup(in.readUTF(), in.readUTF(), in.readLong());
+                int count = in.readInt();
+                group.set = new LinkedHashSet<>();
+                for (int i = 0; i < count; i++) {
+                    group.set.add(in.readUTF());
+                }
+                state.put(groupId, group);
+                break;
+            case OP_ADD:
+                group = state.get(groupId);
+                if (group != null) {
+                    group.mutable().add(in.readUTF());
+                }
+                break;
+            case OP_REMOVE:
+                group = state.get(groupId);
+                if (group != null) {
+                    group.mutable().remove(in.readUTF());
+                }
+                break;
+            case OP_DELETE:
+                state.remove(groupId);
+                break;
+            default:
+                throw new IOException("未知的群组日志操作: " + op);
+        }
+    }
+
+    /**
+     * 加载过程中的群组：来自快照的成员保持为列表，重放时有变更才转为集合
+     */
+    private static final class StoredGroup {
+        final String name;
+        final String creator;
+        final long createTime;
+        List<String> list = Collections.emptyList();
+        LinkedHashSet<String> set;
+
+        StoredGroup(String name, String creator, long createTime) {
+            this.name = name;
+            this.creator = creator;
+            this.createTime = createTime;
+        }
+
+        LinkedHashSet<String> mutable() {
+            if (set == null) {
+                set = new LinkedHashSet<>(list);
+            }
+            return set;
+        }
+
+        List<String> members() {
+            return set != null ? new ArrayList<>(set) : list;
+        }
+    }
+
+    private List<Long> list(String suffix) throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("忽略无法识别的群组存储文件", "file", name);
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private Path path(long generation, String suffix) {
+        return directory.resolve(PREFIX + String.format("%020d", generation) + suffix);
+    }
+
+    /**
+     * 删除早于指定代的快照和日志
+     */
+    private void deleteBefore(long generation) {
+        try {
+            for (String suffix : new String[] {SNAPSHOT_SUFFIX, WAL_SUFFIX}) {
+                for (long old : list(suffix)) {
+                    if (old < generation) {
+                        Files.deleteIfExists(path(old, suffix));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("删除旧的群组快照失败", "error", e.getMessage());
+        }
+    }
+
+    private static String nonNull(String value) {
+        return value != null ? value : "";
+    }
+
+    /**
+     * 停止接收变更，等待写线程写完队列中的记录，写入最终快照后关闭日志（下次启动只需加载快照）
+     */
+    public void close() {
+        if (executor == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshot();
+        synchronized (walLock) {
+            try {
+                wal.force(true);
+                wal.close();
+            } catch (IOException e) {
+                LOG.warn("关闭群组日志失败", "error", e.getMessage());
+            }
+            wal = null;
+        }
+    }
+}
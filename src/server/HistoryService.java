@@ -0,0 +1,187 @@
+package server;
+
+import common.Log;
+import common.Message;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 服务器历史消息查询
+ * 客户端以 HISTORY_REQUEST 查询一对一会话或所在群组的历史，从新到旧分页返回：
+ * 第一页不带游标，之后每页带上一页响应中的游标；也可以用 beforeSeq 指定从某个序号之前开始
+ * （客户端已有本地历史时，从本地最早一条消息之前查起）。每页通过消息日志的稀疏索引定位，
+ * 只扫描相邻索引项之间的一小段，查询很久以前的群聊历史也不需要扫描整个日志。
+ *
+ * 响应先发 HISTORY_RESPONSE（本页条数、更早一页的游标），随后紧跟本页的消息（从新到旧，
+ * content.history 为 true）；两者作为一批一次入队，中间不会夹杂其他消息，
+ * 图片/文件数据按连接的帧格式原样发送，不嵌入响应的JSON。
+ * 读取磁盘在独立的线程中进行，不占用连接的读取线程或NIO事件循环。
+ *
+ * 系统属性：
+ * chat.history.threads 查询线程数，默认2；
+ * chat.history.maxPage 每页最多条数，默认200。
+ */
+public class HistoryService {
+    private static final Log LOG = Log.get("history", "历史查询");
+    public static final int DEFAULT_PAGE = 50;
+
+    private final MessageLog messageLog;
+    private final GroupManager groupManager;
+    private final OutboundQueue.Limits limits;
+    private final int threads;
+    private final int maxPage;
+    private ExecutorService executor;
+
+    public HistoryService(MessageLog messageLog, GroupManager groupManager, OutboundQueue.Limits limits,
+                          int threads, int maxPage) {
+        this.messageLog = messageLog;
+        this.groupManager = groupManager;
+        this.limits = limits;
+        this.threads = threads;
+        this.maxPage = maxPage;
+    }
+
+    /**
+     * 从系统属性创建历史查询服务
+     */
+    public static HistoryService fromSystemProperties(MessageLog messageLog, GroupManager groupManager,
+                                                      OutboundQueue.Limits limits) {
+        return new HistoryService(messageLog, groupManager, limits,
+                Math.max(1, Integer.getInteger("chat.history.threads", 2)),
+                Math.max(1, Integer.getInteger("chat.history.maxPage", 200)));
+    }
+
+    /**
+     * 启动查询线程
+     */
+    public void init() {
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "history-reader-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 处理历史查询请求（连接的读取线程调用，查询在查询线程中进行）
+     */
+    public void request(ClientHandler handler, String username, Message request) {
+        if (executor == null || !messageLog.isOpen()) {
+            handler.sendMessage(Message.createErrorMessage("服务器未启用消息存储，无法查询历史"));
+            return;
+        }
+        try {
+            executor.execute(() -> serve(handler, username, request));
+        } catch (RejectedExecutionException e) {
+            // 服务器正在关闭
+        }
+    }
+
+    private void serve(ClientHandler handler, String username, Message request) {
+        String target = request.getTarget();
+        if (request.getTargetType() == null || target == null || target.isEmpty()) {
+            handler.sendMessage(Message.createErrorMessage("历史查询缺少目标"));
+            return;
+        }
+        String conversation;
+        switch (request.getTargetType()) {
+            case USER:
+                conversation = MessageLog.userConversation(username, target);
+                break;
+            case GROUP:
+                if (!groupManager.isGroupMember(target, username)) {
+                    handler.sendMessage(Message.createErrorMessage("您不是该群组的成员"));
+                    return;
+                }
+                conversation = MessageLog.groupConversation(target);
+                break;
+            default:
+                handler.sendMessage(Message.createErrorMessage("不支持的历史查询目标类型"));
+                return;
+        }
+
+        long before = Long.MAX_VALUE;
+        String cursor = request.getContentString("cursor");
+        if (cursor != null) {
+            Long decoded = decodeCursor(cursor);
+            if (decoded == null) {
+                handler.sendMessage(Message.createErrorMessage("无效的历史游标"));
+                return;
+            }
+            before = decoded;
+        } else {
+            Long beforeSeq = request.getContentLong("beforeSeq");
+            if (beforeSeq != null) {
+                before = beforeSeq;
+            }
+        }
+        Integer requested = request.getContentInt("limit");
+        int limit = Math.min(requested != null && requested > 0 ? requested : DEFAULT_PAGE, maxPage);
+        // 一页不超过出站队列上限的四分之一，避免大图片较多的一页使连接溢出
+        limit = Math.min(limit, Math.max(1, limits.highWaterMark / 4));
+
+        List<Message> page;
+        try {
+            page = messageLog.readBefore(conversation, before, limit, limits.highWaterBytes / 4);
+        } catch (IOException e) {
+            LOG.warn("读取历史消息失败", "user", username, "target", target, "error", e.getMessage());
+            handler.sendMessage(Message.createErrorMessage("读取历史消息失败"));
+            return;
+        }
+
+        // 还有更早的消息时才返回游标，客户端据此判断是否已到最早的消息（或保留期的起点）
+        String next = null;
+        if (!page.isEmpty()) {
+            long oldest = page.get(page.size() - 1).getSeq();
+            if (messageLog.hasBefore(conversation, oldest)) {
+                next = encodeCursor(oldest);
+            }
+        }
+        List<OutboundFrame> frames = new ArrayList<>(page.size() + 1);
+        frames.add(OutboundFrame.of(Message.createHistoryResponse(target, request.getTargetType(), page.size(), next)));
+        for (Message message : page) {
+            message.getContent().put("history", true);
+            frames.add(OutboundFrame.of(message));
+        }
+        handler.sendFrames(frames);
+        if (LOG.sampled()) {
+            LOG.info("历史查询", "user", username, "target", target, "messages", page.size(),
+                     "more", next != null);
+        }
+    }
+
+    /**
+     * 游标对客户端不透明：编码的是本页最早一条消息的序号
+     */
+    static String encodeCursor(long seq) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(ByteBuffer.allocate(8).putLong(seq).array());
+    }
+
+    static Long decodeCursor(String cursor) {
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode(cursor);
+            return bytes.length == 8 ? ByteBuffer.wrap(bytes).getLong() : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 停止查询线程
+     * 不中断正在进行的查询：被中断的线程会关闭消息日志共享的文件通道
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
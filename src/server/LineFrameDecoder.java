@@ -0,0 +1,113 @@
+package server;
+
+import common.Message;
+import common.MessageCodec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 换行分隔帧的增量解码器
+ * 从ByteBuffer中逐段读取字节，每遇到一个'\n'把这一帧解码为消息。
+ * 完整落在本次读取中的帧直接从读缓冲区解码（见 {@link MessageCodec#decode(ByteBuffer, int, int)}），
+ * 不先构造整帧的 String；跨越多次读取的帧先暂存字节，凑齐后从暂存的字节数组解码。
+ * 没有半帧数据时不持有任何缓冲区，空闲连接几乎不占内存。
+ */
+public class LineFrameDecoder {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int maxFrameLength;
+    private byte[] partial;     // 尚未遇到换行符的半帧数据
+    private int partialLength;
+
+    public LineFrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * 从缓冲区中解出下一条消息，缓冲区中没有完整帧时暂存剩余字节并返回null
+     * 每次只消费一帧（空行跳过），调用方可以在两帧之间切换帧格式
+     * @throws IOException 单帧超过最大长度时抛出
+     * @throws com.google.gson.JsonParseException 帧不是合法的消息JSON（该帧已被完整跳过，可以继续读取）
+     */
+    public Message next(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int limit = buffer.limit();
+            int newline = -1;
+            for (int i = start; i < limit; i++) {
+                if (buffer.get(i) == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+
+            if (newline < 0) {
+                // 没有完整帧，暂存剩余字节
+                append(buffer, limit - start);
+                return null;
+            }
+
+            int length = newline - start;
+            Message message;
+            if (partialLength == 0) {
+                checkLength(length);
+                buffer.position(newline + 1);
+                if (length > 0 && buffer.get(start + length - 1) == '\r') {
+                    length--;
+                }
+                message = MessageCodec.decode(buffer, start, length);
+            } else {
+                append(buffer, length);
+                buffer.position(newline + 1);
+                try {
+                    int frameLength = partialLength;
+                    if (partial[frameLength - 1] == '\r') {
+                        frameLength--;
+                    }
+                    message = MessageCodec.decode(partial, 0, frameLength);
+                } finally {
+                    release();
+                }
+            }
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 当前暂存的半帧字节数
+     */
+    public int getPendingBytes() {
+        return partialLength;
+    }
+
+    private void append(ByteBuffer buffer, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        checkLength(partialLength + length);
+        if (partial == null) {
+            partial = new byte[Math.max(INITIAL_CAPACITY, length)];
+        } else if (partialLength + length > partial.length) {
+            int newCapacity = Math.max(partial.length * 2, partialLength + length);
+            partial = Arrays.copyOf(partial, Math.min(newCapacity, maxFrameLength));
+        }
+        buffer.get(partial, partialLength, length);
+        partialLength += length;
+    }
+
+    private void checkLength(int length) throws IOException {
+        if (length > maxFrameLength) {
+            release();
+            throw new IOException("消息帧过大: " + length + " 字节 (上限 " + maxFrameLength + ")");
+        }
+    }
+
+    private void release() {
+        partial = null;
+        partialLength = 0;
+    }
+}
@@ -0,0 +1,458 @@
+package server;
+
+import common.FrameCodec;
+import common.Message;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * 消息日志的一个段
+ * 段文件（起始序号.log）只追加记录；同名的 .index 文件保存该段的稀疏会话索引
+ * （会话在段内的第一条记录及其后每隔若干条一项），用于按会话定位而不必扫描整个段。
+ *
+ * 记录格式（大端序）:
+ * <pre>
+ * +------------+-----------+---------+---------------+-------------+---------+--------------+
+ * | length (4) | crc32 (4) | seq (8) | timestamp (8) | convLen (2) | conv    | binary frame |
+ * +------------+-----------+---------+---------------+-------------+---------+--------------+
+ * </pre>
+ * length 为 crc32 之后的字节数，crc32 覆盖这些字节；消息以二进制帧格式保存（图片/文件数据为原始字节）。
+ *
+ * 索引项格式: seq (8) | position (4) | convLen (2) | conv
+ *
+ * 封存后的段不再变化，以只读方式映射到内存（{@link FileChannel#map}），读取记录头和记录直接访问映射，
+ * 不再经过 read 系统调用和中间缓冲区，只有实际访问到的页会从磁盘读入；活动段仍在增长，按位置读取。
+ */
+final class LogSegment {
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".index";
+    static final int RECORD_PREFIX = 8;            // length + crc32
+    private static final int FIXED_BODY = 8 + 8 + 2;
+    private static final int READ_WINDOW = 64 * 1024;
+
+    /**
+     * 记录头：定位和过滤记录所需的字段（不含消息本身）
+     */
+    static final class Header {
+        long position;
+        long seq;
+        long timestamp;
+        byte[] conversation;
+        int length;                 // 整条记录的字节数（含前缀）
+
+        boolean isConversation(byte[] key) {
+            return Arrays.equals(conversation, key);
+        }
+    }
+
+    private final long baseSeq;
+    private final Path logPath;
+    private final Path indexPath;
+    private final FileChannel log;
+    private final FileChannel index;
+    private volatile long size;     // 已提交的字节数，读取不会越过这里
+    private long indexSize;         // 已提交的索引字节数（只由写线程访问）
+    private volatile ByteBuffer mapped; // 封存后的只读映射，活动段为null
+
+    private LogSegment(long baseSeq, Path logPath, Path indexPath, FileChannel log, FileChannel index, long size) {
+        this.baseSeq = baseSeq;
+        this.logPath = logPath;
+        this.indexPath = indexPath;
+        this.log = log;
+        this.index = index;
+        this.size = size;
+    }
+
+    static Path logPath(Path directory, long baseSeq) {
+        return directory.resolve(String.format("%020d", baseSeq) + LOG_SUFFIX);
+    }
+
+    static Path indexPath(Path directory, long baseSeq) {
+        return directory.resolve(String.format("%020d", baseSeq) + INDEX_SUFFIX);
+    }
+
+    /**
+     * 打开（或创建）段文件
+     * @param validSize 段中有效数据的长度，之后的内容（崩溃时写了一半的记录）被截断
+     */
+    static LogSegment open(Path directory, long baseSeq, long validSize) throws IOException {
+        Path logPath = logPath(directory, baseSeq);
+        Path indexPath = indexPath(directory, baseSeq);
+        FileChannel log = FileChannel.open(logPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel index = FileChannel.open(indexPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (log.size() > validSize) {
+            log.truncate(validSize);
+        }
+        index.position(index.size());
+        log.position(validSize);
+        LogSegment segment = new LogSegment(baseSeq, logPath, indexPath, log, index, validSize);
+        segment.indexSize = index.size();
+        return segment;
+    }
+
+    long getBaseSeq() {
+        return baseSeq;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getLastModified() throws IOException {
+        return Files.getLastModifiedTime(logPath).toMillis();
+    }
+
+    /**
+     * 编码记录中二进制帧之前的部分，帧字节随后原样写出（聚集写，不复制帧）
+     */
+    static ByteBuffer encodeHeader(long seq, long timestamp, byte[] conversation, byte[] frame) {
+        int headerLength = RECORD_PREFIX + FIXED_BODY + conversation.length;
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        header.position(RECORD_PREFIX);
+        header.putLong(seq);
+        header.putLong(timestamp);
+        header.putShort((short) conversation.length);
+        header.put(conversation);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), RECORD_PREFIX, headerLength - RECORD_PREFIX);
+        crc.update(frame);
+        header.putInt(0, headerLength - RECORD_PREFIX + frame.length);
+        header.putInt(4, (int) crc.getValue());
+        header.flip();
+        return header;
+    }
+
+    /**
+     * 编码一条索引项
+     */
+    static ByteBuffer encodeIndexEntry(long seq, int position, byte[] conversation) {
+        ByteBuffer entry = ByteBuffer.allocate(8 + 4 + 2 + conversation.length);
+        entry.putLong(seq);
+        entry.putInt(position);
+        entry.putShort((short) conversation.length);
+        entry.put(conversation);
+        entry.flip();
+        return entry;
+    }
+
+    /**
+     * 追加一批记录和索引项（只由写线程调用），写完后按需刷盘，然后才对读取可见
+     * 任何一步失败时整批作废：数据和索引都截断回写入前的长度，下一次追加仍从已提交的位置开始写
+     * （截断本身失败时，残留的字节也会被下一次追加覆盖，或在恢复时按校验截掉）
+     */
+    void append(ByteBuffer[] records, int count, ByteBuffer[] indexEntries, int indexCount, boolean fsync)
+            throws IOException {
+        long written;
+        try {
+            log.position(size);
+            written = writeFully(log, records, count);
+            if (fsync) {
+                log.force(false);
+            }
+            index.position(indexSize);
+            indexSize += writeFully(index, indexEntries, indexCount);
+        } catch (IOException e) {
+            try {
+                log.truncate(size);
+                index.truncate(indexSize);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        size += written;
+    }
+
+    /**
+     * 段滚动前刷盘数据和索引，封存后的段只读
+     */
+    void seal() throws IOException {
+        log.force(true);
+        index.force(true);
+        map();
+    }
+
+    /**
+     * 以只读方式映射已封存段的数据（打开已封存的段或封存时调用）
+     * 映射只占用地址空间，超过单个映射上限（2GB）的段仍按位置读取
+     */
+    void map() throws IOException {
+        if (mapped == null && size > 0 && size <= Integer.MAX_VALUE) {
+            mapped = log.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer[] buffers, int count) throws IOException {
+        long total = 0;
+        int offset = 0;
+        while (offset < count) {
+            total += channel.write(buffers, offset, count - offset);
+            while (offset < count && !buffers[offset].hasRemaining()) {
+                offset++;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 顺序扫描段内记录头的读取器
+     * 已封存的段直接在映射上解析；活动段每次从文件读入一个窗口，窗口内的记录头直接解析。
+     * 不属于目标会话的记录（如大图片）只跳过不读取
+     */
+    final class Reader {
+        private final ByteBuffer view;
+        private ByteBuffer window;
+        private long windowStart = -1;
+
+        Reader() {
+            ByteBuffer map = mapped;
+            this.view = map != null ? map.duplicate() : null;
+        }
+
+        /**
+         * 读取 position 处的记录头
+         * @return 已到达已提交数据的末尾时返回null
+         */
+        Header readHeader(long position) throws IOException {
+            if (view != null) {
+                return readMappedHeader(position);
+            }
+            long limit = size;
+            if (position + RECORD_PREFIX + FIXED_BODY > limit) {
+                return null;
+            }
+            if (windowStart < 0 || position < windowStart
+                    || position + RECORD_PREFIX + FIXED_BODY > windowStart + window.limit()) {
+                fill(position, limit);
+            }
+            int offset = (int) (position - windowStart);
+            Header header = new Header();
+            header.position = position;
+            header.length = RECORD_PREFIX + window.getInt(offset);
+            header.seq = window.getLong(offset + RECORD_PREFIX);
+            header.timestamp = window.getLong(offset + RECORD_PREFIX + 8);
+            header.conversation = new byte[window.getShort(offset + RECORD_PREFIX + 16) & 0xFFFF];
+            int conversationOffset = offset + RECORD_PREFIX + FIXED_BODY;
+            if (conversationOffset + header.conversation.length > window.limit()) {
+                fill(position, limit);
+                conversationOffset = RECORD_PREFIX + FIXED_BODY;
+            }
+            if (conversationOffset + header.conversation.length > window.limit()) {
+                readFully(position + RECORD_PREFIX + FIXED_BODY, ByteBuffer.wrap(header.conversation));
+            } else {
+                System.arraycopy(window.array(), conversationOffset, header.conversation, 0,
+                        header.conversation.length);
+            }
+            return header;
+        }
+
+        private Header readMappedHeader(long position) {
+            if (position + RECORD_PREFIX + FIXED_BODY > view.capacity()) {
+                return null;
+            }
+            int offset = (int) position;
+            Header header = new Header();
+            header.position = position;
+            header.length = RECORD_PREFIX + view.getInt(offset);
+            header.seq = view.getLong(offset + RECORD_PREFIX);
+            header.timestamp = view.getLong(offset + RECORD_PREFIX + 8);
+            header.conversation = new byte[view.getShort(offset + RECORD_PREFIX + 16) & 0xFFFF];
+            view.position(offset + RECORD_PREFIX + FIXED_BODY);
+            view.get(header.conversation);
+            return header;
+        }
+
+        private void fill(long position, long limit) throws IOException {
+            if (window == null) {
+                window = ByteBuffer.allocate(READ_WINDOW);
+            }
+            window.clear();
+            window.limit((int) Math.min(window.capacity(), limit - position));
+            readFully(position, window);
+            window.flip();
+            windowStart = position;
+        }
+    }
+
+    /**
+     * 读取并解码记录头所在的完整记录
+     * @throws IOException 读取失败或校验和不符
+     */
+    Message readMessage(Header header) throws IOException {
+        long position = header.position;
+        ByteBuffer map = mapped;
+        if (map != null) {
+            // 校验和直接在映射上计算，只有二进制帧的头和正文复制出来
+            ByteBuffer record = map.duplicate();
+            record.limit((int) position + header.length).position((int) position);
+            int length = record.getInt();
+            int expectedCrc = record.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(record.duplicate().limit(record.position() + length));
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IOException("消息日志记录校验失败: " + logPath.getFileName() + "@" + position);
+            }
+            record.position(record.position() + FIXED_BODY + header.conversation.length);
+            return decodeFrame(record);
+        }
+        ByteBuffer record = ByteBuffer.allocate(header.length);
+        readFully(position, record);
+        record.flip();
+        int length = record.getInt();
+        int expectedCrc = record.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_PREFIX, length);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("消息日志记录校验失败: " + logPath.getFileName() + "@" + position);
+        }
+        record.position(RECORD_PREFIX + FIXED_BODY + header.conversation.length);
+        return decodeFrame(record);
+    }
+
+    private static Message decodeFrame(ByteBuffer frame) throws IOException {
+        int frameLength = frame.getInt();
+        int type = frame.get();
+        int headerLength = frame.getInt();
+        FrameCodec.checkBinaryLengths(frameLength, headerLength);
+        byte[] header = new byte[headerLength];
+        frame.get(header);
+        byte[] body = new byte[frameLength - FrameCodec.BINARY_HEADER_PREFIX_LENGTH - headerLength];
+        frame.get(body);
+        return FrameCodec.decodeBinary(type, header, body);
+    }
+
+    /**
+     * 从头校验段中的记录，返回有效数据的长度（遇到不完整或校验失败的记录为止）
+     * @param visitor 对每条有效记录回调，可为null
+     */
+    static long recover(Path directory, long baseSeq, RecordVisitor visitor) throws IOException {
+        Path path = logPath(directory, baseSeq);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long position = 0;
+            ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX);
+            while (position + RECORD_PREFIX <= fileSize) {
+                prefix.clear();
+                readFully(channel, position, prefix);
+                int length = prefix.getInt(0);
+                if (length < FIXED_BODY || position + RECORD_PREFIX + length > fileSize) {
+                    break;
+                }
+                ByteBuffer body = ByteBuffer.allocate(length);
+                readFully(channel, position + RECORD_PREFIX, body);
+                CRC32 crc = new CRC32();
+                crc.update(body.array(), 0, length);
+                if ((int) crc.getValue() != prefix.getInt(4)) {
+                    break;
+                }
+                if (visitor != null) {
+                    body.flip();
+                    long seq = body.getLong();
+                    body.getLong();
+                    byte[] conversation = new byte[body.getShort() & 0xFFFF];
+                    body.get(conversation);
+                    visitor.visit(seq, position, conversation);
+                }
+                position += RECORD_PREFIX + length;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * 恢复时对每条有效记录的回调
+     */
+    interface RecordVisitor {
+        void visit(long seq, long position, byte[] conversation);
+    }
+
+    /**
+     * 读取段的索引文件（只保留指向有效数据范围内的项）
+     */
+    static void readIndex(Path directory, long baseSeq, long validSize, RecordVisitor visitor) throws IOException {
+        Path path = indexPath(directory, baseSeq);
+        if (!Files.exists(path)) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (buffer.remaining() >= 14) {
+            long seq = buffer.getLong();
+            int position = buffer.getInt();
+            int conversationLength = buffer.getShort() & 0xFFFF;
+            if (buffer.remaining() < conversationLength) {
+                break;
+            }
+            byte[] conversation = new byte[conversationLength];
+            buffer.get(conversation);
+            if (position < validSize) {
+                visitor.visit(seq, position, conversation);
+            }
+        }
+    }
+
+    /**
+     * 以重建的索引项覆盖索引文件（恢复最后一个段时使用）
+     */
+    void rewriteIndex(ByteBuffer[] entries, int count) throws IOException {
+        index.truncate(0);
+        index.position(0);
+        indexSize = writeFully(index, entries, count);
+        index.force(false);
+    }
+
+    private void readFully(long position, ByteBuffer buffer) throws IOException {
+        readFully(log, position, buffer);
+    }
+
+    private static void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("消息日志意外结束");
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * 刷盘并关闭
+     */
+    void close() throws IOException {
+        mapped = null;
+        try {
+            log.force(true);
+            index.force(true);
+        } finally {
+            log.close();
+            index.close();
+        }
+    }
+
+    /**
+     * 关闭并删除段文件（保留期清理）
+     */
+    void delete() throws IOException {
+        // 映射在没有读取器引用后由GC释放；正在进行的读取仍可读完（已删除文件的数据在释放映射前保留）
+        mapped = null;
+        log.close();
+        index.close();
+        Files.deleteIfExists(logPath);
+        Files.deleteIfExists(indexPath);
+    }
+
+    static String conversationString(byte[] conversation) {
+        return new String(conversation, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,786 @@
+package server;
+
+import common.Log;
+import common.Message;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 服务器消息日志
+ * 为每条路由的文字、图片、文件消息分配全局递增的序号（写入消息内容的 seq 字段），
+ * 并持久化到分段的只追加日志中，供离线消息和历史查询按会话读取。
+ *
+ * 路由线程只分配序号并把消息放入待写批次，不做任何磁盘操作；
+ * 单独的写线程每次取走积累的整批记录，聚集写出后只刷盘一次（组提交），
+ * 负载越高每次刷盘覆盖的消息越多。待写消息超过上限时路由线程才等待写线程。
+ * 段写满后滚动到以下一个序号命名的新段，超过保留大小或保留时间的旧段整段删除。
+ * 每个段带有稀疏的会话索引，按会话读取时从最近的索引项开始扫描，并跳过不含该会话的段。
+ *
+ * 系统属性：
+ * chat.store.enabled 是否启用，默认true；
+ * chat.store.dir 日志目录，默认为工作目录下的 ServerData/messages；
+ * chat.store.segmentMB 单个段的大小上限，默认128MB；
+ * chat.store.retentionMB 所有段的总大小上限，默认10240MB；
+ * chat.store.retentionHours 段的保留时间，默认168小时，0表示不按时间清理；
+ * chat.store.fsync 每批写入后是否刷盘，默认true；
+ * chat.store.indexInterval 同一会话在段内每隔多少条记录写一条索引项，默认32；
+ * chat.store.maxPending 待写消息数上限，默认65536。
+ */
+public class MessageLog {
+    private static final Log LOG = Log.get("store", "消息存储");
+    private static final String CLEAN_MARKER = ".clean";
+    private static final long RETENTION_CHECK_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long WRITE_RETRY_MIN_MILLIS = 100;
+    private static final long WRITE_RETRY_MAX_MILLIS = 5000;
+
+    private final Path directory;
+    private final boolean enabled;
+    private final long segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final boolean fsync;
+    private final int indexInterval;
+    private final int maxPending;
+
+    private final ConcurrentSkipListMap<Long, LogSegment> segments;
+    private final Map<String, ConversationIndex> conversations;
+    private LogSegment active;                  // 打开后只由写线程访问
+    private long lastRetentionCheck;            // 只由写线程访问
+    private long lastRecoveredSeq;              // 只在打开时使用
+
+    // 以下字段由 this 保护
+    private List<PendingRecord> pending;
+    private long lastSeq;
+    private boolean open;
+    private long stalls;
+    private int lostOnClose;                    // 关闭时仍未能写入的记录数
+    private Thread writer;
+
+    private volatile long committedSeq;
+
+    public MessageLog(Path directory, boolean enabled, long segmentBytes, long retentionBytes,
+                      long retentionMillis, boolean fsync, int indexInterval, int maxPending) {
+        this.directory = directory;
+        this.enabled = enabled;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.fsync = fsync;
+        this.indexInterval = indexInterval;
+        this.maxPending = maxPending;
+        this.segments = new ConcurrentSkipListMap<>();
+        this.conversations = new ConcurrentHashMap<>();
+        this.pending = new ArrayList<>();
+    }
+
+    /**
+     * 从系统属性创建消息日志
+     */
+    public static MessageLog fromSystemProperties() {
+        String dir = System.getProperty("chat.store.dir");
+        Path directory = dir != null ? Paths.get(dir) : Paths.get("ServerData", "messages");
+        long segmentMB = Math.max(1, Long.getLong("chat.store.segmentMB", 128));
+        return new MessageLog(directory,
+                Boolean.parseBoolean(System.getProperty("chat.store.enabled", "true")),
+                Math.min(segmentMB * 1024 * 1024, Integer.MAX_VALUE),
+                Math.max(1, Long.getLong("chat.store.retentionMB", 10240)) * 1024 * 1024,
+                TimeUnit.HOURS.toMillis(Math.max(0, Long.getLong("chat.store.retentionHours", 168))),
+                Boolean.parseBoolean(System.getProperty("chat.store.fsync", "true")),
+                Math.max(1, Integer.getInteger("chat.store.indexInterval", 32)),
+                Math.max(1, Integer.getInteger("chat.store.maxPending", 65536)));
+    }
+
+    /**
+     * 一对一会话的键（与双方的先后顺序无关）
+     */
+    public static String userConversation(String user1, String user2) {
+        return user1.compareTo(user2) <= 0
+                ? "u\n" + user1 + "\n" + user2
+                : "u\n" + user2 + "\n" + user1;
+    }
+
+    /**
+     * 群组会话的键
+     */
+    public static String groupConversation(String groupId) {
+        return "g\n" + groupId;
+    }
+
+    /**
+     * 全员广播会话的键
+     */
+    public static String broadcastConversation() {
+        return "all";
+    }
+
+    /**
+     * 消息所属会话的键
+     */
+    public static String conversationOf(Message message) {
+        switch (message.getTargetType()) {
+            case USER:
+                return userConversation(message.getSender(), message.getTarget());
+            case GROUP:
+                return groupConversation(message.getTarget());
+            default:
+                return broadcastConversation();
+        }
+    }
+
+    /**
+     * 打开日志目录：加载已有段的索引，校验最后一个段并截断崩溃时写了一半的记录，然后启动写线程
+     */
+    public void open() throws IOException {
+        if (!enabled) {
+            LOG.info("消息日志未启用");
+            return;
+        }
+        Files.createDirectories(directory);
+        Path marker = directory.resolve(CLEAN_MARKER);
+        boolean clean = Files.deleteIfExists(marker);
+
+        List<Long> bases = listSegments();
+        long recoveredSeq = 0;
+        for (int i = 0; i < bases.size(); i++) {
+            long base = bases.get(i);
+            boolean last = i == bases.size() - 1;
+            LogSegment segment = last ? recoverActive(base) : openSealed(base);
+            segments.put(base, segment);
+            recoveredSeq = Math.max(recoveredSeq, base - 1);
+        }
+        recoveredSeq = Math.max(recoveredSeq, lastRecoveredSeq);
+        if (!clean && !bases.isEmpty()) {
+            // 上次未正常关闭：已分配序号但未落盘的消息可能已推送给在线用户，跳过这段序号避免重用
+            recoveredSeq += 2L * maxPending;
+        }
+        if (bases.isEmpty()) {
+            segments.put(1L, LogSegment.open(directory, 1, 0));
+        }
+        active = segments.lastEntry().getValue();
+
+        synchronized (this) {
+            lastSeq = recoveredSeq;
+            committedSeq = recoveredSeq;
+            open = true;
+        }
+        enforceRetention();
+        writer = new Thread(this::runWriter, "message-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        LOG.info("消息日志已打开", "dir", directory.toAbsolutePath(), "segments", segments.size(),
+                 "conversations", conversations.size(), "lastSeq", recoveredSeq, "clean", clean);
+    }
+
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LogSegment.LOG_SUFFIX)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - LogSegment.LOG_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("忽略无法识别的日志文件", "file", name);
+                }
+            }
+        }
+        Collections.sort(bases);
+        return bases;
+    }
+
+    /**
+     * 打开已封存的段：段在滚动时已刷盘，直接加载其索引文件
+     */
+    private LogSegment openSealed(long base) throws IOException {
+        long size = Files.size(LogSegment.logPath(directory, base));
+        LogSegment.readIndex(directory, base, size, (seq, position, conversation) ->
+                conversations.computeIfAbsent(LogSegment.conversationString(conversation), k -> new ConversationIndex())
+                        .add(seq, base, (int) position));
+        LogSegment segment = LogSegment.open(directory, base, size);
+        segment.map();
+        return segment;
+    }
+
+    /**
+     * 恢复最后一个（活动）段：逐条校验记录，截断不完整的尾部，并按记录重建该段的索引
+     */
+    private LogSegment recoverActive(long base) throws IOException {
+        List<ByteBuffer> entries = new ArrayList<>();
+        long fileSize = Files.size(LogSegment.logPath(directory, base));
+        long validSize = LogSegment.recover(directory, base, (seq, position, conversation) -> {
+            ConversationIndex index = conversations.computeIfAbsent(
+                    LogSegment.conversationString(conversation), k -> new ConversationIndex());
+            if (index.shouldIndex(base, indexInterval)) {
+                index.add(seq, base, (int) position);
+                entries.add(LogSegment.encodeIndexEntry(seq, (int) position, conversation));
+            }
+            lastRecoveredSeq = Math.max(lastRecoveredSeq, seq);
+        });
+        if (validSize < fileSize) {
+            LOG.warn("截断消息日志不完整的尾部", "segment", base, "validBytes", validSize,
+                     "droppedBytes", fileSize - validSize);
+        }
+        LogSegment segment = LogSegment.open(directory, base, validSize);
+        segment.rewriteIndex(entries.toArray(new ByteBuffer[0]), entries.size());
+        return segment;
+    }
+
+    /**
+     * 追加一条消息：分配序号并写入消息内容，记录随后由写线程批量写入磁盘
+     * 须在消息帧编码之前调用，使接收者收到的消息带有序号
+     * @param frame 消息的共享帧，写线程复用其二进制编码
+     * @return 分配的序号，日志未打开时返回-1
+     */
+    public long append(Message message, OutboundFrame frame, String conversation) {
+        synchronized (this) {
+            if (open && pending.size() >= maxPending) {
+                if (stalls++ % 1000 == 0) {
+                    LOG.warn("消息日志写入积压，路由线程等待", "pending", pending.size(), "stalls", stalls);
+                }
+                while (open && pending.size() >= maxPending) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return -1;
+                    }
+                }
+            }
+            if (!open) {
+                return -1;
+            }
+            long seq = ++lastSeq;
+            message.setSeq(seq);
+            pending.add(new PendingRecord(seq, System.currentTimeMillis(), conversation, frame));
+            if (pending.size() == 1) {
+                notifyAll();
+            }
+            return seq;
+        }
+    }
+
+    /**
+     * 已分配的最大序号
+     */
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * 已写入（并按配置刷盘）、可被读取的最大序号
+     */
+    public long getCommittedSeq() {
+        return committedSeq;
+    }
+
+    /**
+     * 按序号升序读取会话中序号大于 afterSeq 的消息（只包含已提交的记录）
+     * @param limit 最多返回的条数
+     */
+    public List<Message> read(String conversation, long afterSeq, int limit) throws IOException {
+        return read(conversation, afterSeq, Long.MAX_VALUE, limit, Long.MAX_VALUE);
+    }
+
+    /**
+     * 按序号升序读取会话中序号在 (afterSeq, untilSeq] 内的消息（只包含已提交的记录）
+     * @param limit 最多返回的条数
+     * @param maxBytes 返回的记录累计达到该字节数后停止（至少返回一条）
+     */
+    public List<Message> read(String conversation, long afterSeq, long untilSeq, int limit, long maxBytes)
+            throws IOException {
+        List<Message> result = new ArrayList<>();
+        ConversationIndex index = conversations.get(conversation);
+        if (index == null || limit <= 0) {
+            return result;
+        }
+        byte[] key = conversation.getBytes(StandardCharsets.UTF_8);
+        long[] entry = index.locate(afterSeq + 1);
+        long bytes = 0;
+        while (entry != null && entry[0] <= untilSeq && result.size() < limit && bytes < maxBytes) {
+            LogSegment segment = segments.get(entry[0]);
+            if (segment != null) {
+                try {
+                    bytes += scan(segment, entry[1], key, afterSeq, untilSeq, limit, maxBytes - bytes, result);
+                } catch (ClosedChannelException e) {
+                    // 段在读取过程中被保留期清理删除，继续读取后面的段
+                }
+            }
+            entry = index.nextSegment(entry[0]);
+        }
+        return result;
+    }
+
+    /**
+     * 从段内 position 开始顺序扫描，收集属于会话的记录
+     * @return 收集到的记录的字节数
+     */
+    private static long scan(LogSegment segment, long position, byte[] key, long afterSeq, long untilSeq,
+                             int limit, long maxBytes, List<Message> result) throws IOException {
+        LogSegment.Reader reader = segment.new Reader();
+        LogSegment.Header header;
+        long bytes = 0;
+        while (result.size() < limit && bytes < maxBytes && (header = reader.readHeader(position)) != null) {
+            if (header.seq > untilSeq) {
+                break;
+            }
+            if (header.seq > afterSeq && header.isConversation(key)) {
+                result.add(segment.readMessage(header));
+                bytes += header.length;
+            }
+            position += header.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * 按序号从新到旧读取会话中序号小于 beforeSeq 的消息（只包含已提交的记录）
+     * 从序号小于边界的最后一个索引项开始，只扫描到边界为止的记录头，再从后往前解码所需的记录；
+     * 一页不够时以该索引项为新边界继续向前，每次只扫描相邻两个索引项之间的一小段。
+     * @param limit 最多返回的条数
+     * @param maxBytes 返回的记录累计达到该字节数后停止（至少返回一条）
+     */
+    public List<Message> readBefore(String conversation, long beforeSeq, int limit, long maxBytes)
+            throws IOException {
+        List<Message> result = new ArrayList<>();
+        ConversationIndex index = conversations.get(conversation);
+        if (index == null || limit <= 0) {
+            return result;
+        }
+        byte[] key = conversation.getBytes(StandardCharsets.UTF_8);
+        List<LogSegment.Header> chunk = new ArrayList<>();
+        long bound = beforeSeq;
+        long bytes = 0;
+        while (result.size() < limit && bytes < maxBytes) {
+            long[] entry = index.before(bound);
+            if (entry == null) {
+                break;
+            }
+            LogSegment segment = segments.get(entry[1]);
+            if (segment != null) {
+                chunk.clear();
+                try {
+                    LogSegment.Reader reader = segment.new Reader();
+                    long position = entry[2];
+                    LogSegment.Header header;
+                    while ((header = reader.readHeader(position)) != null && header.seq < bound) {
+                        if (header.isConversation(key)) {
+                            chunk.add(header);
+                        }
+                        position += header.length;
+                    }
+                    for (int i = chunk.size() - 1; i >= 0 && result.size() < limit && bytes < maxBytes; i--) {
+                        result.add(segment.readMessage(chunk.get(i)));
+                        bytes += chunk.get(i).length;
+                    }
+                } catch (ClosedChannelException e) {
+                    // 段已被保留期清理删除，更早的段同样已删除
+                    break;
+                }
+            }
+            bound = entry[0];
+        }
+        return result;
+    }
+
+    /**
+     * 会话中是否有序号小于 seq 的消息
+     * 每个会话在每个段内的第一条记录都有索引项，所以只需查索引
+     */
+    public boolean hasBefore(String conversation, long seq) {
+        ConversationIndex index = conversations.get(conversation);
+        return index != null && index.before(seq) != null;
+    }
+
+    /**
+     * 写线程：取走整批待写记录，写出并刷盘一次
+     */
+    private void runWriter() {
+        List<PendingRecord> batch = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                if (pending.isEmpty() && open) {
+                    try {
+                        // 空闲时定期醒来检查保留期
+                        wait(RETENTION_CHECK_MILLIS);
+                    } catch (InterruptedException e) {
+                        // 关闭时通过 open 标志退出
+                    }
+                }
+                if (pending.isEmpty() && !open) {
+                    return;
+                }
+                List<PendingRecord> taken = pending;
+                pending = batch;
+                batch = taken;
+                notifyAll();
+            }
+            if (!batch.isEmpty()) {
+                writeWithRetry(batch);
+                batch.clear();
+            }
+            if (System.currentTimeMillis() - lastRetentionCheck >= RETENTION_CHECK_MILLIS) {
+                enforceRetention();
+            }
+        }
+    }
+
+    /**
+     * 写出一批记录，失败时只重试尚未提交的部分，直到成功或日志关闭
+     * committedSeq 只随真正写入（并刷盘）的记录前进，等待这些序号的读取方（如离线投递）在此期间继续等待
+     */
+    private void writeWithRetry(List<PendingRecord> batch) {
+        List<PendingRecord> remaining = batch;
+        long delay = WRITE_RETRY_MIN_MILLIS;
+        while (true) {
+            try {
+                writeBatch(remaining);
+                return;
+            } catch (IOException | RuntimeException e) {
+                remaining = uncommitted(remaining);
+                // 未写入的记录所属会话要在重试时重新写段内首条索引项
+                for (PendingRecord record : remaining) {
+                    ConversationIndex index = conversations.get(record.conversation);
+                    if (index != null) {
+                        index.forgetSegment();
+                    }
+                }
+                synchronized (this) {
+                    if (!open) {
+                        lostOnClose = remaining.size();
+                        LOG.error("消息日志关闭时仍无法写入，消息丢失", "messages", remaining.size(),
+                                  "firstSeq", remaining.get(0).seq, "error", e.getMessage());
+                        return;
+                    }
+                    LOG.error("写入消息日志失败，稍后重试", "messages", remaining.size(),
+                              "firstSeq", remaining.get(0).seq, "retryMillis", delay, "error", e.getMessage());
+                    try {
+                        wait(delay);
+                    } catch (InterruptedException ie) {
+                        // 关闭时通过 open 标志退出
+                    }
+                }
+                delay = Math.min(delay * 2, WRITE_RETRY_MAX_MILLIS);
+            }
+        }
+    }
+
+    private List<PendingRecord> uncommitted(List<PendingRecord> records) {
+        int first = 0;
+        while (first < records.size() && records.get(first).seq <= committedSeq) {
+            first++;
+        }
+        return records.subList(first, records.size());
+    }
+
+    private void writeBatch(List<PendingRecord> batch) throws IOException {
+        ByteBuffer[] records = new ByteBuffer[batch.size() * 2];
+        List<ByteBuffer> indexEntries = new ArrayList<>();
+        List<IndexEntry> published = new ArrayList<>();
+        int count = 0;
+        long batchBytes = 0;
+        long lastSeq = committedSeq;
+        for (PendingRecord record : batch) {
+            byte[] conversation = record.conversation.getBytes(StandardCharsets.UTF_8);
+            byte[] frame = record.frame.binaryFrame();
+            ByteBuffer header = LogSegment.encodeHeader(record.seq, record.timestamp, conversation, frame);
+            long recordBytes = header.remaining() + frame.length;
+            if (active.getSize() + batchBytes > 0 && active.getSize() + batchBytes + recordBytes > segmentBytes) {
+                commit(records, count, indexEntries, published, lastSeq);
+                count = 0;
+                batchBytes = 0;
+                roll(record.seq);
+            }
+            long position = active.getSize() + batchBytes;
+            ConversationIndex index = conversations.computeIfAbsent(record.conversation, k -> new ConversationIndex());
+            if (index.shouldIndex(active.getBaseSeq(), indexInterval)) {
+                indexEntries.add(LogSegment.encodeIndexEntry(record.seq, (int) position, conversation));
+                published.add(new IndexEntry(index, record.seq, (int) position));
+            }
+            records[count++] = header;
+            records[count++] = ByteBuffer.wrap(frame);
+            batchBytes += recordBytes;
+            lastSeq = record.seq;
+        }
+        commit(records, count, indexEntries, published, lastSeq);
+    }
+
+    /**
+     * 写出记录和索引项，刷盘后再发布内存索引和 committedSeq，保证读取者只看到已落盘的记录
+     */
+    private void commit(ByteBuffer[] records, int count, List<ByteBuffer> indexEntries, List<IndexEntry> published,
+                        long lastSeq) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        active.append(records, count, indexEntries.toArray(new ByteBuffer[0]), indexEntries.size(), fsync);
+        for (IndexEntry entry : published) {
+            entry.index.add(entry.seq, active.getBaseSeq(), entry.position);
+        }
+        indexEntries.clear();
+        published.clear();
+        committedSeq = lastSeq;
+    }
+
+    /**
+     * 封存活动段并以指定序号开始新段
+     */
+    private void roll(long baseSeq) throws IOException {
+        active.seal();
+        LogSegment next = LogSegment.open(directory, baseSeq, 0);
+        segments.put(baseSeq, next);
+        LOG.info("消息日志滚动到新段", "segment", baseSeq, "previousBytes", active.getSize());
+        active = next;
+        enforceRetention();
+    }
+
+    /**
+     * 删除超过保留大小或保留时间的最旧段（活动段除外）
+     */
+    private void enforceRetention() {
+        lastRetentionCheck = System.currentTimeMillis();
+        long total = 0;
+        for (LogSegment segment : segments.values()) {
+            total += segment.getSize();
+        }
+        while (segments.size() > 1) {
+            Map.Entry<Long, LogSegment> oldest = segments.firstEntry();
+            LogSegment segment = oldest.getValue();
+            boolean expired;
+            try {
+                expired = retentionMillis > 0 && segment.getLastModified() < lastRetentionCheck - retentionMillis;
+            } catch (IOException e) {
+                expired = false;
+            }
+            if (total <= retentionBytes && !expired) {
+                break;
+            }
+            segments.remove(oldest.getKey());
+            total -= segment.getSize();
+            Iterator<ConversationIndex> indexes = conversations.values().iterator();
+            while (indexes.hasNext()) {
+                if (indexes.next().dropSegment(oldest.getKey())) {
+                    indexes.remove();
+                }
+            }
+            try {
+                segment.delete();
+                LOG.info("删除超出保留期的消息日志段", "segment", oldest.getKey(), "bytes", segment.getSize(),
+                         "expired", expired);
+            } catch (IOException e) {
+                LOG.warn("删除消息日志段失败", "segment", oldest.getKey(), "error", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 停止接收新消息，等待写线程写完剩余记录后关闭所有段
+     */
+    public void close() {
+        Thread writerThread;
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            notifyAll();
+            writerThread = writer;
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 有记录未能写入时不写关闭标记，下次打开按崩溃恢复处理，跳过可能已分配出去的序号
+        boolean clean;
+        synchronized (this) {
+            clean = lostOnClose == 0;
+        }
+        for (LogSegment segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                clean = false;
+                LOG.warn("关闭消息日志段失败", "segment", segment.getBaseSeq(), "error", e.getMessage());
+            }
+        }
+        if (clean) {
+            try {
+                Files.createFile(directory.resolve(CLEAN_MARKER));
+            } catch (IOException e) {
+                LOG.warn("写入消息日志关闭标记失败", "error", e.getMessage());
+            }
+        }
+        LOG.info("消息日志已关闭", "lastSeq", committedSeq);
+    }
+
+    /**
+     * 等待写入的记录
+     */
+    private static final class PendingRecord {
+        final long seq;
+        final long timestamp;
+        final String conversation;
+        final OutboundFrame frame;
+
+        PendingRecord(long seq, long timestamp, String conversation, OutboundFrame frame) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.conversation = conversation;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * 已写入活动段、待刷盘后发布到内存的索引项
+     */
+    private static final class IndexEntry {
+        final ConversationIndex index;
+        final long seq;
+        final int position;
+
+        IndexEntry(ConversationIndex index, long seq, int position) {
+            this.index = index;
+            this.seq = seq;
+            this.position = position;
+        }
+    }
+
+    /**
+     * 单个会话跨所有段的稀疏索引，索引项按序号升序排列
+     * 写线程追加、读取线程查找，均在对象锁内进行；shouldIndex 的状态只由写线程（或打开时的恢复）访问
+     */
+    static final class ConversationIndex {
+        private long[] seqs = new long[4];
+        private long[] segmentBases = new long[4];
+        private int[] positions = new int[4];
+        private int size;
+        private long indexedSegment = -1;
+        private int sinceIndexed;
+
+        /**
+         * 当前记录是否需要写索引项：会话在段内的第一条记录，以及之后每隔 interval 条
+         */
+        boolean shouldIndex(long segmentBase, int interval) {
+            if (segmentBase == indexedSegment && ++sinceIndexed < interval) {
+                return false;
+            }
+            indexedSegment = segmentBase;
+            sinceIndexed = 0;
+            return true;
+        }
+
+        /**
+         * 写入失败后调用：下一条记录重新作为段内首条记录写索引项（多出的索引项无害）
+         */
+        void forgetSegment() {
+            indexedSegment = -1;
+        }
+
+        synchronized void add(long seq, long segmentBase, int position) {
+            if (size == seqs.length) {
+                int capacity = size * 2;
+                seqs = Arrays.copyOf(seqs, capacity);
+                segmentBases = Arrays.copyOf(segmentBases, capacity);
+                positions = Arrays.copyOf(positions, capacity);
+            }
+            seqs[size] = seq;
+            segmentBases[size] = segmentBase;
+            positions[size] = position;
+            size++;
+        }
+
+        /**
+         * 查找开始扫描的位置：序号不大于 seq 的最后一个索引项，没有时取第一个索引项
+         * @return {段起始序号, 段内位置}，会话没有索引项时返回null
+         */
+        synchronized long[] locate(long seq) {
+            if (size == 0) {
+                return null;
+            }
+            int low = 0;
+            int high = size - 1;
+            int found = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (seqs[mid] <= seq) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return new long[] {segmentBases[found], positions[found]};
+        }
+
+        /**
+         * 序号小于 seq 的最后一个索引项
+         * @return {序号, 段起始序号, 段内位置}，没有时返回null
+         */
+        synchronized long[] before(long seq) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (seqs[mid] < seq) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low > 0 ? new long[] {seqs[low - 1], segmentBases[low - 1], positions[low - 1]} : null;
+        }
+
+        /**
+         * 会话在指定段之后的下一个段中的第一个索引项
+         */
+        synchronized long[] nextSegment(long segmentBase) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (segmentBases[mid] <= segmentBase) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low < size ? new long[] {segmentBases[low], positions[low]} : null;
+        }
+
+        /**
+         * 删除属于指定段（最旧段）的索引项
+         * @return 会话已没有任何索引项
+         */
+        synchronized boolean dropSegment(long segmentBase) {
+            int drop = 0;
+            while (drop < size && segmentBases[drop] <= segmentBase) {
+                drop++;
+            }
+            if (drop > 0) {
+                System.arraycopy(seqs, drop, seqs, 0, size - drop);
+                System.arraycopy(segmentBases, drop, segmentBases, 0, size - drop);
+                System.arraycopy(positions, drop, positions, 0, size - drop);
+                size -= drop;
+            }
+            return size == 0;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package server;
 
 import common.*;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -8,96 +9,209 @@ import java.util.List;
  * 负责根据消息目标类型将消息路由到正确的接收者
  */
 public class MessageRouter {
+    private static final Log LOG = Log.get("router", "消息路由");
     private final ClientManager clientManager;
     private final GroupManager groupManager;
+    private final ServerMetrics metrics;
+    private final MessageLog messageLog;
+    private final OfflineInbox offlineInbox;
     
-    public MessageRouter(ClientManager clientManager, GroupManager groupManager) {
+    public MessageRouter(ClientManager clientManager, GroupManager groupManager, ServerMetrics metrics,
+                         MessageLog messageLog, OfflineInbox offlineInbox) {
         this.clientManager = clientManager;
         this.groupManager = groupManager;
+        this.metrics = metrics;
+        this.messageLog = messageLog;
+        this.offlineInbox = offlineInbox;
     }
     
     /**
-     * 路由消息到目标
+     * 路由消息到目标，文字、图片、文件消息在通过校验后先写入消息日志并获得序号
      */
     public void routeMessage(Message message) {
+        routeMessage(message, null);
+    }
+    
+    /**
+     * 路由已编码的消息帧到目标
+     * @param message 用于确定目标和发送者的消息
+     * @param frame 实际发给接收者的帧（如帧体位于暂存文件中的文件分片帧，不写入消息日志）；
+     *              为null时由消息编码
+     */
+    public void routeMessage(Message message, OutboundFrame frame) {
         if (message.getTargetType() == null) {
-            System.err.println("[消息路由] 消息缺少目标类型");
+            LOG.warn("消息缺少目标类型", "type", message.getType(), "sender", message.getSender());
             return;
         }
         
+        long start = System.nanoTime();
+        int recipients;
         switch (message.getTargetType()) {
             case USER:
-                routeToUser(message);
+                recipients = routeToUser(message, frame);
                 break;
             case GROUP:
-                routeToGroup(message);
+                recipients = routeToGroup(message, frame);
                 break;
             case ALL:
-                routeToAll(message);
+                recipients = routeToAll(message, frame);
                 break;
             default:
-                System.err.println("[消息路由] 未知的目标类型: " + message.getTargetType());
+                LOG.warn("未知的目标类型", "targetType", message.getTargetType(), "sender", message.getSender());
+                return;
         }
+        metrics.recordRoute(System.nanoTime() - start, recipients);
+    }
+    
+    /**
+     * 获取消息会送达的在线接收者（不含发送者），发送者无权发往该目标时返回空列表
+     */
+    public List<String> getRecipients(Message message) {
+        List<String> recipients = new ArrayList<>();
+        String target = message.getTarget();
+        String sender = message.getSender();
+        if (message.getTargetType() == null) {
+            return recipients;
+        }
+        switch (message.getTargetType()) {
+            case USER:
+                if (target != null && !target.equals(sender) && clientManager.isUserOnline(target)) {
+                    recipients.add(target);
+                }
+                break;
+            case GROUP:
+                if (target != null && groupManager.isGroupMember(target, sender)) {
+                    for (String member : groupManager.getGroupMembers(target)) {
+                        if (!member.equals(sender) && clientManager.isUserOnline(member)) {
+                            recipients.add(member);
+                        }
+                    }
+                }
+                break;
+            case ALL:
+                for (String username : clientManager.getOnlineUsernames()) {
+                    if (!username.equals(sender)) {
+                        recipients.add(username);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        return recipients;
     }
     
     /**
      * 路由消息到单个用户（一对一通信）
+     * @return 送达的接收者数
      */
-    private void routeToUser(Message message) {
+    private int routeToUser(Message message, OutboundFrame frame) {
         String target = message.getTarget();
         if (target == null || target.isEmpty()) {
             sendErrorToSender(message.getSender(), "目标用户不能为空");
-            return;
+            return 0;
         }
         
-        // 发送给目标用户
-        boolean sent = clientManager.sendToUser(target, message);
-        if (!sent) {
+        frame = persist(message, frame);
+        
+        // 发送给目标用户，不在线时记入其离线收件箱，登录后投递
+        boolean sent = clientManager.sendToUser(target, frame);
+        if (!sent && !offlineInbox.add(target, message, MessageLog.conversationOf(message))) {
             sendErrorToSender(message.getSender(), "用户 " + target + " 不在线");
         }
         
         // 同时也发送给发送者自己（用于显示在聊天窗口）
         // 注：发送者的本地UI通常会直接显示自己发送的消息，这里可选
         
-        System.out.println("[消息路由] 消息从 " + message.getSender() + " 发送到 " + target);
+        if (LOG.sampled()) {
+            LOG.info("消息发送到用户", "type", message.getType(), "sender", message.getSender(),
+                     "target", target, "delivered", sent, "bytes", message.getBinaryLength());
+        }
+        return sent ? 1 : 0;
     }
     
     /**
      * 路由消息到群组（群组通信）
+     * @return 送达的接收者数
      */
-    private void routeToGroup(Message message) {
+    private int routeToGroup(Message message, OutboundFrame frame) {
         String groupId = message.getTarget();
         if (groupId == null || groupId.isEmpty()) {
             sendErrorToSender(message.getSender(), "群组ID不能为空");
-            return;
+            return 0;
         }
         
         // 检查发送者是否是群组成员
         if (!groupManager.isGroupMember(groupId, message.getSender())) {
             sendErrorToSender(message.getSender(), "您不是该群组的成员");
-            return;
+            return 0;
         }
         
-        // 获取群组成员并发送消息
+        frame = persist(message, frame);
+        
+        // 获取群组成员并发送消息（消息只编码一次，所有成员共享同一帧）
         List<String> members = groupManager.getGroupMembers(groupId);
+        int delivered = 0;
+        String conversation = null;
         for (String member : members) {
             // 不发送给发送者自己（避免重复显示）
             // 如果需要发送者也收到，可以去掉这个判断
-            if (!member.equals(message.getSender())) {
-                clientManager.sendToUser(member, message);
+            if (member.equals(message.getSender())) {
+                continue;
+            }
+            if (clientManager.sendToUser(member, frame)) {
+                delivered++;
+            } else {
+                // 不在线的成员记入离线收件箱
+                if (conversation == null) {
+                    conversation = MessageLog.groupConversation(groupId);
+                }
+                offlineInbox.add(member, message, conversation);
             }
         }
         
-        System.out.println("[消息路由] 群组消息从 " + message.getSender() + 
-                          " 发送到群组 " + groupId + " (" + members.size() + " 成员)");
+        if (LOG.sampled()) {
+            LOG.info("消息发送到群组", "type", message.getType(), "sender", message.getSender(),
+                     "target", groupId, "members", members.size(), "bytes", message.getBinaryLength());
+        }
+        return delivered;
     }
     
     /**
      * 广播消息给所有用户
+     * @return 送达的接收者数
      */
-    private void routeToAll(Message message) {
-        clientManager.broadcastExcept(message, message.getSender());
-        System.out.println("[消息路由] 广播消息从 " + message.getSender());
+    private int routeToAll(Message message, OutboundFrame frame) {
+        frame = persist(message, frame);
+        int delivered = clientManager.broadcastExcept(frame, message.getSender());
+        if (LOG.sampled()) {
+            LOG.info("广播消息", "type", message.getType(), "sender", message.getSender(),
+                     "bytes", message.getBinaryLength());
+        }
+        return delivered;
+    }
+    
+    /**
+     * 为尚未编码的消息创建共享帧；文字、图片、文件消息先追加到消息日志，
+     * 序号在编码前写入消息，接收者收到的消息即带有序号
+     */
+    private OutboundFrame persist(Message message, OutboundFrame frame) {
+        if (frame != null) {
+            return frame;
+        }
+        frame = OutboundFrame.of(message);
+        switch (message.getType()) {
+            case TEXT:
+            case IMAGE:
+            case FILE:
+                // 序号只能由服务器分配，日志未启用时也不转发客户端自带的序号
+                message.clearSeq();
+                messageLog.append(message, frame, MessageLog.conversationOf(message));
+                break;
+            default:
+                break;
+        }
+        return frame;
     }
     
     /**
@@ -0,0 +1,153 @@
+package server;
+
+import com.google.gson.JsonParseException;
+import common.FrameCodec;
+import common.Log;
+import common.Message;
+import common.WireFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NIO模式下的单个客户端连接
+ * 负责增量解码入站数据，并由事件循环写出处理器出站队列中的数据
+ */
+public class NioConnection {
+    private static final Log LOG = Log.get("nio", "事件循环");
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final NioEventLoop eventLoop;
+    private final LineFrameDecoder lineDecoder;
+    private BinaryFrameDecoder binaryDecoder;   // 协商为二进制帧后创建
+    private final AtomicBoolean flushScheduled;
+    private ClientHandler handler;
+    
+    // 以下字段仅由事件循环线程访问
+    boolean flushQueued;        // 已登记等待本轮或推迟写出
+    long flushDeadline;         // 推迟写出的到期时间
+    long lastFlushNanos;        // 上次写出的时间
+
+    public NioConnection(SocketChannel channel, SelectionKey key, NioEventLoop eventLoop) {
+        this.channel = channel;
+        this.key = key;
+        this.eventLoop = eventLoop;
+        this.lineDecoder = new LineFrameDecoder(FrameCodec.MAX_FRAME_LENGTH);
+        this.flushScheduled = new AtomicBoolean(false);
+        // 新连接视为很久以前写出过，首次写出不等待
+        this.lastFlushNanos = System.nanoTime() - TimeUnit.HOURS.toNanos(1);
+    }
+
+    /**
+     * 处理读到的数据（事件循环线程调用）
+     */
+    void onRead(ByteBuffer buffer) throws IOException {
+        handler.recordBytesIn(buffer.remaining());
+        // 逐帧解码：登录帧处理完后处理器可能已切换为二进制帧，剩余字节按新格式解析
+        while (buffer.hasRemaining() && handler.isConnected()) {
+            if (handler.getInboundFormat() == WireFormat.BINARY) {
+                if (binaryDecoder == null) {
+                    binaryDecoder = new BinaryFrameDecoder();
+                }
+                Message message;
+                try {
+                    message = binaryDecoder.next(buffer);
+                } catch (JsonParseException e) {
+                    handler.onMalformedFrame(e);
+                    continue;
+                }
+                if (message == null) {
+                    return;
+                }
+                handler.onMessage(message);
+            } else {
+                Message message;
+                try {
+                    message = lineDecoder.next(buffer);
+                } catch (JsonParseException e) {
+                    handler.onMalformedFrame(e);
+                    continue;
+                }
+                if (message == null) {
+                    return;
+                }
+                handler.onMessage(message);
+            }
+        }
+    }
+
+    /**
+     * 请求写出出站队列（可在任意线程调用）
+     * 实际写出总在事件循环线程中批量进行，同一批的多次请求合并为一次写出
+     */
+    public void requestFlush() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        if (eventLoop.inEventLoop()) {
+            eventLoop.markFlush(this);
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(() -> {
+                flushScheduled.set(false);
+                eventLoop.markFlush(this);
+            });
+        }
+    }
+
+    /**
+     * 尽可能多地写出待写数据（连续的普通帧聚集为一次写），写不完时关注OP_WRITE等待下次可写
+     */
+    void flush() throws IOException {
+        if (!handler.getOutboundQueue().writeTo(channel, eventLoop.gatherBuffers())) {
+            // 发送缓冲区已满
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return;
+        }
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    void flushSafely(long now) {
+        lastFlushNanos = now;
+        try {
+            if (key.isValid()) {
+                flush();
+            }
+        } catch (IOException e) {
+            LOG.warn("写出数据出错", "user", handler.getUsername(), "error", e.getMessage());
+            handler.disconnect();
+        }
+    }
+
+    /**
+     * 关闭连接
+     */
+    public void close() {
+        key.cancel();
+        NioEventLoop.closeQuietly(channel);
+    }
+
+    public String getRemoteAddress() {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public ClientHandler getHandler() {
+        return handler;
+    }
+
+    void setHandler(ClientHandler handler) {
+        this.handler = handler;
+    }
+}
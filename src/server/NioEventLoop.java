@@ -0,0 +1,269 @@
+package server;
+
+import common.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * NIO事件循环
+ * 每个事件循环独占一个线程和一个Selector，负责其名下所有连接的读写。
+ * 同一循环内的连接共享一个读缓冲区，连接本身只保存半帧数据和待写数据。
+ *
+ * 写出合并：请求写出的连接只记录下来，在执行完任务队列后、处理完本轮读事件后
+ * 每个连接做一次聚集写，同一批产生的多帧（如一批上下线通知）合并为一次系统调用；
+ * 积压帧数已够一次聚集写时立即写出。
+ * 配置了最大等待时间时，距上次写出不足该时间的繁忙连接推迟到期满再写，空闲连接不受影响。
+ */
+public class NioEventLoop implements Runnable {
+    private static final Log LOG = Log.get("nio", "事件循环");
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_GATHER = 64;   // 一次聚集写的最大帧数
+
+    private final String name;
+    private final ChatServer server;
+    private final Selector selector;
+    private final ByteBuffer readBuffer;
+    private final Queue<Runnable> tasks;
+    private final ByteBuffer[] gatherBuffers;               // 聚集写共用的缓冲区数组
+    private final ArrayDeque<NioConnection> pendingFlushes; // 本轮请求写出的连接
+    private final PriorityQueue<NioConnection> lingering;   // 推迟写出的连接，按到期时间排序
+    private final long maxLingerNanos;
+    private volatile boolean running;
+    private Thread thread;
+
+    public NioEventLoop(String name, ChatServer server) throws IOException {
+        this.name = name;
+        this.server = server;
+        this.selector = Selector.open();
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.gatherBuffers = new ByteBuffer[MAX_GATHER];
+        this.pendingFlushes = new ArrayDeque<>();
+        this.lingering = new PriorityQueue<>(Comparator.comparingLong(c -> c.flushDeadline));
+        this.maxLingerNanos = server.getOutboundLimits().getMaxLingerNanos();
+        this.running = true;
+    }
+
+    /**
+     * 启动事件循环线程
+     */
+    public void start() {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 注册新接入的连接（可在任意线程调用）
+     */
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(channel, key, this);
+                ClientHandler handler = new ClientHandler(connection, server);
+                connection.setHandler(handler);
+                key.attach(connection);
+                handler.startIdleTimer();
+            } catch (IOException e) {
+                LOG.warn("注册连接失败", "loop", name, "error", e.getMessage());
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    /**
+     * 在事件循环线程中执行任务
+     */
+    public void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+        } else {
+            tasks.offer(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 当前线程是否为本事件循环线程
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                long timeout = lingerTimeoutMillis();
+                if (timeout < 0) {
+                    selector.select();
+                } else if (timeout == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+                runTasks();
+                flushPending();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (connection == null || !key.isValid()) {
+                        continue;
+                    }
+                    processKey(key, connection);
+                }
+                flushPending();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                LOG.warn("select出错", "loop", name, "error", e.getMessage());
+            }
+        }
+        closeAll();
+    }
+
+    private void processKey(SelectionKey key, NioConnection connection) {
+        try {
+            if (key.isReadable()) {
+                readBuffer.clear();
+                int n = connection.getChannel().read(readBuffer);
+                if (n < 0) {
+                    connection.getHandler().disconnect();
+                    return;
+                }
+                readBuffer.flip();
+                connection.onRead(readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        } catch (CancelledKeyException e) {
+            connection.getHandler().disconnect();
+        } catch (IOException e) {
+            LOG.warn("连接异常", "user", connection.getHandler().getUsername(), "error", e.getMessage());
+            connection.getHandler().disconnect();
+        }
+    }
+
+    /**
+     * 登记本轮需要写出的连接（事件循环线程调用）
+     */
+    void markFlush(NioConnection connection) {
+        if (connection.getHandler().getOutboundDepth() >= MAX_GATHER) {
+            // 已经攒满一次聚集写，不必再等
+            connection.flushSafely(System.nanoTime());
+            return;
+        }
+        if (!connection.flushQueued) {
+            connection.flushQueued = true;
+            pendingFlushes.add(connection);
+        }
+    }
+
+    /**
+     * 写出本轮登记的连接和已到期的推迟连接
+     */
+    private void flushPending() {
+        long now = System.nanoTime();
+        NioConnection connection;
+        while ((connection = pendingFlushes.poll()) != null) {
+            long deadline = connection.lastFlushNanos + maxLingerNanos;
+            if (maxLingerNanos > 0 && deadline - now > 0) {
+                connection.flushDeadline = deadline;
+                lingering.add(connection);
+            } else {
+                connection.flushQueued = false;
+                connection.flushSafely(now);
+            }
+        }
+        while (!lingering.isEmpty() && lingering.peek().flushDeadline - now <= 0) {
+            connection = lingering.poll();
+            connection.flushQueued = false;
+            connection.flushSafely(now);
+        }
+    }
+
+    /**
+     * 距最早一个推迟写出到期的毫秒数；没有推迟写出时返回-1
+     */
+    private long lingerTimeoutMillis() {
+        NioConnection first = lingering.peek();
+        if (first == null) {
+            return -1;
+        }
+        long remaining = first.flushDeadline - System.nanoTime();
+        if (remaining <= 0) {
+            return 0;
+        }
+        // select 以毫秒为单位，向上取整
+        return (remaining + 999_999) / 1_000_000;
+    }
+
+    /**
+     * 聚集写共用的缓冲区数组（仅事件循环线程使用）
+     */
+    ByteBuffer[] gatherBuffers() {
+        return gatherBuffers;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOG.warn("执行任务出错", "loop", name, "error", e);
+            }
+        }
+    }
+
+    /**
+     * 停止事件循环
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof NioConnection) {
+                ((NioConnection) attachment).getHandler().disconnect();
+            } else {
+                closeQuietly(key.channel());
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOG.warn("关闭Selector时出错", "loop", name, "error", e.getMessage());
+        }
+    }
+
+    /**
+     * 当前注册在本循环上的连接数
+     */
+    public int getConnectionCount() {
+        return selector.keys().size();
+    }
+
+    static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // 忽略
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package server;
+
+import common.Log;
+import common.Message;
+import common.MessageType;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 离线消息收件箱
+ * 发给离线用户（一对一消息的目标、群组中不在线的成员）的消息已经在消息日志中，
+ * 收件箱不复制消息本身，只按会话记录缺失的序号区间（首序号、末序号、条数），
+ * 每个会话每个离线期只占一项，长期离线的用户也只占很少的内存和磁盘。
+ * 每个用户的收件箱最多记录 maxMessages 条，超过后新消息不再记入并计数。
+ * 只为在本服务器登录过的用户记录（已知用户名单追加保存在收件箱目录中），
+ * 发给从未登录过的用户名（例如拼错的用户名）的消息仍向发送者报告不在线；
+ * 同时存在的收件箱数不超过 maxInboxes，客户端不能借此无限制地创建收件箱文件。
+ *
+ * 用户登录后整个收件箱被取出，由投递线程按会话从消息日志分页读出：每页按出站队列上限控制条数和字节数，
+ * 整页一次入队、由写出者合并写出；队列积压时等待写出后再读下一页，不会因离线消息过多而断开连接。
+ * 投递中途断线时，未投递的区间放回收件箱。
+ *
+ * 收件箱在后台定期写入磁盘（每个用户一个小文件，只重写有变化的用户），服务器重启后恢复；
+ * 两次写盘之间崩溃时，已投递的消息可能在下次登录时再投递一次。
+ *
+ * 系统属性：
+ * chat.inbox.dir 收件箱目录，默认为工作目录下的 ServerData/inbox；
+ * chat.inbox.maxMessages 每个用户最多记录的离线消息数，默认10000；
+ * chat.inbox.maxUsers 同时有离线消息的用户数上限，默认100000；
+ * chat.inbox.flushMillis 写盘间隔，默认1000毫秒；
+ * chat.inbox.pageMessages 投递时每页的最大条数，默认256。
+ */
+public class OfflineInbox {
+    private static final Log LOG = Log.get("inbox", "离线消息");
+    private static final String SUFFIX = ".inbox";
+    private static final String KNOWN_USERS = "known-users";
+    private static final long RETRY_MILLIS = 10;
+
+    private final Path directory;
+    private final ClientManager clientManager;
+    private final MessageLog messageLog;
+    private final OutboundQueue.Limits limits;
+    private final int maxMessages;
+    private final int maxInboxes;
+    private final long flushMillis;
+    private final int pageMessages;
+    private final Map<String, Inbox> inboxes;
+    private final Set<String> dirty;
+    private final Set<String> knownUsers;           // 登录过的用户
+    private final Queue<String> newUsers;           // 尚未写入已知用户名单的用户
+    private ScheduledExecutorService executor;
+
+    public OfflineInbox(Path directory, ClientManager clientManager, MessageLog messageLog,
+                        OutboundQueue.Limits limits, int maxMessages, int maxInboxes,
+                        long flushMillis, int pageMessages) {
+        this.directory = directory;
+        this.clientManager = clientManager;
+        this.messageLog = messageLog;
+        this.limits = limits;
+        this.maxMessages = maxMessages;
+        this.maxInboxes = maxInboxes;
+        this.flushMillis = flushMillis;
+        this.pageMessages = pageMessages;
+        this.inboxes = new ConcurrentHashMap<>();
+        this.dirty = ConcurrentHashMap.newKeySet();
+        this.knownUsers = ConcurrentHashMap.newKeySet();
+        this.newUsers = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * 从系统属性创建收件箱
+     */
+    public static OfflineInbox fromSystemProperties(ClientManager clientManager, MessageLog messageLog,
+                                                    OutboundQueue.Limits limits) {
+        String dir = System.getProperty("chat.inbox.dir");
+        Path directory = dir != null ? Paths.get(dir) : Paths.get("ServerData", "inbox");
+        return new OfflineInbox(directory, clientManager, messageLog, limits,
+                Math.max(1, Integer.getInteger("chat.inbox.maxMessages", 10000)),
+                Math.max(1, Integer.getInteger("chat.inbox.maxUsers", 100000)),
+                Math.max(10, Long.getLong("chat.inbox.flushMillis", 1000)),
+                Math.max(1, Integer.getInteger("chat.inbox.pageMessages", 256)));
+    }
+
+    /**
+     * 加载磁盘上的收件箱并启动写盘和投递线程
+     */
+    public void init() throws IOException {
+        Files.createDirectories(directory);
+        readKnownUsers();
+        int loaded = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : files) {
+                try {
+                    Inbox inbox = read(path);
+                    if (inbox != null) {
+                        inboxes.put(inbox.username, inbox);
+                        loaded++;
+                    }
+                } catch (IOException e) {
+                    LOG.warn("读取离线收件箱失败", "file", path.getFileName(), "error", e.getMessage());
+                }
+            }
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "offline-inbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        LOG.info("离线收件箱已加载", "dir", directory.toAbsolutePath(), "users", loaded,
+                 "knownUsers", knownUsers.size());
+    }
+
+    /**
+     * 用户登录成功：记为已知用户，并投递其离线消息（在用户登记为在线之后调用）
+     */
+    public void userLoggedIn(String username) {
+        if (knownUsers.add(username)) {
+            newUsers.add(username);
+        }
+        deliver(username);
+    }
+
+    /**
+     * 记录一条发给离线用户的消息（路由线程调用）
+     * 记入后如果用户恰好已经上线（登录与路由并发），立即投递
+     * @return 已记入收件箱时返回true；消息没有序号（消息日志未启用）、收件箱未启动、
+     *         是依赖在线暂存传输的文件提议、用户从未登录过、收件箱已满或收件箱数已达上限时返回false
+     */
+    public boolean add(String username, Message message, String conversation) {
+        long seq = message.getSeq();
+        if (seq < 0 || executor == null || !knownUsers.contains(username)
+                || (message.getType() == MessageType.FILE && message.getTransferId() != null)) {
+            return false;
+        }
+        boolean[] full = new boolean[1];
+        inboxes.compute(username, (key, inbox) -> {
+            if (inbox == null) {
+                if (inboxes.size() >= maxInboxes) {
+                    full[0] = true;
+                    LOG.warn("离线收件箱数已达上限，不再为新用户记录", "user", username, "maxUsers", maxInboxes);
+                    return null;
+                }
+                inbox = new Inbox(username);
+            }
+            if (inbox.size >= maxMessages) {
+                full[0] = true;
+                if (inbox.dropped++ % 1000 == 0) {
+                    LOG.warn("离线收件箱已满，不再记录新消息", "user", username, "size", inbox.size,
+                             "dropped", inbox.dropped);
+                }
+            } else {
+                inbox.add(conversation, seq);
+            }
+            return inbox;
+        });
+        if (full[0]) {
+            return false;
+        }
+        dirty.add(username);
+        if (clientManager.isUserOnline(username)) {
+            deliver(username);
+        }
+        return true;
+    }
+
+    /**
+     * 用户离线消息的条数
+     */
+    public int size(String username) {
+        Inbox inbox = inboxes.get(username);
+        return inbox != null ? inbox.size : 0;
+    }
+
+    /**
+     * 用户登录后投递其全部离线消息（在用户登记为在线之后调用）
+     */
+    public void deliver(String username) {
+        Inbox inbox = inboxes.remove(username);
+        ClientHandler handler = clientManager.getClient(username);
+        if (inbox == null) {
+            return;
+        }
+        dirty.add(username);
+        if (handler == null) {
+            restore(inbox.ranges, username);
+            return;
+        }
+        LOG.info("开始投递离线消息", "user", username, "messages", inbox.size,
+                 "conversations", inbox.ranges.size(), "dropped", inbox.dropped);
+        schedule(new Delivery(handler, username, inbox.ranges), 0);
+    }
+
+    private void schedule(Delivery delivery, long delayMillis) {
+        try {
+            executor.schedule(delivery, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // 服务器正在关闭，未投递的区间放回收件箱
+            restore(delivery.remaining(), delivery.username);
+        }
+    }
+
+    /**
+     * 把未投递完的区间放回收件箱（排在投递期间新记入的区间之前）
+     */
+    private void restore(List<Range> ranges, String username) {
+        if (ranges.isEmpty()) {
+            return;
+        }
+        inboxes.compute(username, (key, inbox) -> {
+            Inbox restored = new Inbox(username);
+            for (Range range : ranges) {
+                restored.ranges.add(range);
+                restored.size += range.count;
+            }
+            if (inbox != null) {
+                restored.ranges.addAll(inbox.ranges);
+                restored.size += inbox.size;
+                restored.dropped = inbox.dropped;
+                restored.open.putAll(inbox.open);
+            }
+            return restored;
+        });
+        dirty.add(username);
+        if (!executor.isShutdown() && clientManager.isUserOnline(username)) {
+            deliver(username);
+        }
+    }
+
+    /**
+     * 一个用户的离线消息投递过程，每次执行投递一页
+     */
+    private final class Delivery implements Runnable {
+        private final ClientHandler handler;
+        private final String username;
+        private final List<Range> ranges;
+        private int current;
+        private long delivered;
+
+        Delivery(ClientHandler handler, String username, List<Range> ranges) {
+            this.handler = handler;
+            this.username = username;
+            this.ranges = ranges;
+        }
+
+        List<Range> remaining() {
+            return new ArrayList<>(ranges.subList(current, ranges.size()));
+        }
+
+        @Override
+        public void run() {
+            if (!handler.isConnected()) {
+                restore(remaining(), username);
+                return;
+            }
+            Range range = ranges.get(current);
+            if (messageLog.getCommittedSeq() < range.lastSeq) {
+                // 区间末尾的消息还在消息日志的待写批次中
+                schedule(this, RETRY_MILLIS);
+                return;
+            }
+            int depth = handler.getOutboundDepth();
+            long queued = handler.getOutboundBytes();
+            int maxCount = Math.min(pageMessages, limits.highWaterMark / 2 - depth);
+            long maxBytes = limits.highWaterBytes / 2 - queued;
+            if (maxCount <= 0 || maxBytes <= 0) {
+                // 等待写出者把积压的数据写出
+                schedule(this, RETRY_MILLIS);
+                return;
+            }
+
+            List<Message> page;
+            try {
+                page = messageLog.read(range.conversation, range.firstSeq - 1, range.lastSeq, maxCount, maxBytes);
+            } catch (IOException e) {
+                LOG.warn("读取离线消息失败，跳过该会话", "user", username, "error", e.getMessage());
+                page = new ArrayList<>();
+            }
+            if (!page.isEmpty()) {
+                List<OutboundFrame> frames = new ArrayList<>(page.size());
+                for (Message message : page) {
+                    frames.add(OutboundFrame.of(message));
+                }
+                if (!handler.sendFrames(frames)) {
+                    restore(remaining(), username);
+                    return;
+                }
+                delivered += page.size();
+                long lastSeq = page.get(page.size() - 1).getSeq();
+                range.count = Math.max(0, range.count - page.size());
+                range.firstSeq = lastSeq + 1;
+            }
+            if (page.isEmpty() || range.firstSeq > range.lastSeq) {
+                // 区间已投递完（或其中的消息已超出日志保留期）
+                current++;
+            }
+            if (current < ranges.size()) {
+                schedule(this, 0);
+                return;
+            }
+            LOG.info("离线消息投递完成", "user", username, "messages", delivered);
+        }
+    }
+
+    /**
+     * 把有变化的收件箱写入磁盘（投递线程定期调用）
+     */
+    private void flush() {
+        writeKnownUsers();
+        for (String username : dirty) {
+            dirty.remove(username);
+            Path path = pathOf(username);
+            try {
+                List<Range> snapshot = new ArrayList<>();
+                inboxes.computeIfPresent(username, (key, inbox) -> {
+                    for (Range range : inbox.ranges) {
+                        snapshot.add(range.copy());
+                    }
+                    return inbox;
+                });
+                if (snapshot.isEmpty()) {
+                    Files.deleteIfExists(path);
+                } else {
+                    write(path, username, snapshot);
+                }
+            } catch (IOException e) {
+                dirty.add(username);
+                LOG.warn("写入离线收件箱失败", "user", username, "error", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 停止投递并把所有收件箱写入磁盘
+     */
+    public void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * 读取已知用户名单（依次排列的 writeUTF 记录），截断崩溃时写了一半的末尾
+     */
+    private void readKnownUsers() throws IOException {
+        Path path = directory.resolve(KNOWN_USERS);
+        if (!Files.exists(path)) {
+            return;
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        int valid = 0;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            while (valid < bytes.length) {
+                knownUsers.add(in.readUTF());
+                valid = bytes.length - in.available();
+            }
+        } catch (IOException e) {
+            LOG.warn("截断已知用户名单不完整的末尾", "validBytes", valid, "droppedBytes", bytes.length - valid);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    /**
+     * 把新登录的用户追加到已知用户名单
+     */
+    private void writeKnownUsers() {
+        if (newUsers.isEmpty()) {
+            return;
+        }
+        List<String> users = new ArrayList<>();
+        for (String user; (user = newUsers.poll()) != null; ) {
+            users.add(user);
+        }
+        try (OutputStream file = Files.newOutputStream(directory.resolve(KNOWN_USERS),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            for (String user : users) {
+                out.writeUTF(user);
+            }
+        } catch (IOException e) {
+            newUsers.addAll(users);
+            LOG.warn("写入已知用户名单失败", "users", users.size(), "error", e.getMessage());
+        }
+    }
+
+    /**
+     * 用户名转为文件名（UTF-8字节的十六进制，避免路径字符）
+     */
+    private Path pathOf(String username) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : username.getBytes(StandardCharsets.UTF_8)) {
+            name.append(String.format("%02x", b));
+        }
+        return directory.resolve(name + SUFFIX);
+    }
+
+    private static void write(Path path, String username, List<Range> ranges) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream file = Files.newOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeUTF(username);
+            out.writeInt(ranges.size());
+            for (Range range : ranges) {
+                out.writeUTF(range.conversation);
+                out.writeLong(range.firstSeq);
+                out.writeLong(range.lastSeq);
+                out.writeInt(range.count);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Inbox read(Path path) throws IOException {
+        try (InputStream file = Files.newInputStream(path);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+            Inbox inbox = new Inbox(in.readUTF());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Range range = new Range(in.readUTF(), in.readLong());
+                range.lastSeq = in.readLong();
+                range.count = in.readInt();
+                inbox.ranges.add(range);
+                inbox.size += range.count;
+            }
+            return inbox.ranges.isEmpty() ? null : inbox;
+        }
+    }
+
+    /**
+     * 一个用户的收件箱，只在 ConcurrentHashMap.compute 内修改
+     */
+    private static final class Inbox {
+        final String username;
+        final List<Range> ranges = new ArrayList<>();
+        final Map<String, Range> open = new HashMap<>();    // 本次离线期间各会话的区间，新消息追加到这里
+        int size;
+        long dropped;
+
+        Inbox(String username) {
+            this.username = username;
+        }
+
+        void add(String conversation, long seq) {
+            Range range = open.get(conversation);
+            if (range == null) {
+                range = new Range(conversation, seq);
+                open.put(conversation, range);
+                ranges.add(range);
+            } else {
+                range.lastSeq = seq;
+                range.count++;
+            }
+            size++;
+        }
+    }
+
+    /**
+     * 一个会话中缺失的序号区间 [firstSeq, lastSeq]，区间内该会话的消息都未送达
+     */
+    private static final class Range {
+        final String conversation;
+        long firstSeq;
+        long lastSeq;
+        int count;
+
+        Range(String conversation, long seq) {
+            this.conversation = conversation;
+            this.firstSeq = seq;
+            this.lastSeq = seq;
+            this.count = 1;
+        }
+
+        Range copy() {
+            Range copy = new Range(conversation, firstSeq);
+            copy.lastSeq = lastSeq;
+            copy.count = count;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package server;
+
+import common.FrameCodec;
+import common.Message;
+import common.MessageType;
+import common.WireFormat;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 预编码的出站消息帧（不可变）
+ * 消息在每种帧格式下最多编码一次，得到的字节在所有接收者的出站队列之间只读共享，
+ * 群发N个成员时不再重复N次JSON序列化。编码在首次需要某种格式时进行，
+ * 因此全部是旧客户端的群组不会产生二进制编码，反之亦然。
+ *
+ * 文件分片帧的帧体保存在服务器暂存文件中：二进制帧只在内存中保存帧头，
+ * 帧体写出时由 FileChannel.transferTo 从文件直接传输到Socket；
+ * 旧客户端需要的JSON帧才把该分片读入内存并转成Base64。
+ */
+public final class OutboundFrame {
+    private final Message message;      // 创建帧之后不得再修改；文件分片帧中不含数据
+    private final SpoolFile spool;      // 文件分片帧的暂存文件，普通帧为null
+    private final long bodyPosition;
+    private final int bodyLength;
+    private volatile byte[] jsonLine;   // 换行JSON帧字节
+    private volatile byte[] binary;     // 二进制帧字节（文件分片帧只含帧头部分）
+
+    private OutboundFrame(Message message, SpoolFile spool, long bodyPosition, int bodyLength) {
+        this.message = message;
+        this.spool = spool;
+        this.bodyPosition = bodyPosition;
+        this.bodyLength = bodyLength;
+    }
+
+    /**
+     * 为消息创建共享帧
+     */
+    public static OutboundFrame of(Message message) {
+        return new OutboundFrame(message, null, 0, 0);
+    }
+
+    /**
+     * 创建帧体位于暂存文件区间中的文件分片帧
+     * @param header 不含数据的消息
+     */
+    public static OutboundFrame fileChunk(Message header, SpoolFile spool, long position, int length) {
+        return new OutboundFrame(header, spool, position, length);
+    }
+
+    public MessageType getType() {
+        return message.getType();
+    }
+
+    /**
+     * 完整的二进制帧字节（与二进制接收者共享同一次编码），供消息日志写入
+     */
+    byte[] binaryFrame() {
+        return bytes(WireFormat.BINARY);
+    }
+
+    /**
+     * 指定帧格式下的字节长度
+     */
+    public int length(WireFormat format) {
+        if (spool != null && format == WireFormat.BINARY) {
+            return bytes(format).length + bodyLength;
+        }
+        return bytes(format).length;
+    }
+
+    /**
+     * 出站队列接收该帧时调用，文件分片帧在写出前不能删除暂存文件
+     */
+    void retain() {
+        if (spool != null) {
+            spool.retain();
+        }
+    }
+
+    /**
+     * 出站队列写出或丢弃该帧后调用
+     */
+    void release() {
+        if (spool != null) {
+            spool.release();
+        }
+    }
+
+    /**
+     * 创建一个写出游标，供单个接收者的非阻塞写使用（各游标的写出进度互不影响）
+     */
+    public Cursor cursor(WireFormat format) {
+        ByteBuffer head = ByteBuffer.wrap(bytes(format)).asReadOnlyBuffer();
+        if (spool != null && format == WireFormat.BINARY) {
+            return new Cursor(head, spool, bodyPosition, bodyLength);
+        }
+        return new Cursor(head, null, 0, 0);
+    }
+
+    /**
+     * 将整帧写入输出流（没有Socket通道时使用，文件分片帧的帧体读入内存后写出）
+     */
+    public void writeTo(OutputStream output, WireFormat format) throws IOException {
+        output.write(bytes(format));
+        if (spool != null && format == WireFormat.BINARY) {
+            output.write(spool.read(bodyPosition, bodyLength));
+        }
+    }
+
+    /**
+     * 获取（必要时编码）指定格式的帧字节
+     * 并发首次访问时可能重复编码，但结果相同，不影响正确性
+     */
+    private byte[] bytes(WireFormat format) {
+        if (format == WireFormat.BINARY) {
+            byte[] encoded = binary;
+            if (encoded == null) {
+                encoded = spool != null
+                        ? FrameCodec.encodeBinaryPrefix(message, bodyLength)
+                        : FrameCodec.encodeBinary(message);
+                binary = encoded;
+            }
+            return encoded;
+        }
+        byte[] encoded = jsonLine;
+        if (encoded == null) {
+            encoded = FrameCodec.encodeJsonLine(spool != null ? readChunk() : message);
+            jsonLine = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * 把文件分片读回内存，得到带数据的完整消息
+     */
+    private Message readChunk() {
+        try {
+            Message chunk = message.copyWithoutData();
+            chunk.setBinaryData(spool.read(bodyPosition, bodyLength));
+            return chunk;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 单个接收者的写出进度：先写内存中的帧字节，再从暂存文件传输帧体
+     */
+    public static final class Cursor {
+        private final ByteBuffer head;
+        private final SpoolFile spool;
+        private long position;
+        private long remaining;
+
+        private Cursor(ByteBuffer head, SpoolFile spool, long position, long remaining) {
+            this.head = head;
+            this.spool = spool;
+            this.position = position;
+            this.remaining = remaining;
+        }
+
+        /**
+         * 内存中的帧字节（普通帧即整帧），用于聚集写
+         */
+        ByteBuffer head() {
+            return head;
+        }
+
+        /**
+         * 帧体是否位于暂存文件中（不能参与聚集写）
+         */
+        boolean hasFileBody() {
+            return remaining > 0;
+        }
+
+        /**
+         * 尽可能多地写出
+         * @return 整帧已写完时返回true；通道暂时不可写时返回false
+         */
+        public boolean writeTo(WritableByteChannel channel) throws IOException {
+            if (head.hasRemaining()) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    return false;
+                }
+            }
+            while (remaining > 0) {
+                long n = spool.transferTo(position, remaining, channel);
+                if (n <= 0) {
+                    return false;
+                }
+                position += n;
+                remaining -= n;
+            }
+            return true;
+        }
+    }
+}
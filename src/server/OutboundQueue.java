@@ -0,0 +1,416 @@
+package server;
+
+import common.Log;
+import common.MessageType;
+import common.WireFormat;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 单个连接的有界出站队列
+ * 发送方线程只负责入队，由连接自己的写出者（阻塞模式的写任务或NIO事件循环）出队写出，
+ * 因此一个卡住的客户端不会拖慢群发和广播。
+ *
+ * 溢出策略：队列积压超过在线状态丢弃线后，新的在线状态通知（上下线、用户列表）直接丢弃；
+ * 超过高水位线时先清除已排队的在线状态通知，仍然超出则按策略断开连接或丢弃新消息。
+ */
+public class OutboundQueue {
+    private static final Log LOG = Log.get("outbound", "出站队列");
+
+    /**
+     * 超过高水位线后的处理策略
+     */
+    public enum OverflowPolicy {
+        DISCONNECT,     // 断开慢速客户端
+        DROP_NEWEST     // 丢弃新消息，保持连接
+    }
+
+    /**
+     * 入队结果
+     */
+    public enum OfferResult {
+        QUEUED,         // 已入队
+        DROPPED,        // 被丢弃
+        OVERFLOW        // 超过高水位线，需要断开连接
+    }
+
+    /**
+     * 队列限制与写出配置
+     */
+    public static class Limits {
+        final int presenceDropMark;     // 积压条数达到该值后丢弃在线状态通知
+        final int highWaterMark;        // 积压条数上限
+        final long highWaterBytes;      // 积压字节数上限
+        final OverflowPolicy policy;
+        final long maxLingerNanos;      // 繁忙连接两次写出之间的最短间隔，期间到达的帧合并写出
+
+        public Limits(int presenceDropMark, int highWaterMark, long highWaterBytes, OverflowPolicy policy) {
+            this(presenceDropMark, highWaterMark, highWaterBytes, policy, 0);
+        }
+
+        public Limits(int presenceDropMark, int highWaterMark, long highWaterBytes, OverflowPolicy policy,
+                      long maxLingerNanos) {
+            this.presenceDropMark = presenceDropMark;
+            this.highWaterMark = highWaterMark;
+            this.highWaterBytes = highWaterBytes;
+            this.policy = policy;
+            this.maxLingerNanos = maxLingerNanos;
+        }
+
+        /**
+         * 繁忙连接上一帧最多等待多久再写出（纳秒），0表示不等待
+         */
+        public long getMaxLingerNanos() {
+            return maxLingerNanos;
+        }
+
+        /**
+         * 从系统属性读取配置
+         * chat.outbound.presenceDropMark / chat.outbound.highWaterMark /
+         * chat.outbound.highWaterBytes / chat.outbound.overflowPolicy /
+         * chat.outbound.maxLingerMicros
+         */
+        public static Limits fromSystemProperties() {
+            OverflowPolicy policy = OverflowPolicy.DISCONNECT;
+            String policyName = System.getProperty("chat.outbound.overflowPolicy");
+            if (policyName != null) {
+                try {
+                    policy = OverflowPolicy.valueOf(policyName.trim().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("无效的溢出策略", "policy", policyName, "fallback", policy);
+                }
+            }
+            return new Limits(
+                    Integer.getInteger("chat.outbound.presenceDropMark", 256),
+                    Integer.getInteger("chat.outbound.highWaterMark", 4096),
+                    Long.getLong("chat.outbound.highWaterBytes", 64L * 1024 * 1024),
+                    policy,
+                    Math.max(0, Long.getLong("chat.outbound.maxLingerMicros", 0)) * 1000);
+        }
+    }
+
+    private static final class Entry {
+        final OutboundFrame frame;
+        final WireFormat format;    // 入队时连接使用的帧格式
+        final int length;
+        final boolean presence;
+        OutboundFrame.Cursor cursor; // 非阻塞写时的写出进度，首次写出时创建
+
+        Entry(OutboundFrame frame, WireFormat format, boolean presence) {
+            this.frame = frame;
+            this.format = format;
+            this.length = frame.length(format);
+            this.presence = presence;
+        }
+    }
+
+    private final Limits limits;
+    private final ArrayDeque<Entry> entries;
+    private long queuedBytes;
+    private long writtenBytes;      // 累计已写出的字节数
+    private long droppedCount;
+    private boolean closed;
+    private WireFormat format;
+
+    public OutboundQueue(Limits limits) {
+        this.limits = limits;
+        this.entries = new ArrayDeque<>();
+        this.format = WireFormat.JSON_LINE;
+    }
+
+    /**
+     * 入队一帧后切换后续帧的格式（两步在同一把锁内完成）
+     * 用于登录响应：响应本身按旧格式发出，其他线程之后入队的帧一律使用新格式
+     */
+    public synchronized OfferResult offerThenSwitch(OutboundFrame frame, WireFormat newFormat) {
+        OfferResult result = offer(frame);
+        format = newFormat;
+        return result;
+    }
+
+    public synchronized WireFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * 入队一帧待发送的数据
+     */
+    public synchronized OfferResult offer(OutboundFrame frame) {
+        if (closed) {
+            return OfferResult.DROPPED;
+        }
+
+        boolean presence = isPresence(frame.getType());
+        if (presence && entries.size() >= limits.presenceDropMark) {
+            droppedCount++;
+            return OfferResult.DROPPED;
+        }
+
+        Entry entry = new Entry(frame, format, presence);
+        int length = entry.length;
+        if (isOverHighWater(length)) {
+            purgePresence();
+            if (isOverHighWater(length)) {
+                if (limits.policy == OverflowPolicy.DROP_NEWEST) {
+                    droppedCount++;
+                    return OfferResult.DROPPED;
+                }
+                return OfferResult.OVERFLOW;
+            }
+        }
+
+        entries.addLast(entry);
+        queuedBytes += length;
+        frame.retain();
+        return OfferResult.QUEUED;
+    }
+
+    /**
+     * 一次性入队一批帧（如登录时下发的离线消息）：整批不超过上限时全部入队，否则整批不入队
+     * 整批在同一把锁内入队，写出者随后把它们合并为尽量少的几次写出
+     */
+    public synchronized OfferResult offerAll(List<OutboundFrame> frames) {
+        if (closed) {
+            return OfferResult.DROPPED;
+        }
+
+        List<Entry> batch = new ArrayList<>(frames.size());
+        long length = 0;
+        for (OutboundFrame frame : frames) {
+            Entry entry = new Entry(frame, format, false);
+            batch.add(entry);
+            length += entry.length;
+        }
+        if (entries.size() + batch.size() > limits.highWaterMark || queuedBytes + length > limits.highWaterBytes) {
+            purgePresence();
+            if (entries.size() + batch.size() > limits.highWaterMark
+                    || queuedBytes + length > limits.highWaterBytes) {
+                if (limits.policy == OverflowPolicy.DROP_NEWEST) {
+                    droppedCount += batch.size();
+                    return OfferResult.DROPPED;
+                }
+                return OfferResult.OVERFLOW;
+            }
+        }
+
+        for (Entry entry : batch) {
+            entries.addLast(entry);
+            entry.frame.retain();
+        }
+        queuedBytes += length;
+        return OfferResult.QUEUED;
+    }
+
+    /**
+     * 把积压的帧尽可能多地写到通道：连续的普通帧合并为一次聚集写，
+     * 文件分片帧的帧体从暂存文件单独传输。写出时不持有锁。
+     * @param scratch 调用方提供的缓冲区数组（决定一次聚集写的最大帧数），返回前清空
+     * @return 队列已写空时返回true；非阻塞通道暂时不可写时返回false
+     */
+    public boolean writeTo(WritableByteChannel channel, ByteBuffer[] scratch) throws IOException {
+        while (true) {
+            int count = peekBuffers(scratch);
+            if (count > 0) {
+                try {
+                    if (count > 1 && channel instanceof GatheringByteChannel) {
+                        ((GatheringByteChannel) channel).write(scratch, 0, count);
+                    } else {
+                        for (int i = 0; i < count; i++) {
+                            channel.write(scratch[i]);
+                            if (scratch[i].hasRemaining()) {
+                                break;
+                            }
+                        }
+                    }
+                    if (removeWritten(scratch, count) < count) {
+                        return false;
+                    }
+                } finally {
+                    Arrays.fill(scratch, 0, count, null);
+                }
+                continue;
+            }
+
+            OutboundFrame.Cursor cursor = peekCursor();
+            if (cursor == null) {
+                return true;
+            }
+            if (!cursor.writeTo(channel)) {
+                return false;
+            }
+            poll();
+        }
+    }
+
+    /**
+     * 取队首连续普通帧的写出视图，遇到帧体位于暂存文件中的帧为止
+     */
+    private synchronized int peekBuffers(ByteBuffer[] scratch) {
+        int count = 0;
+        for (Entry entry : entries) {
+            if (count == scratch.length) {
+                break;
+            }
+            if (entry.cursor == null) {
+                entry.cursor = entry.frame.cursor(entry.format);
+            }
+            if (entry.cursor.hasFileBody()) {
+                break;
+            }
+            scratch[count++] = entry.cursor.head();
+        }
+        return count;
+    }
+
+    /**
+     * 移除已完整写出的队首帧，返回移除的个数
+     */
+    private synchronized int removeWritten(ByteBuffer[] scratch, int count) {
+        int removed = 0;
+        while (removed < count && !scratch[removed].hasRemaining()) {
+            Entry head = entries.peekFirst();
+            if (head == null || head.cursor == null || head.cursor.head() != scratch[removed]) {
+                // 队列已被关闭清空
+                break;
+            }
+            entries.pollFirst();
+            queuedBytes -= head.length;
+            writtenBytes += head.length;
+            head.frame.release();
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * 查看队首帧的写出游标（不出队），用于可能只写出一部分的非阻塞写
+     */
+    public synchronized OutboundFrame.Cursor peekCursor() {
+        Entry head = entries.peekFirst();
+        if (head == null) {
+            return null;
+        }
+        if (head.cursor == null) {
+            head.cursor = head.frame.cursor(head.format);
+        }
+        return head.cursor;
+    }
+
+    /**
+     * 取出队首帧（已写出），帧随之释放
+     */
+    public synchronized OutboundFrame poll() {
+        Entry head = entries.pollFirst();
+        if (head == null) {
+            return null;
+        }
+        queuedBytes -= head.length;
+        writtenBytes += head.length;
+        head.frame.release();
+        return head.frame;
+    }
+
+    /**
+     * 取出队首帧并按其入队时的格式写入输出流（没有Socket通道时由写出者调用，写出时不持有锁）
+     * @return 队列为空时返回false
+     */
+    public boolean writeNext(OutputStream output) throws IOException {
+        Entry head;
+        synchronized (this) {
+            head = entries.pollFirst();
+            if (head == null) {
+                return false;
+            }
+            queuedBytes -= head.length;
+            writtenBytes += head.length;
+        }
+        try {
+            head.frame.writeTo(output, head.format);
+        } finally {
+            head.frame.release();
+        }
+        return true;
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * 当前积压的帧数
+     */
+    public synchronized int getDepth() {
+        return entries.size();
+    }
+
+    /**
+     * 当前积压的字节数
+     */
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * 累计已写出的字节数
+     */
+    public synchronized long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /**
+     * 累计丢弃的帧数
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * 关闭队列并释放积压数据
+     */
+    public synchronized void close() {
+        closed = true;
+        for (Entry entry : entries) {
+            entry.frame.release();
+        }
+        entries.clear();
+        queuedBytes = 0;
+    }
+
+    private boolean isOverHighWater(int incomingLength) {
+        return entries.size() >= limits.highWaterMark
+                || queuedBytes + incomingLength > limits.highWaterBytes;
+    }
+
+    /**
+     * 清除已排队的在线状态通知（正在写出的队首帧除外）
+     */
+    private void purgePresence() {
+        Iterator<Entry> it = entries.iterator();
+        if (it.hasNext()) {
+            it.next();
+        }
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.presence) {
+                it.remove();
+                queuedBytes -= entry.length;
+                entry.frame.release();
+                droppedCount++;
+            }
+        }
+    }
+
+    private static boolean isPresence(MessageType type) {
+        return type == MessageType.USER_JOIN
+                || type == MessageType.USER_LEAVE
+                || type == MessageType.USER_LIST;
+    }
+}
@@ -0,0 +1,177 @@
+package server;
+
+import common.Message;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在线状态通知的时间窗口合并
+ * 上线/下线只记录到 PresenceTracker，窗口内第一次变更时安排一次刷新；
+ * 刷新时把窗口内的全部变更合并为一帧增量（只编码一次）发给每个在线用户，
+ * 登录风暴中每个接收者每个窗口只收到一帧，而不是每次上下线一帧。
+ * 窗口内上线后又下线（或反之）的用户互相抵消，不出现在增量中。
+ *
+ * 新登录用户的在线列表和客户端的同步请求也推迟到刷新时回复，并且不再收到本次广播，
+ * 这样每个连接收到的增量首尾相接，抵消后的增量对每个接收者都是正确的。
+ * 不支持增量同步的旧客户端仍逐个收到 USER_JOIN / USER_LEAVE（每种消息同样只编码一次）。
+ * 窗口为0时每次变更立即刷新。
+ */
+public class PresenceBroadcaster {
+    private final ClientManager clientManager;
+    private final PresenceTracker tracker;
+    private final long windowMillis;
+    private final ScheduledExecutorService scheduler;       // 窗口为0时为null
+    private final Map<ClientHandler, Long> pendingSyncs;    // 等待刷新时回复的连接及其纪元，旧客户端为null
+    private long broadcastEpoch;                            // 上次广播到的纪元
+    private boolean flushScheduled;
+    private boolean flushing;                               // 正在刷新，防止同一线程上重入
+
+    public PresenceBroadcaster(ClientManager clientManager, PresenceTracker tracker, long windowMillis) {
+        this.clientManager = clientManager;
+        this.tracker = tracker;
+        this.windowMillis = Math.max(0, windowMillis);
+        this.pendingSyncs = new LinkedHashMap<>();
+        this.broadcastEpoch = tracker.getEpoch();
+        if (this.windowMillis > 0) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "presence-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * 从系统属性 chat.presence.windowMillis 读取合并窗口（默认200毫秒）
+     */
+    public static PresenceBroadcaster fromSystemProperties(ClientManager clientManager, PresenceTracker tracker) {
+        return new PresenceBroadcaster(clientManager, tracker, Long.getLong("chat.presence.windowMillis", 200));
+    }
+
+    /**
+     * 登记登录成功的用户，在线列表在本窗口结束时发给该用户
+     * @param since 客户端持有的在线状态纪元；为null时是旧客户端，发送完整的用户列表
+     */
+    public synchronized void userLoggedIn(String username, ClientHandler handler, Long since) {
+        clientManager.addClient(username, handler);
+        tracker.recordJoin(username);
+        pendingSyncs.put(handler, since);
+        scheduleFlush();
+    }
+
+    /**
+     * 注销断开的用户，下线通知在本窗口结束时发出
+     */
+    public synchronized void userLoggedOut(String username) {
+        clientManager.removeClient(username);
+        tracker.recordLeave(username);
+        scheduleFlush();
+    }
+
+    /**
+     * 客户端请求同步（发现了缺失的增量），在本窗口结束时回复
+     */
+    public synchronized void requestSync(ClientHandler handler, long since) {
+        pendingSyncs.put(handler, since);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (scheduler == null) {
+            flush();
+            return;
+        }
+        if (flushScheduled) {
+            return;
+        }
+        try {
+            scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            flushScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // 服务器正在关闭
+        }
+    }
+
+    /**
+     * 发出窗口内合并后的在线状态变更，并回复等待中的同步
+     * 发送时出站队列溢出会断开连接并在同一线程上调用 userLoggedOut（窗口为0时随即刷新），
+     * 这种重入的刷新只做标记，留到本次刷新结束后再进行。
+     */
+    synchronized void flush() {
+        if (flushing) {
+            flushScheduled = true;
+            return;
+        }
+        flushing = true;
+        try {
+            do {
+                flushScheduled = false;
+                flushOnce();
+            } while (flushScheduled && scheduler == null);
+        } finally {
+            flushing = false;
+        }
+    }
+
+    private void flushOnce() {
+        long epoch = tracker.getEpoch();
+        if (epoch != broadcastEpoch) {
+            broadcast(tracker.changesSince(broadcastEpoch));
+            broadcastEpoch = epoch;
+        }
+        for (Map.Entry<ClientHandler, Long> entry : pendingSyncs.entrySet()) {
+            Long since = entry.getValue();
+            entry.getKey().sendMessage(since != null ? tracker.syncMessage(since) : tracker.userListMessage());
+        }
+        pendingSyncs.clear();
+    }
+
+    /**
+     * 把自上次广播以来的变更发给等待同步以外的所有在线用户
+     * 变更全部抵消时支持增量的客户端仍收到一帧空增量，使其纪元与广播保持连续。
+     * @param changes 为null时变更已被淘汰出日志，发送完整列表
+     */
+    private void broadcast(Map<String, Boolean> changes) {
+        OutboundFrame deltaFrame = OutboundFrame.of(tracker.syncMessage(broadcastEpoch));
+        List<OutboundFrame> legacyFrames = new ArrayList<>();
+        if (changes == null) {
+            legacyFrames.add(OutboundFrame.of(tracker.userListMessage()));
+        } else {
+            for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+                legacyFrames.add(OutboundFrame.of(change.getValue()
+                        ? Message.createUserJoinMessage(change.getKey())
+                        : Message.createUserLeaveMessage(change.getKey())));
+            }
+        }
+
+        for (ClientHandler handler : clientManager.getClients()) {
+            if (pendingSyncs.containsKey(handler) || !handler.isConnected()) {
+                continue;
+            }
+            if (handler.isPresenceDeltaSupported()) {
+                handler.sendFrame(deltaFrame);
+            } else {
+                for (OutboundFrame frame : legacyFrames) {
+                    handler.sendFrame(frame);
+                }
+            }
+        }
+    }
+
+    /**
+     * 停止定时刷新（服务器关闭时调用，未发出的通知随之丢弃）
+     */
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
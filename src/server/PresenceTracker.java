@@ -0,0 +1,143 @@
+package server;
+
+import common.Message;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 在线状态版本记录
+ * 每次上线/下线使在线状态纪元加一，并在有界日志中保留最近的变更。
+ * 客户端带着自己最后应用的纪元请求同步时，只返回之后的增量；
+ * 增量比完整列表更大、或所需的变更已被淘汰出日志时，才返回完整快照。
+ *
+ * 起始纪元取服务器启动时刻的微秒数，服务器重启后客户端持有的旧纪元必然早于新的起点，
+ * 从而收到完整快照。本类只记录和计算，在线状态消息由 PresenceBroadcaster 按时间窗口发出。
+ */
+public class PresenceTracker {
+
+    private static final class Change {
+        final long epoch;
+        final String username;
+        final boolean online;
+
+        Change(long epoch, String username, boolean online) {
+            this.epoch = epoch;
+            this.username = username;
+            this.online = online;
+        }
+    }
+
+    private final ClientManager clientManager;
+    private final int logCapacity;
+    private final ArrayDeque<Change> log;   // 最近的变更，按纪元递增
+    private final long baseEpoch;
+    private long epoch;
+
+    public PresenceTracker(ClientManager clientManager, int logCapacity) {
+        this.clientManager = clientManager;
+        this.logCapacity = Math.max(1, logCapacity);
+        this.log = new ArrayDeque<>();
+        this.baseEpoch = System.currentTimeMillis() * 1000;
+        this.epoch = baseEpoch;
+    }
+
+    /**
+     * 从系统属性 chat.presence.logSize 读取日志容量（默认4096条变更）
+     */
+    public static PresenceTracker fromSystemProperties(ClientManager clientManager) {
+        return new PresenceTracker(clientManager, Integer.getInteger("chat.presence.logSize", 4096));
+    }
+
+    /**
+     * 记录用户上线，返回新的纪元
+     */
+    public synchronized long recordJoin(String username) {
+        return record(username, true);
+    }
+
+    /**
+     * 记录用户下线，返回新的纪元
+     */
+    public synchronized long recordLeave(String username) {
+        return record(username, false);
+    }
+
+    private long record(String username, boolean online) {
+        epoch++;
+        log.addLast(new Change(epoch, username, online));
+        if (log.size() > logCapacity) {
+            log.pollFirst();
+        }
+        return epoch;
+    }
+
+    /**
+     * 当前纪元
+     */
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * 生成使持有指定纪元的客户端与当前在线状态一致的同步消息
+     * 增量比完整列表更大、或所需的变更已被淘汰时返回完整快照。
+     * @param since 客户端最后应用的纪元
+     */
+    public synchronized Message syncMessage(long since) {
+        Map<String, Boolean> delta = changesSince(since);
+        if (delta == null || delta.size() > clientManager.getOnlineCount()) {
+            return Message.createPresenceSnapshotMessage(epoch, clientManager.getOnlineUsernames());
+        }
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (Map.Entry<String, Boolean> entry : delta.entrySet()) {
+            (entry.getValue() ? joined : left).add(entry.getKey());
+        }
+        return Message.createPresenceDeltaMessage(since, epoch, joined, left);
+    }
+
+    /**
+     * 完整的在线用户列表消息（发给不支持增量同步的旧客户端）
+     */
+    public synchronized Message userListMessage() {
+        Message msg = Message.createUserListMessage(clientManager.getOnlineUsernames());
+        msg.getContent().put("epoch", epoch);
+        return msg;
+    }
+
+    /**
+     * 指定纪元之后状态发生变化的用户及其当前状态（true为在线）
+     * 同一用户的多次变更只保留最终状态；最终状态与该纪元时相同的（上线后又下线等）整体抵消。
+     * 结果只适用于状态恰好处于该纪元的接收者。
+     * @return 日志中已没有所需的变更时返回null
+     */
+    public synchronized Map<String, Boolean> changesSince(long since) {
+        if (since < baseEpoch || since > epoch) {
+            return null;
+        }
+        Map<String, Boolean> latest = new LinkedHashMap<>();
+        Map<String, Boolean> earliest = new HashMap<>();
+        long oldest = epoch + 1;
+        Iterator<Change> it = log.descendingIterator();
+        while (it.hasNext()) {
+            Change change = it.next();
+            if (change.epoch <= since) {
+                break;
+            }
+            oldest = change.epoch;
+            latest.putIfAbsent(change.username, change.online);
+            earliest.put(change.username, change.online);
+        }
+        if (oldest != since + 1) {
+            return null;
+        }
+        // 最早一次变更之前的状态与之相反，最终状态与其相同即为没有变化
+        latest.entrySet().removeIf(entry -> !entry.getValue().equals(earliest.get(entry.getKey())));
+        return latest;
+    }
+}
@@ -0,0 +1,172 @@
+package server;
+
+import common.MessageType;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务器运行指标
+ * 记录端只做 LongAdder 累加或直方图原子加，可在热点路径上调用；
+ * 连接级的字节数和出站队列积压在导出时从在线连接上读取。
+ * 导出为 Prometheus 文本格式，由 AdminServer 提供给抓取方。
+ */
+public class ServerMetrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final LongAdder[] received;     // 按消息类型计数的入站消息
+    private final LongAdder[] sent;         // 按消息类型计数的已入队出站消息
+    private final LongAdder closedBytesIn;  // 已断开连接累计的字节数，使总量单调递增
+    private final LongAdder closedBytesOut;
+    private final Histogram routeLatencyNanos;
+    private final Histogram fanout;
+
+    public ServerMetrics() {
+        MessageType[] types = MessageType.values();
+        this.received = new LongAdder[types.length];
+        this.sent = new LongAdder[types.length];
+        for (int i = 0; i < types.length; i++) {
+            received[i] = new LongAdder();
+            sent[i] = new LongAdder();
+        }
+        this.closedBytesIn = new LongAdder();
+        this.closedBytesOut = new LongAdder();
+        this.routeLatencyNanos = new Histogram();
+        this.fanout = new Histogram();
+    }
+
+    /**
+     * 收到一条消息
+     */
+    public void recordReceived(MessageType type) {
+        if (type != null) {
+            received[type.ordinal()].increment();
+        }
+    }
+
+    /**
+     * 一条消息进入了某个连接的出站队列
+     */
+    public void recordSent(MessageType type) {
+        sent[type.ordinal()].increment();
+    }
+
+    /**
+     * 一次路由的耗时和实际送达的接收者数
+     */
+    public void recordRoute(long latencyNanos, int recipients) {
+        routeLatencyNanos.record(latencyNanos);
+        fanout.record(recipients);
+    }
+
+    /**
+     * 连接断开，把其字节数并入累计值
+     */
+    public void recordConnectionClosed(long bytesIn, long bytesOut) {
+        closedBytesIn.add(bytesIn);
+        closedBytesOut.add(bytesOut);
+    }
+
+    public Histogram getRouteLatency() {
+        return routeLatencyNanos;
+    }
+
+    public Histogram getFanout() {
+        return fanout;
+    }
+
+    /**
+     * 以 Prometheus 文本格式导出全部指标
+     */
+    public String scrape(ClientManager clientManager) {
+        StringBuilder sb = new StringBuilder(4096);
+
+        header(sb, "chat_online_users", "gauge", "在线用户数");
+        sb.append("chat_online_users ").append(clientManager.getOnlineCount()).append('\n');
+
+        header(sb, "chat_messages_received_total", "counter", "按类型统计的入站消息数");
+        for (MessageType type : MessageType.values()) {
+            sb.append("chat_messages_received_total{type=\"").append(type).append("\"} ")
+              .append(received[type.ordinal()].sum()).append('\n');
+        }
+        header(sb, "chat_messages_sent_total", "counter", "按类型统计的出站消息数（进入出站队列）");
+        for (MessageType type : MessageType.values()) {
+            sb.append("chat_messages_sent_total{type=\"").append(type).append("\"} ")
+              .append(sent[type.ordinal()].sum()).append('\n');
+        }
+
+        summary(sb, "chat_route_latency_seconds", "MessageRouter.routeMessage 耗时",
+                routeLatencyNanos, 1.0 / TimeUnit.SECONDS.toNanos(1));
+        summary(sb, "chat_route_fanout", "每次路由送达的接收者数", fanout, 1);
+
+        StringBuilder bytesIn = new StringBuilder();
+        StringBuilder bytesOut = new StringBuilder();
+        StringBuilder depth = new StringBuilder();
+        StringBuilder queuedBytes = new StringBuilder();
+        StringBuilder dropped = new StringBuilder();
+        long totalIn = closedBytesIn.sum();
+        long totalOut = closedBytesOut.sum();
+        int maxDepth = 0;
+        for (ClientHandler handler : clientManager.getClients()) {
+            String user = escape(handler.getUsername());
+            long in = handler.getBytesIn();
+            long out = handler.getBytesOut();
+            int queued = handler.getOutboundDepth();
+            totalIn += in;
+            totalOut += out;
+            maxDepth = Math.max(maxDepth, queued);
+            sample(bytesIn, "chat_connection_bytes_in_total", user, in);
+            sample(bytesOut, "chat_connection_bytes_out_total", user, out);
+            sample(depth, "chat_outbound_queue_depth", user, queued);
+            sample(queuedBytes, "chat_outbound_queue_bytes", user, handler.getOutboundBytes());
+            sample(dropped, "chat_outbound_dropped_total", user, handler.getOutboundDropped());
+        }
+
+        header(sb, "chat_bytes_in_total", "counter", "全部连接累计入站字节数");
+        sb.append("chat_bytes_in_total ").append(totalIn).append('\n');
+        header(sb, "chat_bytes_out_total", "counter", "全部连接累计出站字节数");
+        sb.append("chat_bytes_out_total ").append(totalOut).append('\n');
+        header(sb, "chat_connection_bytes_in_total", "counter", "每个在线连接的入站字节数");
+        sb.append(bytesIn);
+        header(sb, "chat_connection_bytes_out_total", "counter", "每个在线连接的出站字节数");
+        sb.append(bytesOut);
+        header(sb, "chat_outbound_queue_depth", "gauge", "每个在线连接的出站队列积压帧数");
+        sb.append(depth);
+        header(sb, "chat_outbound_queue_depth_max", "gauge", "出站队列积压帧数的最大值");
+        sb.append("chat_outbound_queue_depth_max ").append(maxDepth).append('\n');
+        header(sb, "chat_outbound_queue_bytes", "gauge", "每个在线连接的出站队列积压字节数");
+        sb.append(queuedBytes);
+        header(sb, "chat_outbound_dropped_total", "counter", "每个在线连接被丢弃的出站帧数");
+        sb.append(dropped);
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String help, Histogram histogram, double scale) {
+        header(sb, name, "summary", help);
+        for (double quantile : QUANTILES) {
+            sb.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+              .append(histogram.getValueAtQuantile(quantile) * scale).append('\n');
+        }
+        sb.append(name).append("_sum ").append(histogram.getSum() * scale).append('\n');
+        sb.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        sb.append(name).append("_max ").append(histogram.getMax() * scale).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String user, long value) {
+        sb.append(name).append("{user=\"").append(user).append("\"} ").append(value).append('\n');
+    }
+
+    /**
+     * 转义标签值中的反斜杠、双引号和换行
+     */
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
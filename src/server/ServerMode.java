@@ -0,0 +1,30 @@
+package server;
+
+/**
+ * 服务器运行模式
+ * 决定客户端连接由哪种I/O模型处理
+ */
+public enum ServerMode {
+    THREAD_POOL,    // 每连接一个线程（缓存线程池 + 阻塞I/O）
+    VIRTUAL_THREAD, // 每连接一个虚拟线程（Java 21+，阻塞I/O不占用平台线程）
+    NIO;            // Selector事件循环（少量I/O线程 + 非阻塞I/O）
+
+    /**
+     * 根据名称解析运行模式（不区分大小写），无法识别时返回null
+     */
+    public static ServerMode parse(String name) {
+        if (name == null) {
+            return null;
+        }
+        String normalized = name.trim().toUpperCase().replace('-', '_');
+        if (normalized.equals("VIRTUAL")) {
+            return VIRTUAL_THREAD;
+        }
+        for (ServerMode mode : values()) {
+            if (mode.name().equals(normalized)) {
+                return mode;
+            }
+        }
+        return null;
+    }
+}
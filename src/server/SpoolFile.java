@@ -0,0 +1,127 @@
+package server;
+
+import common.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 单次文件传输在服务器上的暂存文件
+ * 发送方的分片按到达顺序追加到文件末尾，转发给接收者时直接从文件区间
+ * 传输到Socket（FileChannel.transferTo），文件内容不需要完整驻留在堆中。
+ *
+ * 每个引用该文件的出站帧在入队时加一次引用、写出或丢弃后释放；
+ * 传输结束且没有引用后关闭并删除文件。
+ */
+public class SpoolFile {
+    private static final Log LOG = Log.get("spool", "文件暂存");
+    private final String transferId;
+    private final String owner;
+    private final Path path;
+    private final FileChannel channel;
+    private long size;
+    private int references;
+    private boolean finished;
+    private boolean deleted;
+
+    SpoolFile(String transferId, String owner, Path path) throws IOException {
+        this.transferId = transferId;
+        this.owner = owner;
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * 追加一个分片
+     * @return 分片在文件中的起始位置
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        if (finished) {
+            throw new IOException("文件传输已结束: " + transferId);
+        }
+        long position = size;
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+        size = offset;
+        return position;
+    }
+
+    /**
+     * 把文件区间直接传输到目标通道，返回实际传输的字节数（非阻塞通道可能只传输一部分）
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return channel.transferTo(position, count, target);
+    }
+
+    /**
+     * 读取文件区间（用于需要Base64编码的旧客户端）
+     */
+    public byte[] read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, offset);
+            if (n < 0) {
+                throw new IOException("暂存文件长度不足: " + path);
+            }
+            offset += n;
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 出站帧入队时引用
+     */
+    public synchronized void retain() {
+        references++;
+    }
+
+    /**
+     * 出站帧写出或丢弃后释放
+     */
+    public synchronized void release() {
+        references--;
+        deleteIfUnused();
+    }
+
+    /**
+     * 标记不会再有新的分片，引用全部释放后删除文件
+     */
+    public synchronized void finish() {
+        finished = true;
+        deleteIfUnused();
+    }
+
+    private void deleteIfUnused() {
+        if (!finished || references > 0 || deleted) {
+            return;
+        }
+        deleted = true;
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.warn("删除暂存文件失败", "path", path, "error", e.getMessage());
+        }
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,168 @@
+package server;
+
+import common.Log;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 哈希时间轮
+ * 时间按固定刻度划分，到期时间落在同一刻度的定时任务放在同一个槽中；
+ * 超过一圈的任务记录剩余圈数，每转过一圈减一。
+ * 添加和取消都是O(1)：添加只进入无锁队列，由工作线程在下一刻度挂到槽上；取消只做标记，
+ * 工作线程处理到该槽时丢弃。每个刻度只处理一个槽，与定时任务总数无关，
+ * 因此适合为大量连接各自维护一个超时（精度为一个刻度）。
+ * 到期任务在工作线程中执行，应当尽快返回。
+ */
+public class TimingWheel {
+    private static final Log LOG = Log.get("timer", "时间轮");
+
+    /**
+     * 已安排的定时任务
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;    // 相对时间轮启动时刻的纳秒数
+        private long rounds;            // 还需转过的圈数（仅工作线程访问）
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 取消任务（任务已执行时无效果）
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] slots;
+    private final int mask;
+    private final Queue<Timeout> pending;
+    private final long startNanos;
+    private long tick;                  // 当前刻度（仅工作线程访问）
+    private volatile boolean running;
+    private Thread worker;
+
+    /**
+     * @param tickDuration 刻度长度
+     * @param slotCount 槽数，向上取整为2的幂；一圈的时长为 刻度 × 槽数
+     */
+    public TimingWheel(String name, long tickDuration, TimeUnit unit, int slotCount) {
+        if (tickDuration <= 0 || slotCount <= 0) {
+            throw new IllegalArgumentException("刻度长度和槽数必须为正数");
+        }
+        int size = Integer.highestOneBit(slotCount);
+        if (size < slotCount) {
+            size <<= 1;
+        }
+        this.name = name;
+        this.tickNanos = unit.toNanos(tickDuration);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayDeque<Timeout>[] s = (ArrayDeque<Timeout>[]) new ArrayDeque<?>[size];
+        for (int i = 0; i < size; i++) {
+            s[i] = new ArrayDeque<>();
+        }
+        this.slots = s;
+        this.mask = size - 1;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * 启动工作线程
+     */
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 停止工作线程，未到期的任务不再执行
+     */
+    public synchronized void stop() {
+        running = false;
+        if (worker != null) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * 安排任务在指定延迟后执行（可在任意线程调用）
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(Math.max(0, delay)));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (running) {
+            long wakeUp = startNanos + (tick + 1) * tickNanos;
+            long sleep;
+            while (running && (sleep = wakeUp - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            if (!running) {
+                break;
+            }
+            transferPending();
+            expire(slots[(int) (tick & mask)]);
+            tick++;
+        }
+        pending.clear();
+    }
+
+    /**
+     * 把新安排的任务挂到对应的槽上，已经过期的挂到当前槽
+     */
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long ticks = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.rounds = (ticks - tick) / slots.length;
+            slots[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * 执行槽中本圈到期的任务，其余任务圈数减一
+     */
+    private void expire(ArrayDeque<Timeout> slot) {
+        for (int i = slot.size(); i > 0; i--) {
+            Timeout timeout = slot.poll();
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                slot.add(timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                LOG.warn("定时任务出错", "wheel", name, "error", e);
+            }
+        }
+    }
+}
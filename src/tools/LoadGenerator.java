@@ -0,0 +1,604 @@
+package tools;
+
+import common.*;
+import server.Histogram;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无界面压测工具
+ * 按登录速率建立N个模拟用户连接到服务器，使用与客户端相同的协议（登录协商帧格式、
+ * 在线状态增量、心跳），之后每个用户按思考时间随机发送文本/图片/文件消息，
+ * 目标按比例在私聊和所在群组之间选择。消息中携带发送时刻，接收方据此统计端到端送达延迟。
+ * 运行期间定期输出吞吐和延迟，结束时输出汇总：吞吐、延迟分位数、丢失和错误计数。
+ *
+ * 用法: java -cp ... tools.LoadGenerator [--选项=值 ...]，--help 查看全部选项
+ */
+public class LoadGenerator {
+    private static final String SENT_KEY = "sentMicros";   // 消息中携带的发送时刻（相对压测开始的微秒数）
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * 压测参数
+     */
+    static class Config {
+        String host = "127.0.0.1";
+        int port = 8888;
+        int users = 1000;
+        int loginRate = 200;            // 每秒登录的用户数
+        long thinkMillis = 1000;        // 两次发送之间的平均思考时间（指数分布）
+        int textWeight = 90;            // 消息类型的权重
+        int imageWeight = 8;
+        int fileWeight = 2;
+        int imageBytes = 64 * 1024;
+        int fileBytes = 256 * 1024;
+        int groupSize = 20;             // 每个群组的人数，1表示不建群
+        double groupRatio = 0.5;        // 发往群组的消息比例
+        int durationSeconds = 60;
+        int reportSeconds = 5;
+        int senderThreads = 4;
+        boolean binary = true;          // 是否协商二进制帧
+
+        static Config parse(String[] args) {
+            Config config = new Config();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("无效的参数: " + arg);
+                }
+                String key = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                switch (key) {
+                    case "host": config.host = value; break;
+                    case "port": config.port = Integer.parseInt(value); break;
+                    case "users": config.users = Integer.parseInt(value); break;
+                    case "loginRate": config.loginRate = Integer.parseInt(value); break;
+                    case "thinkMillis": config.thinkMillis = Long.parseLong(value); break;
+                    case "mix": config.parseMix(value); break;
+                    case "imageBytes": config.imageBytes = Integer.parseInt(value); break;
+                    case "fileBytes": config.fileBytes = Integer.parseInt(value); break;
+                    case "groupSize": config.groupSize = Integer.parseInt(value); break;
+                    case "groupRatio": config.groupRatio = Double.parseDouble(value); break;
+                    case "duration": config.durationSeconds = Integer.parseInt(value); break;
+                    case "report": config.reportSeconds = Integer.parseInt(value); break;
+                    case "senderThreads": config.senderThreads = Integer.parseInt(value); break;
+                    case "framing": config.binary = WireFormat.fromWireName(value) == WireFormat.BINARY; break;
+                    default: throw new IllegalArgumentException("未知的参数: " + key);
+                }
+            }
+            if (config.users < 2 || config.loginRate < 1 || config.textWeight + config.imageWeight + config.fileWeight <= 0) {
+                throw new IllegalArgumentException("用户数至少为2，登录速率和消息权重必须为正");
+            }
+            config.groupSize = Math.max(1, Math.min(config.groupSize, config.users));
+            return config;
+        }
+
+        /**
+         * 解析消息类型权重，如 text=90,image=8,file=2
+         */
+        private void parseMix(String value) {
+            textWeight = 0;
+            imageWeight = 0;
+            fileWeight = 0;
+            for (String part : value.split(",")) {
+                String[] kv = part.split(":|=");
+                int weight = Integer.parseInt(kv[1].trim());
+                switch (kv[0].trim().toLowerCase()) {
+                    case "text": textWeight = weight; break;
+                    case "image": imageWeight = weight; break;
+                    case "file": fileWeight = weight; break;
+                    default: throw new IllegalArgumentException("未知的消息类型: " + kv[0]);
+                }
+            }
+        }
+    }
+
+    private final Config config;
+    private final long baseNanos;
+    private final List<SimulatedUser> users;
+    private final List<String> onlineNames;
+    private final Map<String, Integer> groupSizes;
+    private final ScheduledExecutorService scheduler;
+    private final byte[] imagePayload;
+    private final byte[] filePayload;
+    private final Histogram latency;
+    private final AtomicReference<Histogram> intervalLatency;
+    private final LongAdder[] sentByType;
+    private final LongAdder expected;
+    private final LongAdder delivered;
+    private final LongAdder deliveredBytes;
+    private final LongAdder loginFailures;
+    private final LongAdder disconnects;
+    private final LongAdder serverErrors;
+    private final Map<String, LongAdder> errorReasons;
+    private final AtomicInteger loggedIn;
+    private final AtomicInteger groupsJoined;
+    private final PrintStream console;
+    private volatile boolean sending;
+    private volatile boolean finished;      // 压测结束，之后的断开不再计为错误
+
+    public LoadGenerator(Config config) {
+        this.config = config;
+        this.baseNanos = System.nanoTime();
+        this.users = new ArrayList<>(config.users);
+        this.onlineNames = new CopyOnWriteArrayList<>();
+        this.groupSizes = new ConcurrentHashMap<>();
+        this.scheduler = Executors.newScheduledThreadPool(config.senderThreads, r -> {
+            Thread thread = new Thread(r, "load-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Random random = new Random(42);
+        this.imagePayload = new byte[config.imageBytes];
+        this.filePayload = new byte[config.fileBytes];
+        random.nextBytes(imagePayload);
+        random.nextBytes(filePayload);
+        this.latency = new Histogram();
+        this.intervalLatency = new AtomicReference<>(new Histogram());
+        this.sentByType = new LongAdder[] {new LongAdder(), new LongAdder(), new LongAdder()};
+        this.expected = new LongAdder();
+        this.delivered = new LongAdder();
+        this.deliveredBytes = new LongAdder();
+        this.loginFailures = new LongAdder();
+        this.disconnects = new LongAdder();
+        this.serverErrors = new LongAdder();
+        this.errorReasons = new ConcurrentHashMap<>();
+        this.loggedIn = new AtomicInteger();
+        this.groupsJoined = new AtomicInteger();
+        this.console = System.out;
+    }
+
+    /**
+     * 单个模拟用户：一个连接、一个读线程；发送由共享的调度线程池完成
+     */
+    private class SimulatedUser implements Runnable {
+        final String username;
+        final List<String> groups = new CopyOnWriteArrayList<>();
+        Socket socket;
+        FrameInput input;
+        OutputStream output;
+        volatile WireFormat format = WireFormat.JSON_LINE;
+        volatile boolean connected;
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        SimulatedUser(String username) {
+            this.username = username;
+        }
+
+        /**
+         * 连接并登录，登录成功后启动读线程
+         */
+        void connect() {
+            try {
+                socket = new Socket(config.host, config.port);
+                socket.setTcpNoDelay(true);
+                input = new FrameInput(socket.getInputStream());
+                output = new BufferedOutputStream(socket.getOutputStream());
+                Message login = Message.createLoginMessage(username);
+                if (config.binary) {
+                    login.getContent().put(WireFormat.CONTENT_KEY, WireFormat.BINARY.getWireName());
+                }
+                login.getContent().put("presenceEpoch", 0L);
+                send(login);
+
+                Message response;
+                while ((response = input.read()) != null && response.getType() != MessageType.LOGIN_RESPONSE) {
+                    // 登录响应之前的推送直接丢弃
+                }
+                Boolean success = response != null ? response.getContentBoolean("success") : null;
+                if (success == null || !success) {
+                    recordError(response != null ? response.getContentString("message") : "登录时连接关闭");
+                    loginFailures.increment();
+                    socket.close();
+                    return;
+                }
+                WireFormat negotiated = WireFormat.fromWireName(response.getContentString(WireFormat.CONTENT_KEY));
+                input.setFormat(negotiated);
+                format = negotiated;
+                connected = true;
+                onlineNames.add(username);
+                loggedIn.incrementAndGet();
+                Thread reader = new Thread(null, this, "load-" + username, 256 * 1024);
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException | RuntimeException e) {
+                recordError("连接失败: " + e.getMessage());
+                loginFailures.increment();
+                close();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (connected) {
+                    Message message = input.read();
+                    if (message == null) {
+                        break;
+                    }
+                    onMessage(message);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (connected) {
+                    recordError("读取失败: " + e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void onMessage(Message message) {
+            switch (message.getType()) {
+                case TEXT:
+                case IMAGE:
+                case FILE_DATA:
+                    Long sent = message.getContentLong(SENT_KEY);
+                    if (sent != null) {
+                        long micros = nowMicros() - sent;
+                        latency.record(micros);
+                        intervalLatency.get().record(micros);
+                        delivered.increment();
+                        deliveredBytes.add(message.getBinaryLength());
+                    }
+                    break;
+                case GROUP_CREATED:
+                    onGroupCreated(message);
+                    break;
+                case ERROR:
+                    serverErrors.increment();
+                    recordError(message.getContentString("error"));
+                    break;
+                default:
+                    // 在线状态、心跳等
+                    break;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void onGroupCreated(Message message) {
+            Object group = message.getContent().get("group");
+            if (group instanceof Map) {
+                Map<String, Object> map = (Map<String, Object>) group;
+                String groupId = String.valueOf(map.get("groupId"));
+                Object members = map.get("members");
+                groupSizes.put(groupId, members instanceof List ? ((List<?>) members).size() : 1);
+                groups.add(groupId);
+                groupsJoined.incrementAndGet();
+            }
+        }
+
+        /**
+         * 发送一条消息（多个调度线程可能同时发送，按连接串行）
+         */
+        synchronized void send(Message message) throws IOException {
+            output.write(FrameCodec.encode(message, format));
+            output.flush();
+        }
+
+        /**
+         * 按消息类型权重和群聊比例发送一条压测消息，然后安排下一次
+         */
+        void sendNext() {
+            if (!sending || !connected) {
+                return;
+            }
+            boolean next;
+            try {
+                next = sendOne();
+            } catch (RuntimeException e) {
+                // 调度线程会吞掉未捕获的异常，这里记录下来并继续发送，避免该用户悄悄停止
+                recordError("发送异常: " + e);
+                next = true;
+            }
+            if (next) {
+                schedule(this);
+            }
+        }
+
+        /**
+         * @return 是否继续安排下一次发送（发送失败、连接已关闭时为false）
+         */
+        private boolean sendOne() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            Message message;
+            int recipients;
+            String target;
+            Message.TargetType targetType;
+            if (!groups.isEmpty() && random.nextDouble() < config.groupRatio) {
+                target = groups.get(random.nextInt(groups.size()));
+                targetType = Message.TargetType.GROUP;
+                recipients = groupSizes.getOrDefault(target, 1) - 1;
+            } else {
+                target = randomOnline(random);
+                if (target == null || target.equals(username)) {
+                    return true;
+                }
+                targetType = Message.TargetType.USER;
+                recipients = 1;
+            }
+
+            int pick = random.nextInt(config.textWeight + config.imageWeight + config.fileWeight);
+            int typeIndex;
+            if (pick < config.textWeight) {
+                message = Message.createTextMessage(username, target, targetType, "压测消息 " + random.nextInt());
+                typeIndex = 0;
+            } else if (pick < config.textWeight + config.imageWeight) {
+                message = Message.createImageMessage(username, target, targetType, "load.png", imagePayload);
+                typeIndex = 1;
+            } else {
+                // 不带传输ID的单分片文件，由服务器直接路由
+                message = Message.createFileDataMessage(username, target, targetType, "load.bin", filePayload, 0, 1);
+                typeIndex = 2;
+            }
+            message.getContent().put(SENT_KEY, nowMicros());
+            try {
+                send(message);
+                sentByType[typeIndex].increment();
+                expected.add(recipients);
+            } catch (IOException e) {
+                recordError("发送失败: " + e.getMessage());
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        void sendQuietly(Message message) {
+            if (!connected) {
+                return;
+            }
+            try {
+                send(message);
+            } catch (IOException e) {
+                recordError("发送失败: " + e.getMessage());
+                close();
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (connected && !finished) {
+                disconnects.increment();
+            }
+            connected = false;
+            onlineNames.remove(username);
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException ignored) {
+                // 已关闭
+            }
+        }
+    }
+
+    /**
+     * 运行一次完整的压测：登录、建群、发送、汇总
+     */
+    public void run() throws InterruptedException {
+        console.printf("[压测] 目标 %s:%d, 用户 %d, 登录速率 %d/s, 帧格式 %s%n",
+                config.host, config.port, config.users, config.loginRate, config.binary ? "binary" : "json");
+        login();
+        createGroups();
+
+        console.printf("[压测] 开始发送: 思考时间 %dms, 类型权重 text=%d image=%d file=%d, 群聊比例 %.2f, 持续 %ds%n",
+                config.thinkMillis, config.textWeight, config.imageWeight, config.fileWeight,
+                config.groupRatio, config.durationSeconds);
+        sending = true;
+        long startNanos = System.nanoTime();
+        for (SimulatedUser user : users) {
+            if (user.connected) {
+                schedule(user);
+            }
+        }
+        ScheduledFuture<?> heartbeat = scheduler.scheduleAtFixedRate(() -> {
+            for (SimulatedUser user : users) {
+                user.sendQuietly(Message.createHeartbeatMessage());
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+
+        long lastDelivered = 0;
+        long lastSent = 0;
+        long deadline = startNanos + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+        while (System.nanoTime() < deadline) {
+            long sleep = Math.min(TimeUnit.SECONDS.toMillis(config.reportSeconds),
+                    TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+            Thread.sleep(Math.max(1, sleep));
+            Histogram interval = intervalLatency.getAndSet(new Histogram());
+            long sentNow = totalSent();
+            long deliveredNow = delivered.sum();
+            double seconds = sleep / 1000.0;
+            console.printf("[压测] %4ds 在线 %d 发送 %.0f/s 送达 %.0f/s p50 %dus p99 %dus max %dus 错误 %d%n",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos), onlineNames.size(),
+                    (sentNow - lastSent) / seconds, (deliveredNow - lastDelivered) / seconds,
+                    interval.getValueAtQuantile(0.5), interval.getValueAtQuantile(0.99), interval.getMax(),
+                    errorCount());
+            lastSent = sentNow;
+            lastDelivered = deliveredNow;
+        }
+        sending = false;
+        heartbeat.cancel(false);
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        // 等待在途消息送达
+        Thread.sleep(2000);
+        printSummary(elapsedNanos);
+
+        finished = true;
+        scheduler.shutdownNow();
+        for (SimulatedUser user : users) {
+            user.sendQuietly(Message.createLogoutMessage(user.username));
+            user.close();
+        }
+    }
+
+    /**
+     * 按登录速率依次登录全部用户（登录在多个线程中并行，避免单个慢响应拖慢速率）
+     */
+    private void login() throws InterruptedException {
+        ExecutorService loginPool = Executors.newFixedThreadPool(16);
+        long startNanos = System.nanoTime();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / config.loginRate;
+        for (int i = 0; i < config.users; i++) {
+            long due = startNanos + i * intervalNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            SimulatedUser user = new SimulatedUser("load-" + i);
+            users.add(user);
+            loginPool.execute(user::connect);
+        }
+        loginPool.shutdown();
+        loginPool.awaitTermination(2, TimeUnit.MINUTES);
+        console.printf("[压测] 登录完成: 成功 %d, 失败 %d, 耗时 %.1fs%n", loggedIn.get(), loginFailures.sum(),
+                (System.nanoTime() - startNanos) / 1e9);
+    }
+
+    /**
+     * 把用户按顺序分成若干群组，由每组第一个用户创建，等待成员收到建群通知
+     */
+    private void createGroups() throws InterruptedException {
+        if (config.groupSize < 2) {
+            return;
+        }
+        int expectedJoins = 0;
+        for (int first = 0; first + 1 < users.size(); first += config.groupSize) {
+            List<String> members = new ArrayList<>();
+            int end = Math.min(first + config.groupSize, users.size());
+            for (int i = first; i < end; i++) {
+                if (users.get(i).connected) {
+                    members.add(users.get(i).username);
+                }
+            }
+            SimulatedUser creator = users.get(first);
+            if (members.size() < 2 || !creator.connected) {
+                continue;
+            }
+            creator.sendQuietly(Message.createGroupMessage(creator.username, "load-group-" + first, members));
+            expectedJoins += members.size();
+        }
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (groupsJoined.get() < expectedJoins && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        console.printf("[压测] 建群完成: %d 个群组, 每组最多 %d 人%n", groupSizes.size(), config.groupSize);
+    }
+
+    private void schedule(SimulatedUser user) {
+        double u = ThreadLocalRandom.current().nextDouble();
+        long delayMicros = (long) (-config.thinkMillis * 1000 * Math.log(1 - u));
+        try {
+            scheduler.schedule(user::sendNext, delayMicros, TimeUnit.MICROSECONDS);
+        } catch (RejectedExecutionException e) {
+            // 压测已结束
+        }
+    }
+
+    /**
+     * 随机选一个在线用户，没有在线用户时返回null
+     * 其他用户可能同时下线，列表在取得大小之后变短时重新选择
+     */
+    private String randomOnline(ThreadLocalRandom random) {
+        while (true) {
+            int size = onlineNames.size();
+            if (size == 0) {
+                return null;
+            }
+            try {
+                return onlineNames.get(random.nextInt(size));
+            } catch (IndexOutOfBoundsException e) {
+                // 重新选择
+            }
+        }
+    }
+
+    private long nowMicros() {
+        return (System.nanoTime() - baseNanos) / 1000;
+    }
+
+    private long totalSent() {
+        return sentByType[0].sum() + sentByType[1].sum() + sentByType[2].sum();
+    }
+
+    private long errorCount() {
+        return serverErrors.sum() + disconnects.sum() + loginFailures.sum();
+    }
+
+    private void recordError(String reason) {
+        errorReasons.computeIfAbsent(String.valueOf(reason), r -> new LongAdder()).increment();
+    }
+
+    private void printSummary(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long sent = totalSent();
+        long expectedDeliveries = expected.sum();
+        long deliveredCount = delivered.sum();
+        console.println();
+        console.println("================ 压测结果 ================");
+        console.printf("用户: %d, 登录成功 %d, 结束时在线 %d, 持续 %.1fs%n",
+                config.users, loggedIn.get(), onlineNames.size(), seconds);
+        console.printf("发送: %d 条 (TEXT %d / IMAGE %d / FILE %d), %.1f 条/s%n",
+                sent, sentByType[0].sum(), sentByType[1].sum(), sentByType[2].sum(), sent / seconds);
+        console.printf("送达: %d / 应送达 %d (未送达 %d), %.1f 条/s, 数据 %.1f MB/s%n",
+                deliveredCount, expectedDeliveries, Math.max(0, expectedDeliveries - deliveredCount),
+                deliveredCount / seconds, deliveredBytes.sum() / seconds / (1024 * 1024));
+        StringBuilder quantiles = new StringBuilder();
+        for (double q : QUANTILES) {
+            quantiles.append(String.format(" p%s=%d", trim(q * 100), latency.getValueAtQuantile(q)));
+        }
+        console.printf("端到端延迟 (us):%s max=%d%n", quantiles, latency.getMax());
+        console.printf("错误: 登录失败 %d, 连接断开 %d, 服务器错误消息 %d%n",
+                loginFailures.sum(), disconnects.sum(), serverErrors.sum());
+        errorReasons.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+                .limit(5)
+                .forEach(e -> console.printf("  %6d  %s%n", e.getValue().sum(), e.getKey()));
+    }
+
+    private static String trim(double value) {
+        return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    private static void printUsage() {
+        System.out.println("用法: java -cp ... tools.LoadGenerator [--选项=值 ...]");
+        System.out.println("  --host=127.0.0.1      服务器地址");
+        System.out.println("  --port=8888           服务器端口");
+        System.out.println("  --users=1000          模拟用户数");
+        System.out.println("  --loginRate=200       每秒登录的用户数");
+        System.out.println("  --thinkMillis=1000    每个用户两次发送之间的平均间隔（指数分布）");
+        System.out.println("  --mix=text=90,image=8,file=2  消息类型权重");
+        System.out.println("  --imageBytes=65536    图片大小");
+        System.out.println("  --fileBytes=262144    文件大小（单分片）");
+        System.out.println("  --groupSize=20        每个群组的人数，1表示不建群");
+        System.out.println("  --groupRatio=0.5      发往群组的消息比例");
+        System.out.println("  --duration=60         发送阶段时长（秒）");
+        System.out.println("  --report=5            进度输出间隔（秒）");
+        System.out.println("  --senderThreads=4     发送线程数");
+        System.out.println("  --framing=binary      帧格式 (binary / json)");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (Arrays.asList(args).contains("--help")) {
+            printUsage();
+            return;
+        }
+        Config config;
+        try {
+            config = Config.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            return;
+        }
+        new LoadGenerator(config).run();
+    }
+}
@@ -0,0 +1,295 @@
+package tools;
+
+import common.*;
+import server.ChatServer;
+import server.ServerMode;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * 服务器运行模式对比工具
+ * 依次以各运行模式在进程内启动服务器，建立指定数量的空闲连接后测量：
+ * 保持的连接数、线程数、每连接堆内存与RSS、以及一对一消息的路由延迟(p50/p99)。
+ *
+ * 用法: java -cp ... tools.ModeComparison [连接数] [探测消息数] [模式...]
+ */
+public class ModeComparison {
+    private static final int DEFAULT_CONNECTIONS = 2000;
+    private static final int DEFAULT_PROBES = 2000;
+
+    private final int connections;
+    private final int probes;
+    private final PrintStream console;
+
+    public ModeComparison(int connections, int probes) {
+        this.connections = connections;
+        this.probes = probes;
+        this.console = System.out;
+    }
+
+    /**
+     * 单个模式的测量结果
+     */
+    static class Result {
+        ServerMode mode;
+        int held;
+        int threads;
+        long heapPerConnection;
+        long rssPerConnection;
+        long p50Micros;
+        long p99Micros;
+        long maxMicros;
+    }
+
+    public Result run(ServerMode mode) throws Exception {
+        int port = findFreePort();
+        ChatServer server = new ChatServer(port, mode);
+        Thread serverThread = new Thread(server::start, "server-" + mode);
+        serverThread.setDaemon(true);
+
+        // 屏蔽服务器日志，避免控制台输出影响测量
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+        Selector selector = Selector.open();
+        List<SocketChannel> idle = new ArrayList<>();
+        Thread drainer = null;
+        try {
+            serverThread.start();
+            waitForServer(port);
+
+            long heapBefore = usedHeapAfterGc();
+            long rssBefore = readRssBytes();
+            int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            // 空闲连接：全部注册到一个Selector上，由单个线程丢弃服务器推送的数据
+            drainer = startDrainer(selector);
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                channel.write(frame(Message.createLoginMessage("idle-" + i)));
+                channel.configureBlocking(false);
+                idle.add(channel);
+                channel.register(selector, SelectionKey.OP_READ);
+            }
+            waitForOnline(server, connections);
+
+            Result result = new Result();
+            result.mode = mode;
+            result.held = server.getClientManager().getOnlineCount();
+            result.threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+            result.heapPerConnection = (usedHeapAfterGc() - heapBefore) / Math.max(1, result.held);
+            long rssAfter = readRssBytes();
+            result.rssPerConnection = rssBefore < 0 || rssAfter < 0
+                    ? -1 : Math.max(0, rssAfter - rssBefore) / Math.max(1, result.held);
+
+            measureLatency(port, result);
+            return result;
+        } finally {
+            if (drainer != null) {
+                drainer.interrupt();
+            }
+            for (SocketChannel channel : idle) {
+                channel.close();
+            }
+            selector.close();
+            server.stop();
+            // 等待连接处理线程退出后再恢复控制台输出
+            Thread.sleep(500);
+            System.setOut(console);
+            System.setErr(console);
+        }
+    }
+
+    /**
+     * 一问一答方式测量路由延迟：发送者发出一条消息后等待接收者收到再发下一条
+     */
+    private void measureLatency(int port, Result result) throws IOException {
+        try (Socket senderSocket = new Socket("127.0.0.1", port);
+             Socket receiverSocket = new Socket("127.0.0.1", port)) {
+            senderSocket.setTcpNoDelay(true);
+            receiverSocket.setTcpNoDelay(true);
+            PrintWriter sender = new PrintWriter(new OutputStreamWriter(
+                    senderSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+            PrintWriter receiverOut = new PrintWriter(new OutputStreamWriter(
+                    receiverSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader receiver = new BufferedReader(new InputStreamReader(
+                    receiverSocket.getInputStream(), StandardCharsets.UTF_8));
+            drainInBackground(senderSocket);
+
+            sender.println(JsonUtils.toJson(Message.createLoginMessage("probe-sender")));
+            receiverOut.println(JsonUtils.toJson(Message.createLoginMessage("probe-receiver")));
+
+            long[] samples = new long[probes];
+            for (int i = 0; i < probes; i++) {
+                long start = System.nanoTime();
+                sender.println(JsonUtils.toJson(Message.createTextMessage(
+                        "probe-sender", "probe-receiver", Message.TargetType.USER, "probe-" + i)));
+                String line;
+                while ((line = receiver.readLine()) != null) {
+                    if (line.contains("\"TEXT\"")) {
+                        break;
+                    }
+                }
+                samples[i] = (System.nanoTime() - start) / 1000;
+            }
+            Arrays.sort(samples);
+            result.p50Micros = percentile(samples, 0.50);
+            result.p99Micros = percentile(samples, 0.99);
+            result.maxMicros = samples[samples.length - 1];
+        }
+    }
+
+    private Thread startDrainer(Selector selector) {
+        Thread thread = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            while (!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+                try {
+                    selector.select(100);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        buffer.clear();
+                        if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                            key.cancel();
+                        }
+                    }
+                } catch (IOException | ClosedSelectorException e) {
+                    return;
+                }
+            }
+        }, "idle-drainer");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void drainInBackground(Socket socket) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            try (InputStream in = socket.getInputStream()) {
+                while (in.read(buffer) >= 0) {
+                    // 丢弃
+                }
+            } catch (IOException ignored) {
+                // 连接关闭
+            }
+        }, "probe-drainer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static ByteBuffer frame(Message message) {
+        return ByteBuffer.wrap((JsonUtils.toJson(message) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void waitForServer(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("服务器未能在端口 " + port + " 上启动");
+    }
+
+    private static void waitForOnline(ChatServer server, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 120_000;
+        while (server.getClientManager().getOnlineCount() < expected
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * 读取进程常驻内存(Linux)，包含线程栈等堆外内存；其他平台返回-1
+     */
+    private static long readRssBytes() {
+        Path status = Paths.get("/proc/self/status");
+        if (!Files.isReadable(status)) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    String kb = line.substring("VmRSS:".length()).replace("kB", "").trim();
+                    return Long.parseLong(kb) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private void printResults(List<Result> results) {
+        console.println();
+        console.printf("连接数: %d, 探测消息数: %d, JVM: %s%n",
+                connections, probes, System.getProperty("java.version"));
+        console.printf("%-16s %8s %8s %14s %14s %10s %10s %10s%n",
+                "模式", "保持连接", "新增线程", "堆/连接(B)", "RSS/连接(B)", "p50(us)", "p99(us)", "max(us)");
+        for (Result r : results) {
+            console.printf("%-16s %8d %8d %14d %14s %10d %10d %10d%n",
+                    r.mode, r.held, r.threads, r.heapPerConnection,
+                    r.rssPerConnection < 0 ? "n/a" : String.valueOf(r.rssPerConnection),
+                    r.p50Micros, r.p99Micros, r.maxMicros);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONNECTIONS;
+        int probes = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PROBES;
+
+        List<ServerMode> modes = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            ServerMode mode = ServerMode.parse(args[i]);
+            if (mode == null) {
+                System.err.println("无效的运行模式: " + args[i]);
+                return;
+            }
+            modes.add(mode);
+        }
+        if (modes.isEmpty()) {
+            modes.addAll(Arrays.asList(ServerMode.values()));
+        }
+
+        ModeComparison comparison = new ModeComparison(connections, probes);
+        List<Result> results = new ArrayList<>();
+        for (ServerMode mode : modes) {
+            if (mode == ServerMode.VIRTUAL_THREAD && !ChatServer.isVirtualThreadSupported()) {
+                System.out.println("[对比] 跳过 " + mode + ": 当前JVM不支持虚拟线程 (需要Java 21+)");
+                continue;
+            }
+            System.out.println("[对比] 测量模式 " + mode + " ...");
+            results.add(comparison.run(mode));
+        }
+        comparison.printResults(results);
+    }
+}
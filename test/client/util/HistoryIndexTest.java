@@ -0,0 +1,147 @@
+package client.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * 历史索引与日志不一致时的补齐和重建
+ */
+class HistoryIndexTest {
+    @TempDir
+    Path dir;
+
+    private Path log;
+
+    @BeforeEach
+    void setUp() {
+        log = dir.resolve("alice.txt");
+    }
+
+    private void appendLines(int from, int count) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = from; i < from + count; i++) {
+            text.append("{\"text\":\"第").append(i).append("行\"}\n");
+        }
+        Files.write(log, text.toString().getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private long openIndex() throws IOException {
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            HistoryIndex index = HistoryIndex.open(log, channel);
+            try {
+                return index.count();
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * 校验索引的每一项都正好是日志中一个换行符之后的位置
+     */
+    private void assertMatchesLog() throws IOException {
+        byte[] bytes = Files.readAllBytes(log);
+        List<Long> ends = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                ends.add((long) i + 1);
+            }
+        }
+        HistoryIndex.View view = HistoryIndex.View.open(log);
+        assertEquals(ends.size(), view.count());
+        for (int line = 0; line < ends.size(); line++) {
+            assertEquals(ends.get(line), view.end(line));
+            assertEquals(line == 0 ? 0 : ends.get(line - 1), view.start(line));
+        }
+        assertEquals(0, view.lines(0));
+        assertEquals(ends.size(), view.lines(bytes.length));
+        if (ends.size() > 1) {
+            // 行中间的位置只计入之前的完整行
+            assertEquals(1, view.lines(ends.get(1) - 1));
+        }
+    }
+
+    private void writeIndex(long... ends) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ends.length * HistoryIndex.ENTRY_BYTES);
+        for (long end : ends) {
+            buffer.putLong(end);
+        }
+        Files.write(HistoryIndex.indexFile(log), buffer.array());
+    }
+
+    @Test
+    void missingIndexIsBuiltAndViewIsNullBefore() throws IOException {
+        appendLines(0, 100);
+        assertNull(HistoryIndex.View.open(log));
+        assertEquals(100, openIndex());
+        assertMatchesLog();
+    }
+
+    @Test
+    void laggingIndexIsCaughtUp() throws IOException {
+        appendLines(0, 10);
+        assertEquals(10, openIndex());
+        // 旧版本或崩溃前只写了日志没有写索引
+        appendLines(10, 25);
+        assertEquals(35, openIndex());
+        assertMatchesLog();
+    }
+
+    @Test
+    void indexAheadOfLogIsRebuilt() throws IOException {
+        appendLines(0, 20);
+        assertEquals(20, openIndex());
+        long size = Files.size(log);
+        // 日志被截短（例如从备份恢复），索引指向日志末尾之后
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(size / 2);
+        }
+        appendLines(100, 1);
+        openIndex();
+        assertMatchesLog();
+    }
+
+    @Test
+    void corruptIndexIsRebuilt() throws IOException {
+        appendLines(0, 5);
+        // 最后一项没有落在换行符之后
+        writeIndex(Files.size(log) / 5, Files.size(log) - 3);
+        assertEquals(5, openIndex());
+        assertMatchesLog();
+    }
+
+    @Test
+    void partialIndexEntryIsDropped() throws IOException {
+        appendLines(0, 8);
+        assertEquals(8, openIndex());
+        Files.write(HistoryIndex.indexFile(log), new byte[3], StandardOpenOption.APPEND);
+        assertEquals(8, openIndex());
+        assertMatchesLog();
+    }
+
+    @Test
+    void tornLogTailIsTerminated() throws IOException {
+        appendLines(0, 3);
+        assertEquals(3, openIndex());
+        // 崩溃时写了一半的行：补上换行符作为单独一行，之后追加的行不会与它相连
+        Files.write(log, "{\"text\":\"半".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        assertEquals(4, openIndex());
+        byte[] bytes = Files.readAllBytes(log);
+        assertEquals('\n', bytes[bytes.length - 1]);
+        assertMatchesLog();
+    }
+}
@@ -0,0 +1,141 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 消息编解码与Gson的JSON格式兼容
+ */
+class MessageCodecTest {
+    private static final String TEXT = "你好 😀 \"quoted\" back\\slash\n\ttab\r\u0001\u001f   <b>&'=";
+    private static final Gson GSON = new Gson();
+
+    private static Message sample() {
+        Message message = Message.createFileChunkMessage("alice", "bob", Message.TargetType.USER,
+                "t-1", "报告 \"v2\".pdf", new byte[0], 3, 7);
+        message.setText(TEXT);
+        message.setSize(5_000_000_000L);
+        message.setSeq(Long.MAX_VALUE);
+        message.getContent().put("negative", -42L);
+        message.getContent().put("min", Long.MIN_VALUE + 1);
+        message.getContent().put("ratio", 3.25);
+        message.getContent().put("huge", 1.5e300);
+        message.getContent().put("flag", true);
+        message.getContent().put("note", "键 \u0000 值");
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        message.getContent().remove("data");
+        message.setBinaryData(data);
+        return message;
+    }
+
+    private static String encode(Message message) {
+        byte[] line = MessageCodec.encodeJsonLine(message);
+        assertEquals('\n', line[line.length - 1]);
+        return new String(line, 0, line.length - 1, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void encodedJsonParsesWithGson() {
+        Message message = sample();
+        JsonObject json = GSON.fromJson(encode(message), JsonObject.class);
+        assertEquals("FILE_DATA", json.get("type").getAsString());
+        assertEquals(message.getTimestamp(), json.get("timestamp").getAsLong());
+        JsonObject content = json.getAsJsonObject("content");
+        assertEquals(TEXT, content.get("text").getAsString());
+        assertEquals("报告 \"v2\".pdf", content.get("filename").getAsString());
+        assertEquals("t-1", content.get("transferId").getAsString());
+        assertEquals(5_000_000_000L, content.get("size").getAsLong());
+        assertEquals(Long.MAX_VALUE, content.get("seq").getAsLong());
+        assertEquals(3, content.get("chunkIndex").getAsInt());
+        assertEquals(7, content.get("totalChunks").getAsInt());
+        assertEquals(-42L, content.get("negative").getAsLong());
+        assertEquals(Long.MIN_VALUE + 1, content.get("min").getAsLong());
+        assertEquals(3.25, content.get("ratio").getAsDouble());
+        assertEquals(1.5e300, content.get("huge").getAsDouble());
+        assertEquals("键 \u0000 值", content.get("note").getAsString());
+        assertArrayEquals(message.getBinaryData(), Base64.getDecoder().decode(content.get("data").getAsString()));
+    }
+
+    @Test
+    void roundTripKeepsTypedFieldsAndContent() {
+        Message message = sample();
+        byte[] line = MessageCodec.encodeJsonLine(message);
+        Message decoded = MessageCodec.decode(line, 0, line.length - 1);
+        assertEquals(message.getType(), decoded.getType());
+        assertEquals(message.getTimestamp(), decoded.getTimestamp());
+        assertEquals(TEXT, decoded.getText());
+        assertEquals("报告 \"v2\".pdf", decoded.getFilename());
+        assertEquals("t-1", decoded.getTransferId());
+        assertEquals(5_000_000_000L, decoded.getSize());
+        assertEquals(Long.MAX_VALUE, decoded.getSeq());
+        assertEquals(3, decoded.getChunkIndex());
+        assertEquals(7, decoded.getTotalChunks());
+        assertEquals(-42L, decoded.getContentLong("negative"));
+        assertEquals(Long.MIN_VALUE + 1, decoded.getContentLong("min"));
+        assertEquals(3.25, decoded.getContent().get("ratio"));
+        assertEquals(1.5e300, decoded.getContent().get("huge"));
+        assertEquals(Boolean.TRUE, decoded.getContentBoolean("flag"));
+        assertArrayEquals(message.getBinaryData(), decoded.getDataBytes());
+        // 有类型的字段不会在 content 映射中重复出现
+        assertFalse(decoded.getContent().containsKey("text"));
+        // 再编码的结果与原JSON相同（content 映射中其他键的顺序可能不同）
+        assertEquals(GSON.fromJson(encode(message), JsonObject.class),
+                GSON.fromJson(encode(decoded), JsonObject.class));
+    }
+
+    @Test
+    void decodesJsonWrittenByGson() {
+        // Gson 默认把 < > & = ' 写成 \\u 转义，非BMP字符可能是代理对转义
+        JsonObject content = new JsonObject();
+        content.addProperty("text", TEXT);
+        content.addProperty("chunkIndex", -1);
+        content.addProperty("escaped", "😀");
+        content.addProperty("ratio", -0.5);
+        JsonObject json = new JsonObject();
+        json.addProperty("type", "FILE_ACK");
+        json.addProperty("sender", "bob");
+        json.addProperty("timestamp", 1234567890123L);
+        json.addProperty("unknown", "ignored");
+        json.add("content", content);
+        String text = GSON.toJson(json).replace("😀", "\\ud83d\\ude00");
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        Message fromString = MessageCodec.decode(text);
+        Message fromArray = MessageCodec.decode(bytes, 0, bytes.length);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 8);
+        direct.position(5);
+        direct.put(bytes);
+        Message fromDirect = MessageCodec.decode(direct, 5, bytes.length);
+        for (Message message : new Message[]{fromString, fromArray, fromDirect}) {
+            assertEquals(MessageType.FILE_ACK, message.getType());
+            assertEquals("bob", message.getSender());
+            assertEquals(1234567890123L, message.getTimestamp());
+            assertEquals(TEXT, message.getText());
+            // 确认回执中的 -1 是有效值，与“没有该字段”不同
+            assertEquals(-1, message.getChunkIndex());
+            assertEquals(Integer.valueOf(-1), message.getContentInt("chunkIndex"));
+            assertEquals("😀", message.getContentString("escaped"));
+            assertEquals(-0.5, message.getContent().get("ratio"));
+            assertNull(message.getFilename());
+            assertEquals(-1, message.getTotalChunks());
+        }
+    }
+
+    @Test
+    void blankAndNullDecodeToNull() {
+        assertNull(MessageCodec.decode("   "));
+        assertNull(MessageCodec.decode("null"));
+    }
+}
@@ -0,0 +1,146 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import common.Group;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * 群组存储的日志重放与崩溃恢复
+ */
+class GroupStoreTest {
+    @TempDir
+    Path dir;
+
+    private static GroupStore store(Path directory) {
+        // 测试期间不触发快照，日志保留全部变更
+        return new GroupStore(directory, true, false, 3_600_000, 1_000_000);
+    }
+
+    /**
+     * 创建、加人、移除、删除各做一遍，等写线程写完后返回群组状态
+     */
+    private static Map<String, Set<String>> mutate(GroupManager manager, GroupStore store) throws Exception {
+        Group g1 = manager.createGroup("g1", "alice", Arrays.asList("alice", "bob", "carol"));
+        manager.createGroup("g2", "dave", Arrays.asList("dave", "erin"));
+        Group g3 = manager.createGroup("g3", "x", Arrays.asList("x", "y"));
+        assertTrue(manager.addMemberToGroup(g1.getGroupId(), "frank"));
+        assertTrue(manager.removeMemberFromGroup(g1.getGroupId(), "bob"));
+        manager.deleteGroup(g3.getGroupId());
+        store.awaitWritten();
+        return state(manager.getAllGroups());
+    }
+
+    private static Map<String, Set<String>> state(Collection<Group> groups) {
+        Map<String, Set<String>> state = new HashMap<>();
+        for (Group group : groups) {
+            state.put(group.getGroupId(), new HashSet<>(group.getMembers()));
+        }
+        return state;
+    }
+
+    private static Map<String, Set<String>> reopen(Path directory) throws IOException {
+        GroupStore store = store(directory);
+        try {
+            return state(store.open(Collections::emptyList));
+        } finally {
+            store.close();
+        }
+    }
+
+    private static Path latest(Path directory, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.toString().endsWith(suffix)).sorted()
+                    .reduce((a, b) -> b).orElseThrow();
+        }
+    }
+
+    private static void copy(Path from, Path to) throws IOException {
+        Files.createDirectories(to);
+        try (Stream<Path> files = Files.list(from)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, to.resolve(file.getFileName()));
+            }
+        }
+    }
+
+    @Test
+    void tornWalTailIsTruncatedOnReopen() throws Exception {
+        Path live = dir.resolve("live");
+        GroupStore store = store(live);
+        GroupManager manager = new GroupManager(store);
+        manager.open();
+        Map<String, Set<String>> expected = mutate(manager, store);
+
+        // 模拟崩溃：不关闭存储，直接复制目录，并在日志末尾留下写了一半的记录
+        Path crashed = dir.resolve("crashed");
+        copy(live, crashed);
+        manager.close();
+        Path wal = latest(crashed, ".wal");
+        long size = Files.size(wal);
+        assertTrue(size > 0);
+        try (FileChannel channel = FileChannel.open(wal, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer torn = ByteBuffer.allocate(12);
+            torn.putInt(100).putInt(0x12345678).putInt(0x01020304).flip();
+            channel.write(torn);
+        }
+
+        GroupStore recovered = store(crashed);
+        GroupManager recoveredManager = new GroupManager(recovered);
+        recoveredManager.open();
+        assertEquals(expected, state(recoveredManager.getAllGroups()));
+        assertEquals(size, Files.size(wal));
+
+        // 截断后继续追加的记录可以正常重放
+        String g2 = recoveredManager.getAllGroups().stream()
+                .filter(g -> g.getMembers().contains("dave")).findFirst().orElseThrow().getGroupId();
+        assertTrue(recoveredManager.addMemberToGroup(g2, "zoe"));
+        recovered.awaitWritten();
+        expected.get(g2).add("zoe");
+        recoveredManager.close();
+        assertEquals(expected, reopen(crashed));
+    }
+
+    @Test
+    void snapshotOverlappingWalIsReplayedIdempotently() throws Exception {
+        Path live = dir.resolve("live");
+        GroupStore store = store(live);
+        GroupManager manager = new GroupManager(store);
+        manager.open();
+        Map<String, Set<String>> expected = mutate(manager, store);
+        byte[] records = Files.readAllBytes(latest(live, ".wal"));
+        assertTrue(records.length > 0);
+
+        // 关闭时写入的快照已经包含全部变更；模拟快照期间又写进新日志的记录，
+        // 把同样的变更放进快照之后的日志，重放结果不变
+        manager.close();
+        Path snapshot = latest(live, ".snapshot");
+        String name = snapshot.getFileName().toString();
+        Path wal = live.resolve(name.substring(0, name.length() - ".snapshot".length()) + ".wal");
+        Files.write(wal, records);
+
+        Map<String, Set<String>> replayed = reopen(live);
+        assertEquals(expected, replayed);
+        List<String> members = new ArrayList<>();
+        replayed.values().forEach(members::addAll);
+        assertTrue(members.contains("frank") && !members.contains("bob") && !members.contains("x"));
+    }
+}
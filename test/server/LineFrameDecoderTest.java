@@ -0,0 +1,80 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.gson.JsonParseException;
+import common.Message;
+import common.MessageCodec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 换行分隔帧的增量解码
+ */
+class LineFrameDecoderTest {
+
+    private static List<Message> decodeInChunks(byte[] stream, int chunk) throws IOException {
+        LineFrameDecoder decoder = new LineFrameDecoder(64 * 1024);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunk);
+        List<Message> messages = new ArrayList<>();
+        for (int offset = 0; offset < stream.length; offset += chunk) {
+            buffer.clear();
+            buffer.put(stream, offset, Math.min(chunk, stream.length - offset)).flip();
+            for (Message message; (message = decoder.next(buffer)) != null; ) {
+                messages.add(message);
+            }
+        }
+        assertEquals(0, decoder.getPendingBytes());
+        return messages;
+    }
+
+    @Test
+    void framesSplitAcrossReadsDecodeInOrder() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String text = "第" + i + "条 😀 \"x\"";
+            texts.add(text);
+            byte[] line = MessageCodec.encodeJsonLine(
+                    Message.createTextMessage("alice", "bob", Message.TargetType.USER, text));
+            if (i % 3 == 0) {
+                // CRLF 结尾和空行
+                stream.write(line, 0, line.length - 1);
+                stream.write("\r\n\r\n\n".getBytes(StandardCharsets.US_ASCII));
+            } else {
+                stream.write(line);
+            }
+        }
+        for (int chunk : new int[]{1, 7, 4096}) {
+            List<Message> messages = decodeInChunks(stream.toByteArray(), chunk);
+            assertEquals(texts.size(), messages.size());
+            for (int i = 0; i < texts.size(); i++) {
+                assertEquals(texts.get(i), messages.get(i).getText());
+            }
+        }
+    }
+
+    @Test
+    void malformedFrameIsSkipped() throws IOException {
+        LineFrameDecoder decoder = new LineFrameDecoder(1024);
+        byte[] good = MessageCodec.encodeJsonLine(
+                Message.createTextMessage("alice", "bob", Message.TargetType.USER, "ok"));
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.put("{\"type\":\n".getBytes(StandardCharsets.US_ASCII)).put(good).flip();
+        assertThrows(JsonParseException.class, () -> decoder.next(buffer));
+        assertEquals("ok", decoder.next(buffer).getText());
+    }
+
+    @Test
+    void oversizedFrameIsRejected() {
+        LineFrameDecoder decoder = new LineFrameDecoder(16);
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[64]);
+        assertThrows(IOException.class, () -> decoder.next(buffer));
+    }
+}
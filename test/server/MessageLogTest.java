@@ -0,0 +1,113 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import common.Message;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * 消息日志的崩溃恢复与分页读取
+ */
+class MessageLogTest {
+    private static final String CONVERSATION = MessageLog.userConversation("alice", "bob");
+
+    @TempDir
+    Path dir;
+
+    private MessageLog open() throws IOException {
+        MessageLog log = new MessageLog(dir, true, 64 * 1024, Long.MAX_VALUE, 0, false, 4, 1024);
+        log.open();
+        return log;
+    }
+
+    private static void append(MessageLog log, int from, int count) throws InterruptedException {
+        long last = -1;
+        for (int i = from; i < from + count; i++) {
+            Message message = Message.createTextMessage("alice", "bob", Message.TargetType.USER, "m" + i);
+            last = log.append(message, OutboundFrame.of(message), CONVERSATION);
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (log.getCommittedSeq() < last && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(last, log.getCommittedSeq());
+    }
+
+    private Path activeSegment() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(LogSegment.LOG_SUFFIX)).sorted()
+                    .reduce((a, b) -> b).orElseThrow();
+        }
+    }
+
+    @Test
+    void tornTailIsTruncatedAndAppendingContinues() throws Exception {
+        MessageLog log = open();
+        append(log, 0, 100);
+        log.close();
+
+        // 模拟崩溃：删除关闭标记，并在活动段末尾留下写了一半的记录
+        Files.deleteIfExists(dir.resolve(".clean"));
+        Path segment = activeSegment();
+        long validSize = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer torn = ByteBuffer.allocate(20);
+            torn.putInt(500).putInt(0x12345678).putLong(101);
+            torn.flip();
+            channel.write(torn);
+        }
+
+        log = open();
+        assertEquals(validSize, Files.size(segment));
+        List<Message> messages = log.read(CONVERSATION, 0, 1000);
+        assertEquals(100, messages.size());
+        assertEquals("m0", messages.get(0).getText());
+        assertEquals("m99", messages.get(99).getText());
+
+        // 未正常关闭时跳过可能已分配出去的序号，新消息的序号大于恢复前的所有消息
+        append(log, 100, 5);
+        messages = log.read(CONVERSATION, 0, 1000);
+        assertEquals(105, messages.size());
+        assertTrue(messages.get(100).getSeq() > messages.get(99).getSeq());
+        log.close();
+    }
+
+    @Test
+    void readBeforePagesBackwardsAcrossSegments() throws Exception {
+        MessageLog log = open();
+        // 每段 64KB，足以滚动出多个段
+        append(log, 0, 3000);
+
+        long before = Long.MAX_VALUE;
+        int expected = 2999;
+        int pages = 0;
+        while (true) {
+            List<Message> page = log.readBefore(CONVERSATION, before, 128, Long.MAX_VALUE);
+            if (page.isEmpty()) {
+                break;
+            }
+            for (Message message : page) {
+                assertEquals("m" + expected--, message.getText());
+            }
+            before = page.get(page.size() - 1).getSeq();
+            // 除最后一页外每页都是满的
+            assertTrue(page.size() == 128 || expected < 0);
+            pages++;
+        }
+        assertEquals(-1, expected);
+        assertTrue(pages > 1);
+        assertFalse(log.hasBefore(CONVERSATION, before));
+        log.close();
+    }
+}
@@ -0,0 +1,83 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import common.Message;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * 离线收件箱只为登录过的用户记录
+ */
+class OfflineInboxTest {
+    @TempDir
+    Path dir;
+
+    private long seq;
+
+    private OfflineInbox open(int maxInboxes) throws IOException {
+        // 测试中的用户都不在线，不会触发投递，不需要消息日志
+        OfflineInbox inbox = new OfflineInbox(dir, new ClientManager(), null, null, 100, maxInboxes, 60_000, 16);
+        inbox.init();
+        return inbox;
+    }
+
+    private boolean add(OfflineInbox inbox, String target) {
+        Message message = Message.createTextMessage("alice", target, Message.TargetType.USER, "hi");
+        message.setSeq(++seq);
+        return inbox.add(target, message, MessageLog.userConversation("alice", target));
+    }
+
+    private long inboxFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".inbox")).count();
+        }
+    }
+
+    @Test
+    void unknownUserIsNotQueued() throws IOException {
+        OfflineInbox inbox = open(10);
+        assertFalse(add(inbox, "nobody"));
+        assertEquals(0, inbox.size("nobody"));
+        inbox.shutdown();
+        assertEquals(0, inboxFiles());
+    }
+
+    @Test
+    void knownUsersSurviveRestart() throws IOException {
+        OfflineInbox inbox = open(10);
+        inbox.userLoggedIn("bob");
+        assertTrue(add(inbox, "bob"));
+        inbox.shutdown();
+
+        // 崩溃时写了一半的名单记录
+        Files.write(dir.resolve("known-users"), new byte[]{0, 9, 'c'}, StandardOpenOption.APPEND);
+        long size = Files.size(dir.resolve("known-users"));
+        inbox = open(10);
+        assertEquals(1, inbox.size("bob"));
+        assertTrue(add(inbox, "bob"));
+        assertEquals(2, inbox.size("bob"));
+        assertFalse(add(inbox, "carol"));
+        assertEquals(size - 3, Files.size(dir.resolve("known-users")));
+        inbox.shutdown();
+    }
+
+    @Test
+    void inboxCountIsCapped() throws IOException {
+        OfflineInbox inbox = open(1);
+        inbox.userLoggedIn("bob");
+        inbox.userLoggedIn("carol");
+        assertTrue(add(inbox, "bob"));
+        assertFalse(add(inbox, "carol"));
+        assertTrue(add(inbox, "bob"));
+        inbox.shutdown();
+        assertEquals(1, inboxFiles());
+    }
+}